@@ -45,6 +45,11 @@ public enum Argument {
     NO_PRIVATE_CHAT(null, "--no-private-chat", "Disables private chat.", false),
     ALWAYS_LOG(null, "--always-log", "Enables logging, without option to disable.", false),
     LOG_LOCATION(null, "--log-location", "Location to store log files.", true),
+    NIO_NETWORK(null, "--nio-network", "Handles all network traffic in a single thread.", false),
+    RECEIVE_BUFFER(null, "--recv-buffer", "Size in bytes of the network receive buffers.", true),
+    BATCH_WINDOW(null, "--batch-window", "Milliseconds to wait for small messages to send together.", true),
+    TCP_LINKS(null, "--tcp-links", "Number of nearby users to keep a tcp connection to, instead of all.", true),
+    RECEIVE_LANES(null, "--recv-lanes", "Number of threads handling messages, one user per thread.", true),
     UNKNOWN(null, null, null, false);
 
     private final String shortArgumentName;
@@ -39,6 +39,11 @@ public class ArgumentSettingsLoader {
      *   <li>--always-log ({@link Settings#isAlwaysLog()}</li>
      *   <li>--no-private-chat ({@link Settings#isNoPrivateChat()}</li>
      *   <li>--log-location ({@link Settings#getLogLocation()}</li>
+     *   <li>--nio-network ({@link Settings#isNioNetwork()}</li>
+     *   <li>--recv-buffer ({@link Settings#getReceiveBufferSize()}</li>
+     *   <li>--batch-window ({@link Settings#getBatchWindow()}</li>
+     *   <li>--tcp-links ({@link Settings#getTcpLinks()}</li>
+     *   <li>--recv-lanes ({@link Settings#getReceiveLanes()}</li>
      * </ul>
      *
      * @param argumentParser The parsed arguments.
@@ -51,5 +56,40 @@ public class ArgumentSettingsLoader {
         if (argumentParser.hasArgument(Argument.LOG_LOCATION)) {
             settings.setLogLocation(argumentParser.getArgument(Argument.LOG_LOCATION).getValue());
         }
+
+        settings.setNioNetwork(argumentParser.hasArgument(Argument.NIO_NETWORK));
+
+        if (argumentParser.hasArgument(Argument.RECEIVE_BUFFER)) {
+            settings.setReceiveBufferSize(
+                    parsePositiveInt(argumentParser.getArgument(Argument.RECEIVE_BUFFER).getValue()));
+        }
+
+        if (argumentParser.hasArgument(Argument.BATCH_WINDOW)) {
+            settings.setBatchWindow(parsePositiveInt(argumentParser.getArgument(Argument.BATCH_WINDOW).getValue()));
+        }
+
+        if (argumentParser.hasArgument(Argument.TCP_LINKS)) {
+            settings.setTcpLinks(parsePositiveInt(argumentParser.getArgument(Argument.TCP_LINKS).getValue()));
+        }
+
+        if (argumentParser.hasArgument(Argument.RECEIVE_LANES)) {
+            settings.setReceiveLanes(parsePositiveInt(argumentParser.getArgument(Argument.RECEIVE_LANES).getValue()));
+        }
+    }
+
+    /**
+     * Parses the value of an argument that must be a positive number.
+     *
+     * @param value The value to parse.
+     * @return The parsed number, or 0 if the value is not a positive number.
+     */
+    private int parsePositiveInt(final String value) {
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        }
+
+        catch (final NumberFormatException e) {
+            return 0;
+        }
     }
 }
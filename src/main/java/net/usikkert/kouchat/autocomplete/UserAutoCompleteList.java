@@ -22,9 +22,10 @@
 
 package net.usikkert.kouchat.autocomplete;
 
-import net.usikkert.kouchat.event.UserListListener;
-import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.event.UserListChangeListener;
 import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.misc.UserListChanges;
+import net.usikkert.kouchat.misc.UserListSnapshot;
 import net.usikkert.kouchat.util.Tools;
 
 /**
@@ -32,33 +33,19 @@ import net.usikkert.kouchat.util.Tools;
  *
  * @author Christian Ihle
  */
-public class UserAutoCompleteList implements AutoCompleteList, UserListListener {
-
-    /** The real user list. */
-    private final UserList userList;
+public class UserAutoCompleteList implements AutoCompleteList, UserListChangeListener {
 
     /** A simple array with users, for use in auto completion. */
-    private String[] users;
+    private volatile String[] users;
 
     /**
-     * Constructor. Registers itself as a user list listener.
+     * Constructor. Registers itself as a user list change listener.
      *
      * @param userList The list of online users.
      */
     public UserAutoCompleteList(final UserList userList) {
-        this.userList = userList;
-        userList.addUserListListener(this);
-        updateWords();
-    }
-
-    /**
-     * Updates the list of users.
-     *
-     * {@inheritDoc}
-     */
-    @Override
-    public void userAdded(final int pos, final User user) {
-        updateWords();
+        userList.addUserListChangeListener(this);
+        updateWords(userList.getSnapshot());
     }
 
     /**
@@ -67,30 +54,24 @@ public class UserAutoCompleteList implements AutoCompleteList, UserListListener
      * {@inheritDoc}
      */
     @Override
-    public void userChanged(final int pos, final User user) {
-        updateWords();
+    public void userListChanged(final UserListChanges changes) {
+        updateWords(changes.getSnapshot());
     }
 
     /**
-     * Updates the list of users.
-     *
-     * {@inheritDoc}
-     */
-    @Override
-    public void userRemoved(final int pos, final User user) {
-        updateWords();
-    }
-
-    /**
-     * Iterates through the user list, and adds all the nick names to the
+     * Iterates through the snapshot of the user list, and adds all the nick names to the
      * list of words.
+     *
+     * @param snapshot The users in the user list.
      */
-    private void updateWords() {
-        users = new String[userList.size()];
+    private void updateWords(final UserListSnapshot snapshot) {
+        final String[] nicks = new String[snapshot.size()];
 
-        for (int i = 0; i < userList.size(); i++) {
-            users[i] = userList.get(i).getNick();
+        for (int i = 0; i < nicks.length; i++) {
+            nicks[i] = snapshot.get(i).getNick();
         }
+
+        users = nicks;
     }
 
     /**
@@ -0,0 +1,44 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.event;
+
+import net.usikkert.kouchat.misc.UserListChanges;
+
+/**
+ * This interface can be used to be notified about changes to the user list
+ * in batches, instead of one change at a time like with {@link UserListListener}.
+ *
+ * <p>Changes are collected for a short while, and changes to the same user are merged,
+ * so a listener gets at most one notification for each frame in the user interface.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface UserListChangeListener {
+
+    /**
+     * The user list has changed since the last notification.
+     *
+     * @param changes The merged changes, with the user list before and after.
+     */
+    void userListChanged(UserListChanges changes);
+}
@@ -28,6 +28,8 @@ import java.util.List;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.net.ConnectionWorker;
+import net.usikkert.kouchat.net.InboundRateLimiter;
+import net.usikkert.kouchat.net.tcp.TCPWriteStatistics;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
@@ -53,18 +55,23 @@ public class JMXBeanLoader {
      *
      * @param controller The controller.
      * @param connectionWorker The connection worker.
+     * @param inboundRateLimiter The rate limiter for messages from the network.
+     * @param tcpWriteStatistics The statistics for the tcp write queues.
      * @param settings The settings.
      * @param errorHandler The error handler to use.
      */
     public JMXBeanLoader(final Controller controller, final ConnectionWorker connectionWorker,
+                         final InboundRateLimiter inboundRateLimiter, final TCPWriteStatistics tcpWriteStatistics,
                          final Settings settings, final ErrorHandler errorHandler) {
         Validate.notNull(controller, "Controller can not be null");
         Validate.notNull(connectionWorker, "ConnectionWorker can not be null");
+        Validate.notNull(inboundRateLimiter, "Inbound rate limiter can not be null");
+        Validate.notNull(tcpWriteStatistics, "TCP write statistics can not be null");
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         jmxBeans = Arrays.asList(
-                new NetworkInformation(connectionWorker, settings, errorHandler),
+                new NetworkInformation(connectionWorker, inboundRateLimiter, tcpWriteStatistics, settings, errorHandler),
                 new ControllerInformation(controller),
                 new GeneralInformation(settings));
     }
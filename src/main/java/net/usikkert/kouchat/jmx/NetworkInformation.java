@@ -29,8 +29,10 @@ import java.util.List;
 
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.net.ConnectionWorker;
+import net.usikkert.kouchat.net.InboundRateLimiter;
 import net.usikkert.kouchat.net.NetworkUtils;
 import net.usikkert.kouchat.net.OperatingSystemNetworkInfo;
+import net.usikkert.kouchat.net.tcp.TCPWriteStatistics;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
@@ -46,6 +48,12 @@ public class NetworkInformation implements NetworkInformationMBean {
     /** Information and control of the network. */
     private final ConnectionWorker connectionWorker;
 
+    /** Counts the messages shed from senders flooding the network. */
+    private final InboundRateLimiter inboundRateLimiter;
+
+    /** Counts what happens to the tcp write queues. */
+    private final TCPWriteStatistics tcpWriteStatistics;
+
     private final Settings settings;
     private final ErrorHandler errorHandler;
 
@@ -53,16 +61,23 @@ public class NetworkInformation implements NetworkInformationMBean {
      * Constructor.
      *
      * @param connectionWorker To get information about the network, and control the network.
+     * @param inboundRateLimiter To get information about shed messages.
+     * @param tcpWriteStatistics To get information about the tcp write queues.
      * @param settings The settings to use.
      * @param errorHandler The error handler to use.
      */
-    public NetworkInformation(final ConnectionWorker connectionWorker, final Settings settings,
+    public NetworkInformation(final ConnectionWorker connectionWorker, final InboundRateLimiter inboundRateLimiter,
+                              final TCPWriteStatistics tcpWriteStatistics, final Settings settings,
                               final ErrorHandler errorHandler) {
         Validate.notNull(connectionWorker, "Connection worker can not be null");
+        Validate.notNull(inboundRateLimiter, "Inbound rate limiter can not be null");
+        Validate.notNull(tcpWriteStatistics, "TCP write statistics can not be null");
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.connectionWorker = connectionWorker;
+        this.inboundRateLimiter = inboundRateLimiter;
+        this.tcpWriteStatistics = tcpWriteStatistics;
         this.settings = settings;
         this.errorHandler = errorHandler;
     }
@@ -145,6 +160,26 @@ public class NetworkInformation implements NetworkInformationMBean {
         return list.toArray(new String[list.size()]);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] showShedMessages() {
+        return inboundRateLimiter.getShedCounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] showTcpWriteQueues() {
+        return new String[] {
+                "Dropped messages: " + tcpWriteStatistics.getDroppedMessages(),
+                "Disconnected clients: " + tcpWriteStatistics.getDisconnectedClients(),
+                "Longest queue: " + tcpWriteStatistics.getLongestQueue()
+        };
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -63,6 +63,22 @@ public interface NetworkInformationMBean extends JMXBean {
      */
     String[] showAllNetworks() throws SocketException;
 
+    /**
+     * Shows the number of messages shed because the sender was flooding the network,
+     * for each class of messages and for each sender.
+     *
+     * @return A string with information for each class and sender.
+     */
+    String[] showShedMessages();
+
+    /**
+     * Shows how well the slowest tcp connections keep up with the messages sent to them,
+     * like the number of messages dropped and connections closed because the write queue was full.
+     *
+     * @return A string with information for each statistic.
+     */
+    String[] showTcpWriteQueues();
+
     /**
      * Disconnects from the network, without logging off.
      */
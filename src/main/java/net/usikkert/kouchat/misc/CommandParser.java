@@ -617,7 +617,7 @@ public class CommandParser {
      * <p>Shows a list of connected users.</p>
      */
     private void cmdUsers() {
-        final UserList list = controller.getUserList();
+        final UserListSnapshot list = controller.getUserList().getSnapshot();
         String userList = "";
 
         for (int i = 0; i < list.size(); i++) {
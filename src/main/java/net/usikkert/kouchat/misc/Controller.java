@@ -22,6 +22,7 @@
 
 package net.usikkert.kouchat.misc;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import net.usikkert.kouchat.Constants;
@@ -133,6 +134,7 @@ public class Controller implements NetworkConnectionListener {
         idleThread = new IdleThread(this, ui, settings);
         dayTimer = new DayTimer(ui);
         networkService = new NetworkService(this, settings, errorHandler);
+        networkService.registerWaitingList(wList);
         final MessageResponder msgResponder = new DefaultMessageResponder(this, ui, settings, coreMessages);
         final AsyncMessageResponderWrapper msgResponderWrapper = new AsyncMessageResponderWrapper(msgResponder, this);
         final PrivateMessageResponder privmsgResponder = new DefaultPrivateMessageResponder(this, ui, settings);
@@ -151,6 +153,16 @@ public class Controller implements NetworkConnectionListener {
     public void start() {
         dayTimer.startTimer();
         idleThread.start();
+        networkMessages.start(new NetworkMessages.SendFailureListener() {
+            @Override
+            public void sendFailed(@Nullable final User user, final String infoMsg) {
+                if (user == null) {
+                    msgController.showSystemMessage(infoMsg);
+                } else {
+                    msgController.showPrivateSystemMessage(user, infoMsg);
+                }
+            }
+        });
 
         msgController.showSystemMessage(coreMessages.getMessage("core.startup.systemMessage.welcome",
                                                                 Constants.APP_NAME));
@@ -337,6 +349,24 @@ public class Controller implements NetworkConnectionListener {
         userListController.changeNickName(code, nick);
     }
 
+    /**
+     * Notifies that a sign of life, like an idle message, has arrived from the user.
+     *
+     * @param user The user that sent a message.
+     */
+    public void userSeen(final User user) {
+        networkService.userSeen(user);
+    }
+
+    /**
+     * Notifies that the client information of the user has been updated, like the tcp port.
+     *
+     * @param code The user code for the user.
+     */
+    public void clientInfoChanged(final int code) {
+        userListController.clientInfoChanged(code);
+    }
+
     /**
      * Saves the current settings.
      */
@@ -409,6 +439,7 @@ public class Controller implements NetworkConnectionListener {
         chatState.setLoggedOn(false);
         chatState.setLogonCompleted(false);
         networkService.disconnect();
+        wList.stop();
 
         getTopic().resetTopic();
 
@@ -426,16 +457,15 @@ public class Controller implements NetworkConnectionListener {
      * and removes them from the user list.
      */
     private void removeAllUsers() {
-        final UserList userList = getUserList();
-
-        for (int i = 0; i < userList.size(); i++) {
-            final User user = userList.get(i);
+        final List<User> users = new ArrayList<>();
 
+        for (final User user : getUserList().getSnapshot()) {
             if (!user.isMe()) {
-                removeUser(user, coreMessages.getMessage("core.network.systemMessage.meLogOff"));
-                i--;
+                users.add(user);
             }
         }
+
+        removeUsers(users, coreMessages.getMessage("core.network.systemMessage.meLogOff"));
     }
 
     /**
@@ -452,7 +482,31 @@ public class Controller implements NetworkConnectionListener {
         user.setOnline(false);
         cancelFileTransfers(user);
         userList.remove(user);
+        notifyPrivateChatAboutRemovedUser(user, privateSystemMessage);
+    }
+
+    /**
+     * Removes many users from the user list at once, and cleans up the state, like {@link #removeUser(User, String)}.
+     *
+     * <p>The users are removed from the user list in one operation, so the user interface is only updated once.</p>
+     *
+     * @param users The users to remove.
+     * @param privateSystemMessage The system message to show in the private chat window for each user.
+     */
+    public void removeUsers(final List<User> users, final String privateSystemMessage) {
+        for (final User user : users) {
+            user.setOnline(false);
+            cancelFileTransfers(user);
+        }
 
+        getUserList().removeAll(users);
+
+        for (final User user : users) {
+            notifyPrivateChatAboutRemovedUser(user, privateSystemMessage);
+        }
+    }
+
+    private void notifyPrivateChatAboutRemovedUser(final User user, final String privateSystemMessage) {
         if (user.getPrivchat() != null) {
             msgController.showPrivateSystemMessage(user, privateSystemMessage);
             user.getPrivchat().setLoggedOff();
@@ -462,11 +516,7 @@ public class Controller implements NetworkConnectionListener {
     }
 
     private void closeAllUserResources() {
-        final UserList userList = getUserList();
-
-        for (int i = 0; i < userList.size(); i++) {
-            final User user = userList.get(i);
-
+        for (final User user : getUserList().getSnapshot()) {
             cancelFileTransfers(user);
             closePrivateChatLogger(user);
         }
@@ -510,6 +560,8 @@ public class Controller implements NetworkConnectionListener {
     private void doShutdown() {
         idleThread.stopThread();
         dayTimer.stopTimer();
+        wList.stop();
+        networkMessages.stop();
         msgController.shutdown();
     }
 
@@ -862,7 +914,8 @@ public class Controller implements NetworkConnectionListener {
      * @return A JMX bean loader.
      */
     public JMXBeanLoader createJMXBeanLoader() {
-        return new JMXBeanLoader(this, networkService.getConnectionWorker(), settings, errorHandler);
+        return new JMXBeanLoader(this, networkService.getConnectionWorker(), networkService.getInboundRateLimiter(),
+                                 networkService.getTcpWriteStatistics(), settings, errorHandler);
     }
 
     public void registerNetworkConnectionListener(final NetworkConnectionListener listener) {
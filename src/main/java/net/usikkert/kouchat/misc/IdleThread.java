@@ -22,6 +22,7 @@
 
 package net.usikkert.kouchat.misc;
 
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +38,9 @@ import net.usikkert.kouchat.util.Validate;
  * and if that is the case, remove them and show a message
  * in the user interface.
  *
+ * <p>The users are kept in a {@link UserTimeoutQueue}, sorted by when they will time out,
+ * so the thread can wake up close to the next timeout without going through all the users.</p>
+ *
  * @author Christian Ihle
  */
 public class IdleThread extends Thread {
@@ -58,7 +62,7 @@ public class IdleThread extends Thread {
     private static final int TIMEOUT = 120000;
 
     private final Controller controller;
-    private final UserList userList;
+    private final UserTimeoutQueue timeoutQueue;
     private final User me;
     private final MessageController msgController;
 
@@ -79,7 +83,11 @@ public class IdleThread extends Thread {
 
         this.controller = controller;
 
-        userList = controller.getUserList();
+        final UserList userList = controller.getUserList();
+        timeoutQueue = new UserTimeoutQueue(TIMEOUT);
+        userList.addUserListListener(timeoutQueue);
+        timeoutQueue.addUsers(userList.getSnapshot());
+
         me = settings.getMe();
         msgController = ui.getMessageController();
 
@@ -99,26 +107,31 @@ public class IdleThread extends Thread {
         // In case of any error messages during startup
         me.setLastIdle(System.currentTimeMillis());
 
+        long nextIdleMessage = 0;
+
         while (run) {
-            controller.sendIdleMessage();
-            boolean timeout = false;
+            final long now = System.currentTimeMillis();
 
-            for (int i = 0; i < userList.size(); i++) {
-                final User temp = userList.get(i);
+            if (now >= nextIdleMessage) {
+                controller.sendIdleMessage();
+                nextIdleMessage = now + IDLE_TIME;
+            }
+
+            final List<User> timedOutUsers = timeoutQueue.removeTimedOutUsers(now);
 
-                if (temp.getCode() != me.getCode() && temp.getLastIdle() < System.currentTimeMillis() - TIMEOUT) {
-                    userTimedOut(temp);
-                    timeout = true;
-                    i--;
-                }
+            for (final User user : timedOutUsers) {
+                userTimedOut(user);
             }
 
-            if (timeout) {
+            if (!timedOutUsers.isEmpty()) {
                 controller.updateAfterTimeout();
             }
 
+            // Wakes up for the next idle message, or the next timeout if it's before that
+            final long wakeUp = Math.min(nextIdleMessage, timeoutQueue.getNextTimeout());
+
             try {
-                sleep(IDLE_TIME);
+                sleep(Math.max(1, wakeUp - System.currentTimeMillis()));
             }
 
             // Sleep interrupted - probably from stopThread()
@@ -23,10 +23,20 @@
 package net.usikkert.kouchat.misc;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.usikkert.kouchat.event.UserListChangeListener;
 import net.usikkert.kouchat.event.UserListListener;
+import net.usikkert.kouchat.util.Logger;
 import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
@@ -37,26 +47,101 @@ import org.jetbrains.annotations.Nullable;
  * <p>The users in the list are sorted by nick name,
  * as specified in {@link User#compareTo(User)}.</p>
  *
+ * <p>The users are kept in a {@link UserTree}, so adding, removing, changing and finding
+ * the position of a user takes O(log n) time, instead of sorting the whole list.
+ * A user can only be in the list once.</p>
+ *
+ * <p>The users are also indexed by code and by nick name, so they can be found
+ * in constant time.</p>
+ *
+ * <p>The list is thread safe. Changes are done one at a time, and reading is done without locking,
+ * from a {@link UserListSnapshot} that is made again after changes, the first time it's needed.
+ * A burst of changes, like users starting and stopping to write, only costs one new snapshot
+ * when the list is read again. Use {@link #getSnapshot()} to go through the users, since the list
+ * may change between calls to {@link #size()} and {@link #get(int)}.</p>
+ *
+ * <p>Listeners are notified after the lock is released, so a listener can take other locks or
+ * wait for other threads without blocking the list. The events are queued in the order of the changes,
+ * and delivered by one thread at a time, so the positions in the events are correct when
+ * they are handled in order. A change can return before the listeners are notified,
+ * if another thread is busy notifying them. The listeners are then notified by that thread,
+ * so listeners must not expect to be notified before the change returns.</p>
+ *
+ * <p>A {@link UserListChangeListener} gets the changes in batches instead, at most once every
+ * {@link #CHANGE_DELAY} milliseconds. That way a burst of changes, like when many users log off
+ * at the same time, gives only one update of the user interface.</p>
+ *
  * @author Christian Ihle
  */
 public class SortedUserList implements UserList {
 
-    /** The list of users in the chat. */
-    private final List<User> userList;
+    /** Milliseconds to collect changes before notifying the change listeners. About one frame at 30 fps. */
+    static final int CHANGE_DELAY = 33;
+
+    private static final Logger LOG = Logger.getLogger(SortedUserList.class);
+
+    /** The users in the chat, sorted by nick name. Only used while holding the lock. */
+    private final UserTree userTree;
+
+    /** The node in the tree of each user, by user code. */
+    private final Map<Integer, UserTree.Node> nodes;
+
+    /**
+     * The nodes in the tree with the same nick name, ignoring case, in the order they are sorted.
+     * The lists are never changed, only replaced.
+     */
+    private final Map<String, List<UserTree.Node>> nicks;
 
     /** The list of listeners of changes to the user list. */
     private final List<UserListListener> listeners;
 
+    /** The list of listeners of batched changes to the user list. */
+    private final List<UserListChangeListener> changeListeners;
+
+    /** The changes since the change listeners were notified. Only used while holding the lock. */
+    private final UserListChangeBatcher changeBatcher;
+
+    /** Makes sure the change listeners are notified about one batch at a time, in order. */
+    private final Object changeDeliveryLock;
+
+    /** Timer for notifying the change listeners. Created when first needed. */
+    @Nullable
+    private Timer changeTimer;
+
+    /** If the change listeners are going to be notified about the changes collected so far. */
+    private boolean changesScheduled;
+
+    /** The number of changes to the list. */
+    private long version;
+
+    /** The users as they are now, or <code>null</code> if the list has changed since the last snapshot. */
+    @Nullable
+    private volatile UserListSnapshot snapshot;
+
+    /** Notifications to the listeners about changes, waiting to be delivered in order. */
+    private final ConcurrentLinkedQueue<UserListEvent> pendingEvents;
+
+    /** Held by the thread delivering the notifications to the listeners. */
+    private final ReentrantLock eventLock;
+
     /**
      * Constructor.
      */
     public SortedUserList() {
-        userList = new ArrayList<>();
-        listeners = new ArrayList<>();
+        userTree = new UserTree();
+        nodes = new ConcurrentHashMap<>();
+        nicks = new ConcurrentHashMap<>();
+        listeners = new CopyOnWriteArrayList<>();
+        changeListeners = new CopyOnWriteArrayList<>();
+        changeBatcher = new UserListChangeBatcher();
+        changeDeliveryLock = new Object();
+        snapshot = UserListSnapshot.EMPTY;
+        pendingEvents = new ConcurrentLinkedQueue<>();
+        eventLock = new ReentrantLock();
     }
 
     /**
-     * Adds the user, and then sorts the list.
+     * Adds the user at the sorted position. Fails if the user is already in the list.
      *
      * {@inheritDoc}
      */
@@ -64,24 +149,59 @@ public class SortedUserList implements UserList {
     public boolean add(final User user) {
         Validate.notNull(user, "User can not be null");
 
-        final boolean success = userList.add(user);
+        final boolean added;
 
-        if (success) {
-            Collections.sort(userList);
-            fireUserAdded(userList.indexOf(user), user);
+        synchronized (this) {
+            added = addUser(user);
         }
 
-        return success;
+        fireEvents();
+
+        return added;
     }
 
     /**
+     * Adds the users at the sorted positions, skipping users that are already in the list.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public int addAll(final Collection<User> users) {
+        Validate.notNull(users, "Users can not be null");
+
+        for (final User user : users) {
+            Validate.notNull(user, "User can not be null");
+        }
+
+        int added = 0;
+
+        synchronized (this) {
+            for (final User user : users) {
+                if (addUser(user)) {
+                    added++;
+                }
+            }
+
+        }
+
+        fireEvents();
+
+        return added;
+    }
+
+    /**
+     * Gets the user from the current snapshot. Like before snapshots were used, a position
+     * after the end of the list gives <code>null</code>, while a negative position fails.
+     *
      * {@inheritDoc}
      */
     @Nullable
     @Override
     public User get(final int pos) {
-        if (pos < userList.size()) {
-            return userList.get(pos);
+        final UserListSnapshot currentSnapshot = getSnapshot();
+
+        if (pos < currentSnapshot.size()) {
+            return currentSnapshot.get(pos);
         } else {
             return null;
         }
@@ -91,10 +211,16 @@ public class SortedUserList implements UserList {
      * {@inheritDoc}
      */
     @Override
-    public int indexOf(final User user) {
+    public synchronized int indexOf(final User user) {
         Validate.notNull(user, "User can not be null");
 
-        return userList.indexOf(user);
+        final UserTree.Node node = nodes.get(user.getCode());
+
+        if (node == null) {
+            return -1;
+        }
+
+        return userTree.indexOf(node);
     }
 
     /**
@@ -104,18 +230,46 @@ public class SortedUserList implements UserList {
     public boolean remove(final User user) {
         Validate.notNull(user, "User can not be null");
 
-        final int pos = userList.indexOf(user);
-        final boolean success = userList.remove(user);
+        final boolean removed;
+
+        synchronized (this) {
+            removed = removeUser(user);
+        }
+
+        fireEvents();
+
+        return removed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int removeAll(final Collection<User> users) {
+        Validate.notNull(users, "Users can not be null");
+
+        for (final User user : users) {
+            Validate.notNull(user, "User can not be null");
+        }
+
+        int removed = 0;
+
+        synchronized (this) {
+            for (final User user : users) {
+                if (removeUser(user)) {
+                    removed++;
+                }
+            }
 
-        if (success) {
-            fireUserRemoved(pos, user);
         }
 
-        return success;
+        fireEvents();
+
+        return removed;
     }
 
     /**
-     * Sets the user, and then sorts the list.
+     * Sets the user, and then moves it to the sorted position.
      *
      * {@inheritDoc}
      */
@@ -123,9 +277,13 @@ public class SortedUserList implements UserList {
     public User set(final int pos, final User user) {
         Validate.notNull(user, "User can not be null");
 
-        final User oldUser = userList.set(pos, user);
-        Collections.sort(userList);
-        fireUserChanged(userList.indexOf(user), user);
+        final User oldUser;
+
+        synchronized (this) {
+            oldUser = setUser(pos, user);
+        }
+
+        fireEvents();
 
         return oldUser;
     }
@@ -134,8 +292,91 @@ public class SortedUserList implements UserList {
      * {@inheritDoc}
      */
     @Override
+    public boolean update(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        final boolean updated;
+
+        synchronized (this) {
+            updated = updateUser(user);
+        }
+
+        fireEvents();
+
+        return updated;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nullable
+    @Override
+    public User getByCode(final int code) {
+        final UserTree.Node node = nodes.get(code);
+
+        if (node == null) {
+            return null;
+        }
+
+        return node.getUser();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<User> getByNick(final String nick) {
+        Validate.notNull(nick, "Nick can not be null");
+
+        final List<UserTree.Node> nodesWithNick = nicks.get(toNickKey(nick));
+
+        if (nodesWithNick == null) {
+            return Collections.emptyList();
+        }
+
+        final List<User> users = new ArrayList<>(nodesWithNick.size());
+
+        for (final UserTree.Node node : nodesWithNick) {
+            users.add(node.getUser());
+        }
+
+        return users;
+    }
+
+    /**
+     * Gets the size of the current snapshot.
+     *
+     * {@inheritDoc}
+     */
+    @Override
     public int size() {
-        return userList.size();
+        return getSnapshot().size();
+    }
+
+    /**
+     * Gets the users as they are now. The snapshot is shared until the next change. Only locks
+     * to make a new snapshot, the first time it's needed after a change.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public UserListSnapshot getSnapshot() {
+        final UserListSnapshot currentSnapshot = snapshot;
+
+        if (currentSnapshot != null) {
+            return currentSnapshot;
+        }
+
+        synchronized (this) {
+            UserListSnapshot newSnapshot = snapshot;
+
+            if (newSnapshot == null) {
+                newSnapshot = new UserListSnapshot(userTree.toArray(), version);
+                snapshot = newSnapshot;
+            }
+
+            return newSnapshot;
+        }
     }
 
     /**
@@ -158,6 +399,61 @@ public class SortedUserList implements UserList {
         listeners.remove(listener);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void addUserListChangeListener(final UserListChangeListener listener) {
+        Validate.notNull(listener, "UserListChangeListener can not be null");
+
+        if (changeListeners.isEmpty()) {
+            // Changes are only collected when someone is listening
+            changeBatcher.reset(getSnapshot());
+        }
+
+        changeListeners.add(listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void removeUserListChangeListener(final UserListChangeListener listener) {
+        Validate.notNull(listener, "UserListChangeListener can not be null");
+
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * Notifies the change listeners about the changes collected since last time, if any.
+     * This is done by a timer after changes, but can also be done right away.
+     */
+    void deliverChanges() {
+        synchronized (changeDeliveryLock) {
+            final UserListChanges changes;
+
+            synchronized (this) {
+                changesScheduled = false;
+
+                if (!changeBatcher.hasChanges()) {
+                    return;
+                }
+
+                changes = changeBatcher.takeChanges(getSnapshot());
+            }
+
+            for (final UserListChangeListener listener : changeListeners) {
+                try {
+                    listener.userListChanged(changes);
+                }
+
+                catch (final RuntimeException e) {
+                    LOG.severe(e, "Failed to notify listener about changes to the user list");
+                }
+            }
+        }
+    }
+
     /**
      * Returns the current listeners.
      *
@@ -167,36 +463,283 @@ public class SortedUserList implements UserList {
         return Collections.unmodifiableList(listeners);
     }
 
+    private User setUser(final int pos, final User user) {
+        final UserTree.Node oldNode = userTree.get(pos);
+        final User oldUser = oldNode.getUser();
+        removeNode(oldNode);
+
+        // The user can only be in the list once
+        final UserTree.Node existingNode = nodes.get(user.getCode());
+
+        if (existingNode != null) {
+            removeNode(existingNode);
+        }
+
+        final UserTree.Node node = addNode(user);
+        listChanged();
+        fireUserChanged(userTree.indexOf(node), user);
+
+        changeBatcher.userRemoved(oldUser);
+
+        if (existingNode != null) {
+            changeBatcher.userRemoved(existingNode.getUser());
+        }
+
+        changeBatcher.userAdded(user);
+        scheduleChanges();
+
+        return oldUser;
+    }
+
+    private boolean updateUser(final User user) {
+        final UserTree.Node oldNode = nodes.get(user.getCode());
+
+        if (oldNode == null) {
+            return false;
+        }
+
+        removeNode(oldNode);
+        final UserTree.Node node = addNode(user);
+        listChanged();
+        fireUserChanged(userTree.indexOf(node), user);
+
+        changeBatcher.userChanged(user);
+        scheduleChanges();
+
+        return true;
+    }
+
+    private boolean addUser(final User user) {
+        if (nodes.containsKey(user.getCode())) {
+            return false;
+        }
+
+        final UserTree.Node node = addNode(user);
+        listChanged();
+        fireUserAdded(userTree.indexOf(node), user);
+
+        changeBatcher.userAdded(user);
+        scheduleChanges();
+
+        return true;
+    }
+
+    private boolean removeUser(final User user) {
+        final UserTree.Node node = nodes.get(user.getCode());
+
+        if (node == null) {
+            return false;
+        }
+
+        final int pos = userTree.indexOf(node);
+        removeNode(node);
+        listChanged();
+        fireUserRemoved(pos, user);
+
+        changeBatcher.userRemoved(node.getUser());
+        scheduleChanges();
+
+        return true;
+    }
+
+    /**
+     * Makes sure the change listeners are notified about the changes after {@link #CHANGE_DELAY},
+     * unless it's already planned. Changes are thrown away if there are no change listeners.
+     */
+    private void scheduleChanges() {
+        if (changeListeners.isEmpty()) {
+            changeBatcher.reset(UserListSnapshot.EMPTY);
+            return;
+        }
+
+        if (changesScheduled) {
+            return;
+        }
+
+        if (changeTimer == null) {
+            changeTimer = new Timer("UserListChangeTimer", true);
+        }
+
+        changeTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                deliverChanges();
+            }
+        }, CHANGE_DELAY);
+
+        changesScheduled = true;
+    }
+
     /**
-     * Notifies the listeners that a user was added.
+     * Counts the change, and throws away the snapshot so a new one is made when needed.
+     * Readers wait for the lock to make the new snapshot, so they see the whole operation or nothing.
+     */
+    private void listChanged() {
+        version++;
+        snapshot = null;
+    }
+
+    /**
+     * Notifies the listeners about the queued changes, in order. Must be called after the lock is released.
+     *
+     * <p>If another thread is busy notifying, the changes are left for that thread, which checks the queue
+     * again before it stops. The change then returns before the listeners are notified. Waiting for the
+     * other thread instead could deadlock, since the listeners may wait for the thread making the change.</p>
+     */
+    private void fireEvents() {
+        while (!pendingEvents.isEmpty()) {
+            if (!eventLock.tryLock()) {
+                return;
+            }
+
+            try {
+                UserListEvent event;
+
+                while ((event = pendingEvents.poll()) != null) {
+                    for (final UserListListener listener : listeners) {
+                        try {
+                            event.notifyListener(listener);
+                        }
+
+                        // The change is done, so the rest of the listeners must still be notified
+                        catch (final RuntimeException e) {
+                            LOG.severe(e, "Failed to notify listener about a change to the user list");
+                        }
+                    }
+                }
+            }
+
+            finally {
+                eventLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds the user to the tree and the indexes.
+     *
+     * @param user The user to add.
+     * @return The node with the user.
+     */
+    private UserTree.Node addNode(final User user) {
+        final UserTree.Node node = userTree.add(user);
+        nodes.put(user.getCode(), node);
+
+        final String nickKey = toNickKey(node.getNick());
+        final List<UserTree.Node> nodesWithNick = nicks.get(nickKey);
+        final List<UserTree.Node> newNodesWithNick;
+
+        if (nodesWithNick == null) {
+            newNodesWithNick = Collections.singletonList(node);
+        }
+
+        else {
+            // New nodes are sorted after the other nodes with the same nick name
+            newNodesWithNick = new ArrayList<>(nodesWithNick);
+            newNodesWithNick.add(node);
+        }
+
+        nicks.put(nickKey, newNodesWithNick);
+
+        return node;
+    }
+
+    /**
+     * Removes the node from the tree and the indexes, using the nick name the node was added with.
+     *
+     * @param node The node to remove.
+     */
+    private void removeNode(final UserTree.Node node) {
+        userTree.remove(node);
+        nodes.remove(node.getUser().getCode());
+
+        final String nickKey = toNickKey(node.getNick());
+        final List<UserTree.Node> nodesWithNick = nicks.get(nickKey);
+
+        if (nodesWithNick != null) {
+            final List<UserTree.Node> newNodesWithNick = new ArrayList<>(nodesWithNick);
+            newNodesWithNick.remove(node);
+
+            if (newNodesWithNick.isEmpty()) {
+                nicks.remove(nickKey);
+            } else {
+                nicks.put(nickKey, newNodesWithNick);
+            }
+        }
+    }
+
+    /**
+     * Creates the key for the nick name index. Two nick names get the same key if they are
+     * equal ignoring case, like in {@link String#equalsIgnoreCase(String)}.
+     *
+     * @param nick The nick name.
+     * @return The key to use in the index.
+     */
+    static String toNickKey(final String nick) {
+        final char[] chars = new char[nick.length()];
+
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(nick.charAt(i)));
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Queues a notification to the listeners that a user was added. Delivered by {@link #fireEvents()}.
      *
      * @param pos The position where the user was added.
      */
     private void fireUserAdded(final int pos, final User user) {
-        for (final UserListListener listener : listeners) {
-            listener.userAdded(pos, user);
-        }
+        pendingEvents.add(new UserListEvent(UserListEvent.Type.ADDED, pos, user));
     }
 
     /**
-     * Notifies the listeners that a user was changed.
+     * Queues a notification to the listeners that a user was changed. Delivered by {@link #fireEvents()}.
      *
      * @param pos The new position of the changed user.
      */
     private void fireUserChanged(final int pos, final User user) {
-        for (final UserListListener listener : listeners) {
-            listener.userChanged(pos, user);
-        }
+        pendingEvents.add(new UserListEvent(UserListEvent.Type.CHANGED, pos, user));
     }
 
     /**
-     * Notifies the listeners that a user was removed.
+     * Queues a notification to the listeners that a user was removed. Delivered by {@link #fireEvents()}.
      *
      * @param pos The position of the removed user.
      */
     private void fireUserRemoved(final int pos, final User user) {
-        for (final UserListListener listener : listeners) {
-            listener.userRemoved(pos, user);
+        pendingEvents.add(new UserListEvent(UserListEvent.Type.REMOVED, pos, user));
+    }
+
+    /**
+     * A change to the user list, waiting to be delivered to the listeners.
+     */
+    private static final class UserListEvent {
+
+        private enum Type { ADDED, CHANGED, REMOVED }
+
+        private final Type type;
+        private final int pos;
+        private final User user;
+
+        private UserListEvent(final Type type, final int pos, final User user) {
+            this.type = type;
+            this.pos = pos;
+            this.user = user;
+        }
+
+        private void notifyListener(final UserListListener listener) {
+            switch (type) {
+                case ADDED:
+                    listener.userAdded(pos, user);
+                    break;
+                case CHANGED:
+                    listener.userChanged(pos, user);
+                    break;
+                default:
+                    listener.userRemoved(pos, user);
+            }
         }
     }
 }
@@ -64,6 +64,9 @@ public class User implements Comparable<User> {
     /** Whether a tcp connection is enabled for this user. */
     private boolean tcpEnabled;
 
+    /** The optional network protocol features this user supports. */
+    private int networkCapabilities;
+
     /** The time when the last idle message came from this user. */
     private long lastIdle;
 
@@ -419,6 +422,24 @@ public class User implements Comparable<User> {
         this.tcpEnabled = tcpEnabled;
     }
 
+    /**
+     * Gets the optional network protocol features this user supports.
+     *
+     * @return The flags of the features, from {@link net.usikkert.kouchat.net.NetworkCapability}.
+     */
+    public int getNetworkCapabilities() {
+        return networkCapabilities;
+    }
+
+    /**
+     * Sets the optional network protocol features this user supports.
+     *
+     * @param networkCapabilities The flags of the features, from {@link net.usikkert.kouchat.net.NetworkCapability}.
+     */
+    public void setNetworkCapabilities(final int networkCapabilities) {
+        this.networkCapabilities = networkCapabilities;
+    }
+
     /**
      * Checks if this user is logged on to the chat.
      *
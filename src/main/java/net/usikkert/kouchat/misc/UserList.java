@@ -22,6 +22,10 @@
 
 package net.usikkert.kouchat.misc;
 
+import java.util.Collection;
+import java.util.List;
+
+import net.usikkert.kouchat.event.UserListChangeListener;
 import net.usikkert.kouchat.event.UserListListener;
 
 /**
@@ -48,11 +52,22 @@ public interface UserList {
      */
     boolean add(User user);
 
+    /**
+     * Adds all the users to the list in one operation, and notifies with
+     * {@link UserListListener#userAdded(int, User)} for each user that was added.
+     * Change listeners are notified about all the users in the same batch.
+     *
+     * @param users The users to add.
+     * @return The number of users that were added.
+     */
+    int addAll(Collection<User> users);
+
     /**
      * Gets the user at the specified position.
      *
      * @param pos The position to get the user.
-     * @return The user, or <code>null</code> of the user was not found.
+     * @return The user, or <code>null</code> if the position is after the end of the list.
+     * @throws IndexOutOfBoundsException If the position is negative.
      */
     User get(int pos);
 
@@ -73,6 +88,16 @@ public interface UserList {
      */
     boolean remove(User user);
 
+    /**
+     * Removes all the users from the list in one operation, and notifies with
+     * {@link UserListListener#userRemoved(int, User)} for each user that was removed.
+     * Change listeners are notified about all the users in the same batch.
+     *
+     * @param users The users to remove.
+     * @return The number of users that were removed.
+     */
+    int removeAll(Collection<User> users);
+
     /**
      * Sets the specified user at the specified position in the user list,
      * and notifies with {@link UserListListener#userChanged(int, User)}.
@@ -83,6 +108,43 @@ public interface UserList {
      */
     User set(int pos, User user);
 
+    /**
+     * Puts the user back in the list after it has changed, so it's moved to the sorted position,
+     * and notifies with {@link UserListListener#userChanged(int, User)}.
+     *
+     * <p>Unlike {@link #set(int, User)}, the position of the user does not need to be known,
+     * so the user can't be moved by someone else in between.</p>
+     *
+     * @param user The user that changed.
+     * @return If the user was in the list.
+     */
+    boolean update(User user);
+
+    /**
+     * Gets the user with the unique code.
+     *
+     * @param code The unique code of the user.
+     * @return The user, or <code>null</code> if the user was not found.
+     */
+    User getByCode(int code);
+
+    /**
+     * Gets the users with the nick name, ignoring case. There is usually only one,
+     * but more users can have the same nick name for a short time, like during a nick crash.
+     *
+     * @param nick The nick name of the users.
+     * @return The users with the nick name, in the order they are in the list. Empty if none were found.
+     */
+    List<User> getByNick(String nick);
+
+    /**
+     * Gets an unchangeable copy of the users in the list as they are now. Use this to go through
+     * the users when the list can be changed by other threads at the same time.
+     *
+     * @return The users in the list.
+     */
+    UserListSnapshot getSnapshot();
+
     /**
      * Gets the number for users in the list.
      *
@@ -93,6 +155,9 @@ public interface UserList {
     /**
      * Adds a listener for changes to the user list.
      *
+     * <p>The listeners are notified in the order of the changes, but maybe not before the method
+     * making the change returns, and maybe by another thread.</p>
+     *
      * @param listener The listener to add.
      */
     void addUserListListener(UserListListener listener);
@@ -103,4 +168,18 @@ public interface UserList {
      * @param listener The listener to remove.
      */
     void removeUserListListener(UserListListener listener);
+
+    /**
+     * Adds a listener for batches of changes to the user list.
+     *
+     * @param listener The listener to add.
+     */
+    void addUserListChangeListener(UserListChangeListener listener);
+
+    /**
+     * Removes a listener for batches of changes to the user list.
+     *
+     * @param listener The listener to remove.
+     */
+    void removeUserListChangeListener(UserListChangeListener listener);
 }
@@ -0,0 +1,169 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Collects changes to the user list between each time they are delivered to the listeners,
+ * and merges the changes to the same user.
+ *
+ * <p>For each user code, only the user that was in the list before the first change
+ * and the user that is in the list now are kept, so the size is limited by the number
+ * of users that changed, and not by the number of changes.</p>
+ *
+ * <p>This class is not thread safe. It's only used while holding the lock of the user list.</p>
+ *
+ * @author Christian Ihle
+ */
+final class UserListChangeBatcher {
+
+    /** The changes since the last time, by user code, in the order of the first change. */
+    private final Map<Integer, UserChange> changes;
+
+    /** The user list the last time changes were taken. */
+    private UserListSnapshot lastSnapshot;
+
+    /**
+     * Constructor.
+     */
+    UserListChangeBatcher() {
+        changes = new LinkedHashMap<>();
+        lastSnapshot = UserListSnapshot.EMPTY;
+    }
+
+    /**
+     * Throws away the collected changes, and starts over from the snapshot.
+     *
+     * @param snapshot The user list as it is now.
+     */
+    void reset(final UserListSnapshot snapshot) {
+        changes.clear();
+        lastSnapshot = snapshot;
+    }
+
+    /**
+     * Checks if there are changes since the last time.
+     *
+     * @return If there are changes.
+     */
+    boolean hasChanges() {
+        return !changes.isEmpty();
+    }
+
+    /**
+     * A user was added to the list.
+     *
+     * @param user The user that was added.
+     */
+    void userAdded(final User user) {
+        getChange(user, null).after = user;
+    }
+
+    /**
+     * A user in the list was changed.
+     *
+     * @param user The user that was changed.
+     */
+    void userChanged(final User user) {
+        getChange(user, user).after = user;
+    }
+
+    /**
+     * A user was removed from the list.
+     *
+     * @param user The user that was removed.
+     */
+    void userRemoved(final User user) {
+        getChange(user, user).after = null;
+    }
+
+    /**
+     * Takes the merged changes since the last time, and starts collecting again.
+     *
+     * @param snapshot The user list as it is now, with all the changes.
+     * @return The merged changes.
+     */
+    UserListChanges takeChanges(final UserListSnapshot snapshot) {
+        final List<User> added = new ArrayList<>();
+        final List<User> changed = new ArrayList<>();
+        final List<User> removed = new ArrayList<>();
+
+        for (final UserChange change : changes.values()) {
+            if (change.before == change.after) {
+                if (change.after != null) {
+                    changed.add(change.after);
+                }
+            }
+
+            else {
+                if (change.before != null) {
+                    removed.add(change.before);
+                }
+
+                if (change.after != null) {
+                    added.add(change.after);
+                }
+            }
+        }
+
+        final UserListChanges userListChanges = new UserListChanges(lastSnapshot, snapshot, added, changed, removed);
+        reset(snapshot);
+
+        return userListChanges;
+    }
+
+    private UserChange getChange(final User user, @Nullable final User before) {
+        UserChange change = changes.get(user.getCode());
+
+        if (change == null) {
+            change = new UserChange(before);
+            changes.put(user.getCode(), change);
+        }
+
+        return change;
+    }
+
+    /**
+     * The user with a code before the first change and after the last change.
+     */
+    private static final class UserChange {
+
+        /** The user in the list before the first change, or <code>null</code> if it was added. */
+        @Nullable
+        private final User before;
+
+        /** The user in the list now, or <code>null</code> if it was removed. */
+        @Nullable
+        private User after;
+
+        private UserChange(@Nullable final User before) {
+            this.before = before;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A batch of merged changes to a {@link UserList}, from one snapshot of the list to the next.
+ *
+ * <p>Each user is only in one of the lists of changes. A user that was added and then changed
+ * is only added, and a user that was added and then removed again is not included at all.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class UserListChanges {
+
+    private final UserListSnapshot previousSnapshot;
+    private final UserListSnapshot snapshot;
+    private final List<User> added;
+    private final List<User> changed;
+    private final List<User> removed;
+
+    /**
+     * Constructor.
+     *
+     * @param previousSnapshot The user list before the changes.
+     * @param snapshot The user list after the changes.
+     * @param added The users that were added.
+     * @param changed The users that were changed, and are still in the list.
+     * @param removed The users that were removed.
+     */
+    UserListChanges(final UserListSnapshot previousSnapshot, final UserListSnapshot snapshot,
+                    final List<User> added, final List<User> changed, final List<User> removed) {
+        Validate.notNull(previousSnapshot, "Previous snapshot can not be null");
+        Validate.notNull(snapshot, "Snapshot can not be null");
+        Validate.notNull(added, "Added users can not be null");
+        Validate.notNull(changed, "Changed users can not be null");
+        Validate.notNull(removed, "Removed users can not be null");
+
+        this.previousSnapshot = previousSnapshot;
+        this.snapshot = snapshot;
+        this.added = Collections.unmodifiableList(added);
+        this.changed = Collections.unmodifiableList(changed);
+        this.removed = Collections.unmodifiableList(removed);
+    }
+
+    /**
+     * Gets the user list as it was before these changes.
+     *
+     * @return The previous snapshot.
+     */
+    public UserListSnapshot getPreviousSnapshot() {
+        return previousSnapshot;
+    }
+
+    /**
+     * Gets the user list as it was after these changes.
+     *
+     * @return The snapshot.
+     */
+    public UserListSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Gets the users that were added. They are in the snapshot, but not in the previous snapshot.
+     *
+     * @return The added users.
+     */
+    public List<User> getAdded() {
+        return added;
+    }
+
+    /**
+     * Gets the users that were changed. They are in both snapshots, but may have moved.
+     *
+     * @return The changed users.
+     */
+    public List<User> getChanged() {
+        return changed;
+    }
+
+    /**
+     * Gets the users that were removed. They are in the previous snapshot, but not in the snapshot.
+     *
+     * @return The removed users.
+     */
+    public List<User> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Checks if there are no changes.
+     *
+     * @return If no users were added, changed or removed.
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+}
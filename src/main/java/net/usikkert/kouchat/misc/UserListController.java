@@ -22,6 +22,8 @@
 
 package net.usikkert.kouchat.misc;
 
+import java.util.List;
+
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
@@ -33,6 +35,9 @@ import org.jetbrains.annotations.Nullable;
  * It contains methods for getting information about users,
  * and updating the state of users.
  *
+ * <p>Users are found with the indexes by code and nick name in the {@link UserList},
+ * so the time to find a user does not grow with the number of users.</p>
+ *
  * @author Christian Ihle
  */
 public class UserListController {
@@ -62,18 +67,7 @@ public class UserListController {
      */
     @Nullable
     public User getUser(final int code) {
-        User user = null;
-
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
-
-            if (temp.getCode() == code) {
-                user = temp;
-                break;
-            }
-        }
-
-        return user;
+        return userList.getByCode(code);
     }
 
     /**
@@ -84,18 +78,13 @@ public class UserListController {
      */
     @Nullable
     public User getUser(final String nickname) {
-        User user = null;
-
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
+        final List<User> users = userList.getByNick(nickname);
 
-            if (temp.getNick().equalsIgnoreCase(nickname)) {
-                user = temp;
-                break;
-            }
+        if (users.isEmpty()) {
+            return null;
         }
 
-        return user;
+        return users.get(0);
     }
 
     /**
@@ -105,14 +94,11 @@ public class UserListController {
      * @param nickname The new nick name of the user.
      */
     public void changeNickName(final int code, final String nickname) {
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
+        final User user = userList.getByCode(code);
 
-            if (temp.getCode() == code) {
-                temp.setNick(nickname);
-                userList.set(i, temp);
-                break;
-            }
+        if (user != null) {
+            user.setNick(nickname);
+            userChanged(user);
         }
     }
 
@@ -124,15 +110,25 @@ public class UserListController {
      * @param awaymsg The new away message.
      */
     public void changeAwayStatus(final int code, final boolean away, final String awaymsg) {
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
-
-            if (temp.getCode() == code) {
-                temp.setAway(away);
-                temp.setAwayMsg(awaymsg);
-                userList.set(i, temp);
-                break;
-            }
+        final User user = userList.getByCode(code);
+
+        if (user != null) {
+            user.setAway(away);
+            user.setAwayMsg(awaymsg);
+            userChanged(user);
+        }
+    }
+
+    /**
+     * Notifies the listeners of the user list that the client information of a user has changed.
+     *
+     * @param code The unique code of the user.
+     */
+    public void clientInfoChanged(final int code) {
+        final User user = userList.getByCode(code);
+
+        if (user != null) {
+            userChanged(user);
         }
     }
 
@@ -143,14 +139,11 @@ public class UserListController {
      * @param writing If the user is writing.
      */
     public void changeWriting(final int code, final boolean writing) {
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
+        final User user = userList.getByCode(code);
 
-            if (temp.getCode() == code) {
-                temp.setWriting(writing);
-                userList.set(i, temp);
-                break;
-            }
+        if (user != null) {
+            user.setWriting(writing);
+            userChanged(user);
         }
     }
 
@@ -161,14 +154,11 @@ public class UserListController {
      * @param newMsg If the user has new private messages.
      */
     public void changeNewMessage(final int code, final boolean newMsg) {
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
+        final User user = userList.getByCode(code);
 
-            if (temp.getCode() == code) {
-                temp.setNewPrivMsg(newMsg);
-                userList.set(i, temp);
-                break;
-            }
+        if (user != null) {
+            user.setNewPrivMsg(newMsg);
+            userChanged(user);
         }
     }
 
@@ -179,18 +169,13 @@ public class UserListController {
      * @return If the nick name is in use.
      */
     public boolean isNickNameInUse(final String nickname) {
-        boolean inUse = false;
-
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
-
-            if (temp.getNick().equalsIgnoreCase(nickname) && !temp.isMe()) {
-                inUse = true;
-                break;
+        for (final User user : userList.getByNick(nickname)) {
+            if (!user.isMe()) {
+                return true;
             }
         }
 
-        return inUse;
+        return false;
     }
 
     /**
@@ -200,18 +185,7 @@ public class UserListController {
      * @return If the user is new, which means it is not in the user list.
      */
     public boolean isNewUser(final int code) {
-        boolean newUser = true;
-
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
-
-            if (temp.getCode() == code) {
-                newUser = false;
-                break;
-            }
-        }
-
-        return newUser;
+        return userList.getByCode(code) == null;
     }
 
     /**
@@ -225,10 +199,8 @@ public class UserListController {
      * @return If there are any timeout users.
      */
     public boolean isTimeoutUsers() {
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
-
-            if (temp.getNick().equals("" + temp.getCode())) {
+        for (final User user : userList.getSnapshot()) {
+            if (user.getNick().equals("" + user.getCode())) {
                 return true;
             }
         }
@@ -236,6 +208,15 @@ public class UserListController {
         return false;
     }
 
+    /**
+     * Puts the user back in the list, to move it to the sorted position and notify the listeners.
+     *
+     * @param user The user that changed.
+     */
+    private void userChanged(final User user) {
+        userList.update(user);
+    }
+
     /**
      * Gets the user list.
      *
@@ -0,0 +1,124 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * An unchangeable copy of the users in a {@link UserList} at one point in time.
+ *
+ * <p>A snapshot can be read from any thread without locking, and will not change while
+ * it is being read, even if users are added or removed from the user list at the same time.
+ * The users themselves are not copied, so changes to a user are still visible.</p>
+ *
+ * <p>Each change to the user list gives a new version number, so it's easy to check if a snapshot
+ * is older than another.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class UserListSnapshot implements Iterable<User> {
+
+    /** A snapshot of an empty user list. */
+    public static final UserListSnapshot EMPTY = new UserListSnapshot(new User[0], 0);
+
+    private final List<User> users;
+    private final long version;
+
+    /**
+     * Constructor.
+     *
+     * @param users The users, sorted like in the user list. The array must not be changed after this.
+     * @param version The version of the user list.
+     */
+    UserListSnapshot(final User[] users, final long version) {
+        Validate.notNull(users, "Users can not be null");
+
+        this.users = Collections.unmodifiableList(Arrays.asList(users));
+        this.version = version;
+    }
+
+    /**
+     * Gets the user at the specified position.
+     *
+     * @param pos The position of the user.
+     * @return The user.
+     * @throws IndexOutOfBoundsException If there is no user at the position.
+     */
+    public User get(final int pos) {
+        if (pos < 0 || pos >= users.size()) {
+            throw new IndexOutOfBoundsException("Index: " + pos + ", Size: " + users.size());
+        }
+
+        return users.get(pos);
+    }
+
+    /**
+     * Gets the position of the user in this snapshot.
+     *
+     * @param user The user to find.
+     * @return The position, or -1 if not found.
+     */
+    public int indexOf(final User user) {
+        return users.indexOf(user);
+    }
+
+    /**
+     * Gets the number of users in this snapshot.
+     *
+     * @return The number of users.
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * Gets the version of the user list when this snapshot was made.
+     *
+     * @return The version. Higher versions are newer.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the users as an unchangeable list.
+     *
+     * @return The users in this snapshot.
+     */
+    public List<User> asList() {
+        return users;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<User> iterator() {
+        return users.iterator();
+    }
+}
@@ -0,0 +1,209 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import net.usikkert.kouchat.event.UserListListener;
+
+/**
+ * Keeps track of when each user in the user list will time out, sorted by the time of the timeout,
+ * so timed out users can be found without going through the whole user list.
+ *
+ * <p>A user times out when the last idle message is older than the timeout. New idle messages
+ * don't update the queue. Instead, the last idle time of the user is checked again when the
+ * timeout is reached, and the user is put back in the queue if a new idle message has arrived
+ * in the meantime. That way each user is only checked about once for each timeout period,
+ * and receiving idle messages costs nothing extra.</p>
+ *
+ * <p>Users are added and removed by listening to the user list. The application user is never added.</p>
+ *
+ * @author Christian Ihle
+ */
+final class UserTimeoutQueue implements UserListListener {
+
+    /** Number of milliseconds without idle messages before a user times out. */
+    private final long timeout;
+
+    /** The timeouts, with the first one on top. May contain timeouts that are no longer in use. */
+    private final PriorityQueue<UserTimeout> queue;
+
+    /** The timeout in use for each user in the queue, by user code. */
+    private final Map<Integer, UserTimeout> timeouts;
+
+    /**
+     * Constructor.
+     *
+     * @param timeout Number of milliseconds without idle messages before a user times out.
+     */
+    UserTimeoutQueue(final long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive");
+        }
+
+        this.timeout = timeout;
+
+        queue = new PriorityQueue<>(11, new Comparator<UserTimeout>() {
+            @Override
+            public int compare(final UserTimeout timeout1, final UserTimeout timeout2) {
+                return Long.compare(timeout1.time, timeout2.time);
+            }
+        });
+
+        timeouts = new HashMap<>();
+    }
+
+    /**
+     * Adds the users that are already in the user list.
+     *
+     * @param users The users to add.
+     */
+    synchronized void addUsers(final Iterable<User> users) {
+        for (final User user : users) {
+            addUser(user);
+        }
+    }
+
+    /**
+     * Removes the users that have timed out from the queue, and returns them.
+     *
+     * @param now The current time, in milliseconds.
+     * @return The users that have timed out. Empty if none.
+     */
+    synchronized List<User> removeTimedOutUsers(final long now) {
+        final List<User> timedOutUsers = new ArrayList<>();
+
+        while (!queue.isEmpty() && queue.peek().time <= now) {
+            final UserTimeout userTimeout = queue.poll();
+            final User user = userTimeout.user;
+
+            if (timeouts.get(user.getCode()) != userTimeout) {
+                // The user was removed or added again
+                continue;
+            }
+
+            if (user.getLastIdle() + timeout > now) {
+                scheduleTimeout(user);
+            } else {
+                timeouts.remove(user.getCode());
+                timedOutUsers.add(user);
+            }
+        }
+
+        return timedOutUsers;
+    }
+
+    /**
+     * Gets the time of the first timeout in the queue.
+     *
+     * <p>The time may be too early, if the user has received idle messages since it was added
+     * to the queue, or has been removed. Then {@link #removeTimedOutUsers(long)} will just
+     * find no timed out users.</p>
+     *
+     * @return The time of the first timeout, in milliseconds, or {@link Long#MAX_VALUE} if the queue is empty.
+     */
+    synchronized long getNextTimeout() {
+        if (queue.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+
+        return queue.peek().time;
+    }
+
+    /**
+     * Gets the number of users in the queue.
+     *
+     * @return The number of users.
+     */
+    synchronized int size() {
+        return timeouts.size();
+    }
+
+    /**
+     * Adds the user to the queue.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void userAdded(final int pos, final User user) {
+        addUser(user);
+    }
+
+    /**
+     * Adds the user to the queue if it replaced another user with the same code.
+     * Other changes to a user don't change the timeout.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void userChanged(final int pos, final User user) {
+        final UserTimeout userTimeout = timeouts.get(user.getCode());
+
+        if (userTimeout == null || userTimeout.user != user) {
+            addUser(user);
+        }
+    }
+
+    /**
+     * Removes the user from the queue.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void userRemoved(final int pos, final User user) {
+        // The timeout is left in the queue, and skipped when it's reached
+        timeouts.remove(user.getCode());
+    }
+
+    private void addUser(final User user) {
+        if (!user.isMe()) {
+            scheduleTimeout(user);
+        }
+    }
+
+    private void scheduleTimeout(final User user) {
+        final UserTimeout userTimeout = new UserTimeout(user, user.getLastIdle() + timeout);
+
+        timeouts.put(user.getCode(), userTimeout);
+        queue.add(userTimeout);
+    }
+
+    /**
+     * The time when a user will time out, unless a new idle message arrives before then.
+     */
+    private static final class UserTimeout {
+
+        private final User user;
+        private final long time;
+
+        private UserTimeout(final User user, final long time) {
+            this.user = user;
+            this.time = time;
+        }
+    }
+}
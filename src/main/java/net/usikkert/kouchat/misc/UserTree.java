@@ -0,0 +1,342 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A balanced search tree of users, sorted by nick name, that can find users by position.
+ *
+ * <p>The tree is a treap, where each node also keeps the size of its subtree. Adding, removing,
+ * and finding the position of a node, or the node at a position, takes O(log n) time.</p>
+ *
+ * <p>Each node keeps the nick name the user had when the node was added, so a node can still be found
+ * after the user changes nick name. To move a user after a change, remove the node and add the user again.
+ * Users with the same nick name are kept in the order they were added.</p>
+ *
+ * @author Christian Ihle
+ */
+class UserTree {
+
+    private final Random random;
+
+    @Nullable
+    private Node root;
+
+    /** Increases for each node added, to keep users with the same nick name apart. */
+    private long nextOrder;
+
+    /**
+     * Constructor.
+     */
+    UserTree() {
+        random = new Random();
+    }
+
+    /**
+     * Adds the user to the tree, sorted by the current nick name.
+     *
+     * @param user The user to add.
+     * @return The node with the user, for finding it again.
+     */
+    Node add(final User user) {
+        final Node node = new Node(user, user.getNick(), nextOrder++, random.nextInt());
+        root = insert(root, node);
+
+        return node;
+    }
+
+    /**
+     * Removes the node from the tree.
+     *
+     * @param node The node to remove, as returned by {@link #add(User)}.
+     */
+    void remove(final Node node) {
+        root = delete(root, node);
+    }
+
+    /**
+     * Finds the position of the node in the tree.
+     *
+     * @param node The node to find.
+     * @return The position, or -1 if the node is not in the tree.
+     */
+    int indexOf(final Node node) {
+        int index = 0;
+        Node current = root;
+
+        while (current != null) {
+            final int comparison = compare(node, current);
+
+            if (comparison < 0) {
+                current = current.left;
+            }
+
+            else if (comparison > 0) {
+                index += size(current.left) + 1;
+                current = current.right;
+            }
+
+            else {
+                return index + size(current.left);
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Gets the node at the position.
+     *
+     * @param index The position of the node.
+     * @return The node.
+     * @throws IndexOutOfBoundsException If there is no node at the position.
+     */
+    Node get(final int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+
+        int remaining = index;
+        Node current = root;
+
+        while (true) {
+            final int leftSize = size(current.left);
+
+            if (remaining < leftSize) {
+                current = current.left;
+            }
+
+            else if (remaining == leftSize) {
+                return current;
+            }
+
+            else {
+                remaining -= leftSize + 1;
+                current = current.right;
+            }
+        }
+    }
+
+    /**
+     * Gets all the users in the tree, in sorted order.
+     *
+     * @return A new array with the users.
+     */
+    User[] toArray() {
+        final User[] users = new User[size()];
+        final Deque<Node> path = new ArrayDeque<>();
+        Node current = root;
+        int index = 0;
+
+        while (current != null || !path.isEmpty()) {
+            while (current != null) {
+                path.push(current);
+                current = current.left;
+            }
+
+            current = path.pop();
+            users[index++] = current.user;
+            current = current.right;
+        }
+
+        return users;
+    }
+
+    /**
+     * Gets the number of nodes in the tree.
+     *
+     * @return The number of nodes.
+     */
+    int size() {
+        return size(root);
+    }
+
+    private Node insert(@Nullable final Node tree, final Node node) {
+        if (tree == null) {
+            return node;
+        }
+
+        if (node.priority > tree.priority) {
+            final Node[] parts = split(tree, node);
+            node.left = parts[0];
+            node.right = parts[1];
+            update(node);
+
+            return node;
+        }
+
+        if (compare(node, tree) < 0) {
+            tree.left = insert(tree.left, node);
+        } else {
+            tree.right = insert(tree.right, node);
+        }
+
+        update(tree);
+
+        return tree;
+    }
+
+    @Nullable
+    private Node delete(@Nullable final Node tree, final Node node) {
+        if (tree == null) {
+            return null;
+        }
+
+        if (tree == node) {
+            return merge(tree.left, tree.right);
+        }
+
+        if (compare(node, tree) < 0) {
+            tree.left = delete(tree.left, node);
+        } else {
+            tree.right = delete(tree.right, node);
+        }
+
+        update(tree);
+
+        return tree;
+    }
+
+    /**
+     * Splits the tree in the nodes sorted before the key node, and the nodes sorted after.
+     */
+    private Node[] split(@Nullable final Node tree, final Node key) {
+        if (tree == null) {
+            return new Node[2];
+        }
+
+        if (compare(tree, key) < 0) {
+            final Node[] parts = split(tree.right, key);
+            tree.right = parts[0];
+            update(tree);
+            parts[0] = tree;
+
+            return parts;
+        }
+
+        else {
+            final Node[] parts = split(tree.left, key);
+            tree.left = parts[1];
+            update(tree);
+            parts[1] = tree;
+
+            return parts;
+        }
+    }
+
+    /**
+     * Joins two trees, where all the nodes in the first tree are sorted before the nodes in the second.
+     */
+    @Nullable
+    private Node merge(@Nullable final Node first, @Nullable final Node second) {
+        if (first == null) {
+            return second;
+        }
+
+        if (second == null) {
+            return first;
+        }
+
+        if (first.priority > second.priority) {
+            first.right = merge(first.right, second);
+            update(first);
+
+            return first;
+        }
+
+        else {
+            second.left = merge(first, second.left);
+            update(second);
+
+            return second;
+        }
+    }
+
+    private int compare(final Node node1, final Node node2) {
+        final int comparison = node1.nick.compareToIgnoreCase(node2.nick);
+
+        if (comparison != 0) {
+            return comparison;
+        }
+
+        return node1.order < node2.order ? -1 : (node1.order == node2.order ? 0 : 1);
+    }
+
+    private static int size(@Nullable final Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static void update(final Node node) {
+        node.size = size(node.left) + size(node.right) + 1;
+    }
+
+    /**
+     * A user in the tree, with the nick name used for sorting.
+     */
+    static final class Node {
+
+        private final User user;
+        private final String nick;
+        private final long order;
+        private final int priority;
+
+        @Nullable
+        private Node left;
+
+        @Nullable
+        private Node right;
+
+        private int size;
+
+        Node(final User user, final String nick, final long order, final int priority) {
+            this.user = user;
+            this.nick = nick;
+            this.order = order;
+            this.priority = priority;
+            this.size = 1;
+        }
+
+        /**
+         * Gets the user in this node.
+         *
+         * @return The user.
+         */
+        User getUser() {
+            return user;
+        }
+
+        /**
+         * Gets the nick name the user had when the node was added.
+         *
+         * @return The nick name used for sorting.
+         */
+        String getNick() {
+            return nick;
+        }
+    }
+}
@@ -22,8 +22,18 @@
 
 package net.usikkert.kouchat.misc;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
 
 /**
  * This waiting list is used to store unknown users while asking them to
@@ -31,26 +41,96 @@ import java.util.Set;
  * By doing this, messages from unknown users can be held back until they
  * have identified themselves.
  *
+ * <p>Operations held back for a user are run when the user is removed from the list,
+ * or when the user has been waiting for too long. Only a limited number of operations
+ * are kept for each user.</p>
+ *
+ * <p>Operations for users that waited too long are handed to the registered {@link ActionExecutor},
+ * so they run in the same thread as the other messages from the user. Without one, they run
+ * in the thread looking for users waiting too long.</p>
+ *
  * @author Christian Ihle
  */
 public class WaitingList {
 
-    private final Set<Integer> users;
+    private static final Logger LOG = Logger.getLogger(WaitingList.class);
+
+    /** How long to wait for a user to identify before running the held back operations anyway, in milliseconds. */
+    static final long MAX_WAIT_TIME = 2000;
+
+    /** The most operations to hold back for a single user. */
+    static final int MAX_PENDING_ACTIONS = 50;
+
+    /** How often to look for users that have been waiting for too long, in milliseconds. */
+    private static final long SWEEP_INTERVAL = 250;
+
+    private final Map<Integer, WaitingUser> users;
+
+    /** Created when the first user is added, to look for users waiting for too long. */
+    @Nullable
+    private Timer timer;
+
+    @Nullable
+    private volatile ActionExecutor actionExecutor;
 
     /**
      * Constructor.
      */
     public WaitingList() {
-        users = new HashSet<>();
+        users = new HashMap<>();
+    }
+
+    /**
+     * Registers where to run the operations for users that have been waiting for too long.
+     *
+     * @param theActionExecutor The executor to register.
+     */
+    public void registerActionExecutor(final ActionExecutor theActionExecutor) {
+        this.actionExecutor = theActionExecutor;
     }
 
     /**
-     * Adds a user to the waiting list.
+     * Adds a user to the waiting list. Adding a user that is already waiting
+     * does not restart the wait.
      *
      * @param userCode The unique code of the user to add.
      */
-    public void addWaitingUser(final int userCode) {
-        users.add(userCode);
+    public synchronized void addWaitingUser(final int userCode) {
+        if (!users.containsKey(userCode)) {
+            users.put(userCode, new WaitingUser(System.currentTimeMillis()));
+            startSweep();
+        }
+    }
+
+    /**
+     * Holds back an operation until the user has identified, or has waited for too long.
+     *
+     * <p>If the list for the user is full, the operation is dropped.</p>
+     *
+     * @param userCode The unique code of the user the operation is waiting for.
+     * @param action The operation to run later.
+     * @return If the user is waiting, or <code>false</code> if the operation can run right away.
+     */
+    public boolean addPendingAction(final int userCode, final Runnable action) {
+        Validate.notNull(action, "Action can not be null");
+
+        synchronized (this) {
+            final WaitingUser waitingUser = users.get(userCode);
+
+            if (waitingUser == null) {
+                return false;
+            }
+
+            if (waitingUser.actions.size() < MAX_PENDING_ACTIONS) {
+                waitingUser.actions.add(action);
+            }
+
+            else {
+                LOG.warning("Too many operations waiting for user %s to identify, dropping operation", userCode);
+            }
+
+            return true;
+        }
     }
 
     /**
@@ -59,16 +139,139 @@ public class WaitingList {
      * @param userCode The unique code of the user to check for.
      * @return If the user is on the waiting list.
      */
-    public boolean isWaitingUser(final int userCode) {
-        return users.contains(userCode);
+    public synchronized boolean isWaitingUser(final int userCode) {
+        return users.containsKey(userCode);
     }
 
     /**
-     * Removes a user from the waiting list.
+     * Removes a user from the waiting list, and runs the operations held back for the user.
      *
      * @param userCode The unique code of the user to remove.
      */
     public void removeWaitingUser(final int userCode) {
-        users.remove(userCode);
+        final WaitingUser waitingUser;
+
+        synchronized (this) {
+            waitingUser = users.remove(userCode);
+        }
+
+        if (waitingUser != null) {
+            runActions(waitingUser.actions);
+        }
+    }
+
+    /**
+     * Removes the users that have been waiting for too long, and runs the operations held back for them.
+     *
+     * @param now The current time in milliseconds.
+     */
+    void removeExpiredUsers(final long now) {
+        final Map<Integer, WaitingUser> expiredUsers = new HashMap<>();
+
+        synchronized (this) {
+            final Iterator<Map.Entry<Integer, WaitingUser>> iterator = users.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+                final Map.Entry<Integer, WaitingUser> entry = iterator.next();
+
+                if (now - entry.getValue().since >= MAX_WAIT_TIME) {
+                    LOG.fine("User %s did not identify in time", entry.getKey());
+                    expiredUsers.put(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+
+        for (final Map.Entry<Integer, WaitingUser> entry : expiredUsers.entrySet()) {
+            runExpiredActions(entry.getKey(), entry.getValue().actions);
+        }
+    }
+
+    /**
+     * Stops looking for users that have been waiting for too long, and forgets the waiting users
+     * without running the operations held back for them. The list can be used again after this.
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+
+        users.clear();
+    }
+
+    private void runExpiredActions(final int userCode, final List<Runnable> actions) {
+        if (actions.isEmpty()) {
+            return;
+        }
+
+        final ActionExecutor executor = actionExecutor;
+
+        if (executor == null) {
+            runActions(actions);
+            return;
+        }
+
+        executor.execute(userCode, new Runnable() {
+            @Override
+            public void run() {
+                runActions(actions);
+            }
+        });
+    }
+
+    private void runActions(final List<Runnable> actions) {
+        for (final Runnable action : actions) {
+            try {
+                action.run();
+            }
+
+            catch (final RuntimeException e) {
+                LOG.severe(e, "Failed to run operation held back for user");
+            }
+        }
+    }
+
+    private void startSweep() {
+        if (timer != null) {
+            return;
+        }
+
+        timer = new Timer("WaitingListTimer", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                removeExpiredUsers(System.currentTimeMillis());
+            }
+        }, SWEEP_INTERVAL, SWEEP_INTERVAL);
+    }
+
+    /**
+     * Runs operations in the same thread as the messages from a user.
+     */
+    public interface ActionExecutor {
+
+        /**
+         * Runs the operation in the same thread as the messages from the user, after
+         * the messages that arrived before it.
+         *
+         * @param userCode The unique code of the user the operation is for.
+         * @param action The operation to run.
+         */
+        void execute(int userCode, Runnable action);
+    }
+
+    /**
+     * A user waiting to identify, with the operations held back until then.
+     */
+    private static class WaitingUser {
+
+        private final long since;
+        private final List<Runnable> actions;
+
+        WaitingUser(final long since) {
+            this.since = since;
+            this.actions = new ArrayList<>();
+        }
     }
 }
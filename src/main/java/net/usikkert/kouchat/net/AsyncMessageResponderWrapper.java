@@ -28,26 +28,25 @@ import java.util.concurrent.Executors;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.misc.WaitingList;
-import net.usikkert.kouchat.util.Sleeper;
 import net.usikkert.kouchat.util.Validate;
 
 /**
  * Wrapper around a real {@link MessageResponder} that handles operations that need to be async and
  * operations from unknown users.
  *
- * <p>As a rule, all operations are handled by a single thread, to keep the order they arrive.
+ * <p>As a rule, all operations from a user are handled by a single thread, to keep the order they arrive.
+ * With {@link MessageLanes}, operations from different users may be handled by different threads.
  * Some operations need to wait for a response, and must therefore be handled by a new thread to
  * avoid locking other operations.</p>
  *
  * <p>Some operations handles users appearing unexpectedly, from a timeout, or because of packet loss.
- * Those will add the user to a waiting list, ask the user to identify, and then wait for it to happen,
- * before continuing.</p>
+ * Those will add the user to a waiting list, ask the user to identify, and hold back the operation
+ * in the waiting list until the user has identified.</p>
  *
  * @author Christian Ihle
  */
 public class AsyncMessageResponderWrapper implements MessageResponder {
 
-    private final Sleeper sleeper = new Sleeper();
     private final ExecutorService executorService = Executors.newCachedThreadPool();
 
     private final MessageResponder messageResponder;
@@ -73,10 +72,9 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
         if (controller.isNewUser(userCode)) {
             askUserToIdentify(userCode);
 
-            executorService.execute(new Runnable() {
+            runWhenUserIdentifies(userCode, new Runnable() {
                 @Override
                 public void run() {
-                    waitForUserToIdentify(userCode);
                     messageResponder.messageArrived(userCode, msg, color);
                 }
             });
@@ -199,11 +197,15 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
             askUserToIdentify(userCode);
         }
 
-        executorService.execute(new Runnable() {
+        runWhenUserIdentifies(userCode, new Runnable() {
             @Override
             public void run() {
-                waitForUserToIdentify(userCode);
-                messageResponder.fileSend(userCode, byteSize, fileName, user, fileHash);
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        messageResponder.fileSend(userCode, byteSize, fileName, user, fileHash);
+                    }
+                });
             }
         });
     }
@@ -229,8 +231,10 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
 
     @Override
     public void clientInfo(final int userCode, final String client, final long timeSinceLogon,
-                           final String operatingSystem, final int privateChatPort, final int tcpChatPort) {
-        messageResponder.clientInfo(userCode, client, timeSinceLogon, operatingSystem, privateChatPort, tcpChatPort);
+                           final String operatingSystem, final int privateChatPort, final int tcpChatPort,
+                           final int networkCapabilities) {
+        messageResponder.clientInfo(userCode, client, timeSinceLogon, operatingSystem, privateChatPort, tcpChatPort,
+                                    networkCapabilities);
     }
 
     /**
@@ -245,15 +249,12 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
     }
 
     /**
-     * Waits for user with the specified userCode to identify in {@link #userExposing(User)}.
-     * Gives up after 2 seconds.
+     * Runs the operation when the user with the specified userCode has identified in {@link #userExposing(User)},
+     * or right away if the user is not waiting to identify. Gives up waiting after 2 seconds.
      */
-    void waitForUserToIdentify(final int userCode) {
-        int counter = 0;
-
-        while (waitingList.isWaitingUser(userCode) && counter < 40) {
-            counter++;
-            sleeper.sleep(50);
+    void runWhenUserIdentifies(final int userCode, final Runnable action) {
+        if (!waitingList.addPendingAction(userCode, action)) {
+            action.run();
         }
     }
 }
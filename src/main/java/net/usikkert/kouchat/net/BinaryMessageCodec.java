@@ -0,0 +1,463 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static net.usikkert.kouchat.net.NetworkMessageType.*;
+
+import java.nio.charset.Charset;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Encodes text messages into the compact binary format of version 2 of the network protocol,
+ * and back again.
+ *
+ * <p>A binary message looks like this:</p>
+ *
+ * <ul>
+ *   <li>The byte <code>0xFF</code>, which is never used in UTF-8, to tell it apart from a text message.</li>
+ *   <li>The version of the format, <code>2</code>.</li>
+ *   <li>The id of the message type, with the highest bit set if a sequence number follows the user code.</li>
+ *   <li>The user code, as a varint.</li>
+ *   <li>The sequence number, as a varint, if the highest bit of the type was set.</li>
+ *   <li>The number of bytes in the nick name, as a varint, and then the nick name in UTF-8.</li>
+ *   <li>The rest of the message is the payload, in UTF-8.</li>
+ * </ul>
+ *
+ * <p>A varint is an unsigned number stored 7 bits at a time, lowest bits first, with the highest bit
+ * set on all bytes except the last. A user code of 8 digits needs 4 bytes instead of 8.</p>
+ *
+ * <p>The binary format is only sent to users with the {@link NetworkCapability#BINARY} capability.
+ * The payload is kept as it is, so the decoded message is exactly the same as the text message.
+ * A binary message is decoded straight into a {@link MessageView}, with the header fields from the binary
+ * message, so the receiver doesn't have to parse the text message again.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class BinaryMessageCodec {
+
+    /** The first byte of a binary message. */
+    public static final byte MARKER = (byte) 0xFF;
+
+    /** The version of the binary format. */
+    public static final byte VERSION = 2;
+
+    /**
+     * The types of messages that can be encoded, where the position is the id of the type.
+     * New types must be added at the end, as the ids are part of the protocol.
+     */
+    private static final String[] TYPES = {
+            null, MSG, LOGON, EXPOSING, LOGOFF, AWAY, BACK, EXPOSE, NICKCRASH, WRITING, STOPPEDWRITING,
+            GETTOPIC, TOPIC, NICK, IDLE, SENDFILEACCEPT, SENDFILEABORT, SENDFILE, CLIENT, PRIVMSG, BATCH, NACK
+    };
+
+    /** The bit in the type byte that tells if the message has a sequence number. */
+    private static final int SEQUENCE_BIT = 0x80;
+
+    /** The maximum number of bytes in a varint with 32 bits. */
+    static final int MAX_VARINT_BYTES = 5;
+
+    private static final Charset MESSAGE_CHARSET = Charset.forName(Constants.MESSAGE_CHARSET);
+
+    /** The ids of the types, for finding the id without comparing with every type. */
+    private static final MessageTypeTable<Integer> TYPE_IDS = createTypeIds();
+
+    /** Reusable view of the message being encoded, one for each sending thread. */
+    private static final ThreadLocal<MessageView> MESSAGE_VIEWS = new ThreadLocal<MessageView>() {
+        @Override
+        protected MessageView initialValue() {
+            return new MessageView();
+        }
+    };
+
+    /** Reusable view of the last message decoded, one for each receiving thread. */
+    private static final ThreadLocal<MessageView> DECODED_VIEWS = new ThreadLocal<MessageView>() {
+        @Override
+        protected MessageView initialValue() {
+            return new MessageView();
+        }
+    };
+
+    /** Longest number of characters in an int, with the sign. */
+    private static final int MAX_INT_CHARS = 11;
+
+    private BinaryMessageCodec() {
+
+    }
+
+    /**
+     * Encodes a text message into the binary format.
+     *
+     * @param message The text message to encode.
+     * @return The binary message, or <code>null</code> if the message can't be encoded,
+     *         and must be sent as text.
+     */
+    @Nullable
+    public static byte[] encode(final String message) {
+        Validate.notNull(message, "Message can not be null");
+
+        final MessageView view;
+
+        try {
+            view = MESSAGE_VIEWS.get().wrap(message);
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+
+        return encode(view);
+    }
+
+    /**
+     * Encodes a text message that is already parsed into the binary format.
+     *
+     * @param view The parsed text message to encode.
+     * @return The binary message, or <code>null</code> if the message can't be encoded,
+     *         and must be sent as text.
+     */
+    @Nullable
+    public static byte[] encode(final MessageView view) {
+        Validate.notNull(view, "View can not be null");
+
+        final Integer typeId = TYPE_IDS.get(view);
+
+        if (typeId == null) {
+            return null;
+        }
+
+        final byte[] nick = view.getNick().getBytes(MESSAGE_CHARSET);
+        final byte[] payload = view.getPayload().getBytes(MESSAGE_CHARSET);
+        final byte[] data = new byte[3 + MAX_VARINT_BYTES * 3 + nick.length + payload.length];
+
+        int position = 0;
+        data[position++] = MARKER;
+        data[position++] = VERSION;
+        data[position++] = (byte) (view.hasSequence() ? typeId | SEQUENCE_BIT : typeId);
+        position = writeVarint(data, position, view.getCode());
+
+        if (view.hasSequence()) {
+            position = writeVarint(data, position, view.getSequence());
+        }
+
+        position = writeVarint(data, position, nick.length);
+        System.arraycopy(nick, 0, data, position, nick.length);
+        position += nick.length;
+        System.arraycopy(payload, 0, data, position, payload.length);
+        position += payload.length;
+
+        final byte[] encoded = new byte[position];
+        System.arraycopy(data, 0, encoded, 0, position);
+
+        return encoded;
+    }
+
+    /**
+     * Gets the bytes to send for the message.
+     *
+     * @param message The text message to send.
+     * @param binary If the message should be encoded in the binary format.
+     * @return The binary message, or the text message in UTF-8 if binary is not requested,
+     *         or the message can't be encoded.
+     */
+    public static byte[] getBytes(final String message, final boolean binary) {
+        if (binary) {
+            final byte[] encoded = encode(message);
+
+            if (encoded != null) {
+                return encoded;
+            }
+        }
+
+        return message.getBytes(MESSAGE_CHARSET);
+    }
+
+    /**
+     * Gets the bytes to send for the message that is already parsed.
+     *
+     * @param view The parsed text message to send.
+     * @param binary If the message should be encoded in the binary format.
+     * @return The binary message, or the text message in UTF-8 if binary is not requested,
+     *         or the message can't be encoded.
+     */
+    public static byte[] getBytes(final MessageView view, final boolean binary) {
+        Validate.notNull(view, "View can not be null");
+
+        if (binary) {
+            final byte[] encoded = encode(view);
+
+            if (encoded != null) {
+                return encoded;
+            }
+        }
+
+        return view.getMessage().getBytes(MESSAGE_CHARSET);
+    }
+
+    /**
+     * Checks if the data is a message in the binary format.
+     *
+     * @param data The array with the data.
+     * @param offset Where the data starts in the array.
+     * @param length Number of bytes of data.
+     * @return If the data is a binary message.
+     */
+    public static boolean isBinary(final byte[] data, final int offset, final int length) {
+        return length > 0 && data[offset] == MARKER;
+    }
+
+    /**
+     * Decodes a binary message into the same text message it was encoded from.
+     *
+     * @param data The array with the binary message.
+     * @param offset Where the message starts in the array.
+     * @param length Number of bytes in the message.
+     * @return The text message, or <code>null</code> if the data is not a valid binary message.
+     */
+    @Nullable
+    public static String decode(final byte[] data, final int offset, final int length) {
+        final MessageView view = decodeView(data, offset, length);
+        return view != null ? view.getMessage() : null;
+    }
+
+    /**
+     * Decodes a binary message into a view of the same text message it was encoded from.
+     *
+     * <p>The header fields of the view are set from the binary message, and the text is created
+     * in a single pass from UTF-8, without parsing it. The view is reused for the next message decoded
+     * by the same thread, and can be found again with {@link #getDecodedView(String)}.</p>
+     *
+     * @param data The array with the binary message.
+     * @param offset Where the message starts in the array.
+     * @param length Number of bytes in the message.
+     * @return The view of the text message, or <code>null</code> if the data is not a valid binary message.
+     */
+    @Nullable
+    public static MessageView decodeView(final byte[] data, final int offset, final int length) {
+        Validate.notNull(data, "Data can not be null");
+
+        final int end = offset + length;
+
+        if (length < 3 || data[offset] != MARKER || data[offset + 1] != VERSION) {
+            return null;
+        }
+
+        final int typeByte = data[offset + 2] & 0xff;
+        final int typeId = typeByte & ~SEQUENCE_BIT;
+
+        if (typeId == 0 || typeId >= TYPES.length) {
+            return null;
+        }
+
+        final VarintReader reader = new VarintReader(data, offset + 3, end);
+        final long code = reader.read();
+        final boolean hasSequence = (typeByte & SEQUENCE_BIT) != 0;
+        final long sequence = hasSequence ? reader.read() : 0;
+        final long nickLength = reader.read();
+
+        if (code == -1 || sequence == -1 || nickLength == -1 || nickLength > end - reader.getPosition()) {
+            return null;
+        }
+
+        final String type = TYPES[typeId];
+        final int nickStart = reader.getPosition();
+        final int payloadStart = nickStart + (int) nickLength;
+        final byte[] text = new byte[MAX_INT_CHARS * 2 + type.length() + 4 + end - nickStart];
+
+        int headerLength = writeDigits(text, 0, (int) code);
+
+        if (hasSequence) {
+            text[headerLength++] = '.';
+            headerLength = writeDigits(text, headerLength, (int) sequence);
+        }
+
+        int position = headerLength;
+        text[position++] = '!';
+
+        for (int i = 0; i < type.length(); i++) {
+            text[position++] = (byte) type.charAt(i);
+        }
+
+        text[position++] = '#';
+        System.arraycopy(data, nickStart, text, position, payloadStart - nickStart);
+        position += payloadStart - nickStart;
+        text[position++] = ':';
+        System.arraycopy(data, payloadStart, text, position, end - payloadStart);
+        position += end - payloadStart;
+
+        final String message;
+        final int nickChars;
+
+        if (isAscii(data, nickStart, payloadStart)) {
+            message = new String(text, 0, position, MESSAGE_CHARSET);
+            nickChars = payloadStart - nickStart;
+        }
+
+        // The number of characters in the nick is only known after decoding it by itself
+        else {
+            final String nick = new String(data, nickStart, payloadStart - nickStart, MESSAGE_CHARSET);
+            message = new String(text, 0, headerLength + type.length() + 2, MESSAGE_CHARSET) + nick + ':'
+                    + new String(data, payloadStart, end - payloadStart, MESSAGE_CHARSET);
+            nickChars = nick.length();
+        }
+
+        return DECODED_VIEWS.get().wrap(message, (int) code, hasSequence, (int) sequence,
+                                        headerLength, type.length(), nickChars);
+    }
+
+    /**
+     * Gets the view of a message that was the last message decoded by this thread,
+     * to avoid parsing it again.
+     *
+     * @param message The text message to find the view of.
+     * @return The view of the message, or <code>null</code> if it was not the last message decoded by this thread.
+     */
+    @Nullable
+    public static MessageView getDecodedView(final String message) {
+        final MessageView view = DECODED_VIEWS.get();
+        return view.getMessage() == message ? view : null;
+    }
+
+    private static MessageTypeTable<Integer> createTypeIds() {
+        final MessageTypeTable<Integer> typeIds = new MessageTypeTable<>(TYPES.length);
+
+        for (int i = 1; i < TYPES.length; i++) {
+            typeIds.put(TYPES[i], i);
+        }
+
+        return typeIds;
+    }
+
+    /**
+     * Writes the value as decimal digits in ASCII, like {@link Integer#toString(int)}.
+     *
+     * @param text The array to write to, with room for {@link #MAX_INT_CHARS}.
+     * @param offset Where to write in the array.
+     * @param value The value to write.
+     * @return The position in the array after the digits.
+     */
+    private static int writeDigits(final byte[] text, final int offset, final int value) {
+        int position = offset;
+        long remaining = value;
+
+        if (remaining < 0) {
+            text[position++] = '-';
+            remaining = -remaining;
+        }
+
+        final int digitsStart = position;
+
+        do {
+            text[position++] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+
+        for (int left = digitsStart, right = position - 1; left < right; left++, right--) {
+            final byte digit = text[left];
+            text[left] = text[right];
+            text[right] = digit;
+        }
+
+        return position;
+    }
+
+    private static boolean isAscii(final byte[] data, final int begin, final int end) {
+        for (int i = begin; i < end; i++) {
+            if (data[i] < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes the value as an unsigned varint.
+     *
+     * @param data The array to write to, with room for {@link #MAX_VARINT_BYTES}.
+     * @param offset Where to write in the array.
+     * @param value The value to write.
+     * @return The position in the array after the varint.
+     */
+    static int writeVarint(final byte[] data, final int offset, final int value) {
+        int position = offset;
+        int remaining = value;
+
+        while ((remaining & ~0x7f) != 0) {
+            data[position++] = (byte) ((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+
+        data[position++] = (byte) remaining;
+
+        return position;
+    }
+
+    /**
+     * Reads varints from an array, one after the other.
+     */
+    static final class VarintReader {
+
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        VarintReader(final byte[] data, final int position, final int end) {
+            this.data = data;
+            this.position = position;
+            this.end = end;
+        }
+
+        /**
+         * Reads the next varint as an unsigned 32 bit number.
+         *
+         * @return The number, or <code>-1</code> if there is no valid varint.
+         */
+        long read() {
+            long value = 0;
+
+            for (int i = 0; i < MAX_VARINT_BYTES && position < end; i++) {
+                final int current = data[position++] & 0xff;
+                value |= (long) (current & 0x7f) << (7 * i);
+
+                if ((current & 0x80) == 0) {
+                    return value & 0xffffffffL;
+                }
+            }
+
+            return -1;
+        }
+
+        /**
+         * Gets the position in the array after the last varint.
+         *
+         * @return The position.
+         */
+        int getPosition() {
+            return position;
+        }
+    }
+}
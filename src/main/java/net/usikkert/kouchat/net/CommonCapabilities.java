@@ -0,0 +1,161 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.usikkert.kouchat.event.UserListListener;
+import net.usikkert.kouchat.misc.User;
+
+/**
+ * Keeps track of the network capabilities supported by all the other users, so they can be found
+ * for each message without going through the whole user list.
+ *
+ * <p>For each capability, the number of other users without it is counted. The counts are updated when
+ * users are added, removed, or changed with new capabilities from a {@link NetworkMessageType#CLIENT} message,
+ * by listening to the user list. The application user is never counted.</p>
+ *
+ * @author Christian Ihle
+ */
+final class CommonCapabilities implements UserListListener {
+
+    private static final NetworkCapability[] CAPABILITIES = NetworkCapability.values();
+
+    /** The capabilities of each of the other users, by user code. */
+    private final Map<Integer, Integer> userCapabilities;
+
+    /** The number of other users without each capability, by the ordinal of the capability. */
+    private final int[] missing;
+
+    /** The capabilities all the other users have, or none if there are no other users. */
+    private volatile int commonCapabilities;
+
+    /** The number of other users. */
+    private volatile int userCount;
+
+    /**
+     * Constructor.
+     */
+    CommonCapabilities() {
+        userCapabilities = new HashMap<>();
+        missing = new int[CAPABILITIES.length];
+    }
+
+    /**
+     * Counts the users that are already in the user list.
+     *
+     * @param users The users to count.
+     */
+    synchronized void addUsers(final Iterable<User> users) {
+        for (final User user : users) {
+            updateUser(user);
+        }
+    }
+
+    /**
+     * Gets the capabilities supported by all the other users. Gives none if there are no other users,
+     * as the first messages are sent before knowing who is there.
+     *
+     * @return The flags of the capabilities all the other users have.
+     */
+    int get() {
+        return commonCapabilities;
+    }
+
+    /**
+     * Gets the number of other users.
+     *
+     * @return The number of other users.
+     */
+    int getUserCount() {
+        return userCount;
+    }
+
+    @Override
+    public synchronized void userAdded(final int pos, final User user) {
+        updateUser(user);
+    }
+
+    @Override
+    public synchronized void userChanged(final int pos, final User user) {
+        updateUser(user);
+    }
+
+    @Override
+    public synchronized void userRemoved(final int pos, final User user) {
+        final Integer oldCapabilities = userCapabilities.remove(user.getCode());
+
+        if (oldCapabilities != null) {
+            count(oldCapabilities, -1);
+            updateCommonCapabilities();
+        }
+    }
+
+    private void updateUser(final User user) {
+        if (user.isMe()) {
+            return;
+        }
+
+        final int capabilities = user.getNetworkCapabilities();
+        final Integer oldCapabilities = userCapabilities.put(user.getCode(), capabilities);
+
+        if (oldCapabilities != null && oldCapabilities == capabilities) {
+            return;
+        }
+
+        if (oldCapabilities != null) {
+            count(oldCapabilities, -1);
+        }
+
+        count(capabilities, 1);
+        updateCommonCapabilities();
+    }
+
+    private void count(final int capabilities, final int change) {
+        for (final NetworkCapability capability : CAPABILITIES) {
+            if (!capability.isSupportedBy(capabilities)) {
+                missing[capability.ordinal()] += change;
+            }
+        }
+    }
+
+    private void updateCommonCapabilities() {
+        userCount = userCapabilities.size();
+
+        if (userCapabilities.isEmpty()) {
+            commonCapabilities = 0;
+            return;
+        }
+
+        int capabilities = 0;
+
+        for (final NetworkCapability capability : CAPABILITIES) {
+            if (missing[capability.ordinal()] == 0) {
+                capabilities |= capability.getFlag();
+            }
+        }
+
+        commonCapabilities = capabilities;
+    }
+}
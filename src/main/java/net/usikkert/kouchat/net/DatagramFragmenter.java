@@ -0,0 +1,163 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Splits messages larger than {@link Constants#NETWORK_PACKET_SIZE} into fragments that fit in a packet.
+ *
+ * <p>A fragment looks like this:</p>
+ *
+ * <ul>
+ *   <li>The byte <code>0xFE</code>, which is never used in UTF-8, to tell it apart from a text message.</li>
+ *   <li>The user code of the sender, as a varint.</li>
+ *   <li>The id of the message, as a varint. Each sender counts its own ids.</li>
+ *   <li>The position of the fragment, starting at 0.</li>
+ *   <li>The number of fragments in the message.</li>
+ *   <li>The next part of the encoded message.</li>
+ * </ul>
+ *
+ * <p>The fragments are put back together by the {@link DatagramReassembler}, and only sent to users
+ * with the {@link NetworkCapability#FRAGMENT} capability.</p>
+ *
+ * @author Christian Ihle
+ */
+public class DatagramFragmenter {
+
+    /** The first byte of a fragment. */
+    public static final byte MARKER = (byte) 0xFE;
+
+    /** The maximum number of fragments in a message. */
+    public static final int MAX_FRAGMENTS = 16;
+
+    /** The maximum number of bytes in the header of a fragment, with two varints of 5 bytes. */
+    static final int MAX_HEADER_SIZE = 13;
+
+    /** The maximum number of message bytes in each fragment. */
+    static final int FRAGMENT_SIZE = Constants.NETWORK_PACKET_SIZE - MAX_HEADER_SIZE;
+
+    private final AtomicInteger messageId;
+
+    /** Reusable view of the message being split, one for each sending thread. */
+    private final ThreadLocal<MessageView> messageViews;
+
+    /**
+     * Constructor.
+     */
+    public DatagramFragmenter() {
+        messageId = new AtomicInteger();
+
+        messageViews = new ThreadLocal<MessageView>() {
+            @Override
+            protected MessageView initialValue() {
+                return new MessageView();
+            }
+        };
+    }
+
+    /**
+     * Splits the encoded message into fragments.
+     *
+     * @param encodedMessage The message to split, encoded as it would be sent in a single packet.
+     * @param message The message as text, to find the user code of the sender.
+     * @return The fragments, or <code>null</code> if the message is too large, or has no user code.
+     */
+    @Nullable
+    public List<byte[]> split(final byte[] encodedMessage, final String message) {
+        Validate.notNull(encodedMessage, "Encoded message can not be null");
+        Validate.notNull(message, "Message can not be null");
+
+        final int code;
+
+        try {
+            code = messageViews.get().wrap(message).getCode();
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+
+        return split(encodedMessage, code);
+    }
+
+    /**
+     * Splits the encoded message into fragments, when the user code of the sender is already known.
+     *
+     * @param encodedMessage The message to split, encoded as it would be sent in a single packet.
+     * @param code The user code of the sender of the message.
+     * @return The fragments, or <code>null</code> if the message is too large.
+     */
+    @Nullable
+    public List<byte[]> split(final byte[] encodedMessage, final int code) {
+        Validate.notNull(encodedMessage, "Encoded message can not be null");
+
+        final int count = (encodedMessage.length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+
+        if (count > MAX_FRAGMENTS) {
+            return null;
+        }
+
+        final int id = messageId.incrementAndGet();
+        final List<byte[]> fragments = new ArrayList<>(count);
+
+        for (int index = 0; index < count; index++) {
+            final int start = index * FRAGMENT_SIZE;
+            final int length = Math.min(FRAGMENT_SIZE, encodedMessage.length - start);
+            final byte[] header = new byte[MAX_HEADER_SIZE];
+
+            int position = 0;
+            header[position++] = MARKER;
+            position = BinaryMessageCodec.writeVarint(header, position, code);
+            position = BinaryMessageCodec.writeVarint(header, position, id);
+            header[position++] = (byte) index;
+            header[position++] = (byte) count;
+
+            final byte[] fragment = new byte[position + length];
+            System.arraycopy(header, 0, fragment, 0, position);
+            System.arraycopy(encodedMessage, start, fragment, position, length);
+            fragments.add(fragment);
+        }
+
+        return fragments;
+    }
+
+    /**
+     * Checks if the data is a fragment of a message.
+     *
+     * @param data The array with the data.
+     * @param offset Where the data starts in the array.
+     * @param length Number of bytes of data.
+     * @return If the data is a fragment.
+     */
+    public static boolean isFragment(final byte[] data, final int offset, final int length) {
+        return length > 0 && data[offset] == MARKER;
+    }
+}
@@ -0,0 +1,240 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Puts the fragments from a {@link DatagramFragmenter} back together into the original message.
+ *
+ * <p>The fragments are kept per sender and message id until all of them have arrived. Messages that
+ * are not complete within {@link #TIMEOUT} are thrown away, and so are the oldest messages if there
+ * are more than {@link #MAX_PENDING_MESSAGES} incomplete messages, or they use more than
+ * {@link #MAX_PENDING_BYTES} in total.</p>
+ *
+ * <p>Not thread safe. Each receiver has its own reassembler.</p>
+ *
+ * @author Christian Ihle
+ */
+public class DatagramReassembler {
+
+    private static final Logger LOG = Logger.getLogger(DatagramReassembler.class);
+
+    /** Number of milliseconds to wait for the rest of the fragments of a message. */
+    static final long TIMEOUT = 10000;
+
+    /** The maximum number of incomplete messages to keep. */
+    static final int MAX_PENDING_MESSAGES = 32;
+
+    /** The maximum number of bytes in all the fragments of the incomplete messages. */
+    static final int MAX_PENDING_BYTES = 64 * 1024;
+
+    /** The incomplete messages, from oldest to newest. */
+    private final Map<String, PartialMessage> pendingMessages;
+
+    private int pendingBytes;
+
+    /**
+     * Constructor.
+     */
+    public DatagramReassembler() {
+        pendingMessages = new LinkedHashMap<>();
+    }
+
+    /**
+     * Adds a fragment.
+     *
+     * @param ipAddress The ip address the fragment came from.
+     * @param data The array with the fragment.
+     * @param offset Where the fragment starts in the array.
+     * @param length Number of bytes in the fragment.
+     * @return The complete message, if this was the last missing fragment, or <code>null</code>.
+     */
+    @Nullable
+    public byte[] add(final String ipAddress, final byte[] data, final int offset, final int length) {
+        return add(ipAddress, data, offset, length, System.currentTimeMillis());
+    }
+
+    /**
+     * Adds a fragment that arrived at a specific time.
+     *
+     * @param ipAddress The ip address the fragment came from.
+     * @param data The array with the fragment.
+     * @param offset Where the fragment starts in the array.
+     * @param length Number of bytes in the fragment.
+     * @param now The time the fragment arrived, in milliseconds.
+     * @return The complete message, if this was the last missing fragment, or <code>null</code>.
+     */
+    @Nullable
+    byte[] add(final String ipAddress, final byte[] data, final int offset, final int length, final long now) {
+        Validate.notNull(ipAddress, "Ip address can not be null");
+        Validate.notNull(data, "Data can not be null");
+
+        removeExpired(now);
+
+        if (!DatagramFragmenter.isFragment(data, offset, length)) {
+            LOG.warning("Not a fragment from %s", ipAddress);
+            return null;
+        }
+
+        final int end = offset + length;
+        final BinaryMessageCodec.VarintReader reader = new BinaryMessageCodec.VarintReader(data, offset + 1, end);
+        final long code = reader.read();
+        final long messageId = reader.read();
+        final int headerEnd = reader.getPosition() + 2;
+
+        if (code == -1 || messageId == -1 || headerEnd > end) {
+            LOG.warning("Invalid fragment from %s", ipAddress);
+            return null;
+        }
+
+        final int index = data[headerEnd - 2] & 0xff;
+        final int count = data[headerEnd - 1] & 0xff;
+
+        if (count < 1 || count > DatagramFragmenter.MAX_FRAGMENTS || index >= count) {
+            LOG.warning("Invalid fragment %s of %s from %s", index, count, ipAddress);
+            return null;
+        }
+
+        final byte[] fragment = new byte[end - headerEnd];
+        System.arraycopy(data, headerEnd, fragment, 0, fragment.length);
+
+        final String key = ipAddress + '/' + code + '/' + messageId;
+        PartialMessage message = pendingMessages.get(key);
+
+        if (message == null) {
+            message = new PartialMessage(count, now);
+            pendingMessages.put(key, message);
+        }
+
+        else if (message.fragments.length != count) {
+            LOG.warning("Fragment %s of %s from %s does not match the other fragments", index, count, ipAddress);
+            return null;
+        }
+
+        if (message.fragments[index] != null) {
+            return null;
+        }
+
+        message.fragments[index] = fragment;
+        message.received++;
+        message.bytes += fragment.length;
+        pendingBytes += fragment.length;
+
+        if (message.received == count) {
+            remove(key);
+            return message.join();
+        }
+
+        removeOldest();
+
+        return null;
+    }
+
+    /**
+     * Gets the number of incomplete messages.
+     *
+     * @return The number of incomplete messages.
+     */
+    public int getPendingMessages() {
+        return pendingMessages.size();
+    }
+
+    /**
+     * Gets the number of bytes in the fragments of the incomplete messages.
+     *
+     * @return The number of bytes waiting for more fragments.
+     */
+    public int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    private void removeExpired(final long now) {
+        final Iterator<Map.Entry<String, PartialMessage>> iterator = pendingMessages.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            final Map.Entry<String, PartialMessage> entry = iterator.next();
+
+            if (now - entry.getValue().firstArrived < TIMEOUT) {
+                break;
+            }
+
+            LOG.fine("Timeout waiting for the rest of message %s", entry.getKey());
+            pendingBytes -= entry.getValue().bytes;
+            iterator.remove();
+        }
+    }
+
+    private void removeOldest() {
+        final Iterator<Map.Entry<String, PartialMessage>> iterator = pendingMessages.entrySet().iterator();
+
+        while (iterator.hasNext()
+                && (pendingMessages.size() > MAX_PENDING_MESSAGES || pendingBytes > MAX_PENDING_BYTES)) {
+            final Map.Entry<String, PartialMessage> entry = iterator.next();
+
+            LOG.fine("Too many incomplete messages, throwing away message %s", entry.getKey());
+            pendingBytes -= entry.getValue().bytes;
+            iterator.remove();
+        }
+    }
+
+    private void remove(final String key) {
+        final PartialMessage message = pendingMessages.remove(key);
+        pendingBytes -= message.bytes;
+    }
+
+    /**
+     * The fragments of a message received so far.
+     */
+    private static final class PartialMessage {
+
+        private final byte[][] fragments;
+        private final long firstArrived;
+        private int received;
+        private int bytes;
+
+        private PartialMessage(final int count, final long firstArrived) {
+            this.fragments = new byte[count][];
+            this.firstArrived = firstArrived;
+        }
+
+        private byte[] join() {
+            final byte[] message = new byte[bytes];
+            int position = 0;
+
+            for (final byte[] fragment : fragments) {
+                System.arraycopy(fragment, 0, message, position, fragment.length);
+                position += fragment.length;
+            }
+
+            return message;
+        }
+    }
+}
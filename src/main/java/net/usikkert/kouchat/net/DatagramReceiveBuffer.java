@@ -0,0 +1,192 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+
+import net.usikkert.kouchat.Constants;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A reusable buffer for receiving datagram packets.
+ *
+ * <p>Each receiver owns one of these, and reuses the same byte array and {@link DatagramPacket}
+ * (or {@link ByteBuffer} when receiving from a {@link DatagramChannel}) for every packet it receives.
+ * Only the bytes actually received are decoded, so the receive loop does not allocate anything
+ * except the decoded message itself.</p>
+ *
+ * <p>Not thread safe. The message must be decoded before the next packet is received.</p>
+ *
+ * @author Christian Ihle
+ */
+public class DatagramReceiveBuffer {
+
+    /** The character set used for decoding messages. */
+    private static final Charset MESSAGE_CHARSET = Charset.forName(Constants.MESSAGE_CHARSET);
+
+    private final byte[] buffer;
+    private final DatagramPacket packet;
+    private final ByteBuffer byteBuffer;
+    private final DatagramReassembler reassembler;
+
+    /** Number of bytes in the last received packet. */
+    private int length;
+
+    /** The address of the sender of the last received packet. */
+    @Nullable
+    private InetAddress address;
+
+    /** The address of the last sender, used to avoid looking up the same ip address again. */
+    @Nullable
+    private InetAddress lastAddress;
+
+    @Nullable
+    private String lastIpAddress;
+
+    /**
+     * Creates a new receive buffer with room for packets of {@link Constants#NETWORK_PACKET_SIZE} bytes.
+     */
+    public DatagramReceiveBuffer() {
+        buffer = new byte[Constants.NETWORK_PACKET_SIZE];
+        packet = new DatagramPacket(buffer, buffer.length);
+        byteBuffer = ByteBuffer.wrap(buffer);
+        reassembler = new DatagramReassembler();
+    }
+
+    /**
+     * Waits for the next packet on the socket, overwriting the previous packet.
+     *
+     * @param socket The socket to receive from.
+     * @throws IOException If the socket fails to receive.
+     */
+    public void receive(final DatagramSocket socket) throws IOException {
+        // The length is reduced to the size of the previous packet after each receive
+        packet.setLength(buffer.length);
+        socket.receive(packet);
+
+        length = packet.getLength();
+        address = packet.getAddress();
+    }
+
+    /**
+     * Reads the next packet from a channel in non-blocking mode, overwriting the previous packet.
+     *
+     * @param channel The channel to receive from.
+     * @return If a packet was received. False if no packet was ready.
+     * @throws IOException If the channel fails to receive.
+     */
+    public boolean receive(final DatagramChannel channel) throws IOException {
+        byteBuffer.clear();
+        final InetSocketAddress sender = (InetSocketAddress) channel.receive(byteBuffer);
+
+        if (sender == null) {
+            return false;
+        }
+
+        length = byteBuffer.position();
+        address = sender.getAddress();
+
+        return true;
+    }
+
+    /**
+     * Decodes the message in the last received packet.
+     *
+     * <p>Only the received bytes are decoded, and whitespace and zero padding at both ends is left
+     * out, like {@link String#trim()}. The characters stripped are all single byte characters in UTF-8,
+     * so they can be found without decoding first.</p>
+     *
+     * <p>Messages in the binary format of {@link BinaryMessageCodec} are decoded into the text format.
+     * Invalid binary messages are decoded as text, and will fail to parse later.</p>
+     *
+     * <p>Fragments from a {@link DatagramFragmenter} are kept until the last fragment of the message
+     * arrives, and the whole message is decoded then.</p>
+     *
+     * @return The decoded message, or <code>null</code> if the packet was a fragment of an incomplete message.
+     */
+    @Nullable
+    public String getMessage() {
+        if (DatagramFragmenter.isFragment(buffer, 0, length)) {
+            final byte[] message = reassembler.add(getIpAddress(), buffer, 0, length);
+
+            if (message == null) {
+                return null;
+            }
+
+            return decode(message, message.length);
+        }
+
+        return decode(buffer, length);
+    }
+
+    private String decode(final byte[] data, final int dataLength) {
+        if (BinaryMessageCodec.isBinary(data, 0, dataLength)) {
+            final String message = BinaryMessageCodec.decode(data, 0, dataLength);
+
+            if (message != null) {
+                return message;
+            }
+        }
+
+        int start = 0;
+        int end = dataLength;
+
+        while (start < end && isPadding(data[start])) {
+            start++;
+        }
+
+        while (end > start && isPadding(data[end - 1])) {
+            end--;
+        }
+
+        return new String(data, start, end - start, MESSAGE_CHARSET);
+    }
+
+    /**
+     * Gets the ip address of the user that sent the last received packet.
+     *
+     * <p>The ip address is cached, since most packets come from the same few users.</p>
+     *
+     * @return The ip address of the sender.
+     */
+    public String getIpAddress() {
+        if (lastIpAddress == null || !address.equals(lastAddress)) {
+            lastAddress = address;
+            lastIpAddress = address.getHostAddress();
+        }
+
+        return lastIpAddress;
+    }
+
+    private boolean isPadding(final byte value) {
+        return (value & 0xff) <= ' ';
+    }
+}
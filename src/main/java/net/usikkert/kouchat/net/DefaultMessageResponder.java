@@ -173,8 +173,8 @@ public class DefaultMessageResponder implements MessageResponder {
             newUser.setNick("" + newUser.getCode());
         }
 
-        wList.removeWaitingUser(newUser.getCode());
         controller.getUserList().add(newUser);
+        wList.removeWaitingUser(newUser.getCode());
         msgController.showSystemMessage(newUser.getNick() + " logged on from " + newUser.getIpAddress());
     }
 
@@ -199,8 +199,8 @@ public class DefaultMessageResponder implements MessageResponder {
             newUser.setNick("" + newUser.getCode());
         }
 
-        wList.removeWaitingUser(newUser.getCode());
         controller.getUserList().add(newUser);
+        wList.removeWaitingUser(newUser.getCode());
         msgController.showSystemMessage(newUser.getNick() + " showed up unexpectedly from " + newUser.getIpAddress());
     }
 
@@ -260,8 +260,8 @@ public class DefaultMessageResponder implements MessageResponder {
 
             // This should ONLY happen during logon
             else {
-                wList.removeWaitingUser(user.getCode());
                 controller.getUserList().add(user);
+                wList.removeWaitingUser(user.getCode());
             }
         }
 
@@ -400,6 +400,8 @@ public class DefaultMessageResponder implements MessageResponder {
             msgController.showSystemMessage(user.getNick() + " changed ip from " + user.getIpAddress() + " to " + ipAddress);
             user.setIpAddress(ipAddress);
         }
+
+        controller.userSeen(user);
     }
 
     /**
@@ -611,7 +613,8 @@ public class DefaultMessageResponder implements MessageResponder {
      */
     @Override
     public void clientInfo(final int userCode, final String client, final long timeSinceLogon,
-                           final String operatingSystem, final int privateChatPort, final int tcpChatPort) {
+                           final String operatingSystem, final int privateChatPort, final int tcpChatPort,
+                           final int networkCapabilities) {
         final User user = controller.getUser(userCode);
 
         if (user != null) {
@@ -620,6 +623,8 @@ public class DefaultMessageResponder implements MessageResponder {
             user.setOperatingSystem(operatingSystem);
             user.setPrivateChatPort(privateChatPort);
             user.setTcpChatPort(tcpChatPort);
+            user.setNetworkCapabilities(networkCapabilities);
+            controller.clientInfoChanged(userCode);
         }
 
         else {
@@ -0,0 +1,504 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static net.usikkert.kouchat.net.NetworkMessageType.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Limits how many messages are accepted from each sender, so a single misbehaving or malicious
+ * client can't flood the chat, or keep the parsers busy with messages nobody will ever see.
+ *
+ * <p>Each sender has one token bucket for each {@link MessageClass}, so a flood of status
+ * messages can't use up the budget for chat messages. A message is accepted if there is a token
+ * left in its bucket, and shed if not. The buckets refill at a steady rate, up to the burst size
+ * of the class. Shed messages are counted, both in total and for each class.</p>
+ *
+ * <p>Known users are identified by user code, and unknown users by ip address, so spoofing new user codes
+ * doesn't give a fresh budget every time. The user codes are kept in a table of plain ints, so checking
+ * a message from a known user doesn't create any objects. Known users are remembered until removed,
+ * like when they log off, and only the most recent of the other senders are remembered.</p>
+ *
+ * <p>Safe to use from several threads.</p>
+ *
+ * @author Christian Ihle
+ */
+public class InboundRateLimiter {
+
+    private static final Logger LOG = Logger.getLogger(InboundRateLimiter.class);
+
+    /** The maximum number of senders to remember. */
+    static final int MAX_SENDERS = 512;
+
+    /** The tokens are stored in thousandths, so a rate per second becomes a refill per millisecond. */
+    private static final long TOKEN = 1000;
+
+    private static final MessageTypeTable<MessageClass> MESSAGE_CLASSES = createMessageClasses();
+
+    /** The senders identified by a string, like the ip address of unknown users. */
+    private final Map<String, SenderBuckets> senders;
+
+    /** The known users, by user code. */
+    private final UserBucketsTable users;
+
+    private final long[] shedCounts;
+
+    public InboundRateLimiter() {
+        senders = new LinkedHashMap<String, SenderBuckets>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, SenderBuckets> eldest) {
+                return size() > MAX_SENDERS;
+            }
+        };
+
+        users = new UserBucketsTable();
+        shedCounts = new long[MessageClass.values().length];
+    }
+
+    /**
+     * Finds the class of the message, based on the type.
+     *
+     * @param view The message to classify.
+     * @return The class of the message. Unknown types are {@link MessageClass#CONTROL}.
+     */
+    public static MessageClass getMessageClass(final MessageView view) {
+        Validate.notNull(view, "View can not be null");
+
+        final MessageClass messageClass = MESSAGE_CLASSES.get(view);
+
+        if (messageClass == null) {
+            return MessageClass.CONTROL;
+        }
+
+        return messageClass;
+    }
+
+    /**
+     * Checks if a message from the sender should be accepted, and uses a token if it is.
+     *
+     * @param sender The sender of the message.
+     * @param messageClass The class of the message.
+     * @param now The current time, in milliseconds.
+     * @return If the message should be accepted. If not, the message should be shed.
+     */
+    public synchronized boolean allow(final String sender, final MessageClass messageClass, final long now) {
+        Validate.notEmpty(sender, "Sender can not be empty");
+        Validate.notNull(messageClass, "Message class can not be null");
+
+        SenderBuckets buckets = senders.get(sender);
+
+        if (buckets == null) {
+            buckets = new SenderBuckets(now);
+            senders.put(sender, buckets);
+        }
+
+        if (buckets.take(messageClass, now)) {
+            return true;
+        }
+
+        // Only log when the sender starts flooding, and not for every message shed
+        if (shed(buckets, messageClass)) {
+            LOG.warning("Shedding %s messages from %s", messageClass, sender);
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if a message from a known user should be accepted, and uses a token if it is.
+     *
+     * @param userCode The user code of the sender of the message.
+     * @param messageClass The class of the message.
+     * @param now The current time, in milliseconds.
+     * @return If the message should be accepted. If not, the message should be shed.
+     */
+    public synchronized boolean allow(final int userCode, final MessageClass messageClass, final long now) {
+        Validate.notNull(messageClass, "Message class can not be null");
+
+        SenderBuckets buckets = users.get(userCode);
+
+        if (buckets == null) {
+            buckets = new SenderBuckets(now);
+            users.put(userCode, buckets);
+        }
+
+        if (buckets.take(messageClass, now)) {
+            return true;
+        }
+
+        if (shed(buckets, messageClass)) {
+            LOG.warning("Shedding %s messages from %s", messageClass, userCode);
+        }
+
+        return false;
+    }
+
+    /**
+     * Forgets the sender.
+     *
+     * @param sender The sender to forget.
+     */
+    public synchronized void remove(final String sender) {
+        senders.remove(sender);
+    }
+
+    /**
+     * Forgets the known user, like when the user logs off.
+     *
+     * @param userCode The user code of the user to forget.
+     */
+    public synchronized void remove(final int userCode) {
+        users.remove(userCode);
+    }
+
+    /**
+     * Gets the number of messages shed in total.
+     *
+     * @return The number of shed messages.
+     */
+    public synchronized long getShedCount() {
+        long total = 0;
+
+        for (final long shedCount : shedCounts) {
+            total += shedCount;
+        }
+
+        return total;
+    }
+
+    /**
+     * Gets the number of messages shed of the class.
+     *
+     * @param messageClass The class of messages.
+     * @return The number of shed messages.
+     */
+    public synchronized long getShedCount(final MessageClass messageClass) {
+        Validate.notNull(messageClass, "Message class can not be null");
+        return shedCounts[messageClass.ordinal()];
+    }
+
+    /**
+     * Gets a list of the number of messages shed, for each class, and for each sender that has had
+     * messages shed since it was last remembered.
+     *
+     * @return A list of strings with the shed counts.
+     */
+    public synchronized String[] getShedCounts() {
+        final List<String> list = new ArrayList<>();
+
+        for (final MessageClass messageClass : MessageClass.values()) {
+            list.add(messageClass + ": " + shedCounts[messageClass.ordinal()]);
+        }
+
+        users.addShedCounts(list);
+
+        for (final Map.Entry<String, SenderBuckets> entry : senders.entrySet()) {
+            final long shedCount = entry.getValue().getShedCount();
+
+            if (shedCount > 0) {
+                list.add(entry.getKey() + ": " + shedCount);
+            }
+        }
+
+        return list.toArray(new String[list.size()]);
+    }
+
+    /**
+     * Gets the number of remembered senders, both known users and others.
+     *
+     * @return The number of senders.
+     */
+    public synchronized int size() {
+        return senders.size() + users.size();
+    }
+
+    /**
+     * Counts a shed message.
+     *
+     * @return If this is the first message shed from the sender since the last accepted message of the class.
+     */
+    private boolean shed(final SenderBuckets buckets, final MessageClass messageClass) {
+        shedCounts[messageClass.ordinal()]++;
+        return buckets.shed(messageClass);
+    }
+
+    private static MessageTypeTable<MessageClass> createMessageClasses() {
+        final MessageTypeTable<MessageClass> table = new MessageTypeTable<>(32);
+
+        table.put(MSG, MessageClass.CHAT);
+        table.put(PRIVMSG, MessageClass.CHAT);
+
+        table.put(AWAY, MessageClass.STATUS);
+        table.put(BACK, MessageClass.STATUS);
+        table.put(WRITING, MessageClass.STATUS);
+        table.put(STOPPEDWRITING, MessageClass.STATUS);
+        table.put(IDLE, MessageClass.STATUS);
+        table.put(NICK, MessageClass.STATUS);
+        table.put(TOPIC, MessageClass.STATUS);
+        table.put(CLIENT, MessageClass.STATUS);
+
+        table.put(LOGON, MessageClass.DISCOVERY);
+        table.put(LOGOFF, MessageClass.DISCOVERY);
+        table.put(EXPOSE, MessageClass.DISCOVERY);
+        table.put(EXPOSING, MessageClass.DISCOVERY);
+        table.put(GETTOPIC, MessageClass.DISCOVERY);
+        table.put(NICKCRASH, MessageClass.DISCOVERY);
+
+        table.put(SENDFILE, MessageClass.FILE);
+        table.put(SENDFILEACCEPT, MessageClass.FILE);
+        table.put(SENDFILEABORT, MessageClass.FILE);
+
+        table.put(NACK, MessageClass.CONTROL);
+
+        return table;
+    }
+
+    /**
+     * The classes of messages, each with a separate budget for every sender.
+     */
+    public enum MessageClass {
+
+        /** Chat messages, to everyone or private. Pasting many lines at once needs a large burst. */
+        CHAT(25, 100),
+
+        /** Changes in the status of the user, like writing, away or idle. */
+        STATUS(10, 30),
+
+        /** Log on and off, and finding the other users and the topic. */
+        DISCOVERY(5, 20),
+
+        /** Requests and replies for sending files. */
+        FILE(10, 30),
+
+        /** Requests for missing messages, messages of unknown types, and messages that can't be parsed. */
+        CONTROL(20, 40);
+
+        private final long ratePerSecond;
+        private final long burst;
+
+        MessageClass(final long ratePerSecond, final long burst) {
+            this.ratePerSecond = ratePerSecond;
+            this.burst = burst;
+        }
+
+        public long getRatePerSecond() {
+            return ratePerSecond;
+        }
+
+        public long getBurst() {
+            return burst;
+        }
+    }
+
+    /**
+     * The token buckets of one sender.
+     */
+    private static class SenderBuckets {
+
+        private final long[] tokens;
+        private final long[] updated;
+        private final boolean[] shedding;
+
+        private long shedCount;
+
+        SenderBuckets(final long now) {
+            final MessageClass[] messageClasses = MessageClass.values();
+
+            tokens = new long[messageClasses.length];
+            updated = new long[messageClasses.length];
+            shedding = new boolean[messageClasses.length];
+
+            for (final MessageClass messageClass : messageClasses) {
+                tokens[messageClass.ordinal()] = messageClass.getBurst() * TOKEN;
+                updated[messageClass.ordinal()] = now;
+            }
+        }
+
+        boolean take(final MessageClass messageClass, final long now) {
+            final int index = messageClass.ordinal();
+            final long capacity = messageClass.getBurst() * TOKEN;
+
+            // Limit the time to avoid overflow, and ignore the clock going backwards
+            final long elapsed = Math.max(0, Math.min(now - updated[index], capacity));
+
+            tokens[index] = Math.min(capacity, tokens[index] + elapsed * messageClass.getRatePerSecond());
+            updated[index] = now;
+
+            if (tokens[index] < TOKEN) {
+                return false;
+            }
+
+            tokens[index] -= TOKEN;
+            shedding[index] = false;
+
+            return true;
+        }
+
+        /**
+         * Counts a shed message.
+         *
+         * @return If this is the first message shed since the last accepted message of the class.
+         */
+        boolean shed(final MessageClass messageClass) {
+            shedCount++;
+
+            final boolean first = !shedding[messageClass.ordinal()];
+            shedding[messageClass.ordinal()] = true;
+
+            return first;
+        }
+
+        long getShedCount() {
+            return shedCount;
+        }
+    }
+
+    /**
+     * The token buckets of the known users, by user code. A hash table with the user codes as plain ints,
+     * using open addressing with linear probing.
+     */
+    private static final class UserBucketsTable {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        /** The user codes, where the slot in {@link #buckets} is in use. */
+        private int[] codes;
+
+        /** The buckets of each user, or <code>null</code> for empty slots. */
+        private SenderBuckets[] buckets;
+
+        private int size;
+
+        UserBucketsTable() {
+            codes = new int[INITIAL_CAPACITY];
+            buckets = new SenderBuckets[INITIAL_CAPACITY];
+        }
+
+        @Nullable
+        SenderBuckets get(final int code) {
+            return buckets[find(code)];
+        }
+
+        void put(final int code, final SenderBuckets senderBuckets) {
+            // Keep at least half the slots empty, so the probes stay short
+            if ((size + 1) * 2 > buckets.length) {
+                resize(buckets.length * 2);
+            }
+
+            final int slot = find(code);
+
+            if (buckets[slot] == null) {
+                size++;
+            }
+
+            codes[slot] = code;
+            buckets[slot] = senderBuckets;
+        }
+
+        void remove(final int code) {
+            int slot = find(code);
+
+            if (buckets[slot] == null) {
+                return;
+            }
+
+            buckets[slot] = null;
+            size--;
+
+            // Moves the following users back, so none of them are behind an empty slot from where they belong
+            final int mask = buckets.length - 1;
+            int next = (slot + 1) & mask;
+
+            while (buckets[next] != null) {
+                final int home = slotOf(codes[next], mask);
+                final boolean between = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+
+                if (!between) {
+                    codes[slot] = codes[next];
+                    buckets[slot] = buckets[next];
+                    buckets[next] = null;
+                    slot = next;
+                }
+
+                next = (next + 1) & mask;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        void addShedCounts(final List<String> list) {
+            for (int slot = 0; slot < buckets.length; slot++) {
+                if (buckets[slot] != null && buckets[slot].getShedCount() > 0) {
+                    list.add(codes[slot] + ": " + buckets[slot].getShedCount());
+                }
+            }
+        }
+
+        /**
+         * Finds the slot of the user, or the empty slot where the user belongs.
+         */
+        private int find(final int code) {
+            final int mask = buckets.length - 1;
+            int slot = slotOf(code, mask);
+
+            while (buckets[slot] != null && codes[slot] != code) {
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+
+        private void resize(final int capacity) {
+            final int[] oldCodes = codes;
+            final SenderBuckets[] oldBuckets = buckets;
+
+            codes = new int[capacity];
+            buckets = new SenderBuckets[capacity];
+
+            for (int slot = 0; slot < oldBuckets.length; slot++) {
+                if (oldBuckets[slot] != null) {
+                    final int newSlot = find(oldCodes[slot]);
+                    codes[newSlot] = oldCodes[slot];
+                    buckets[newSlot] = oldBuckets[slot];
+                }
+            }
+        }
+
+        private static int slotOf(final int code, final int mask) {
+            // Spreads user codes that are close together
+            final int hash = code * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static net.usikkert.kouchat.net.NetworkMessageType.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Tools;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Collects small control messages to all users for a short window, and sends them together
+ * in a single {@link NetworkMessageType#BATCH} message.
+ *
+ * <p>Each message in the batch is added to the payload as the number of characters in the
+ * message, a semicolon, and then the message itself, like this:
+ * <code>code!BATCH#nick:14;code!IDLE#nick:</code>. The batch is never larger than one network packet.
+ * A single message is sent as it is, without the batch around it.</p>
+ *
+ * <p>The batched messages are sent in the same order as they were added, and the pending messages
+ * must be flushed before sending any other message, to keep the order on the receiving side.</p>
+ *
+ * <p>The batches are sent after the lock used when adding messages is released, so a slow send
+ * doesn't stop other threads from adding messages. Batches are still sent one at a time,
+ * in the order they were made, and {@link #flush()} returns when the pending messages are sent.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageBatcher {
+
+    private static final Logger LOG = Logger.getLogger(MessageBatcher.class);
+
+    /** The types of messages small enough, and common enough, to be worth batching. */
+    private static final String[] BATCHABLE_TYPES = {IDLE, WRITING, STOPPEDWRITING, AWAY, BACK, EXPOSING};
+
+    /** The separator between the length of a message and the message itself. */
+    private static final char LENGTH_SEPARATOR = ';';
+
+    /** Room for a sequence number in the header of the batch, a dot and up to 10 digits. */
+    private static final int SEQUENCE_BYTES = 11;
+
+    private final long window;
+    private final BatchSender batchSender;
+    private final List<String> pendingMessages;
+
+    /** Batches ready to be sent, in the order they were made. Only used while holding the lock. */
+    private final Deque<String> readyBatches;
+
+    /** Held while sending, so batches are sent one at a time, in order. Never taken while holding the lock. */
+    private final Object sendLock;
+
+    /** A view for each thread, reused to check the type of the messages. */
+    private final ThreadLocal<MessageView> messageViews;
+
+    /** The number of bytes of the framed pending messages. */
+    private int pendingBytes;
+
+    @Nullable
+    private Timer timer;
+
+    @Nullable
+    private TimerTask flushTask;
+
+    /**
+     * Constructor.
+     *
+     * @param window Number of milliseconds to wait for more messages before sending the batch.
+     * @param batchSender Where to send the batches.
+     */
+    public MessageBatcher(final long window, final BatchSender batchSender) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+
+        Validate.notNull(batchSender, "Batch sender can not be null");
+
+        this.window = window;
+        this.batchSender = batchSender;
+        this.pendingMessages = new ArrayList<>();
+        readyBatches = new ArrayDeque<>();
+        sendLock = new Object();
+
+        messageViews = new ThreadLocal<MessageView>() {
+            @Override
+            protected MessageView initialValue() {
+                return new MessageView();
+            }
+        };
+    }
+
+    /**
+     * Checks if the message is of a type that can be batched.
+     *
+     * @param message The message to check.
+     * @return If the message can be batched.
+     */
+    public boolean isBatchable(final String message) {
+        Validate.notNull(message, "Message can not be null");
+
+        final MessageView view;
+
+        try {
+            view = messageViews.get().wrap(message);
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            return false;
+        }
+
+        return isBatchable(view);
+    }
+
+    /**
+     * Checks if the message is of a type that can be batched.
+     *
+     * @param view The message to check.
+     * @return If the message can be batched.
+     */
+    public boolean isBatchable(final MessageView view) {
+        Validate.notNull(view, "View can not be null");
+
+        for (final String type : BATCHABLE_TYPES) {
+            if (view.isType(type)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds the message to the pending batch. The batch is sent when the window is over,
+     * or right away if the message doesn't fit in the batch.
+     *
+     * @param message The message to add.
+     */
+    public void add(final String message) {
+        Validate.notEmpty(message, "Message can not be empty");
+
+        final boolean batchReady;
+
+        synchronized (this) {
+            final int messageBytes = getFramedBytes(message);
+
+            if (!pendingMessages.isEmpty()
+                    && getHeaderBytes(pendingMessages.get(0)) + pendingBytes + messageBytes > Constants.NETWORK_PACKET_SIZE) {
+                takeBatch();
+            }
+
+            pendingMessages.add(message);
+            pendingBytes += messageBytes;
+
+            if (getHeaderBytes(message) + pendingBytes > Constants.NETWORK_PACKET_SIZE) {
+                takeBatch();
+            }
+
+            else if (flushTask == null) {
+                scheduleFlush();
+            }
+
+            batchReady = !readyBatches.isEmpty();
+        }
+
+        if (batchReady) {
+            sendReadyBatches();
+        }
+    }
+
+    /**
+     * Sends the pending messages now.
+     */
+    public void flush() {
+        synchronized (this) {
+            takeBatch();
+        }
+
+        sendReadyBatches();
+    }
+
+    /**
+     * Makes a batch of the pending messages, ready to be sent. Must be called while holding the lock.
+     */
+    private void takeBatch() {
+        cancelFlush();
+
+        if (pendingMessages.isEmpty()) {
+            return;
+        }
+
+        final String message;
+
+        if (pendingMessages.size() == 1) {
+            message = pendingMessages.get(0);
+        } else {
+            message = createBatch(pendingMessages);
+        }
+
+        pendingMessages.clear();
+        pendingBytes = 0;
+        readyBatches.add(message);
+    }
+
+    /**
+     * Sends the batches that are ready, one at a time and in order. Must be called without holding the lock.
+     */
+    private void sendReadyBatches() {
+        synchronized (sendLock) {
+            while (true) {
+                final String batch;
+
+                synchronized (this) {
+                    batch = readyBatches.poll();
+                }
+
+                if (batch == null) {
+                    return;
+                }
+
+                LOG.fine("Sending batch: %s", batch);
+                batchSender.sendBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * Throws away the pending messages, and stops the timer.
+     */
+    public synchronized void stop() {
+        cancelFlush();
+        pendingMessages.clear();
+        readyBatches.clear();
+        pendingBytes = 0;
+
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Gets the messages in the payload of a batch message, in the order they were sent.
+     *
+     * <p>Stops at the first message with invalid framing, and gives the messages found before it.</p>
+     *
+     * @param view The batch message.
+     * @return The messages in the batch.
+     */
+    public static List<String> unpack(final MessageView view) {
+        Validate.notNull(view, "View can not be null");
+
+        final List<String> messages = new ArrayList<>();
+        final int payloadLength = view.getPayloadLength();
+        int position = 0;
+
+        while (position < payloadLength) {
+            final int separator = view.payloadIndexOf(LENGTH_SEPARATOR, position);
+
+            if (separator == -1) {
+                LOG.warning("Missing length of message in batch: %s", view);
+                break;
+            }
+
+            final int length;
+
+            try {
+                length = view.payloadInt(position, separator);
+            }
+
+            catch (final NumberFormatException e) {
+                LOG.warning("Invalid length of message in batch: %s", view);
+                break;
+            }
+
+            final int end = separator + 1 + length;
+
+            if (length <= 0 || end > payloadLength) {
+                LOG.warning("Invalid length of message in batch: %s", view);
+                break;
+            }
+
+            messages.add(view.payloadString(separator + 1, end));
+            position = end;
+        }
+
+        return messages;
+    }
+
+    private String createBatch(final List<String> messages) {
+        final StringBuilder batch = new StringBuilder(createHeader(messages.get(0)));
+
+        for (final String message : messages) {
+            batch.append(message.length()).append(LENGTH_SEPARATOR).append(message);
+        }
+
+        return batch.toString();
+    }
+
+    /**
+     * Creates the start of the batch message, with the code and nick from the message.
+     */
+    private String createHeader(final String message) {
+        final int exclamation = message.indexOf('!');
+        final int hash = message.indexOf('#', exclamation + 1);
+        final int colon = message.indexOf(':', hash + 1);
+
+        return message.substring(0, exclamation + 1) + BATCH + message.substring(hash, colon + 1);
+    }
+
+    /**
+     * Gets the number of bytes of the batch header, with room for a sequence number.
+     */
+    private int getHeaderBytes(final String message) {
+        return Tools.getBytes(createHeader(message)) + SEQUENCE_BYTES;
+    }
+
+    private int getFramedBytes(final String message) {
+        return Tools.getBytes(message) + String.valueOf(message.length()).length() + 1;
+    }
+
+    private void scheduleFlush() {
+        if (timer == null) {
+            timer = new Timer("MessageBatcherTimer", true);
+        }
+
+        flushTask = new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        timer.schedule(flushTask, window);
+    }
+
+    private void cancelFlush() {
+        if (flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+    }
+
+    /**
+     * Sends the batches from the {@link MessageBatcher}.
+     */
+    public interface BatchSender {
+
+        /**
+         * Sends the batch to all users.
+         *
+         * @param message The batch, or a single message.
+         */
+        void sendBatch(String message);
+    }
+}
@@ -22,10 +22,12 @@
 
 package net.usikkert.kouchat.net;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import static net.usikkert.kouchat.net.NetworkMessageType.*;
+
+import java.util.List;
 
 import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.event.UserListListener;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.net.tcp.TCPReceiverListener;
@@ -38,78 +40,277 @@ import org.jetbrains.annotations.Nullable;
  * Proxy that listens for messages from both multicast and tcp and forwards from only one source at
  * a time (per user) to avoid duplicates.
  *
+ * <p>Messages with a sequence number are forwarded the first time they arrive, from any source,
+ * and copies arriving later are dropped. Messages without a sequence number are forwarded from
+ * tcp if the user has tcp enabled, and from multicast if not.</p>
+ *
+ * <p>The messages are parsed once here, and forwarded as a {@link MessageEnvelope}. Messages that
+ * can't be parsed are forwarded as they are to the main chat listener, to be reported there.
+ * Each message is parsed with a reused view, and only copied into a new view for the envelope
+ * if it's forwarded, so duplicates and shed messages don't create any objects.</p>
+ *
+ * <p>Batches of messages from the {@link MessageBatcher} are unpacked here, and each message in the
+ * batch is forwarded as if it arrived on its own.</p>
+ *
+ * <p>Numbered messages to all users are also reported to the {@link ReliableMulticast}, to find
+ * messages that never arrived. Requests for missing messages are handled there, and never forwarded.</p>
+ *
+ * <p>Messages are checked by the {@link InboundRateLimiter} right before they are forwarded, so messages
+ * from a sender that floods the network are shed before they reach the parsers. Copies dropped
+ * as duplicates don't count against the sender, and messages from the application user are never shed.</p>
+ *
  * @author Christian Ihle
  */
-public class MessageDeduplicator implements ReceiverListener, TCPReceiverListener {
+public class MessageDeduplicator implements ReceiverListener, TCPReceiverListener, UserListListener {
 
     private static final Logger LOG = Logger.getLogger(MessageDeduplicator.class);
 
     private final Controller controller;
-    private final Pattern privateMessagePattern;
+    private final MessageSequenceFilter sequenceFilter;
+    private final MessageSequenceFilter privateSequenceFilter;
+
+    @Nullable
+    private final ReliableMulticast reliableMulticast;
+
+    @Nullable
+    private final InboundRateLimiter rateLimiter;
+
+    @Nullable
+    private final User me;
 
     @Nullable
-    private ReceiverListener mainChatListener;
+    private MessageEnvelopeListener mainChatListener;
 
     @Nullable
-    private ReceiverListener privateChatListener;
+    private MessageEnvelopeListener privateChatListener;
+
+    /** Reusable view of the message being checked, one for each receiver thread. */
+    private final ThreadLocal<MessageView> messageViews;
 
     public MessageDeduplicator(final Controller controller) {
+        this(controller, null, null, null);
+    }
+
+    public MessageDeduplicator(final Controller controller, @Nullable final ReliableMulticast reliableMulticast,
+                               @Nullable final InboundRateLimiter rateLimiter, @Nullable final User me) {
         Validate.notNull(controller, "Controller can not be null");
 
         this.controller = controller;
-        this.privateMessagePattern = Pattern.compile("^(\\d+)!(PRIVMSG)#.+");
+        this.reliableMulticast = reliableMulticast;
+        this.rateLimiter = rateLimiter;
+        this.me = me;
+        this.sequenceFilter = new MessageSequenceFilter();
+        this.privateSequenceFilter = new MessageSequenceFilter();
+
+        messageViews = new ThreadLocal<MessageView>() {
+            @Override
+            protected MessageView initialValue() {
+                return new MessageView();
+            }
+        };
+
+        controller.getUserList().addUserListListener(this);
     }
 
-    public void registerMainChatReceiverListener(final ReceiverListener theListener) {
+    public void registerMainChatReceiverListener(final MessageEnvelopeListener theListener) {
         this.mainChatListener = theListener;
     }
 
-    public void registerPrivateChatReceiverListener(final ReceiverListener theListener) {
+    public void registerPrivateChatReceiverListener(final MessageEnvelopeListener theListener) {
         this.privateChatListener = theListener;
     }
 
     @Override
     public void messageArrived(final String message, final String ipAddress) {
-        final User user = parseUserFromMessage(message);
+        final MessageView view = parseMessage(message);
+
+        if (view == null) {
+            forwardUnparsedMessageToListener(message, ipAddress);
+            return;
+        }
+
+        if (view.isType(NACK)) {
+            nackArrived(view, ipAddress);
+            return;
+        }
 
-        if (user == null || !user.isTcpEnabled()) {
+        final User user = controller.getUser(view.getCode());
+
+        if (view.hasSequence()) {
+            forwardFirstMessageToListener(view, ipAddress, user);
+        }
+
+        else if (user == null || !user.isTcpEnabled()) {
             if (user == null || !user.isMe()) {
                 LOG.fine("Multicast message: " + message);
             }
 
-            forwardMessageToListener(message, ipAddress);
+            forwardMessageToListener(view, ipAddress, user);
         }
     }
 
     @Override
     public void messageArrived(final String message, final String ipAddress, final User user) {
-        if (user.isTcpEnabled()) {
+        final MessageView view = parseMessage(message);
+
+        if (view != null && view.isType(NACK)) {
+            nackArrived(view, ipAddress);
+        }
+
+        else if (view != null && view.hasSequence()) {
+            forwardFirstMessageToListener(view, ipAddress, user);
+        }
+
+        else if (user.isTcpEnabled()) {
             LOG.fine("TCP message: " + message);
-            forwardMessageToListener(message, ipAddress);
+
+            if (view == null) {
+                forwardUnparsedMessageToListener(message, ipAddress);
+            } else {
+                forwardMessageToListener(view, ipAddress, user);
+            }
         }
     }
 
-    private void forwardMessageToListener(final String message, final String ipAddress) {
-        final Matcher privateMessageMatcher = privateMessagePattern.matcher(message);
+    @Override
+    public void userAdded(final int pos, final User user) {
+
+    }
+
+    @Override
+    public void userChanged(final int pos, final User user) {
+
+    }
+
+    @Override
+    public void userRemoved(final int pos, final User user) {
+        sequenceFilter.remove(user.getCode());
+        privateSequenceFilter.remove(user.getCode());
+
+        if (reliableMulticast != null) {
+            reliableMulticast.remove(user.getCode());
+        }
 
-        if (privateMessageMatcher.matches()) {
+        if (rateLimiter != null) {
+            rateLimiter.remove(user.getCode());
+        }
+    }
+
+    private void forwardFirstMessageToListener(final MessageView view, final String ipAddress, @Nullable final User user) {
+        final boolean privateMessage = view.isType(PRIVMSG);
+        final int sequence = view.getSequence();
+
+        if (!privateMessage && reliableMulticast != null && user != null && NetworkCapability.NACK.isSupportedBy(user)) {
+            reliableMulticast.messageArrived(view.getCode(), sequence, System.currentTimeMillis());
+        }
+
+        final MessageSequenceFilter filter = privateMessage ? privateSequenceFilter : sequenceFilter;
+
+        if (filter.accept(view.getCode(), sequence)) {
+            forwardMessageToListener(view, ipAddress, user);
+        } else {
+            LOG.fine("Duplicate message: %s", view);
+        }
+    }
+
+    private void forwardMessageToListener(final MessageView view, final String ipAddress, @Nullable final User user) {
+        if (view.isType(BATCH)) {
+            forwardBatchToListener(view, ipAddress, user);
+        }
+
+        else if (!allow(view, ipAddress, user)) {
+            LOG.fine("Shed message: %s", view);
+        }
+
+        else if (view.isType(PRIVMSG)) {
             if (privateChatListener != null) {
-                privateChatListener.messageArrived(message, ipAddress);
+                privateChatListener.messageArrived(new MessageEnvelope(view.copy(), ipAddress, user));
             }
         }
 
         else {
             if (mainChatListener != null) {
-                mainChatListener.messageArrived(message, ipAddress);
+                mainChatListener.messageArrived(new MessageEnvelope(view.copy(), ipAddress, user));
+            }
+        }
+    }
+
+    /**
+     * Forwards each message in the batch. The view of the batch can be reused for the messages in it,
+     * so the code of the sender is read out first.
+     */
+    private void forwardBatchToListener(final MessageView batch, final String ipAddress, @Nullable final User user) {
+        final int code = batch.getCode();
+        final List<String> messages = MessageBatcher.unpack(batch);
+
+        for (final String message : messages) {
+            final MessageView view = parseMessage(message);
+
+            if (view == null) {
+                forwardUnparsedMessageToListener(message, ipAddress);
+            }
+
+            else if (view.getCode() != code || view.isType(BATCH) || view.isType(PRIVMSG)) {
+                LOG.warning("Invalid message in batch from %s: %s", code, message);
+            }
+
+            else {
+                forwardMessageToListener(view, ipAddress, user);
             }
         }
     }
 
+    private void nackArrived(final MessageView view, final String ipAddress) {
+        if (reliableMulticast != null && me != null && view.getCode() != me.getCode()
+                && allow(view, ipAddress, controller.getUser(view.getCode()))) {
+            reliableMulticast.nackArrived(view, me.getCode(), System.currentTimeMillis());
+        }
+    }
+
+    private void forwardUnparsedMessageToListener(final String message, final String ipAddress) {
+        if (rateLimiter != null
+                && !rateLimiter.allow(ipAddress, InboundRateLimiter.MessageClass.CONTROL, System.currentTimeMillis())) {
+            LOG.fine("Shed unparsed message from %s", ipAddress);
+        }
+
+        else if (mainChatListener != null) {
+            mainChatListener.messageArrived(message, ipAddress);
+        }
+    }
+
+    /**
+     * Checks the message against the rate limit of the sender. Known users are limited by user code,
+     * and unknown users by ip address.
+     */
+    private boolean allow(final MessageView view, final String ipAddress, @Nullable final User user) {
+        if (rateLimiter == null || user != null && user.isMe()) {
+            return true;
+        }
+
+        final InboundRateLimiter.MessageClass messageClass = InboundRateLimiter.getMessageClass(view);
+
+        if (user != null) {
+            return rateLimiter.allow(user.getCode(), messageClass, System.currentTimeMillis());
+        }
+
+        return rateLimiter.allow(ipAddress, messageClass, System.currentTimeMillis());
+    }
+
+    /**
+     * Parses the message into the reused view of this thread. A message that was just decoded
+     * from the binary format by this thread already has a view, and is not parsed again.
+     * The view must be copied before it's passed on to the listeners.
+     */
     @Nullable
-    private User parseUserFromMessage(final String message) {
+    private MessageView parseMessage(final String message) {
+        final MessageView decodedView = BinaryMessageCodec.getDecodedView(message);
+
+        if (decodedView != null) {
+            return decodedView;
+        }
+
         try {
-            final int msgCode = Integer.parseInt(message.substring(0, message.indexOf("!")));
-            return controller.getUser(msgCode);
+            return messageViews.get().wrap(message);
         }
 
         catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
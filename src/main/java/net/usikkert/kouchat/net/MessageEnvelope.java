@@ -0,0 +1,123 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A message from the network that has been parsed once where it arrived, together with
+ * where it came from.
+ *
+ * <p>The envelope is passed on from the {@link MessageDeduplicator} to the parsers,
+ * so the header of the message is only parsed once, and the user only looked up once.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageEnvelope {
+
+    private final MessageView view;
+    private final String ipAddress;
+
+    @Nullable
+    private final User user;
+
+    /**
+     * Constructor.
+     *
+     * @param view The parsed message. Must not be reused for other messages.
+     * @param ipAddress The ip address of the user that sent the message.
+     * @param user The user that sent the message, or <code>null</code> if the user is unknown.
+     */
+    public MessageEnvelope(final MessageView view, final String ipAddress, @Nullable final User user) {
+        Validate.notNull(view, "Message view can not be null");
+        Validate.notNull(ipAddress, "IP address can not be null");
+
+        this.view = view;
+        this.ipAddress = ipAddress;
+        this.user = user;
+    }
+
+    /**
+     * Gets the parsed message.
+     *
+     * @return The parsed message.
+     */
+    public MessageView getView() {
+        return view;
+    }
+
+    /**
+     * Gets the raw message.
+     *
+     * @return The raw message.
+     */
+    public String getMessage() {
+        return view.getMessage();
+    }
+
+    /**
+     * Gets the code of the user that sent the message.
+     *
+     * @return The user code.
+     */
+    public int getCode() {
+        return view.getCode();
+    }
+
+    /**
+     * Checks if the message is of the given type.
+     *
+     * @param type The type to compare with, from {@link NetworkMessageType}.
+     * @return If the message is of the type.
+     */
+    public boolean isType(final String type) {
+        return view.isType(type);
+    }
+
+    /**
+     * Gets the ip address of the user that sent the message.
+     *
+     * @return The ip address.
+     */
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * Gets the user that sent the message, as found when the message arrived.
+     *
+     * @return The user, or <code>null</code> if the user was unknown.
+     */
+    @Nullable
+    public User getUser() {
+        return user;
+    }
+
+    @Override
+    public String toString() {
+        return view.getMessage();
+    }
+}
@@ -0,0 +1,43 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+
+/**
+ * Listener for messages from the network that have already been parsed into a {@link MessageEnvelope}.
+ *
+ * <p>Messages that could not be parsed are still delivered as raw messages through
+ * {@link ReceiverListener#messageArrived(String, String)}, so the listener can report them.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface MessageEnvelopeListener extends ReceiverListener {
+
+    /**
+     * Called when a new message arrives over the network.
+     *
+     * @param envelope The parsed message.
+     */
+    void messageArrived(MessageEnvelope envelope);
+}
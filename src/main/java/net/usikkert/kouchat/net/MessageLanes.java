@@ -0,0 +1,432 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.usikkert.kouchat.misc.WaitingList;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Hands messages from the network over to a number of worker threads, called lanes, so messages
+ * from different users can be handled at the same time.
+ *
+ * <p>The lane is chosen from the code of the user that sent the message, so all the messages from
+ * the same user are handled by the same lane, in the order they arrived. Messages that could not
+ * be parsed are handled by the first lane.</p>
+ *
+ * <p>Each lane has a limited queue. When it's full, new messages for the lane are dropped and counted,
+ * so a slow lane never blocks the thread receiving messages for all the other lanes. When the lanes
+ * are not started, messages are handled right away in the calling thread instead. Checking if the lanes
+ * are started and adding the message is done under a lock that stopping waits for, so no message is
+ * added to a lane after its thread has stopped.</p>
+ *
+ * <p>Operations for a user, like the ones held back in the {@link WaitingList} for users that waited
+ * too long, can be added to the lane of the user with {@link #execute(int, Runnable)}, so they are
+ * handled in order with the messages from the user.</p>
+ *
+ * <p>Each start gets new queues and threads. A start waits for the threads from before the last stop
+ * to finish first, so two threads never handle messages from the same user at the same time.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageLanes implements MessageEnvelopeListener, WaitingList.ActionExecutor {
+
+    private static final Logger LOG = Logger.getLogger(MessageLanes.class);
+
+    /** The most messages waiting in each lane. */
+    static final int LANE_CAPACITY = 1000;
+
+    /** Log a warning for the first dropped message, and then for every this many. */
+    private static final int DROP_WARNING_INTERVAL = 1000;
+
+    /** The longest time to wait for the lane threads from before a stop to finish, in milliseconds. */
+    static final long JOIN_TIMEOUT = 5000;
+
+    /** Marks the end of the queue when stopping. */
+    private static final LaneMessage STOP = new LaneMessage(null, null, null, null);
+
+    private final Lane[] lanes;
+
+    @Nullable
+    private MessageEnvelopeListener listener;
+
+    private volatile boolean running;
+
+    /** Held for reading while adding to a lane, and for writing while starting or stopping. */
+    private final ReadWriteLock stateLock;
+
+    /** The number of messages dropped because the lane was full. */
+    private final AtomicLong droppedMessages;
+
+    /**
+     * Constructor.
+     *
+     * @param laneCount The number of lanes to handle messages with.
+     */
+    public MessageLanes(final int laneCount) {
+        if (laneCount <= 0) {
+            throw new IllegalArgumentException("Lane count must be positive");
+        }
+
+        lanes = new Lane[laneCount];
+        stateLock = new ReentrantReadWriteLock();
+        droppedMessages = new AtomicLong();
+
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+    /**
+     * Registers the listener to handle the messages in the lanes.
+     *
+     * @param theListener The listener to register.
+     */
+    public void registerReceiverListener(final MessageEnvelopeListener theListener) {
+        this.listener = theListener;
+    }
+
+    /**
+     * Starts the lane threads, if not already running.
+     */
+    public synchronized void start() {
+        if (running) {
+            LOG.fine("Already running.");
+            return;
+        }
+
+        for (final Lane lane : lanes) {
+            lane.waitForWorker();
+        }
+
+        stateLock.writeLock().lock();
+
+        try {
+            running = true;
+
+            for (final Lane lane : lanes) {
+                lane.start();
+            }
+        }
+
+        finally {
+            stateLock.writeLock().unlock();
+        }
+
+        LOG.fine("Started %s lanes.", lanes.length);
+    }
+
+    /**
+     * Stops the lane threads. Messages already in the lanes are handled before the threads stop,
+     * and new messages are handled right away in the calling thread.
+     *
+     * <p>Does not wait for the messages in the lanes to be handled, even if a lane is full.</p>
+     */
+    public synchronized void stop() {
+        if (!running) {
+            LOG.fine("Not running.");
+            return;
+        }
+
+        stateLock.writeLock().lock();
+
+        try {
+            running = false;
+
+            for (final Lane lane : lanes) {
+                lane.stop();
+            }
+        }
+
+        finally {
+            stateLock.writeLock().unlock();
+        }
+
+        LOG.fine("Stopped.");
+    }
+
+    /**
+     * Checks if the lane threads are running.
+     *
+     * @return If the lanes are running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Gets the number of messages waiting in all the lanes.
+     *
+     * @return The number of messages waiting.
+     */
+    public int size() {
+        int size = 0;
+
+        for (final Lane lane : lanes) {
+            size += lane.queue.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Gets the number of messages dropped because their lane was full.
+     *
+     * @return The number of dropped messages.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * Finds the lane to handle messages from the user.
+     *
+     * @param userCode The code of the user that sent the message.
+     * @return The index of the lane.
+     */
+    int getLane(final int userCode) {
+        final int hash = userCode ^ (userCode >>> 16);
+        return (hash & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * Adds the message to the lane of the user that sent it.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final MessageEnvelope envelope) {
+        if (!addToLane(getLane(envelope.getCode()), new LaneMessage(envelope, null, null, null))) {
+            deliver(envelope);
+        }
+    }
+
+    /**
+     * Adds the message to the first lane, since the user that sent it is not known.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        if (!addToLane(0, new LaneMessage(null, message, ipAddress, null))) {
+            deliver(message, ipAddress);
+        }
+    }
+
+    /**
+     * Adds the operation to the lane of the user, after the messages already waiting there.
+     * The operation is run right away in the calling thread if the lanes are not started.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(final int userCode, final Runnable action) {
+        Validate.notNull(action, "Action can not be null");
+
+        if (!addToLane(getLane(userCode), new LaneMessage(null, null, null, action))) {
+            action.run();
+        }
+    }
+
+    /**
+     * Adds the message to the lane if the lanes are running, or drops it if the lane is full.
+     * Never waits for room in the lane.
+     *
+     * @param lane The index of the lane.
+     * @param laneMessage The message to add.
+     * @return If the lanes are running, so the message was added or dropped. If not,
+     *         the message must be handled by the caller.
+     */
+    private boolean addToLane(final int lane, final LaneMessage laneMessage) {
+        stateLock.readLock().lock();
+
+        try {
+            if (!running) {
+                return false;
+            }
+
+            if (!lanes[lane].queue.offer(laneMessage)) {
+                final long dropped = droppedMessages.incrementAndGet();
+
+                if (dropped % DROP_WARNING_INTERVAL == 1) {
+                    LOG.warning("Lane %s is full. Dropped %s messages so far.", lane, dropped);
+                }
+            }
+
+            return true;
+        }
+
+        finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    private void deliver(final MessageEnvelope envelope) {
+        if (listener != null) {
+            listener.messageArrived(envelope);
+        }
+    }
+
+    private void deliver(final String message, final String ipAddress) {
+        if (listener != null) {
+            listener.messageArrived(message, ipAddress);
+        }
+    }
+
+    /**
+     * A message waiting in a lane. Either a parsed envelope, a raw message with the ip address,
+     * or an operation to run.
+     */
+    private static final class LaneMessage {
+
+        @Nullable
+        private final MessageEnvelope envelope;
+
+        @Nullable
+        private final String message;
+
+        @Nullable
+        private final String ipAddress;
+
+        @Nullable
+        private final Runnable action;
+
+        LaneMessage(@Nullable final MessageEnvelope envelope, @Nullable final String message,
+                    @Nullable final String ipAddress, @Nullable final Runnable action) {
+            this.envelope = envelope;
+            this.message = message;
+            this.ipAddress = ipAddress;
+            this.action = action;
+        }
+    }
+
+    /**
+     * A worker thread handling the messages in its queue in order.
+     * Each start gets a new queue and thread.
+     */
+    private final class Lane {
+
+        private final int number;
+
+        /** The queue of the current worker thread. */
+        private volatile BlockingQueue<LaneMessage> queue;
+
+        /** The current worker thread, or the one from before the last stop. */
+        @Nullable
+        private Thread worker;
+
+        /**
+         * Set when stopping the current worker thread, so it stops when the queue is empty
+         * if there was no room for STOP.
+         */
+        private volatile AtomicBoolean stopping;
+
+        Lane(final int number) {
+            this.number = number;
+            queue = new ArrayBlockingQueue<>(LANE_CAPACITY);
+            stopping = new AtomicBoolean();
+        }
+
+        void start() {
+            final BlockingQueue<LaneMessage> workerQueue = new ArrayBlockingQueue<>(LANE_CAPACITY);
+            final AtomicBoolean workerStopping = new AtomicBoolean();
+            queue = workerQueue;
+            stopping = workerStopping;
+
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handleMessages(workerQueue, workerStopping);
+                }
+            }, "MessageLane-" + number);
+
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        void stop() {
+            // Set before adding STOP, so the worker sees it if the queue is full
+            stopping.set(true);
+            queue.offer(STOP);
+        }
+
+        void waitForWorker() {
+            final Thread oldWorker = worker;
+
+            if (oldWorker == null || oldWorker == Thread.currentThread()) {
+                return;
+            }
+
+            try {
+                oldWorker.join(JOIN_TIMEOUT);
+            }
+
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (oldWorker.isAlive()) {
+                LOG.warning("Lane %s is still handling messages. Starting a new thread anyway.", number);
+            }
+        }
+
+        private void handleMessages(final BlockingQueue<LaneMessage> workerQueue, final AtomicBoolean workerStopping) {
+            try {
+                while (true) {
+                    final LaneMessage laneMessage = workerStopping.get() ? workerQueue.poll() : workerQueue.take();
+
+                    if (laneMessage == null || laneMessage == STOP) {
+                        break;
+                    }
+
+                    try {
+                        if (laneMessage.envelope != null) {
+                            deliver(laneMessage.envelope);
+                        } else if (laneMessage.action != null) {
+                            laneMessage.action.run();
+                        } else {
+                            deliver(laneMessage.message, laneMessage.ipAddress);
+                        }
+                    }
+
+                    catch (final RuntimeException e) {
+                        LOG.severe(e, "Failed to handle message in lane %s", number);
+                    }
+                }
+            }
+
+            catch (final InterruptedException e) {
+                LOG.warning("Lane %s interrupted", number);
+            }
+        }
+    }
+}
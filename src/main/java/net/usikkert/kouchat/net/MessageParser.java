@@ -27,11 +27,12 @@ import static net.usikkert.kouchat.net.NetworkMessageType.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import net.usikkert.kouchat.event.ReceiverListener;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * This class listens for multicast messages from the network,
  * and parses them into a format the {@link MessageResponder} can use.
@@ -61,19 +62,28 @@ import net.usikkert.kouchat.util.Validate;
  *
  * @author Christian Ihle
  */
-public class MessageParser implements ReceiverListener {
+public class MessageParser implements MessageEnvelopeListener {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(MessageParser.class.getName());
 
+    /** The number of message types supported here. */
+    private static final int NUMBER_OF_TYPES = 18;
+
     /** To handle the different kind of messages parsed here. */
     private final MessageResponder responder;
 
     /** The application settings. */
     private final Settings settings;
 
-    /** If logged on to the chat or not. */
-    private boolean loggedOn;
+    /** If logged on to the chat or not. Volatile, as messages can be parsed by several {@link MessageLanes}. */
+    private volatile boolean loggedOn;
+
+    /** Reusable view of the message being parsed, one for each receiver thread. */
+    private final ThreadLocal<MessageView> messageViews;
+
+    /** The handler of each message type, from other users. */
+    private final MessageTypeTable<MessageTypeHandler> handlers;
 
     /**
      * Constructor.
@@ -87,6 +97,16 @@ public class MessageParser implements ReceiverListener {
 
         this.responder = responder;
         this.settings = settings;
+
+        messageViews = new ThreadLocal<MessageView>() {
+            @Override
+            protected MessageView initialValue() {
+                return new MessageView();
+            }
+        };
+
+        handlers = new MessageTypeTable<>(NUMBER_OF_TYPES);
+        registerHandlers();
     }
 
     /**
@@ -94,228 +114,333 @@ public class MessageParser implements ReceiverListener {
      * and then gives the correct data to the responder for
      * more processing.
      *
+     * <p>The message is parsed using a {@link MessageView}, so only the fields needed
+     * by the responder are copied out of the message. The handler of the message type is found
+     * in a table, so every type, and unknown types, costs the same to look up.</p>
+     *
      * @param message The raw message to parse.
      * @param ipAddress The IP address of the user who sent the message.
      */
     @Override
     public void messageArrived(final String message, final String ipAddress) {
-        try {
-            final int exclamation = message.indexOf("!");
-            final int hash = message.indexOf("#");
-            final int colon = message.indexOf(":");
+        parse(message, ipAddress, null);
+    }
+
+    /**
+     * Gives the already parsed message to the responder, the same way as for raw messages.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final MessageEnvelope envelope) {
+        parse(envelope.getMessage(), envelope.getIpAddress(), envelope.getView());
+    }
 
-            final int msgCode = Integer.parseInt(message.substring(0, exclamation));
-            final String type = message.substring(exclamation + 1, hash);
-            final String msgNick = message.substring(hash + 1, colon);
-            final String msg = message.substring(colon + 1, message.length());
+    private void parse(final String message, final String ipAddress, @Nullable final MessageView parsedView) {
+        try {
+            final MessageView view = parsedView != null ? parsedView : messageViews.get().wrap(message);
+            final int msgCode = view.getCode();
 
             final User tempme = settings.getMe();
 
             if (msgCode != tempme.getCode() && loggedOn) {
-                if (type.equals(MSG)) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
+                final MessageTypeHandler handler = handlers.get(view);
 
-                    responder.messageArrived(msgCode, msg.substring(rightBracket + 1, msg.length()), rgb);
+                if (handler != null) {
+                    handler.parse(view, ipAddress, tempme);
                 }
+            }
 
-                else if (type.equals(LOGON)) {
-                    final User newUser = new User(msgNick, msgCode);
-                    newUser.setIpAddress(ipAddress);
-                    newUser.setLastIdle(System.currentTimeMillis());
-                    newUser.setLogonTime(System.currentTimeMillis());
+            else if (msgCode == tempme.getCode() && view.isType(LOGON)) {
+                responder.meLogOn(ipAddress);
+                loggedOn = true;
+            }
 
-                    responder.userLogOn(newUser);
-                }
+            else if (msgCode == tempme.getCode() && view.isType(IDLE) && loggedOn) {
+                responder.meIdle(ipAddress);
+            }
+        }
 
-                else if (type.equals(EXPOSING)) {
-                    final User user = new User(msgNick, msgCode);
-                    user.setIpAddress(ipAddress);
-                    user.setAwayMsg(msg);
+        // Just ignore, someone sent a badly formatted message
+        catch (final StringIndexOutOfBoundsException e) {
+            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
+        }
 
-                    if (msg.length() > 0) {
-                        user.setAway(true);
-                    }
+        // Just ignore, someone sent a badly formatted message
+        catch (final NumberFormatException e) {
+            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
+        }
+    }
 
-                    user.setLastIdle(System.currentTimeMillis());
-                    user.setLogonTime(System.currentTimeMillis());
+    /**
+     * Creates the handler of each message type from other users.
+     */
+    private void registerHandlers() {
+        handlers.put(MSG, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                final int leftBracket = view.payloadIndexOf('[');
+                final int rightBracket = view.payloadIndexOf(']');
+                final int rgb = view.payloadInt(leftBracket + 1, rightBracket);
+
+                responder.messageArrived(view.getCode(), view.payloadString(rightBracket + 1), rgb);
+            }
+        });
 
-                    responder.userExposing(user);
-                }
+        handlers.put(LOGON, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                final User newUser = new User(view.getNick(), view.getCode());
+                newUser.setIpAddress(ipAddress);
+                newUser.setLastIdle(System.currentTimeMillis());
+                newUser.setLogonTime(System.currentTimeMillis());
 
-                else if (type.equals(LOGOFF)) {
-                    responder.userLogOff(msgCode);
+                responder.userLogOn(newUser);
+            }
+        });
+
+        handlers.put(EXPOSING, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                final String msg = view.getPayload();
+                final User user = new User(view.getNick(), view.getCode());
+                user.setIpAddress(ipAddress);
+                user.setAwayMsg(msg);
+
+                if (msg.length() > 0) {
+                    user.setAway(true);
                 }
 
-                else if (type.equals(AWAY)) {
-                    responder.awayChanged(msgCode, true, msg);
-                }
+                user.setLastIdle(System.currentTimeMillis());
+                user.setLogonTime(System.currentTimeMillis());
 
-                else if (type.equals(BACK)) {
-                    responder.awayChanged(msgCode, false, "");
-                }
+                responder.userExposing(user);
+            }
+        });
 
-                else if (type.equals(EXPOSE)) {
-                    responder.exposeRequested();
-                }
+        handlers.put(LOGOFF, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                responder.userLogOff(view.getCode());
+            }
+        });
 
-                else if (type.equals(NICKCRASH)) {
-                    if (tempme.getNick().equals(msg)) {
-                        responder.nickCrash();
-                    }
-                }
+        handlers.put(AWAY, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                responder.awayChanged(view.getCode(), true, view.getPayload());
+            }
+        });
 
-                else if (type.equals(WRITING)) {
-                    responder.writingChanged(msgCode, true);
-                }
+        handlers.put(BACK, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                responder.awayChanged(view.getCode(), false, "");
+            }
+        });
 
-                else if (type.equals(STOPPEDWRITING)) {
-                    responder.writingChanged(msgCode, false);
-                }
+        handlers.put(EXPOSE, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                responder.exposeRequested();
+            }
+        });
 
-                else if (type.equals(GETTOPIC)) {
-                    responder.topicRequested();
+        handlers.put(NICKCRASH, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                if (view.payloadEquals(me.getNick())) {
+                    responder.nickCrash();
                 }
+            }
+        });
 
-                else if (type.equals(TOPIC)) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-
-                    if (rightBracket != -1 && leftBracket != -1) {
-                        final String theNick = msg.substring(leftPara + 1, rightPara);
-                        final long theTime = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                        String theTopic = null;
+        handlers.put(WRITING, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                responder.writingChanged(view.getCode(), true);
+            }
+        });
 
-                        if (msg.length() > rightBracket + 1) {
-                            theTopic = msg.substring(rightBracket + 1, msg.length());
-                        }
+        handlers.put(STOPPEDWRITING, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                responder.writingChanged(view.getCode(), false);
+            }
+        });
 
-                        responder.topicChanged(msgCode, theTopic, theNick, theTime);
+        handlers.put(GETTOPIC, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                responder.topicRequested();
+            }
+        });
+
+        handlers.put(TOPIC, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                final int leftBracket = view.payloadIndexOf('[');
+                final int rightBracket = view.payloadIndexOf(']');
+                final int leftPara = view.payloadIndexOf('(');
+                final int rightPara = view.payloadIndexOf(')');
+
+                if (rightBracket != -1 && leftBracket != -1) {
+                    final String theNick = view.payloadString(leftPara + 1, rightPara);
+                    final long theTime = view.payloadLong(leftBracket + 1, rightBracket);
+                    String theTopic = null;
+
+                    if (view.getPayloadLength() > rightBracket + 1) {
+                        theTopic = view.payloadString(rightBracket + 1);
                     }
-                }
 
-                else if (type.equals(NICK)) {
-                    responder.nickChanged(msgCode, msgNick);
+                    responder.topicChanged(view.getCode(), theTopic, theNick, theTime);
                 }
+            }
+        });
 
-                else if (type.equals(IDLE)) {
-                    responder.userIdle(msgCode, ipAddress);
-                }
+        handlers.put(NICK, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                responder.nickChanged(view.getCode(), view.getNick());
+            }
+        });
 
-                else if (type.equals(SENDFILEACCEPT)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final int leftBracket = msg.indexOf("[");
-                        final int rightBracket = msg.indexOf("]");
-                        final int port = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-
-                        responder.fileSendAccepted(msgCode, fileName, fileHash, port);
-                    }
+        handlers.put(IDLE, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                responder.userIdle(view.getCode(), ipAddress);
+            }
+        });
+
+        handlers.put(SENDFILEACCEPT, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                final int leftPara = view.payloadIndexOf('(');
+                final int rightPara = view.payloadIndexOf(')');
+                final int fileCode = view.payloadInt(leftPara + 1, rightPara);
+
+                if (fileCode == me.getCode()) {
+                    final int leftCurly = view.payloadIndexOf('{');
+                    final int rightCurly = view.payloadIndexOf('}');
+                    final int leftBracket = view.payloadIndexOf('[');
+                    final int rightBracket = view.payloadIndexOf(']');
+                    final int port = view.payloadInt(leftBracket + 1, rightBracket);
+                    final int fileHash = view.payloadInt(leftCurly + 1, rightCurly);
+                    final String fileName = view.payloadString(rightCurly + 1);
+
+                    responder.fileSendAccepted(view.getCode(), fileName, fileHash, port);
                 }
-
-                else if (type.equals(SENDFILEABORT)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-
-                        responder.fileSendAborted(msgCode, fileName, fileHash);
-                    }
+            }
+        });
+
+        handlers.put(SENDFILEABORT, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                final int leftPara = view.payloadIndexOf('(');
+                final int rightPara = view.payloadIndexOf(')');
+                final int fileCode = view.payloadInt(leftPara + 1, rightPara);
+
+                if (fileCode == me.getCode()) {
+                    final int leftCurly = view.payloadIndexOf('{');
+                    final int rightCurly = view.payloadIndexOf('}');
+                    final String fileName = view.payloadString(rightCurly + 1);
+                    final int fileHash = view.payloadInt(leftCurly + 1, rightCurly);
+
+                    responder.fileSendAborted(view.getCode(), fileName, fileHash);
                 }
-
-                else if (type.equals(SENDFILE)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final int leftBracket = msg.indexOf("[");
-                        final int rightBracket = msg.indexOf("]");
-                        final long byteSize = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-
-                        responder.fileSend(msgCode, byteSize, fileName, msgNick, fileHash);
-                    }
+            }
+        });
+
+        handlers.put(SENDFILE, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                final int leftPara = view.payloadIndexOf('(');
+                final int rightPara = view.payloadIndexOf(')');
+                final int fileCode = view.payloadInt(leftPara + 1, rightPara);
+
+                if (fileCode == me.getCode()) {
+                    final int leftCurly = view.payloadIndexOf('{');
+                    final int rightCurly = view.payloadIndexOf('}');
+                    final int leftBracket = view.payloadIndexOf('[');
+                    final int rightBracket = view.payloadIndexOf(']');
+                    final long byteSize = view.payloadLong(leftBracket + 1, rightBracket);
+                    final String fileName = view.payloadString(rightCurly + 1);
+                    final int fileHash = view.payloadInt(leftCurly + 1, rightCurly);
+
+                    responder.fileSend(view.getCode(), byteSize, fileName, view.getNick(), fileHash);
+                }
+            }
+        });
+
+        handlers.put(CLIENT, new MessageTypeHandler() {
+            @Override
+            public void parse(final MessageView view, final String ipAddress, final User me) {
+                final int leftPara = view.payloadIndexOf('(');
+                final int rightPara = view.payloadIndexOf(')');
+                final int leftBracket = view.payloadIndexOf('[');
+                final int rightBracket = view.payloadIndexOf(']');
+                final int leftCurly = view.payloadIndexOf('{');
+                final int rightCurly = view.payloadIndexOf('}');
+                final int lessThan = view.payloadIndexOf('<');
+                final int greaterThan = view.payloadIndexOf('>');
+                final int slash = view.payloadIndexOf('/');
+                final int backslash = view.payloadIndexOf('\\');
+
+                final String client = view.payloadString(leftPara + 1, rightPara);
+                final long timeSinceLogon = view.payloadLong(leftBracket + 1, rightBracket);
+                final String operatingSystem = view.payloadString(leftCurly + 1, rightCurly);
+
+                int privateChatPort = 0;
+
+                try {
+                    privateChatPort = view.payloadInt(lessThan + 1, greaterThan);
                 }
 
-                else if (type.equals(CLIENT)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int leftCurly = msg.indexOf("{");
-                    final int rightCurly = msg.indexOf("}");
-                    final int lessThan = msg.indexOf("<");
-                    final int greaterThan = msg.indexOf(">");
-                    final int slash = msg.indexOf("/");
-                    final int backslash = msg.indexOf("\\");
-
-                    final String client = msg.substring(leftPara + 1, rightPara);
-                    final long timeSinceLogon = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                    final String operatingSystem = msg.substring(leftCurly + 1, rightCurly);
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Failed to parse private chat port. message=" + view.getMessage() + ", ipAddress=" + ipAddress, e);
+                }
 
-                    int privateChatPort = 0;
+                int tcpChatPort = 0;
 
+                if (slash != -1 && backslash != -1) {
                     try {
-                        privateChatPort = Integer.parseInt(msg.substring(lessThan + 1, greaterThan));
+                        tcpChatPort = view.payloadInt(slash + 1, backslash);
                     }
 
                     catch (final NumberFormatException e) {
-                        LOG.log(Level.WARNING, "Failed to parse private chat port. message=" + message + ", ipAddress=" + ipAddress, e);
+                        LOG.log(Level.WARNING, "Failed to parse tcp chat port. message=" + view.getMessage() + ", ipAddress=" + ipAddress, e);
                     }
+                }
 
-                    int tcpChatPort = 0;
+                int networkCapabilities = 0;
 
-                    if (slash != -1 && backslash != -1) {
-                        try {
-                            tcpChatPort = Integer.parseInt(msg.substring(slash + 1, backslash));
-                        }
+                if (backslash != -1) {
+                    final int leftPipe = view.payloadIndexOf('|', backslash);
+                    final int rightPipe = view.payloadIndexOf('|', leftPipe + 1);
 
-                        catch (final NumberFormatException e) {
-                            LOG.log(Level.WARNING, "Failed to parse tcp chat port. message=" + message + ", ipAddress=" + ipAddress, e);
-                        }
+                    if (leftPipe != -1 && rightPipe != -1) {
+                        networkCapabilities = NetworkCapability.parse(view.payloadString(leftPipe + 1, rightPipe));
                     }
-
-                    responder.clientInfo(msgCode, client, timeSinceLogon, operatingSystem, privateChatPort, tcpChatPort);
                 }
-            }
 
-            else if (msgCode == tempme.getCode() && type.equals(LOGON)) {
-                responder.meLogOn(ipAddress);
-                loggedOn = true;
-            }
-
-            else if (msgCode == tempme.getCode() && type.equals(IDLE) && loggedOn) {
-                responder.meIdle(ipAddress);
+                responder.clientInfo(view.getCode(), client, timeSinceLogon, operatingSystem, privateChatPort,
+                                     tcpChatPort, networkCapabilities);
             }
-        }
-
-        // Just ignore, someone sent a badly formatted message
-        catch (final StringIndexOutOfBoundsException e) {
-            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
-        }
+        });
+    }
 
-        // Just ignore, someone sent a badly formatted message
-        catch (final NumberFormatException e) {
-            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
-        }
+    /**
+     * Parses the fields of one type of message, and gives them to the responder.
+     */
+    private interface MessageTypeHandler {
+
+        /**
+         * Parses the message.
+         *
+         * @param view The message to parse.
+         * @param ipAddress The IP address of the user who sent the message.
+         * @param me The application user.
+         */
+        void parse(MessageView view, String ipAddress, User me);
     }
 }
@@ -25,10 +25,14 @@ package net.usikkert.kouchat.net;
 import static net.usikkert.kouchat.net.NetworkUtils.IPTOS_RELIABILITY;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,6 +47,9 @@ import org.jetbrains.annotations.Nullable;
  * This is the thread that listens for multicast messages from
  * the network, and notifies any listeners when messages arrive.
  *
+ * <p>If a {@link NetworkEventLoop} is used, the messages are received by the event loop
+ * using a {@link DatagramChannel} instead of a separate thread.</p>
+ *
  * @author Christian Ihle
  */
 public class MessageReceiver implements Runnable {
@@ -69,6 +76,17 @@ public class MessageReceiver implements Runnable {
     /** The port to receive messages on. */
     private final int port;
 
+    /** The event loop to receive messages with, or <code>null</code> to use a separate thread. */
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
+    /** The size of the socket receive buffer, or 0 to use the default. */
+    private final int receiveBufferSize;
+
+    /** The multicast channel used for receiving messages with the event loop. */
+    @Nullable
+    private DatagramChannel channel;
+
     /**
      * Default constructor.
      *
@@ -82,6 +100,20 @@ public class MessageReceiver implements Runnable {
         this(Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT, errorHandler);
     }
 
+    /**
+     * Constructor for receiving with the default ip address and port, using an event loop.
+     *
+     * @see Constants#NETWORK_IP
+     * @see Constants#NETWORK_CHAT_PORT
+     * @param errorHandler The error handler to use.
+     * @param eventLoop The event loop to receive messages with, or <code>null</code> to use a separate thread.
+     * @param receiveBufferSize The size of the socket receive buffer, or 0 to use the default.
+     */
+    public MessageReceiver(final ErrorHandler errorHandler, @Nullable final NetworkEventLoop eventLoop,
+                           final int receiveBufferSize) {
+        this(Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT, errorHandler, eventLoop, receiveBufferSize);
+    }
+
     /**
      * Alternative constructor.
      *
@@ -92,12 +124,30 @@ public class MessageReceiver implements Runnable {
      * @param errorHandler The error handler to use.
      */
     public MessageReceiver(final String ipAddress, final int port, final ErrorHandler errorHandler) {
+        this(ipAddress, port, errorHandler, null, 0);
+    }
+
+    /**
+     * Alternative constructor.
+     *
+     * <p>Initializes the network with the given ip address and port, using an event loop.</p>
+     *
+     * @param ipAddress Multicast ip address to connect to.
+     * @param port Port to connect to.
+     * @param errorHandler The error handler to use.
+     * @param eventLoop The event loop to receive messages with, or <code>null</code> to use a separate thread.
+     * @param receiveBufferSize The size of the socket receive buffer, or 0 to use the default.
+     */
+    public MessageReceiver(final String ipAddress, final int port, final ErrorHandler errorHandler,
+                           @Nullable final NetworkEventLoop eventLoop, final int receiveBufferSize) {
         LOG.fine("Creating MessageReceiver on " + ipAddress + ":" + port);
 
         Validate.notEmpty(ipAddress, "IP address can not be empty");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.port = port;
+        this.eventLoop = eventLoop;
+        this.receiveBufferSize = receiveBufferSize;
 
         try {
             address = InetAddress.getByName(ipAddress);
@@ -117,19 +167,17 @@ public class MessageReceiver implements Runnable {
      * Waits for incoming packets, and notifies the listener when they arrive.
      */
     public void run() {
+        final DatagramReceiveBuffer receiveBuffer = new DatagramReceiveBuffer();
+
         while (connected) {
             try {
-                final DatagramPacket packet = new DatagramPacket(
-                        new byte[Constants.NETWORK_PACKET_SIZE], Constants.NETWORK_PACKET_SIZE);
-
                 if (connected) {
-                    mcSocket.receive(packet);
-                    final String ip = packet.getAddress().getHostAddress();
-                    final String message = new String(packet.getData(), Constants.MESSAGE_CHARSET).trim();
-                    LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+                    receiveBuffer.receive(mcSocket);
+                    final String ip = receiveBuffer.getIpAddress();
+                    final String message = receiveBuffer.getMessage();
 
-                    if (listener != null) {
-                        listener.messageArrived(message, ip);
+                    if (message != null) {
+                        notifyListener(message, ip);
                     }
                 }
             }
@@ -147,6 +195,16 @@ public class MessageReceiver implements Runnable {
         }
     }
 
+    private void notifyListener(final String message, final String ip) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+        }
+
+        if (listener != null) {
+            listener.messageArrived(message, ip);
+        }
+    }
+
     /**
      * Starts the thread that listens for messages.
      */
@@ -169,6 +227,10 @@ public class MessageReceiver implements Runnable {
     public synchronized boolean startReceiver(@Nullable final NetworkInterface networkInterface) {
         LOG.log(Level.FINE, "Connecting to " + address.getHostAddress() + ":" + port + " on " + networkInterface);
 
+        if (useEventLoop(networkInterface)) {
+            return startChannelReceiver(networkInterface);
+        }
+
         try {
             if (connected) {
                 LOG.log(Level.FINE, "Already connected.");
@@ -185,6 +247,10 @@ public class MessageReceiver implements Runnable {
 
                 mcSocket.setTrafficClass(IPTOS_RELIABILITY);
 
+                if (receiveBufferSize > 0) {
+                    mcSocket.setReceiveBufferSize(receiveBufferSize);
+                }
+
                 mcSocket.joinGroup(address);
                 LOG.log(Level.FINE, "Connected to " + mcSocket.getNetworkInterface());
                 connected = true;
@@ -210,6 +276,70 @@ public class MessageReceiver implements Runnable {
         return connected;
     }
 
+    /**
+     * The event loop needs a specific network interface to join the multicast group,
+     * so the operating system is left to choose using a normal socket instead.
+     */
+    private boolean useEventLoop(@Nullable final NetworkInterface networkInterface) {
+        return eventLoop != null && networkInterface != null;
+    }
+
+    /**
+     * Joins the multicast group with a channel, and registers it with the event loop.
+     *
+     * @param networkInterface The network interface to join the multicast group on.
+     * @return If connected to the network or not.
+     */
+    private boolean startChannelReceiver(final NetworkInterface networkInterface) {
+        if (connected) {
+            LOG.log(Level.FINE, "Already connected.");
+            return true;
+        }
+
+        try {
+            channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.IP_TOS, IPTOS_RELIABILITY);
+
+            if (receiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+
+            channel.bind(new InetSocketAddress(port));
+            channel.join(address, networkInterface);
+
+            connected = eventLoop.register(channel, SelectionKey.OP_READ, new ChannelReadHandler(channel));
+
+            if (connected) {
+                LOG.log(Level.FINE, "Connected to " + networkInterface + " using event loop");
+            } else {
+                LOG.log(Level.SEVERE, "Could not start receiver: event loop is not running");
+                closeChannel();
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, "Could not start receiver: " + e.toString(), e);
+            closeChannel();
+        }
+
+        return connected;
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            channel = null;
+        }
+    }
+
     /**
      * Disconnects from the network and closes the multicast socket.
      */
@@ -220,6 +350,13 @@ public class MessageReceiver implements Runnable {
             LOG.log(Level.FINE, "Not connected.");
         }
 
+        else if (channel != null) {
+            connected = false;
+            closeChannel();
+
+            LOG.log(Level.FINE, "Disconnected from " + address.getHostAddress() + ":" + port);
+        }
+
         else {
             connected = false;
 
@@ -251,4 +388,42 @@ public class MessageReceiver implements Runnable {
     public void registerReceiverListener(final ReceiverListener listener) {
         this.listener = listener;
     }
+
+    /**
+     * Reads all the packets available on the channel, when notified by the event loop.
+     */
+    private class ChannelReadHandler implements SelectionHandler {
+
+        private final DatagramChannel readChannel;
+        private final DatagramReceiveBuffer receiveBuffer;
+
+        ChannelReadHandler(final DatagramChannel readChannel) {
+            this.readChannel = readChannel;
+            this.receiveBuffer = new DatagramReceiveBuffer();
+        }
+
+        @Override
+        public void handleSelection(final SelectionKey key) {
+            try {
+                while (connected && receiveBuffer.receive(readChannel)) {
+                    final String message = receiveBuffer.getMessage();
+
+                    if (message != null) {
+                        notifyListener(message, receiveBuffer.getIpAddress());
+                    }
+                }
+            }
+
+            // Happens when channel is closed, or network is down
+            catch (final IOException e) {
+                if (connected) {
+                    LOG.log(Level.WARNING, e.toString());
+                }
+
+                else {
+                    LOG.log(Level.FINE, e.toString());
+                }
+            }
+        }
+    }
 }
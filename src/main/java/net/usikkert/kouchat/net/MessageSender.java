@@ -29,6 +29,7 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,6 +62,12 @@ public class MessageSender {
     /** The port to send messages to. */
     private final int port;
 
+    /** Splits messages that are too large for one packet. */
+    private final DatagramFragmenter fragmenter;
+
+    /** Reusable view of the message being sent, one for each sending thread. */
+    private final ThreadLocal<MessageView> messageViews;
+
     /**
      * Default constructor.
      *
@@ -90,6 +97,14 @@ public class MessageSender {
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.port = port;
+        fragmenter = new DatagramFragmenter();
+
+        messageViews = new ThreadLocal<MessageView>() {
+            @Override
+            protected MessageView initialValue() {
+                return new MessageView();
+            }
+        };
 
         try {
             address = InetAddress.getByName(ipAddress);
@@ -113,13 +128,44 @@ public class MessageSender {
      * @see Constants#MESSAGE_CHARSET
      * @see Constants#NETWORK_PACKET_SIZE
      */
-    public synchronized boolean send(final String message) {
+    public boolean send(final String message) {
+        return send(message, 0);
+    }
+
+    /**
+     * Sends a multicast packet to other clients over the network, using the optional
+     * features of the network protocol that all the clients support.
+     *
+     * <p>The message is sent in the binary format of {@link BinaryMessageCodec} with
+     * {@link NetworkCapability#BINARY}, and split into several packets if too large
+     * with {@link NetworkCapability#FRAGMENT}.</p>
+     *
+     * @param message The message to send in the packet.
+     * @param networkCapabilities The flags of the capabilities supported by all the clients.
+     * @return If the message was sent or not.
+     */
+    public synchronized boolean send(final String message, final int networkCapabilities) {
         if (connected) {
             try {
-                final byte[] encodedMsg = message.getBytes(Constants.MESSAGE_CHARSET);
+                final MessageView view = parseMessage(message);
+                final boolean binary = NetworkCapability.BINARY.isSupportedBy(networkCapabilities);
+                final byte[] encodedMsg = view != null
+                        ? BinaryMessageCodec.getBytes(view, binary) : BinaryMessageCodec.getBytes(message, false);
                 final int size = encodedMsg.length;
 
                 if (size > Constants.NETWORK_PACKET_SIZE) {
+                    final List<byte[]> fragments = view != null && NetworkCapability.FRAGMENT.isSupportedBy(networkCapabilities)
+                            ? fragmenter.split(encodedMsg, view.getCode()) : null;
+
+                    if (fragments != null) {
+                        for (final byte[] fragment : fragments) {
+                            mcSocket.send(new DatagramPacket(fragment, fragment.length, address, port));
+                        }
+
+                        LOG.log(Level.FINE, "Sent message in " + fragments.size() + " fragments: " + message);
+                        return true;
+                    }
+
                     LOG.log(Level.WARNING, "Message was " + size + " bytes, which is too large.\n" +
                             " The receiver might not get the complete message.\n'" + message + "'");
                 }
@@ -219,4 +265,21 @@ public class MessageSender {
             LOG.log(Level.FINE, "Disconnected from " + address.getHostAddress() + ":" + port);
         }
     }
+
+    /**
+     * Parses the message once, for both encoding and splitting it.
+     *
+     * @return The parsed message, or <code>null</code> if the message is malformed,
+     *         and must be sent as text.
+     */
+    @Nullable
+    private MessageView parseMessage(final String message) {
+        try {
+            return messageViews.get().wrap(message);
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
 }
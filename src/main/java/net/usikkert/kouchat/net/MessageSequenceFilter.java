@@ -0,0 +1,172 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers which sequence numbers have arrived from each user, so a message that arrives
+ * more than once, like on both multicast and tcp, is only accepted the first time.
+ *
+ * <p>Each user has a sliding window over the most recent sequence numbers, stored as a ring
+ * of bits. Checking a message is constant time no matter how many messages have arrived.
+ * Messages older than the window are treated as a restart of the sequence.</p>
+ *
+ * <p>Safe to use from several threads.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageSequenceFilter {
+
+    /** The number of sequence numbers remembered for each user. Must be a multiple of 64. */
+    static final int WINDOW_SIZE = 1024;
+
+    private final ConcurrentMap<Integer, SequenceWindow> windows;
+
+    public MessageSequenceFilter() {
+        windows = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Checks if this is the first time the message has arrived, and remembers it if it is.
+     *
+     * @param userCode The code of the user who sent the message.
+     * @param sequence The sequence number of the message.
+     * @return If this is the first time the message arrived.
+     */
+    public boolean accept(final int userCode, final int sequence) {
+        SequenceWindow window = windows.get(userCode);
+
+        if (window == null) {
+            final SequenceWindow newWindow = new SequenceWindow();
+            window = windows.putIfAbsent(userCode, newWindow);
+
+            if (window == null) {
+                window = newWindow;
+            }
+        }
+
+        return window.accept(sequence);
+    }
+
+    /**
+     * Forgets the sequence numbers of the user.
+     *
+     * @param userCode The code of the user to forget.
+     */
+    public void remove(final int userCode) {
+        windows.remove(userCode);
+    }
+
+    /**
+     * Gets the number of users with remembered sequence numbers.
+     *
+     * @return The number of users.
+     */
+    public int size() {
+        return windows.size();
+    }
+
+    /**
+     * The recent sequence numbers from one user.
+     */
+    private static class SequenceWindow {
+
+        private final long[] bits;
+
+        private boolean empty;
+        private int highest;
+
+        SequenceWindow() {
+            bits = new long[WINDOW_SIZE / 64];
+            empty = true;
+        }
+
+        synchronized boolean accept(final int sequence) {
+            if (empty) {
+                reset(sequence);
+                return true;
+            }
+
+            // Subtraction handles the sequence number wrapping around
+            final int distance = sequence - highest;
+
+            if (distance > 0) {
+                advance(sequence, distance);
+                return true;
+            }
+
+            if (-distance >= WINDOW_SIZE) {
+                reset(sequence);
+                return true;
+            }
+
+            if (isSet(sequence)) {
+                return false;
+            }
+
+            set(sequence);
+            return true;
+        }
+
+        private void advance(final int sequence, final int distance) {
+            if (distance >= WINDOW_SIZE) {
+                reset(sequence);
+                return;
+            }
+
+            for (int i = 1; i <= distance; i++) {
+                clear(highest + i);
+            }
+
+            highest = sequence;
+            set(sequence);
+        }
+
+        private void reset(final int sequence) {
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = 0;
+            }
+
+            empty = false;
+            highest = sequence;
+            set(sequence);
+        }
+
+        private boolean isSet(final int sequence) {
+            final int bit = sequence & (WINDOW_SIZE - 1);
+            return (bits[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        private void set(final int sequence) {
+            final int bit = sequence & (WINDOW_SIZE - 1);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+
+        private void clear(final int sequence) {
+            final int bit = sequence & (WINDOW_SIZE - 1);
+            bits[bit >>> 6] &= ~(1L << bit);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A lookup table from message types in {@link NetworkMessageType} to the handler of each type.
+ *
+ * <p>Finding the handler for a message costs the same for every type, and for unknown types,
+ * and the type is matched directly in the {@link MessageView} without creating a string.
+ * The table is filled once when created, and is safe to read from several threads after that.</p>
+ *
+ * @param <T> The type of handler.
+ * @author Christian Ihle
+ */
+public class MessageTypeTable<T> {
+
+    private final String[] types;
+    private final Object[] handlers;
+    private final int mask;
+
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of types the table must hold.
+     */
+    public MessageTypeTable(final int capacity) {
+        // At least twice the capacity keeps the probe sequences short
+        int tableSize = 4;
+
+        while (tableSize < capacity * 2) {
+            tableSize *= 2;
+        }
+
+        types = new String[tableSize];
+        handlers = new Object[tableSize];
+        mask = tableSize - 1;
+    }
+
+    /**
+     * Adds the handler for the message type.
+     *
+     * @param type The message type.
+     * @param handler The handler of the message type.
+     */
+    public void put(final String type, final T handler) {
+        Validate.notEmpty(type, "Type can not be empty");
+        Validate.notNull(handler, "Handler can not be null");
+
+        int index = type.hashCode() & mask;
+
+        while (types[index] != null && !types[index].equals(type)) {
+            index = (index + 1) & mask;
+        }
+
+        if (types[index] == null) {
+            if (size == types.length / 2) {
+                throw new IllegalStateException("Message type table is full");
+            }
+
+            size++;
+        }
+
+        types[index] = type;
+        handlers[index] = handler;
+    }
+
+    /**
+     * Gets the handler for the type of the message.
+     *
+     * @param view The message to find the handler for.
+     * @return The handler, or <code>null</code> if the message type is unknown.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public T get(final MessageView view) {
+        int index = view.typeHashCode() & mask;
+
+        while (types[index] != null) {
+            if (view.isType(types[index])) {
+                return (T) handlers[index];
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the number of message types in the table.
+     *
+     * @return The number of message types.
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,436 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A view of the fields in a raw message from the network, without copying them out of the message.
+ *
+ * <p>The format of a message is <code>code!TYPE#nick:payload</code>, or <code>code.seq!TYPE#nick:payload</code>
+ * with a sequence number if all the users support {@link NetworkCapability#SEQUENCE}. The positions of the fields are
+ * found once when a message is wrapped, and strings are only created for the fields that are requested.
+ * Numbers are parsed directly from the characters in the message.</p>
+ *
+ * <p>Positions in the payload are relative to the start of the payload, and the methods using
+ * them fail the same way as {@link String#substring(int, int)} and {@link Integer#parseInt(String)}
+ * on the payload would. A malformed message is reported with the same exceptions as before.</p>
+ *
+ * <p>The view can be reused for the next message by calling {@link #wrap(String)} again,
+ * so it's not thread safe.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageView {
+
+    /** Longest number of digits that can't overflow a long. */
+    private static final int MAX_FAST_DIGITS = 18;
+
+    private String message;
+    private int code;
+    private int sequence;
+    private boolean hasSequence;
+    private int exclamation;
+    private int hash;
+    private int colon;
+    private int payloadStart;
+
+    /**
+     * Wraps the message, and parses the header fields.
+     *
+     * @param theMessage The raw message to wrap.
+     * @return This view, for chaining.
+     * @throws StringIndexOutOfBoundsException If the message is missing header fields.
+     * @throws NumberFormatException If the user code is not a number.
+     */
+    public MessageView wrap(final String theMessage) {
+        Validate.notNull(theMessage, "Message can not be null");
+
+        message = theMessage;
+        exclamation = -1;
+        hash = -1;
+        colon = -1;
+
+        findHeaderDelimiters();
+
+        checkRange(0, exclamation, message.length());
+        parseCodeAndSequence();
+        checkRange(exclamation + 1, hash, message.length());
+        checkRange(hash + 1, colon, message.length());
+
+        payloadStart = colon + 1;
+
+        return this;
+    }
+
+    /**
+     * Wraps a message where the header fields are already known, like a message decoded from the binary format,
+     * without searching for the delimiters or parsing the numbers again.
+     *
+     * @param theMessage The raw message to wrap.
+     * @param theCode The user code in the message.
+     * @param withSequence If the message has a sequence number.
+     * @param theSequence The sequence number in the message, or 0 if the message has none.
+     * @param headerLength Number of characters before the type, which is where the '!' is.
+     * @param typeLength Number of characters in the type.
+     * @param nickLength Number of characters in the nick name.
+     * @return This view, for chaining.
+     */
+    MessageView wrap(final String theMessage, final int theCode, final boolean withSequence, final int theSequence,
+                     final int headerLength, final int typeLength, final int nickLength) {
+        Validate.notNull(theMessage, "Message can not be null");
+
+        message = theMessage;
+        code = theCode;
+        hasSequence = withSequence;
+        sequence = theSequence;
+        exclamation = headerLength;
+        hash = exclamation + 1 + typeLength;
+        colon = hash + 1 + nickLength;
+        payloadStart = colon + 1;
+
+        return this;
+    }
+
+    /**
+     * Creates a new view of the same message, with the header fields already parsed.
+     *
+     * <p>Used to keep a message that was parsed with a reused view, without parsing it again.</p>
+     *
+     * @return The new view.
+     */
+    public MessageView copy() {
+        final MessageView view = new MessageView();
+
+        view.message = message;
+        view.code = code;
+        view.sequence = sequence;
+        view.hasSequence = hasSequence;
+        view.exclamation = exclamation;
+        view.hash = hash;
+        view.colon = colon;
+        view.payloadStart = payloadStart;
+
+        return view;
+    }
+
+    /**
+     * Gets the raw message this is a view of.
+     *
+     * @return The raw message.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Gets the code of the user who sent the message.
+     *
+     * @return The user code.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Checks if the message has a sequence number.
+     *
+     * @return If the message has a sequence number.
+     */
+    public boolean hasSequence() {
+        return hasSequence;
+    }
+
+    /**
+     * Gets the sequence number of the message, counted by the user who sent it.
+     *
+     * @return The sequence number, or 0 if the message has none.
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Checks if the message is of the given type, without creating a string of the type.
+     *
+     * @param type The type to compare with, from {@link NetworkMessageType}.
+     * @return If the message is of the type.
+     */
+    public boolean isType(final String type) {
+        final int typeLength = hash - exclamation - 1;
+        return typeLength == type.length() && message.regionMatches(exclamation + 1, type, 0, typeLength);
+    }
+
+    /**
+     * Calculates the hash code of the type, without creating a string of the type.
+     *
+     * @return The same hash code as {@link String#hashCode()} of the type.
+     */
+    public int typeHashCode() {
+        int typeHash = 0;
+
+        for (int i = exclamation + 1; i < hash; i++) {
+            typeHash = 31 * typeHash + message.charAt(i);
+        }
+
+        return typeHash;
+    }
+
+    /**
+     * Gets the type of message.
+     *
+     * @return The type.
+     */
+    public String getType() {
+        return message.substring(exclamation + 1, hash);
+    }
+
+    /**
+     * Gets the nick name of the user who sent the message.
+     *
+     * @return The nick name.
+     */
+    public String getNick() {
+        return message.substring(hash + 1, colon);
+    }
+
+    /**
+     * Gets the payload, which is everything after the header.
+     *
+     * @return The payload.
+     */
+    public String getPayload() {
+        return message.substring(payloadStart);
+    }
+
+    /**
+     * Gets the length of the payload.
+     *
+     * @return The length of the payload.
+     */
+    public int getPayloadLength() {
+        return message.length() - payloadStart;
+    }
+
+    /**
+     * Checks if the payload is equal to the text, without creating a string of the payload.
+     *
+     * @param text The text to compare with.
+     * @return If the payload is equal to the text.
+     */
+    public boolean payloadEquals(final String text) {
+        return getPayloadLength() == text.length() && message.regionMatches(payloadStart, text, 0, text.length());
+    }
+
+    /**
+     * Finds the first position of the character in the payload.
+     *
+     * @param character The character to find.
+     * @return The position relative to the start of the payload, or <code>-1</code> if not found.
+     */
+    public int payloadIndexOf(final char character) {
+        final int index = message.indexOf(character, payloadStart);
+        return index == -1 ? -1 : index - payloadStart;
+    }
+
+    /**
+     * Finds the first position of the character in the payload, starting from a position in the payload.
+     *
+     * @param character The character to find.
+     * @param from The position in the payload to start from.
+     * @return The position relative to the start of the payload, or <code>-1</code> if not found.
+     */
+    public int payloadIndexOf(final char character, final int from) {
+        final int index = message.indexOf(character, payloadStart + Math.max(0, from));
+        return index == -1 ? -1 : index - payloadStart;
+    }
+
+    /**
+     * Gets a part of the payload as a string.
+     *
+     * @param begin Start position in the payload, inclusive.
+     * @param end End position in the payload, exclusive.
+     * @return The part of the payload.
+     */
+    public String payloadString(final int begin, final int end) {
+        checkRange(begin, end, getPayloadLength());
+        return message.substring(payloadStart + begin, payloadStart + end);
+    }
+
+    /**
+     * Gets the rest of the payload as a string.
+     *
+     * @param begin Start position in the payload, inclusive.
+     * @return The rest of the payload.
+     */
+    public String payloadString(final int begin) {
+        return payloadString(begin, getPayloadLength());
+    }
+
+    /**
+     * Parses a part of the payload as an int.
+     *
+     * @param begin Start position in the payload, inclusive.
+     * @param end End position in the payload, exclusive.
+     * @return The number.
+     */
+    public int payloadInt(final int begin, final int end) {
+        checkRange(begin, end, getPayloadLength());
+        return parseInt(payloadStart + begin, payloadStart + end);
+    }
+
+    /**
+     * Parses a part of the payload as a long.
+     *
+     * @param begin Start position in the payload, inclusive.
+     * @param end End position in the payload, exclusive.
+     * @return The number.
+     */
+    public long payloadLong(final int begin, final int end) {
+        checkRange(begin, end, getPayloadLength());
+        return parseLong(payloadStart + begin, payloadStart + end);
+    }
+
+    @Override
+    public String toString() {
+        return message;
+    }
+
+    /**
+     * Finds the first '!', '#' and ':' in a single pass, like three calls to {@link String#indexOf(int)}.
+     */
+    private void findHeaderDelimiters() {
+        final int length = message.length();
+
+        for (int i = 0; i < length && colon == -1; i++) {
+            final char character = message.charAt(i);
+
+            if (character == '!' && exclamation == -1) {
+                exclamation = i;
+            } else if (character == '#' && hash == -1) {
+                hash = i;
+            } else if (character == ':') {
+                colon = i;
+            }
+        }
+
+        // The nick can't contain '!' or '#', but keep the same result as indexOf() if it does
+        if (colon != -1) {
+            if (exclamation == -1) {
+                exclamation = message.indexOf('!', colon);
+            }
+
+            if (hash == -1) {
+                hash = message.indexOf('#', colon);
+            }
+        }
+    }
+
+    private void parseCodeAndSequence() {
+        final int dot = message.lastIndexOf('.', exclamation);
+
+        if (dot == -1) {
+            code = parseInt(0, exclamation);
+            sequence = 0;
+            hasSequence = false;
+        }
+
+        else {
+            code = parseInt(0, dot);
+            sequence = parseInt(dot + 1, exclamation);
+            hasSequence = true;
+        }
+    }
+
+    /**
+     * Checks the positions the same way as {@link String#substring(int, int)}, with the same exceptions.
+     */
+    private void checkRange(final int begin, final int end, final int length) {
+        if (begin < 0) {
+            throw new StringIndexOutOfBoundsException(begin);
+        }
+
+        if (end > length) {
+            throw new StringIndexOutOfBoundsException(end);
+        }
+
+        if (end - begin < 0) {
+            throw new StringIndexOutOfBoundsException(end - begin);
+        }
+    }
+
+    private int parseInt(final int begin, final int end) {
+        final long number = parseDigits(begin, end);
+
+        if (number < Integer.MIN_VALUE || number > Integer.MAX_VALUE) {
+            return Integer.parseInt(message.substring(begin, end));
+        }
+
+        return (int) number;
+    }
+
+    private long parseLong(final int begin, final int end) {
+        return parseDigits(begin, end);
+    }
+
+    /**
+     * Parses plain numbers directly from the message. Anything unusual, like a plus sign, too many digits
+     * or invalid characters, is handed over to {@link Long#parseLong(String)}, which either parses it
+     * or throws the expected exception.
+     */
+    private long parseDigits(final int begin, final int end) {
+        int position = begin;
+        final boolean negative = position < end && message.charAt(position) == '-';
+
+        if (negative) {
+            position++;
+        }
+
+        final int digits = end - position;
+
+        if (digits == 0 || digits > MAX_FAST_DIGITS) {
+            return slowParse(begin, end);
+        }
+
+        long number = 0;
+
+        for (; position < end; position++) {
+            final int digit = message.charAt(position) - '0';
+
+            if (digit < 0 || digit > 9) {
+                return slowParse(begin, end);
+            }
+
+            number = number * 10 + digit;
+        }
+
+        return negative ? -number : number;
+    }
+
+    private long slowParse(final int begin, final int end) {
+        final String number = message.substring(begin, end);
+
+        // Integer.parseInt() gives the same exception message as Long.parseLong() for invalid numbers
+        return Long.parseLong(number);
+    }
+}
@@ -0,0 +1,177 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Optional features of the network protocol, that are only used with users who support them.
+ *
+ * <p>The capabilities of a client are sent as a comma separated list of names in the
+ * {@link NetworkMessageType#CLIENT} message, like <code>|seq|</code>. Clients that don't know
+ * about capabilities ignore the list, and don't send one, so they get none of the features.</p>
+ *
+ * <p>The capabilities of a user are stored as flags in {@link User#getNetworkCapabilities()}.</p>
+ *
+ * @author Christian Ihle
+ */
+public enum NetworkCapability {
+
+    /** Messages can have a sequence number after the user code, like <code>code.seq!TYPE#nick:</code>. */
+    SEQUENCE("seq"),
+
+    /** Small messages can be sent together in a {@link NetworkMessageType#BATCH} message. See {@link MessageBatcher}. */
+    BATCH("batch"),
+
+    /** Multicast and udp messages can be sent in the binary format of {@link BinaryMessageCodec}. */
+    BINARY("bin"),
+
+    /** Messages too large for one packet can be split into fragments. See {@link DatagramFragmenter}. */
+    FRAGMENT("frag"),
+
+    /** Missing messages to all users can be asked for again. See {@link ReliableMulticast}. */
+    NACK("nack"),
+
+    /** Tcp messages can use the varint framing of {@link net.usikkert.kouchat.net.tcp.TCPFrameCodec}. */
+    TCP_FRAMING("tcpframe");
+
+    /** The separator between the capabilities in the list. */
+    private static final char SEPARATOR = ',';
+
+    private final String name;
+    private final int flag;
+
+    NetworkCapability(final String name) {
+        this.name = name;
+        this.flag = 1 << ordinal();
+    }
+
+    /**
+     * Gets the name used for this capability in the network messages.
+     *
+     * @return The name of the capability.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the flag of this capability in the flags of a user.
+     *
+     * @return The flag.
+     */
+    public int getFlag() {
+        return flag;
+    }
+
+    /**
+     * Checks if the user supports this capability.
+     *
+     * @param user The user to check.
+     * @return If the user supports this capability.
+     */
+    public boolean isSupportedBy(final User user) {
+        Validate.notNull(user, "User can not be null");
+        return isSupportedBy(user.getNetworkCapabilities());
+    }
+
+    /**
+     * Checks if this capability is one of the flags.
+     *
+     * @param networkCapabilities The flags of the capabilities to check.
+     * @return If this capability is supported by the flags.
+     */
+    public boolean isSupportedBy(final int networkCapabilities) {
+        return (networkCapabilities & flag) != 0;
+    }
+
+    /**
+     * Gets the flags of all the capabilities supported by this client.
+     *
+     * @return The flags of all the capabilities.
+     */
+    public static int getAllFlags() {
+        int flags = 0;
+
+        for (final NetworkCapability capability : values()) {
+            flags |= capability.flag;
+        }
+
+        return flags;
+    }
+
+    /**
+     * Creates the list of capabilities to send in a network message.
+     *
+     * @param flags The flags of the capabilities to include.
+     * @return The capabilities as a comma separated list of names.
+     */
+    public static String format(final int flags) {
+        final StringBuilder list = new StringBuilder();
+
+        for (final NetworkCapability capability : values()) {
+            if ((flags & capability.flag) != 0) {
+                if (list.length() > 0) {
+                    list.append(SEPARATOR);
+                }
+
+                list.append(capability.name);
+            }
+        }
+
+        return list.toString();
+    }
+
+    /**
+     * Parses a list of capabilities from a network message. Unknown capabilities are ignored,
+     * as they come from newer clients.
+     *
+     * @param list The comma separated list of names.
+     * @return The flags of the capabilities in the list that are known here.
+     */
+    public static int parse(final String list) {
+        Validate.notNull(list, "List can not be null");
+
+        int flags = 0;
+        int start = 0;
+
+        while (start <= list.length()) {
+            int end = list.indexOf(SEPARATOR, start);
+
+            if (end == -1) {
+                end = list.length();
+            }
+
+            for (final NetworkCapability capability : values()) {
+                if (capability.name.length() == end - start && list.startsWith(capability.name, start)) {
+                    flags |= capability.flag;
+                }
+            }
+
+            start = end + 1;
+        }
+
+        return flags;
+    }
+}
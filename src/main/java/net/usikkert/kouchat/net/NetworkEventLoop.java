@@ -0,0 +1,316 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A single thread that handles all the network channels, using a {@link Selector}.
+ *
+ * <p>This is an alternative to having one blocking thread for each socket, so the number of
+ * threads stays the same no matter how many users are connected. Channels are registered with a
+ * {@link SelectionHandler} that is notified on the event loop thread when the channel is ready.</p>
+ *
+ * <p>Registration and other changes to the channels must happen on the event loop thread, so
+ * they are queued using {@link #execute(Runnable)} if called from other threads.</p>
+ *
+ * <p>Each start gets a new selector, task queue and thread, so a thread that is still stopping never
+ * runs or removes the tasks meant for the new thread.</p>
+ *
+ * @author Christian Ihle
+ */
+public class NetworkEventLoop {
+
+    private static final Logger LOG = Logger.getLogger(NetworkEventLoop.class);
+
+    /** Tasks waiting to run on the current event loop thread. Replaced on each start. */
+    private volatile Queue<Runnable> tasks;
+
+    @Nullable
+    private volatile Selector selector;
+
+    @Nullable
+    private volatile Thread worker;
+
+    private volatile boolean running;
+
+    public NetworkEventLoop() {
+        tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Opens the selector and starts the event loop thread, if not already running.
+     *
+     * @return If the event loop is running.
+     */
+    public synchronized boolean start() {
+        if (running) {
+            LOG.fine("Already running.");
+            return true;
+        }
+
+        try {
+            final Selector workerSelector = Selector.open();
+            final Queue<Runnable> workerTasks = new ConcurrentLinkedQueue<>();
+            selector = workerSelector;
+            tasks = workerTasks;
+            running = true;
+
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handleChannels(workerSelector, workerTasks);
+                }
+            }, getClass().getSimpleName());
+
+            worker.start();
+
+            LOG.fine("Started.");
+        }
+
+        catch (final IOException e) {
+            LOG.severe(e, "Could not start event loop: %s", e.toString());
+        }
+
+        return running;
+    }
+
+    /**
+     * Stops the event loop thread and closes the selector.
+     *
+     * <p>Channels still registered are not closed, that is the responsibility of the owner of each channel.</p>
+     */
+    public synchronized void stop() {
+        if (!running) {
+            LOG.fine("Not running.");
+            return;
+        }
+
+        running = false;
+        selector.wakeup();
+        LOG.fine("Stopped.");
+    }
+
+    /**
+     * Checks if the event loop is running.
+     *
+     * @return If the event loop is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Checks if the current thread is the event loop thread.
+     *
+     * @return If called from the event loop thread.
+     */
+    public boolean isEventLoopThread() {
+        return Thread.currentThread() == worker;
+    }
+
+    /**
+     * Runs the task on the event loop thread. The task is queued, and runs before the next
+     * time the loop waits for the channels.
+     *
+     * @param task The task to run.
+     * @return If the task was queued. Tasks are not queued if the event loop is not running.
+     */
+    public boolean execute(final Runnable task) {
+        Validate.notNull(task, "Task can not be null");
+
+        if (!running) {
+            return false;
+        }
+
+        final Selector currentSelector = selector;
+        tasks.add(task);
+
+        // Avoids an extra system call when queued by the event loop thread itself
+        if (!isEventLoopThread()) {
+            currentSelector.wakeup();
+        }
+
+        return true;
+    }
+
+    /**
+     * Registers the channel with the event loop. The handler is notified when the channel
+     * is ready for any of the operations.
+     *
+     * <p>The channel is switched to non-blocking mode before it's registered.</p>
+     *
+     * @param channel The channel to register.
+     * @param operations The operations to be notified about, like {@link SelectionKey#OP_READ}.
+     * @param handler The handler to notify when the channel is ready.
+     * @return If the registration was queued.
+     */
+    public boolean register(final SelectableChannel channel, final int operations, final SelectionHandler handler) {
+        Validate.notNull(channel, "Channel can not be null");
+        Validate.notNull(handler, "Handler can not be null");
+
+        return execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, operations, handler);
+                }
+
+                catch (final ClosedChannelException e) {
+                    LOG.fine("Channel closed before it was registered: %s", e.toString());
+                }
+
+                catch (final IOException e) {
+                    LOG.severe(e, "Failed to register channel: %s", e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the selection key of a channel registered with this event loop.
+     *
+     * <p>Registration is queued, so the key is only available to tasks queued after the registration.</p>
+     *
+     * @param channel The channel to get the key for.
+     * @return The selection key, or <code>null</code> if the channel is not registered.
+     */
+    @Nullable
+    public SelectionKey keyFor(final SelectableChannel channel) {
+        final Selector currentSelector = selector;
+
+        if (currentSelector == null) {
+            return null;
+        }
+
+        return channel.keyFor(currentSelector);
+    }
+
+    /**
+     * Changes the operations the channel is registered for. Safe to call from any thread.
+     *
+     * @param key The selection key of the channel.
+     * @param operations The new operations to be notified about.
+     */
+    public void changeOperations(final SelectionKey key, final int operations) {
+        if (isEventLoopThread()) {
+            setInterestOps(key, operations);
+        }
+
+        else {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    setInterestOps(key, operations);
+                }
+            });
+        }
+    }
+
+    /**
+     * The event loop thread. Runs the tasks and handles the selected channels until stopped.
+     *
+     * @param currentSelector The selector belonging to this thread.
+     * @param currentTasks The task queue belonging to this thread.
+     */
+    private void handleChannels(final Selector currentSelector, final Queue<Runnable> currentTasks) {
+        // A restart creates a new selector and thread, so this thread must stop even if running again
+        while (running && currentSelector == selector) {
+            try {
+                runTasks(currentTasks);
+                currentSelector.select();
+                runTasks(currentTasks);
+                handleSelectedKeys(currentSelector);
+            }
+
+            catch (final IOException e) {
+                LOG.severe(e, "Event loop failed: %s", e.toString());
+            }
+
+            // Handlers should catch their own exceptions, but the event loop must keep running
+            catch (final RuntimeException e) {
+                LOG.severe(e, "Unexpected error in event loop: %s", e.toString());
+            }
+        }
+
+        try {
+            currentSelector.close();
+        }
+
+        catch (final IOException e) {
+            LOG.warning("Failed to close selector: %s", e.toString());
+        }
+    }
+
+    private void runTasks(final Queue<Runnable> currentTasks) {
+        Runnable task = currentTasks.poll();
+
+        while (task != null) {
+            task.run();
+            task = currentTasks.poll();
+        }
+    }
+
+    private void handleSelectedKeys(final Selector currentSelector) {
+        final Iterator<SelectionKey> selectedKeys = currentSelector.selectedKeys().iterator();
+
+        while (selectedKeys.hasNext()) {
+            final SelectionKey key = selectedKeys.next();
+            selectedKeys.remove();
+
+            if (!key.isValid()) {
+                continue;
+            }
+
+            final SelectionHandler handler = (SelectionHandler) key.attachment();
+
+            try {
+                handler.handleSelection(key);
+            }
+
+            catch (final CancelledKeyException e) {
+                LOG.fine("Channel closed during selection: %s", e.toString());
+            }
+        }
+    }
+
+    private void setInterestOps(final SelectionKey key, final int operations) {
+        if (key.isValid()) {
+            key.interestOps(operations);
+        }
+    }
+}
@@ -48,4 +48,6 @@ public interface NetworkMessageType {
     String SENDFILE = "SENDFILE";
     String CLIENT = "CLIENT";
     String PRIVMSG = "PRIVMSG";
+    String BATCH = "BATCH";
+    String NACK = "NACK";
 }
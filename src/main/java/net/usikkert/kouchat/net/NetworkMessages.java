@@ -24,16 +24,29 @@ package net.usikkert.kouchat.net;
 
 import static net.usikkert.kouchat.net.NetworkMessageType.*;
 
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import net.usikkert.kouchat.misc.CommandException;
 import net.usikkert.kouchat.misc.Topic;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * This class gives access to sending the different kinds of network messages
  * that this application supports. Both multicast, and normal udp.
  *
+ * <p>The messages are sent in order through an {@link OutboundMessageQueue}. After {@link #start(SendFailureListener)}
+ * the caller only adds the message to the queue, and the result is handled later from the sender thread.
+ * Messages where the result is needed right away, like when sending files, still wait for the result.</p>
+ *
+ * <p>The {@link SendFailureListener} is notified from a separate notifier thread, and never from the sender thread,
+ * so a slow listener does not hold back the messages waiting to be sent.</p>
+ *
  * @author Christian Ihle
  */
 public class NetworkMessages {
@@ -47,6 +60,16 @@ public class NetworkMessages {
     /** Settings. */
     private final Settings settings;
 
+    /** Sends the messages in order, from a separate thread when started. */
+    private final OutboundMessageQueue outboundQueue;
+
+    /** Notified of messages that failed to send from the separate thread. */
+    @Nullable
+    private volatile SendFailureListener failureListener;
+
+    /** Notifies the failure listener in order, from a thread that stops when there is nothing to notify. */
+    private final ThreadPoolExecutor failureNotifier;
+
     /**
      * Constructor.
      *
@@ -60,6 +83,32 @@ public class NetworkMessages {
         this.networkService = networkService;
         this.settings = settings;
         me = settings.getMe();
+        outboundQueue = new OutboundMessageQueue(networkService);
+
+        failureNotifier = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        failureNotifier.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts sending messages from a separate thread, so sending never blocks the caller.
+     *
+     * <p>Failures that are reported to the caller with a {@link CommandException} when not started,
+     * are reported to the listener instead.</p>
+     *
+     * @param listener The listener to notify of messages that failed to send.
+     */
+    public void start(final SendFailureListener listener) {
+        Validate.notNull(listener, "Send failure listener can not be null");
+
+        failureListener = listener;
+        outboundQueue.start();
+    }
+
+    /**
+     * Stops sending messages from a separate thread. Messages are sent right away after this.
+     */
+    public void stop() {
+        outboundQueue.stop();
     }
 
     /**
@@ -69,11 +118,7 @@ public class NetworkMessages {
      */
     public void sendIdleMessage() {
         final String msg = createMessage(IDLE);
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        sendOrCheckNetwork(msg);
     }
 
     /**
@@ -85,11 +130,7 @@ public class NetworkMessages {
      */
     public void sendTopicChangeMessage(final Topic topic) {
         final String msg = createTopicMessage(topic);
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        sendOrCheckNetwork(msg);
     }
 
     /**
@@ -99,7 +140,7 @@ public class NetworkMessages {
      */
     public void sendTopicRequestedMessage(final Topic topic) {
         final String msg = createTopicMessage(topic);
-        networkService.sendMessageToAllUsers(msg);
+        send(msg);
     }
 
     /**
@@ -111,11 +152,7 @@ public class NetworkMessages {
      */
     public void sendAwayMessage(final String awayMsg) {
         final String msg = createMessage(AWAY) + awayMsg;
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        sendOrCheckNetwork(msg);
     }
 
     /**
@@ -125,11 +162,7 @@ public class NetworkMessages {
      */
     public void sendBackMessage() {
         final String msg = createMessage(BACK);
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        sendOrCheckNetwork(msg);
     }
 
     /**
@@ -145,12 +178,7 @@ public class NetworkMessages {
                 "[" + settings.getOwnColor() + "]" +
                 chatMsg;
 
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-            notifyUser("Failed to send message: " + chatMsg);
-        }
+        sendOrNotifyUser(msg, null, "Failed to send message: " + chatMsg);
     }
 
     /**
@@ -158,15 +186,17 @@ public class NetworkMessages {
      */
     public void sendLogonMessage() {
         final String msg = createMessage(LOGON);
-        networkService.sendMessageToAllUsers(msg);
+        send(msg);
     }
 
     /**
      * Sends a message to log this client off the network.
+     *
+     * <p>Waits until the message is sent, so it's not lost when disconnecting right after.</p>
      */
     public void sendLogoffMessage() {
         final String msg = createMessage(LOGOFF);
-        networkService.sendMessageToAllUsers(msg);
+        outboundQueue.sendAndWait(msg, null);
     }
 
     /**
@@ -174,7 +204,7 @@ public class NetworkMessages {
      */
     public void sendExposeMessage() {
         final String msg = createMessage(EXPOSE);
-        networkService.sendMessageToAllUsers(msg);
+        send(msg);
     }
 
     /**
@@ -182,7 +212,7 @@ public class NetworkMessages {
      */
     public void sendExposingMessage() {
         final String msg = createMessage(EXPOSING) + me.getAwayMsg();
-        networkService.sendMessageToAllUsers(msg);
+        send(msg);
     }
 
     /**
@@ -190,7 +220,7 @@ public class NetworkMessages {
      */
     public void sendGetTopicMessage() {
         final String msg = createMessage(GETTOPIC);
-        networkService.sendMessageToAllUsers(msg);
+        send(msg);
     }
 
     /**
@@ -198,7 +228,7 @@ public class NetworkMessages {
      */
     public void sendWritingMessage() {
         final String msg = createMessage(WRITING);
-        networkService.sendMessageToAllUsers(msg);
+        send(msg);
     }
 
     /**
@@ -206,7 +236,7 @@ public class NetworkMessages {
      */
     public void sendStoppedWritingMessage() {
         final String msg = createMessage(STOPPEDWRITING);
-        networkService.sendMessageToAllUsers(msg);
+        send(msg);
     }
 
     /**
@@ -218,11 +248,7 @@ public class NetworkMessages {
      */
     public void sendNickMessage(final String newNick) {
         final String msg = createMessage(NICK, newNick);
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        sendOrCheckNetwork(msg);
     }
 
     /**
@@ -233,7 +259,7 @@ public class NetworkMessages {
      */
     public void sendNickCrashMessage(final String crashNick) {
         final String msg = createMessage(NICKCRASH) + crashNick;
-        networkService.sendMessageToAllUsers(msg);
+        send(msg);
     }
 
     /**
@@ -249,11 +275,7 @@ public class NetworkMessages {
                 "{" + fileHash + "}" +
                 fileName;
 
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
-
-        if (!sent) {
-            checkNetwork();
-        }
+        sendOrCheckNetwork(msg);
     }
 
     /**
@@ -277,7 +299,7 @@ public class NetworkMessages {
                 "{" + fileHash + "}" +
                 fileName;
 
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
+        final boolean sent = outboundQueue.sendAndWait(msg, null);
 
         if (!sent) {
             checkNetwork();
@@ -301,7 +323,7 @@ public class NetworkMessages {
                 "{" + file.hashCode() + "}" +
                 file.getName();
 
-        final boolean sent = networkService.sendMessageToAllUsers(msg);
+        final boolean sent = outboundQueue.sendAndWait(msg, null);
 
         if (!sent) {
             checkNetwork();
@@ -318,6 +340,7 @@ public class NetworkMessages {
      *   <li>Operating system.</li>
      *   <li>Port to connect to for private chat.</li>
      *   <li>Port to connect to for tcp chat.</li>
+     *   <li>Optional network protocol features supported by this client.</li>
      * </ul>
      */
     public void sendClient() {
@@ -326,9 +349,10 @@ public class NetworkMessages {
                 "[" + (System.currentTimeMillis() - me.getLogonTime()) + "]" +
                 "{" + me.getOperatingSystem() + "}" +
                 "<" + me.getPrivateChatPort() + ">" +
-                "/" + me.getTcpChatPort() + "\\";
+                "/" + me.getTcpChatPort() + "\\" +
+                "|" + NetworkCapability.format(NetworkCapability.getAllFlags()) + "|";
 
-        networkService.sendMessageToAllUsers(msg);
+        send(msg);
     }
 
     /**
@@ -346,12 +370,68 @@ public class NetworkMessages {
                 "[" + settings.getOwnColor() + "]" +
                 privMsg;
 
-        final boolean sent = networkService.sendMessageToUser(msg, user);
+        sendOrNotifyUser(msg, user, "Failed to send private message to " + user.getNick() + ": " + privMsg);
+    }
+
+    /**
+     * Sends the message to all users, without checking the result.
+     *
+     * @param msg The message to send.
+     */
+    private void send(final String msg) {
+        outboundQueue.send(msg, null, null);
+    }
 
-        if (!sent) {
-            checkNetwork();
-            notifyUser("Failed to send private message to " + user.getNick() + ": " + privMsg);
+    /**
+     * Sends the message to all users, and checks the network if it fails.
+     *
+     * @param msg The message to send.
+     */
+    private void sendOrCheckNetwork(final String msg) {
+        outboundQueue.send(msg, null, new OutboundMessageQueue.SendCallback() {
+            @Override
+            public void messageSent(final boolean sent) {
+                if (!sent) {
+                    checkNetwork();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the message, and checks the network and notifies the user if it fails.
+     *
+     * <p>When sending from a separate thread, the user is notified through the {@link SendFailureListener}.
+     * If not, a {@link CommandException} is thrown right away.</p>
+     *
+     * @param msg The message to send.
+     * @param user The user to send the message to, or <code>null</code> to send to all users.
+     * @param infoMsg The message to give the user if it fails.
+     * @throws CommandException If the message was not sent successfully, and not sending from a separate thread.
+     */
+    private void sendOrNotifyUser(final String msg, @Nullable final User user, final String infoMsg)
+            throws CommandException {
+        if (!outboundQueue.isRunning()) {
+            final boolean sent = user == null ? networkService.sendMessageToAllUsers(msg)
+                                              : networkService.sendMessageToUser(msg, user);
+
+            if (!sent) {
+                checkNetwork();
+                notifyUser(infoMsg);
+            }
+
+            return;
         }
+
+        outboundQueue.send(msg, user, new OutboundMessageQueue.SendCallback() {
+            @Override
+            public void messageSent(final boolean sent) {
+                if (!sent) {
+                    checkNetwork();
+                    notifyListener(user, infoMsg);
+                }
+            }
+        });
     }
 
     /**
@@ -400,10 +480,46 @@ public class NetworkMessages {
         throw new CommandException(infoMsg);
     }
 
+    /**
+     * Informs the user that the message could not be delivered, when sending from a separate thread.
+     * The listener is notified from the notifier thread.
+     *
+     * @param user The user the message was for, or <code>null</code> if for all users.
+     * @param infoMsg The message to give the user.
+     */
+    private void notifyListener(@Nullable final User user, final String infoMsg) {
+        final SendFailureListener listener = failureListener;
+
+        if (listener != null) {
+            failureNotifier.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.sendFailed(user, infoMsg);
+                }
+            });
+        }
+    }
+
     /**
      * Asks the network service to check the network status.
      */
     private void checkNetwork() {
         networkService.checkNetwork();
     }
+
+    /**
+     * Notified when a message sent from a separate thread could not be delivered.
+     *
+     * <p>Notified from a separate notifier thread, and not the thread that asked to send the message.</p>
+     */
+    public interface SendFailureListener {
+
+        /**
+         * A message could not be delivered, and the user should be told.
+         *
+         * @param user The user the message was for, or <code>null</code> if for all users.
+         * @param infoMsg The message to give the user.
+         */
+        void sendFailed(@Nullable User user, String infoMsg);
+    }
 }
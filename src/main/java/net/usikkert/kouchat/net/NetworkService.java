@@ -23,17 +23,21 @@
 package net.usikkert.kouchat.net;
 
 import java.net.NetworkInterface;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.usikkert.kouchat.event.NetworkConnectionListener;
-import net.usikkert.kouchat.event.ReceiverListener;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.misc.WaitingList;
 import net.usikkert.kouchat.net.tcp.TCPNetworkService;
+import net.usikkert.kouchat.net.tcp.TCPWriteStatistics;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * This class has services for connecting to the network.
  *
@@ -44,6 +48,9 @@ public class NetworkService implements NetworkConnectionListener {
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(NetworkService.class.getName());
 
+    /** Number of milliseconds to also send on tcp after multicast messages were lost. */
+    static final long NACK_PRESSURE_TIMEOUT = 10 * 1000;
+
     /** The thread responsible for keeping the network connection up. */
     private final ConnectionWorker connectionWorker;
 
@@ -68,6 +75,42 @@ public class NetworkService implements NetworkConnectionListener {
     /** If private chat should be enabled. */
     private final boolean privateChatEnabled;
 
+    /** The sequence number of the last message sent to all users. */
+    private final AtomicInteger sequence;
+
+    /** The sequence number of the last private message sent. */
+    private final AtomicInteger privateSequence;
+
+    /** The last messages sent to all users, in case someone missed them. */
+    private final RetransmitBuffer retransmitBuffer;
+
+    /** Asks for missing messages from others, and sends missing messages again. */
+    private final ReliableMulticast reliableMulticast;
+
+    /** Sheds messages from senders flooding the network. */
+    private final InboundRateLimiter inboundRateLimiter;
+
+    /** The user running this client. */
+    private final User me;
+
+    /** The capabilities supported by all the other users, kept up to date from the user list. */
+    private final CommonCapabilities commonCapabilities;
+
+    /** Time of the last request for missing multicast messages, from this user or someone else. */
+    private volatile long lastNackTime;
+
+    /** The event loop handling all the network channels, or <code>null</code> to use a thread for each socket. */
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
+    /** Collects small messages to send together, or <code>null</code> to send all messages right away. */
+    @Nullable
+    private final MessageBatcher messageBatcher;
+
+    /** Handles messages from different users in parallel, or <code>null</code> to handle them where they arrive. */
+    @Nullable
+    private final MessageLanes messageLanes;
+
     /**
      * Constructor.
      *
@@ -82,16 +125,46 @@ public class NetworkService implements NetworkConnectionListener {
 
         LOG.fine("Initializing network");
 
+        me = settings.getMe();
         privateChatEnabled = !settings.isNoPrivateChat();
+        sequence = new AtomicInteger();
+        privateSequence = new AtomicInteger();
+        commonCapabilities = new CommonCapabilities();
+        controller.getUserList().addUserListListener(commonCapabilities);
+        commonCapabilities.addUsers(controller.getUserList().getSnapshot());
+        retransmitBuffer = new RetransmitBuffer();
+        reliableMulticast = new ReliableMulticast(new ReliableMulticast.Listener() {
+            @Override
+            public void sendNack(final int userCode, final int first, final int last) {
+                lastNackTime = System.currentTimeMillis();
+                messageSender.send(createNackMessage(userCode, first, last), getCommonCapabilities());
+            }
+
+            @Override
+            public void retransmit(final int first, final int last) {
+                lastNackTime = System.currentTimeMillis();
+                retransmitMessages(first, last);
+            }
+        });
+
+        if (settings.isNioNetwork()) {
+            LOG.fine("Using event loop for the network");
+            eventLoop = new NetworkEventLoop();
+        }
+
+        else {
+            eventLoop = null;
+        }
 
-        messageReceiver = new MessageReceiver(errorHandler);
+        messageReceiver = new MessageReceiver(errorHandler, eventLoop, settings.getReceiveBufferSize());
         messageSender = new MessageSender(errorHandler);
         connectionWorker = new ConnectionWorker(settings, errorHandler);
-        tcpNetworkService = new TCPNetworkService(controller, settings, errorHandler);
-        messageDeduplicator = new MessageDeduplicator(controller);
+        tcpNetworkService = new TCPNetworkService(controller, settings, errorHandler, eventLoop);
+        inboundRateLimiter = new InboundRateLimiter();
+        messageDeduplicator = new MessageDeduplicator(controller, reliableMulticast, inboundRateLimiter, me);
 
         if (privateChatEnabled) {
-            udpReceiver = new UDPReceiver(settings, errorHandler);
+            udpReceiver = new UDPReceiver(settings, errorHandler, eventLoop);
             udpSender = new UDPSender(errorHandler);
         }
 
@@ -101,6 +174,31 @@ public class NetworkService implements NetworkConnectionListener {
             udpSender = null;
         }
 
+        if (settings.getBatchWindow() > 0) {
+            LOG.fine("Sending small messages together within " + settings.getBatchWindow() + " ms");
+            messageBatcher = new MessageBatcher(settings.getBatchWindow(), new MessageBatcher.BatchSender() {
+                @Override
+                public void sendBatch(final String message) {
+                    if (!sendMessageToAllUsersNow(message)) {
+                        checkNetwork();
+                    }
+                }
+            });
+        }
+
+        else {
+            messageBatcher = null;
+        }
+
+        if (settings.getReceiveLanes() > 1) {
+            LOG.fine("Handling messages in " + settings.getReceiveLanes() + " lanes");
+            messageLanes = new MessageLanes(settings.getReceiveLanes());
+        }
+
+        else {
+            messageLanes = null;
+        }
+
         connectionWorker.registerNetworkConnectionListener(this);
     }
 
@@ -127,6 +225,24 @@ public class NetworkService implements NetworkConnectionListener {
         return connectionWorker;
     }
 
+    /**
+     * Gets the rate limiter for messages from the network.
+     *
+     * @return The inbound rate limiter.
+     */
+    public InboundRateLimiter getInboundRateLimiter() {
+        return inboundRateLimiter;
+    }
+
+    /**
+     * Gets the statistics for the tcp write queues.
+     *
+     * @return The tcp write statistics.
+     */
+    public TCPWriteStatistics getTcpWriteStatistics() {
+        return tcpNetworkService.getWriteStatistics();
+    }
+
     /**
      * Checks if the connection thread is alive.
      *
@@ -154,13 +270,36 @@ public class NetworkService implements NetworkConnectionListener {
         connectionWorker.registerNetworkConnectionListener(listener);
     }
 
+    /**
+     * Registers the message lanes to run the operations held back in the waiting list for users
+     * that waited too long, so they are handled in order with the messages from the user.
+     * Does nothing without lanes.
+     *
+     * @param waitingList The waiting list to register the lanes with.
+     */
+    public void registerWaitingList(final WaitingList waitingList) {
+        Validate.notNull(waitingList, "Waiting list can not be null");
+
+        if (messageLanes != null) {
+            waitingList.registerActionExecutor(messageLanes);
+        }
+    }
+
     /**
      * Register a listener for incoming main chat messages from the network.
      *
      * @param listener The listener to register.
      */
-    public void registerMainChatMessageReceiverListener(final ReceiverListener listener) {
-        messageDeduplicator.registerMainChatReceiverListener(listener);
+    public void registerMainChatMessageReceiverListener(final MessageEnvelopeListener listener) {
+        if (messageLanes != null) {
+            messageLanes.registerReceiverListener(listener);
+            messageDeduplicator.registerMainChatReceiverListener(messageLanes);
+        }
+
+        else {
+            messageDeduplicator.registerMainChatReceiverListener(listener);
+        }
+
         messageReceiver.registerReceiverListener(messageDeduplicator);
         tcpNetworkService.registerReceiverListener(messageDeduplicator);
     }
@@ -170,7 +309,7 @@ public class NetworkService implements NetworkConnectionListener {
      *
      * @param listener The listener to register.
      */
-    public void registerPrivateChatReceiverListener(final ReceiverListener listener) {
+    public void registerPrivateChatReceiverListener(final MessageEnvelopeListener listener) {
         if (privateChatEnabled) {
             messageDeduplicator.registerPrivateChatReceiverListener(listener);
             udpReceiver.registerReceiverListener(messageDeduplicator);
@@ -180,25 +319,107 @@ public class NetworkService implements NetworkConnectionListener {
     /**
      * Send a message to all users.
      *
+     * <p>If batching is enabled, small messages are added to the next batch, and reported as sent.
+     * The network is checked if the batch fails to send. Other messages are sent right after
+     * the pending batch, to keep the order.</p>
+     *
      * @param message The message to send.
      * @return If the message was sent or not.
      */
     public boolean sendMessageToAllUsers(final String message) {
-        tcpNetworkService.sendMessageToAll(message);
-        return messageSender.send(message);
+        if (messageBatcher != null) {
+            if (messageBatcher.isBatchable(message) && allUsersSupport(NetworkCapability.BATCH)) {
+                messageBatcher.add(message);
+                return true;
+            }
+
+            messageBatcher.flush();
+        }
+
+        return sendMessageToAllUsersNow(message);
+    }
+
+    /**
+     * Sends the message on a single path when all the other users can handle it, and on both multicast
+     * and tcp otherwise.
+     *
+     * <p>Numbered messages are accepted from any transport, and lost messages are asked for
+     * again when everyone supports {@link NetworkCapability#NACK}, so a single path is enough.
+     * The path is chosen by the health of the links:</p>
+     *
+     * <ul>
+     *   <li>Tcp, when there is a tcp link to all the other users, and the message was sent on all of them.</li>
+     *   <li>Multicast, when some users can only be reached with multicast, like with only tcp links to
+     *       the neighbours, or when a link is down.</li>
+     *   <li>Multicast and tcp, when multicast fails, or when multicast messages have been lost lately.
+     *       Lost messages are seen as requests for missing messages from this user or someone else.</li>
+     * </ul>
+     *
+     * <p>Users without those capabilities get the same message on both transports, and drop the copy
+     * that arrives last.</p>
+     *
+     * @param message The message to send.
+     * @return If the message was sent or not.
+     */
+    private boolean sendMessageToAllUsersNow(final String message) {
+        final int capabilities = getCommonCapabilities();
+        final String messageToSend = addSequence(message, sequence, retransmitBuffer, capabilities);
+
+        if (isSinglePath(capabilities)) {
+            final int userCount = commonCapabilities.getUserCount();
+            final boolean linkedToAll = userCount > 0 && tcpNetworkService.getLinkCount() >= userCount;
+            final int sentWithTcp = linkedToAll ? tcpNetworkService.sendMessageToAllAndCount(messageToSend) : 0;
+
+            if (linkedToAll && sentWithTcp >= userCount) {
+                return true;
+            }
+
+            final boolean sentWithMulticast = messageSender.send(messageToSend, capabilities);
+
+            // The message was already sent on the tcp links that are up
+            if (linkedToAll || sentWithMulticast && !hasNackPressure()) {
+                return sentWithMulticast || sentWithTcp > 0;
+            }
+
+            LOG.fine("Multicast is failing or losing messages, also using tcp: " + messageToSend);
+            return tcpNetworkService.sendMessageToAll(messageToSend) || sentWithMulticast;
+        }
+
+        tcpNetworkService.sendMessageToAll(messageToSend);
+        return messageSender.send(messageToSend, capabilities);
+    }
+
+    /**
+     * Tells the network that a sign of life arrived from the user, so a failed tcp connection can be tried again early.
+     *
+     * @param user The user that sent a message.
+     */
+    public void userSeen(final User user) {
+        tcpNetworkService.userSeen(user);
     }
 
     /**
      * Send a message to a single user.
      *
+     * <p>Numbered messages are only sent with udp when there is no tcp connection to the user.
+     * Other messages are sent on both transports. Messages are numbered if the user supports it.</p>
+     *
      * @param message The message to send.
      * @param user The user to send the message to.
      * @return If the message was sent or not.
      */
     public boolean sendMessageToUser(final String message, final User user) {
         if (privateChatEnabled) {
-            tcpNetworkService.sendMessageToUser(message, user);
-            return udpSender.send(message, user.getIpAddress(), user.getPrivateChatPort());
+            final int capabilities = user.getNetworkCapabilities();
+            final String messageToSend = addSequence(message, privateSequence, null, capabilities);
+            final boolean sentWithTcp = tcpNetworkService.sendMessageToUser(messageToSend, user);
+
+            if (sentWithTcp && NetworkCapability.SEQUENCE.isSupportedBy(capabilities)) {
+                return true;
+            }
+
+            return udpSender.send(messageToSend, user.getIpAddress(), user.getPrivateChatPort(),
+                                  user.getNetworkCapabilities());
         }
 
         else {
@@ -206,6 +427,108 @@ public class NetworkService implements NetworkConnectionListener {
         }
     }
 
+    /**
+     * Adds the next sequence number after the user code in the message, if the receivers support it.
+     *
+     * <p>The receivers use the number to drop copies of the message that arrive on more than
+     * one transport, and to notice lost messages. Private messages are counted separately from messages to all users,
+     * so the receivers can tell a lost message from a private message to someone else.</p>
+     *
+     * @param message The message to add the sequence number to.
+     * @param counter The counter with the last sequence number used.
+     * @param buffer Where to keep the numbered message in case it must be sent again, or <code>null</code>.
+     * @param capabilities The capabilities supported by all the receivers.
+     * @return The message with the sequence number, or the original message.
+     */
+    private String addSequence(final String message, final AtomicInteger counter,
+                               @Nullable final RetransmitBuffer buffer, final int capabilities) {
+        if (!NetworkCapability.SEQUENCE.isSupportedBy(capabilities)) {
+            return message;
+        }
+
+        final int exclamation = message.indexOf('!');
+
+        if (exclamation == -1) {
+            return message;
+        }
+
+        final int number = counter.incrementAndGet();
+        final String numberedMessage = message.substring(0, exclamation) + "." + number + message.substring(exclamation);
+
+        if (buffer != null) {
+            buffer.add(number, numberedMessage);
+        }
+
+        return numberedMessage;
+    }
+
+    /**
+     * Sends messages to all users again, on multicast only, since tcp doesn't lose messages.
+     *
+     * @param first The sequence number of the first message to send again.
+     * @param last The sequence number of the last message to send again.
+     */
+    private void retransmitMessages(final int first, final int last) {
+        final long now = System.currentTimeMillis();
+
+        for (int number = first; number - last <= 0; number++) {
+            final String message = retransmitBuffer.getForRetransmit(number, now);
+
+            if (message != null) {
+                LOG.fine("Sending message again: " + message);
+                messageSender.send(message, getCommonCapabilities());
+            }
+        }
+    }
+
+    /**
+     * Creates a request for missing messages from a user, like <code>code!NACK#nick:(userCode)[first]{last}</code>.
+     *
+     * <p>The request has no sequence number, so a lost request doesn't cause more requests.</p>
+     */
+    private String createNackMessage(final int userCode, final int first, final int last) {
+        return me.getCode() + "!" + NetworkMessageType.NACK + "#" + me.getNick() + ":" +
+                "(" + userCode + ")" +
+                "[" + first + "]" +
+                "{" + last + "}";
+    }
+
+    /**
+     * Checks if messages to all users can be sent on multicast alone, because the receivers
+     * accept numbered messages from any transport and ask for the ones that are lost.
+     *
+     * @param capabilities The capabilities supported by all the other users.
+     * @return If the message only needs to be sent once.
+     */
+    private boolean hasNackPressure() {
+        return System.currentTimeMillis() - lastNackTime < NACK_PRESSURE_TIMEOUT;
+    }
+
+    private boolean isSinglePath(final int capabilities) {
+        return NetworkCapability.SEQUENCE.isSupportedBy(capabilities) && NetworkCapability.NACK.isSupportedBy(capabilities);
+    }
+
+    /**
+     * Checks if all the other users support the capability. Gives <code>false</code> if there are
+     * no other users, as the first messages are sent before knowing who is there.
+     *
+     * @param capability The capability to check.
+     * @return If there are other users, and they all support the capability.
+     */
+    private boolean allUsersSupport(final NetworkCapability capability) {
+        return capability.isSupportedBy(getCommonCapabilities());
+    }
+
+    /**
+     * Gets the capabilities supported by all the other users, without going through the user list.
+     * Gives none if there are no other users.
+     *
+     * @return The flags of the capabilities all the other users have.
+     */
+    private int getCommonCapabilities() {
+        return commonCapabilities.get();
+    }
+
     /**
      * Checks the state of the network, and tries to keep the best possible
      * network connection up.
@@ -226,9 +549,22 @@ public class NetworkService implements NetworkConnectionListener {
             udpReceiver.stopReceiver();
         }
 
+        if (messageBatcher != null) {
+            messageBatcher.stop();
+        }
+
+        reliableMulticast.stop();
         messageSender.stopSender();
         messageReceiver.stopReceiver();
         tcpNetworkService.stopService();
+
+        if (eventLoop != null) {
+            eventLoop.stop();
+        }
+
+        if (messageLanes != null) {
+            messageLanes.stop();
+        }
     }
 
     @Override
@@ -243,6 +579,14 @@ public class NetworkService implements NetworkConnectionListener {
      */
     @Override
     public void networkCameUp(final boolean silent) {
+        if (messageLanes != null) {
+            messageLanes.start();
+        }
+
+        if (eventLoop != null) {
+            eventLoop.start();
+        }
+
         if (privateChatEnabled) {
             udpSender.startSender();
             udpReceiver.startReceiver();
@@ -252,5 +596,6 @@ public class NetworkService implements NetworkConnectionListener {
         messageSender.startSender(currentNetworkInterface);
         messageReceiver.startReceiver(currentNetworkInterface);
         tcpNetworkService.startService();
+        reliableMulticast.start();
     }
 }
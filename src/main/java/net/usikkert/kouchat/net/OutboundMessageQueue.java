@@ -0,0 +1,365 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A queue of messages waiting to be sent, with a thread that sends them in the same order as they were queued.
+ *
+ * <p>Sending a message can block for a long time, like when writing to a slow tcp connection. With the queue,
+ * the thread asking to send a message, like the user interface thread, only has to add it to the queue.
+ * The result of sending is reported to a {@link SendCallback} from the sender thread.</p>
+ *
+ * <p>The queue is bounded. When it is full, the message is refused and reported as not sent to the callback,
+ * in the calling thread, instead of blocking the caller until there is room.</p>
+ *
+ * <p>When the queue is not started, messages are sent right away in the calling thread instead.
+ * Each start gets a new queue and thread, so a thread that is still finishing the messages from before
+ * a stop never takes messages from the same queue as the new thread.</p>
+ *
+ * @author Christian Ihle
+ */
+public class OutboundMessageQueue {
+
+    private static final Logger LOG = Logger.getLogger(OutboundMessageQueue.class);
+
+    /** The longest time to wait for a message to be sent, in milliseconds. */
+    static final long WAIT_TIMEOUT = 10000;
+
+    /** The longest time to wait for the sender thread from before a stop to finish, in milliseconds. */
+    static final long JOIN_TIMEOUT = 5000;
+
+    /** The maximum number of messages waiting in the queue. */
+    static final int MAX_MESSAGES = 512;
+
+    /** Marks the end of the queue when stopping. */
+    private static final OutboundMessage STOP = new OutboundMessage("", null, null);
+
+    private final NetworkService networkService;
+
+    /** Makes checking if running and adding to the queue happen together, so nothing is added after stop. */
+    private final Object stateLock = new Object();
+
+    /** The queue of the current sender thread. Replaced on each start. */
+    private volatile BlockingQueue<OutboundMessage> queue;
+
+    @Nullable
+    private volatile Thread worker;
+
+    private volatile boolean running;
+
+    /**
+     * Constructor.
+     *
+     * @param networkService The network service to send the messages with.
+     */
+    public OutboundMessageQueue(final NetworkService networkService) {
+        Validate.notNull(networkService, "Network service can not be null");
+
+        this.networkService = networkService;
+        queue = createQueue();
+    }
+
+    /**
+     * Starts the sender thread, if not already running.
+     */
+    public synchronized void start() {
+        if (running) {
+            LOG.fine("Already running.");
+            return;
+        }
+
+        waitForWorker();
+
+        final BlockingQueue<OutboundMessage> workerQueue = createQueue();
+
+        synchronized (stateLock) {
+            queue = workerQueue;
+            running = true;
+        }
+
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendMessages(workerQueue);
+            }
+        }, getClass().getSimpleName());
+
+        worker.setDaemon(true);
+        worker.start();
+
+        LOG.fine("Started.");
+    }
+
+    /**
+     * Stops the sender thread. Messages already in the queue are sent before the thread stops,
+     * and new messages are sent right away in the calling thread.
+     *
+     * <p>Does not wait for the messages to be sent. If the queue is started again before that,
+     * the start waits for the old sender thread to finish first, so the messages are still sent in order.</p>
+     */
+    public synchronized void stop() {
+        if (!running) {
+            LOG.fine("Not running.");
+            return;
+        }
+
+        synchronized (stateLock) {
+            running = false;
+            queue.add(STOP);
+        }
+
+        LOG.fine("Stopped.");
+    }
+
+    /**
+     * Checks if the sender thread is running.
+     *
+     * @return If the sender thread is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Gets the number of messages waiting to be sent.
+     *
+     * @return The number of messages in the queue.
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Adds the message to the queue, to send when the messages before it have been sent.
+     *
+     * @param message The message to send.
+     * @param user The user to send the message to, or <code>null</code> to send to all users.
+     * @param callback Notified from the sender thread with the result, or <code>null</code> if not interested.
+     *                 Notified from the calling thread if the message was sent right away, or the queue was full.
+     */
+    public void send(final String message, @Nullable final User user, @Nullable final SendCallback callback) {
+        Validate.notEmpty(message, "Message can not be empty");
+
+        final OutboundMessage outboundMessage = new OutboundMessage(message, user, callback);
+
+        if (isSenderThread()) {
+            sendMessage(outboundMessage);
+            return;
+        }
+
+        synchronized (stateLock) {
+            if (running) {
+                // Only this lock adds to the queue, so there is always room left for STOP
+                if (queue.size() < MAX_MESSAGES) {
+                    queue.add(outboundMessage);
+                } else {
+                    LOG.warning("Queue is full. Refusing message: %s", message);
+                    notifyCallback(outboundMessage, false);
+                }
+
+                return;
+            }
+        }
+
+        sendMessage(outboundMessage);
+    }
+
+    /**
+     * Adds the message to the queue, and waits until it has been sent.
+     *
+     * <p>Use when the result is needed right away, or the message must be sent before continuing,
+     * like before disconnecting from the network.</p>
+     *
+     * @param message The message to send.
+     * @param user The user to send the message to, or <code>null</code> to send to all users.
+     * @return If the message was sent. Also <code>false</code> if it took too long.
+     */
+    public boolean sendAndWait(final String message, @Nullable final User user) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final boolean[] result = new boolean[1];
+
+        send(message, user, new SendCallback() {
+            @Override
+            public void messageSent(final boolean sent) {
+                result[0] = sent;
+                latch.countDown();
+            }
+        });
+
+        try {
+            if (latch.await(WAIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return result[0];
+            }
+
+            LOG.warning("Timed out waiting for message to be sent: %s", message);
+        }
+
+        catch (final InterruptedException e) {
+            LOG.warning("Interrupted while waiting for message to be sent: %s", message);
+            Thread.currentThread().interrupt();
+        }
+
+        return false;
+    }
+
+    /**
+     * The sender thread. Sends messages from the queue until stopped.
+     *
+     * @param workerQueue The queue belonging to this sender thread.
+     */
+    private void sendMessages(final BlockingQueue<OutboundMessage> workerQueue) {
+        try {
+            while (true) {
+                final OutboundMessage outboundMessage = workerQueue.take();
+
+                if (outboundMessage == STOP) {
+                    break;
+                }
+
+                try {
+                    sendMessage(outboundMessage);
+                }
+
+                // Keep sending the rest of the messages if a callback fails
+                catch (final RuntimeException e) {
+                    LOG.severe(e, "Failed to send message: %s", outboundMessage.getMessage());
+                }
+            }
+        }
+
+        catch (final InterruptedException e) {
+            LOG.warning("Interrupted: %s", e.toString());
+        }
+    }
+
+    /**
+     * Waits for the sender thread from before the last stop to send the rest of its messages.
+     */
+    private void waitForWorker() {
+        final Thread oldWorker = worker;
+
+        if (oldWorker == null || isSenderThread()) {
+            return;
+        }
+
+        try {
+            oldWorker.join(JOIN_TIMEOUT);
+        }
+
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (oldWorker.isAlive()) {
+            LOG.warning("The old sender thread is still sending messages. Starting a new one anyway.");
+        }
+    }
+
+    private static BlockingQueue<OutboundMessage> createQueue() {
+        // One more than the maximum, to make room for STOP
+        return new LinkedBlockingQueue<>(MAX_MESSAGES + 1);
+    }
+
+    private boolean isSenderThread() {
+        return Thread.currentThread() == worker;
+    }
+
+    private void sendMessage(final OutboundMessage outboundMessage) {
+        final User user = outboundMessage.getUser();
+        final boolean sent;
+
+        if (user == null) {
+            sent = networkService.sendMessageToAllUsers(outboundMessage.getMessage());
+        } else {
+            sent = networkService.sendMessageToUser(outboundMessage.getMessage(), user);
+        }
+
+        notifyCallback(outboundMessage, sent);
+    }
+
+    private void notifyCallback(final OutboundMessage outboundMessage, final boolean sent) {
+        final SendCallback callback = outboundMessage.getCallback();
+
+        if (callback != null) {
+            callback.messageSent(sent);
+        }
+    }
+
+    /**
+     * Notified when a message in the queue has been sent.
+     */
+    public interface SendCallback {
+
+        /**
+         * The message was sent, or failed to send.
+         *
+         * @param sent If the message was sent.
+         */
+        void messageSent(boolean sent);
+    }
+
+    /**
+     * A message in the queue.
+     */
+    private static class OutboundMessage {
+
+        private final String message;
+
+        @Nullable
+        private final User user;
+
+        @Nullable
+        private final SendCallback callback;
+
+        OutboundMessage(final String message, @Nullable final User user, @Nullable final SendCallback callback) {
+            this.message = message;
+            this.user = user;
+            this.callback = callback;
+        }
+
+        String getMessage() {
+            return message;
+        }
+
+        @Nullable
+        User getUser() {
+            return user;
+        }
+
+        @Nullable
+        SendCallback getCallback() {
+            return callback;
+        }
+    }
+}
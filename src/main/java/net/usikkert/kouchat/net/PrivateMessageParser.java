@@ -27,11 +27,12 @@ import static net.usikkert.kouchat.net.NetworkMessageType.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import net.usikkert.kouchat.event.ReceiverListener;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * This class listens for udp messages from the network,
  * and parses them into a format the {@link PrivateMessageResponder} can use.
@@ -44,7 +45,7 @@ import net.usikkert.kouchat.util.Validate;
  *
  * @author Christian Ihle
  */
-public class PrivateMessageParser implements ReceiverListener {
+public class PrivateMessageParser implements MessageEnvelopeListener {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(PrivateMessageParser.class.getName());
@@ -52,6 +53,9 @@ public class PrivateMessageParser implements ReceiverListener {
     private final Settings settings;
     private final PrivateMessageResponder privmsgResponder;
 
+    /** Reusable view of the message being parsed, one for each receiver thread. */
+    private final ThreadLocal<MessageView> messageViews;
+
     /**
      * Constructor.
      *
@@ -64,6 +68,13 @@ public class PrivateMessageParser implements ReceiverListener {
 
         this.privmsgResponder = privmsgResponder;
         this.settings = settings;
+
+        messageViews = new ThreadLocal<MessageView>() {
+            @Override
+            protected MessageView initialValue() {
+                return new MessageView();
+            }
+        };
     }
 
     /**
@@ -74,28 +85,36 @@ public class PrivateMessageParser implements ReceiverListener {
      */
     @Override
     public void messageArrived(final String message, final String ipAddress) {
-        try {
-            final int exclamation = message.indexOf("!");
-            final int hash = message.indexOf("#");
-            final int colon = message.indexOf(":");
+        parse(message, ipAddress, null);
+    }
 
-            final int fromCode = Integer.parseInt(message.substring(0, exclamation));
+    /**
+     * Gives the already parsed message to the responder, the same way as for raw messages.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final MessageEnvelope envelope) {
+        parse(envelope.getMessage(), envelope.getIpAddress(), envelope.getView());
+    }
 
-            final String type = message.substring(exclamation + 1, hash);
-            final String msg = message.substring(colon + 1, message.length());
+    private void parse(final String message, final String ipAddress, @Nullable final MessageView parsedView) {
+        try {
+            final MessageView view = parsedView != null ? parsedView : messageViews.get().wrap(message);
+            final int fromCode = view.getCode();
 
-            final int leftPara = msg.indexOf("(");
-            final int rightPara = msg.indexOf(")");
-            final int toCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
+            final int leftPara = view.payloadIndexOf('(');
+            final int rightPara = view.payloadIndexOf(')');
+            final int toCode = view.payloadInt(leftPara + 1, rightPara);
 
             final User tempme = settings.getMe();
 
             if (fromCode != tempme.getCode() && toCode == tempme.getCode()) {
-                if (type.equals(PRIVMSG)) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
-                    final String privmsg = msg.substring(rightBracket + 1, msg.length());
+                if (view.isType(PRIVMSG)) {
+                    final int leftBracket = view.payloadIndexOf('[');
+                    final int rightBracket = view.payloadIndexOf(']');
+                    final int rgb = view.payloadInt(leftBracket + 1, rightBracket);
+                    final String privmsg = view.payloadString(rightBracket + 1);
 
                     privmsgResponder.messageArrived(fromCode, privmsg, rgb);
                 }
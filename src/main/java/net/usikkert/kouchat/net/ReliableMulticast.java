@@ -0,0 +1,417 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Finds numbered messages from other users that never arrived, and asks for them again
+ * with a {@link NetworkMessageType#NACK} to all users.
+ *
+ * <p>A message is missing when a message with a higher sequence number arrives from the same user
+ * first. The request is sent after a short random delay, so if several users miss the same message,
+ * usually only one of them asks, and the others see the request and wait for the message to
+ * be sent again. A missing message is asked for at most {@link #MAX_ATTEMPTS} times.</p>
+ *
+ * <p>Requests for messages from this user are passed on to the {@link Listener}, to send them again
+ * from the {@link RetransmitBuffer}.</p>
+ *
+ * <p>The check for requests to send only runs while there are missing messages. It is scheduled when
+ * a message goes missing, and cancelled by the first check that finds no missing messages.</p>
+ *
+ * <p>Safe to use from several threads.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ReliableMulticast {
+
+    private static final Logger LOG = Logger.getLogger(ReliableMulticast.class);
+
+    /** The shortest random delay before asking for a missing message, in milliseconds. */
+    static final long MIN_NACK_DELAY = 20;
+
+    /** The longest random delay before asking for a missing message, in milliseconds. */
+    static final long MAX_NACK_DELAY = 100;
+
+    /** Number of milliseconds to wait for a missing message after asking for it. */
+    static final long RETRY_DELAY = 500;
+
+    /** The number of times to ask for a missing message before giving up. */
+    static final int MAX_ATTEMPTS = 3;
+
+    /** The maximum number of missing messages from one user. Larger gaps are treated as a restart. */
+    static final int MAX_MISSING = 64;
+
+    /** Number of milliseconds between each check for requests to send, while messages are missing. */
+    private static final long CHECK_INTERVAL = 20;
+
+    private final Listener listener;
+    private final Random random;
+    private final Map<Integer, SenderState> senders;
+
+    @Nullable
+    private Timer timer;
+
+    /** The check for requests to send, or <code>null</code> when no messages are missing. */
+    @Nullable
+    private TimerTask checkTask;
+
+    /**
+     * Constructor.
+     *
+     * @param listener Where to send the requests, and the messages to send again.
+     */
+    public ReliableMulticast(final Listener listener) {
+        Validate.notNull(listener, "Listener can not be null");
+
+        this.listener = listener;
+        this.random = new Random();
+        this.senders = new HashMap<>();
+    }
+
+    /**
+     * Starts checking for requests to send, when messages go missing.
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+
+        timer = new Timer("ReliableMulticastTimer", true);
+    }
+
+    /**
+     * Stops checking for requests to send, and forgets all the missing messages.
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+
+        checkTask = null;
+        senders.clear();
+    }
+
+    /**
+     * Registers that a numbered message to all users has arrived.
+     *
+     * @param userCode The code of the user who sent the message.
+     * @param sequence The sequence number of the message.
+     * @param now The current time, in milliseconds.
+     */
+    public synchronized void messageArrived(final int userCode, final int sequence, final long now) {
+        final SenderState sender = senders.get(userCode);
+
+        if (sender == null) {
+            senders.put(userCode, new SenderState(sequence));
+            return;
+        }
+
+        final int distance = sequence - sender.highest;
+
+        if (distance < -MessageSequenceFilter.WINDOW_SIZE) {
+            LOG.fine("Sequence from %s restarted at %s", userCode, sequence);
+            sender.missing.clear();
+            sender.highest = sequence;
+        }
+
+        else if (distance <= 0) {
+            if (sender.missing.remove(sequence) != null) {
+                LOG.fine("Recovered message %s from %s", sequence, userCode);
+            }
+        }
+
+        else if (distance - 1 > MAX_MISSING) {
+            LOG.fine("Too many missing messages from %s, starting over at %s", userCode, sequence);
+            sender.missing.clear();
+            sender.highest = sequence;
+        }
+
+        else {
+            for (int missing = sender.highest + 1; missing != sequence; missing++) {
+                sender.missing.put(missing, new MissingMessage(now + randomDelay()));
+            }
+
+            sender.highest = sequence;
+
+            while (sender.missing.size() > MAX_MISSING) {
+                sender.missing.pollFirstEntry();
+            }
+
+            if (!sender.missing.isEmpty()) {
+                scheduleCheck();
+            }
+        }
+    }
+
+    /**
+     * Handles a request for missing messages from another user.
+     *
+     * <p>If the messages are from this user, they are sent again. If not, requests for the same messages
+     * from this user are put off, since the messages will probably be sent again soon.</p>
+     *
+     * @param view The request.
+     * @param meCode The code of this user.
+     * @param now The current time, in milliseconds.
+     */
+    public void nackArrived(final MessageView view, final int meCode, final long now) {
+        Validate.notNull(view, "View can not be null");
+
+        final int userCode;
+        final int first;
+        final int last;
+
+        try {
+            final int rightParen = view.payloadIndexOf(')');
+            final int rightBracket = view.payloadIndexOf(']', rightParen);
+            final int rightBrace = view.payloadIndexOf('}', rightBracket);
+
+            userCode = view.payloadInt(1, rightParen);
+            first = view.payloadInt(rightParen + 2, rightBracket);
+            last = view.payloadInt(rightBracket + 2, rightBrace);
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            LOG.warning("Invalid request for missing messages: %s", view);
+            return;
+        }
+
+        if (last - first < 0 || last - first >= MAX_MISSING) {
+            LOG.warning("Invalid range of missing messages: %s", view);
+            return;
+        }
+
+        if (userCode == meCode) {
+            listener.retransmit(first, last);
+        } else {
+            suppress(userCode, first, last, now);
+        }
+    }
+
+    /**
+     * Forgets the missing messages from a user.
+     *
+     * @param userCode The code of the user.
+     */
+    public synchronized void remove(final int userCode) {
+        senders.remove(userCode);
+    }
+
+    /**
+     * Gets the number of messages from the user that are missing.
+     *
+     * @param userCode The code of the user.
+     * @return The number of missing messages.
+     */
+    public synchronized int getMissing(final int userCode) {
+        final SenderState sender = senders.get(userCode);
+        return sender == null ? 0 : sender.missing.size();
+    }
+
+    /**
+     * Sends requests for the missing messages that have waited long enough.
+     *
+     * @param now The current time, in milliseconds.
+     */
+    void sendDueNacks(final long now) {
+        final List<int[]> nacks = new ArrayList<>();
+
+        synchronized (this) {
+            boolean missing = false;
+
+            for (final Map.Entry<Integer, SenderState> entry : senders.entrySet()) {
+                findDueNacks(entry.getKey(), entry.getValue(), now, nacks);
+                missing |= !entry.getValue().missing.isEmpty();
+            }
+
+            if (!missing) {
+                cancelCheck();
+            }
+        }
+
+        for (final int[] nack : nacks) {
+            LOG.fine("Asking for missing messages %s to %s from %s", nack[1], nack[2], nack[0]);
+            listener.sendNack(nack[0], nack[1], nack[2]);
+        }
+    }
+
+    /**
+     * Finds the ranges of missing messages that are due, and gives up on the ones asked for too many times.
+     */
+    private void findDueNacks(final int userCode, final SenderState sender, final long now, final List<int[]> nacks) {
+        int first = 0;
+        int last = 0;
+        boolean inRange = false;
+
+        final Iterator<Map.Entry<Integer, MissingMessage>> iterator = sender.missing.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            final Map.Entry<Integer, MissingMessage> entry = iterator.next();
+            final MissingMessage missing = entry.getValue();
+            final int sequence = entry.getKey();
+
+            if (missing.nextNack > now) {
+                continue;
+            }
+
+            if (missing.attempts == MAX_ATTEMPTS) {
+                LOG.fine("Giving up on message %s from %s", sequence, userCode);
+                iterator.remove();
+                continue;
+            }
+
+            missing.attempts++;
+            missing.nextNack = now + RETRY_DELAY;
+
+            if (inRange && sequence == last + 1) {
+                last = sequence;
+            }
+
+            else {
+                if (inRange) {
+                    nacks.add(new int[] {userCode, first, last});
+                }
+
+                first = sequence;
+                last = sequence;
+                inRange = true;
+            }
+        }
+
+        if (inRange) {
+            nacks.add(new int[] {userCode, first, last});
+        }
+    }
+
+    /**
+     * Schedules the check for requests to send, if started and not already scheduled.
+     */
+    private void scheduleCheck() {
+        if (timer == null || checkTask != null) {
+            return;
+        }
+
+        checkTask = new TimerTask() {
+            @Override
+            public void run() {
+                sendDueNacks(System.currentTimeMillis());
+            }
+        };
+
+        timer.schedule(checkTask, CHECK_INTERVAL, CHECK_INTERVAL);
+    }
+
+    private void cancelCheck() {
+        if (checkTask != null) {
+            checkTask.cancel();
+            checkTask = null;
+        }
+    }
+
+    private synchronized void suppress(final int userCode, final int first, final int last, final long now) {
+        final SenderState sender = senders.get(userCode);
+
+        if (sender == null) {
+            return;
+        }
+
+        for (int sequence = first; sequence - last <= 0; sequence++) {
+            final MissingMessage missing = sender.missing.get(sequence);
+
+            if (missing != null) {
+                missing.nextNack = Math.max(missing.nextNack, now + RETRY_DELAY);
+            }
+        }
+    }
+
+    private long randomDelay() {
+        return MIN_NACK_DELAY + (long) (random.nextDouble() * (MAX_NACK_DELAY - MIN_NACK_DELAY));
+    }
+
+    /**
+     * The sequence numbers from a user.
+     */
+    private static final class SenderState {
+
+        /** The highest sequence number that has arrived. */
+        private int highest;
+
+        /** The missing messages, with the lowest sequence number first. */
+        private final TreeMap<Integer, MissingMessage> missing;
+
+        private SenderState(final int highest) {
+            this.highest = highest;
+            this.missing = new TreeMap<>();
+        }
+    }
+
+    /**
+     * When to ask for a missing message, and how many times it has been asked for.
+     */
+    private static final class MissingMessage {
+
+        private long nextNack;
+        private int attempts;
+
+        private MissingMessage(final long nextNack) {
+            this.nextNack = nextNack;
+        }
+    }
+
+    /**
+     * Sends the requests for missing messages, and the messages that are requested from this user.
+     */
+    public interface Listener {
+
+        /**
+         * Asks all users for missing messages from a user.
+         *
+         * @param userCode The code of the user who sent the missing messages.
+         * @param first The sequence number of the first missing message.
+         * @param last The sequence number of the last missing message.
+         */
+        void sendNack(int userCode, int first, int last);
+
+        /**
+         * Sends messages from this user again.
+         *
+         * @param first The sequence number of the first message to send again.
+         * @param last The sequence number of the last message to send again.
+         */
+        void retransmit(int first, int last);
+    }
+}
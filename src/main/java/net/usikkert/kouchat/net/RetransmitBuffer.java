@@ -0,0 +1,97 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the most recent numbered messages sent to all users, so they can be sent again
+ * when someone reports them as missing with a {@link NetworkMessageType#NACK}.
+ *
+ * <p>The messages are kept in a ring, so only the last {@link #CAPACITY} messages can be sent again.
+ * A message is not sent again if it was already sent again less than {@link #SUPPRESS_TIME}
+ * ago, since several users often miss the same message.</p>
+ *
+ * <p>Safe to use from several threads.</p>
+ *
+ * @author Christian Ihle
+ */
+public class RetransmitBuffer {
+
+    /** The number of messages to keep. Must be a power of two. */
+    static final int CAPACITY = 256;
+
+    /** Number of milliseconds to wait before sending the same message again. */
+    static final long SUPPRESS_TIME = 100;
+
+    private final int[] sequences;
+    private final String[] messages;
+    private final long[] retransmitTimes;
+
+    public RetransmitBuffer() {
+        sequences = new int[CAPACITY];
+        messages = new String[CAPACITY];
+        retransmitTimes = new long[CAPACITY];
+    }
+
+    /**
+     * Keeps a sent message, replacing the oldest message.
+     *
+     * @param sequence The sequence number of the message.
+     * @param message The message, as it was sent.
+     */
+    public synchronized void add(final int sequence, final String message) {
+        Validate.notNull(message, "Message can not be null");
+
+        final int index = sequence & (CAPACITY - 1);
+        sequences[index] = sequence;
+        messages[index] = message;
+        retransmitTimes[index] = 0;
+    }
+
+    /**
+     * Gets a message to send again, unless it was sent again very recently.
+     *
+     * @param sequence The sequence number of the message.
+     * @param now The current time, in milliseconds.
+     * @return The message, or <code>null</code> if the message is too old, or was just sent again.
+     */
+    @Nullable
+    public synchronized String getForRetransmit(final int sequence, final long now) {
+        final int index = sequence & (CAPACITY - 1);
+
+        if (messages[index] == null || sequences[index] != sequence) {
+            return null;
+        }
+
+        if (retransmitTimes[index] != 0 && now - retransmitTimes[index] < SUPPRESS_TIME) {
+            return null;
+        }
+
+        retransmitTimes[index] = now;
+
+        return messages[index];
+    }
+}
@@ -0,0 +1,42 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handler for events on a channel registered with the {@link NetworkEventLoop}.
+ *
+ * @author Christian Ihle
+ */
+public interface SelectionHandler {
+
+    /**
+     * The channel is ready for one or more of the operations the handler registered for.
+     *
+     * <p>Called from the event loop thread, so it must never block.</p>
+     *
+     * @param key The selection key of the channel, with the ready operations.
+     */
+    void handleSelection(SelectionKey key);
+}
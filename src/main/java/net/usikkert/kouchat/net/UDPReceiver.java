@@ -25,8 +25,11 @@ package net.usikkert.kouchat.net;
 import static net.usikkert.kouchat.net.NetworkUtils.IPTOS_RELIABILITY;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,10 +40,15 @@ import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * Receives UDP packets sent directly to the IP address
  * of this machine.
  *
+ * <p>If a {@link NetworkEventLoop} is used, the packets are received by the event loop
+ * using a {@link DatagramChannel} instead of a separate thread.</p>
+ *
  * @author Christian Ihle
  */
 public class UDPReceiver implements Runnable {
@@ -63,6 +71,17 @@ public class UDPReceiver implements Runnable {
     /** The application user. */
     private final User me;
 
+    /** The event loop to receive packets with, or <code>null</code> to use a separate thread. */
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
+    /** The size of the socket receive buffer, or 0 to use the default. */
+    private final int receiveBufferSize;
+
+    /** The datagram channel used for receiving messages with the event loop. */
+    @Nullable
+    private DatagramChannel udpChannel;
+
     /**
      * Default constructor.
      *
@@ -70,11 +89,25 @@ public class UDPReceiver implements Runnable {
      * @param errorHandler The error handler to use.
      */
     public UDPReceiver(final Settings settings, final ErrorHandler errorHandler) {
+        this(settings, errorHandler, null);
+    }
+
+    /**
+     * Constructor for receiving packets using an event loop.
+     *
+     * @param settings The settings to use.
+     * @param errorHandler The error handler to use.
+     * @param eventLoop The event loop to receive packets with, or <code>null</code> to use a separate thread.
+     */
+    public UDPReceiver(final Settings settings, final ErrorHandler errorHandler,
+                       @Nullable final NetworkEventLoop eventLoop) {
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.errorHandler = errorHandler;
+        this.eventLoop = eventLoop;
         me = settings.getMe();
+        receiveBufferSize = settings.getReceiveBufferSize();
     }
 
     /**
@@ -82,18 +115,16 @@ public class UDPReceiver implements Runnable {
      * extracts the message and IP address, and notifies the listener.
      */
     public void run() {
+        final DatagramReceiveBuffer receiveBuffer = new DatagramReceiveBuffer();
+
         while (connected) {
             try {
-                final DatagramPacket packet = new DatagramPacket(
-                        new byte[Constants.NETWORK_PACKET_SIZE], Constants.NETWORK_PACKET_SIZE);
-
-                udpSocket.receive(packet);
-                final String ip = packet.getAddress().getHostAddress();
-                final String message = new String(packet.getData(), Constants.MESSAGE_CHARSET).trim();
-                LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+                receiveBuffer.receive(udpSocket);
+                final String ip = receiveBuffer.getIpAddress();
+                final String message = receiveBuffer.getMessage();
 
-                if (listener != null) {
-                    listener.messageArrived(message, ip);
+                if (message != null) {
+                    notifyListener(message, ip);
                 }
             }
 
@@ -110,6 +141,16 @@ public class UDPReceiver implements Runnable {
         }
     }
 
+    private void notifyListener(final String message, final String ip) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+        }
+
+        if (listener != null) {
+            listener.messageArrived(message, ip);
+        }
+    }
+
     /**
      * Creates a new UDP socket, and starts a thread listening
      * on the UDP port. If the UDP port is in use, a new port will be
@@ -128,14 +169,24 @@ public class UDPReceiver implements Runnable {
 
             while (counter < 50 && !connected) {
                 try {
-                    udpSocket = new DatagramSocket(port);
-                    udpSocket.setTrafficClass(IPTOS_RELIABILITY);
+                    if (eventLoop != null) {
+                        connected = startChannelReceiver(port);
+                    }
+
+                    else {
+                        udpSocket = new DatagramSocket(port);
+                        udpSocket.setTrafficClass(IPTOS_RELIABILITY);
+
+                        if (receiveBufferSize > 0) {
+                            udpSocket.setReceiveBufferSize(receiveBufferSize);
+                        }
 
-                    connected = true;
+                        connected = true;
 
-                    // The background thread watching for messages from the network.
-                    final Thread worker = new Thread(this, "UDPReceiverWorker");
-                    worker.start();
+                        // The background thread watching for messages from the network.
+                        final Thread worker = new Thread(this, "UDPReceiverWorker");
+                        worker.start();
+                    }
 
                     me.setPrivateChatPort(port);
                     LOG.log(Level.FINE, "Connected to port " + port);
@@ -162,6 +213,57 @@ public class UDPReceiver implements Runnable {
         }
     }
 
+    /**
+     * Opens a datagram channel on the port, and registers it with the event loop.
+     *
+     * @param port The port to bind to.
+     * @return If the channel was registered with the event loop.
+     * @throws IOException If the port is in use.
+     */
+    private boolean startChannelReceiver(final int port) throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+
+        try {
+            channel.setOption(StandardSocketOptions.IP_TOS, IPTOS_RELIABILITY);
+
+            if (receiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+
+            channel.bind(new InetSocketAddress(port));
+        }
+
+        catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        udpChannel = channel;
+        connected = true;
+
+        if (!eventLoop.register(channel, SelectionKey.OP_READ, new ChannelReadHandler(channel))) {
+            connected = false;
+            closeChannel();
+            throw new IOException("Event loop is not running");
+        }
+
+        return true;
+    }
+
+    private void closeChannel() {
+        if (udpChannel != null) {
+            try {
+                udpChannel.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            udpChannel = null;
+        }
+    }
+
     /**
      * Closes the UDP socket, and stops the thread.
      */
@@ -179,6 +281,8 @@ public class UDPReceiver implements Runnable {
                 udpSocket.close();
             }
 
+            closeChannel();
+
             LOG.log(Level.FINE, "Disconnected.");
         }
     }
@@ -192,4 +296,42 @@ public class UDPReceiver implements Runnable {
     public void registerReceiverListener(final ReceiverListener listener) {
         this.listener = listener;
     }
+
+    /**
+     * Reads all the packets available on the channel, when notified by the event loop.
+     */
+    private class ChannelReadHandler implements SelectionHandler {
+
+        private final DatagramChannel readChannel;
+        private final DatagramReceiveBuffer receiveBuffer;
+
+        ChannelReadHandler(final DatagramChannel readChannel) {
+            this.readChannel = readChannel;
+            this.receiveBuffer = new DatagramReceiveBuffer();
+        }
+
+        @Override
+        public void handleSelection(final SelectionKey key) {
+            try {
+                while (connected && receiveBuffer.receive(readChannel)) {
+                    final String message = receiveBuffer.getMessage();
+
+                    if (message != null) {
+                        notifyListener(message, receiveBuffer.getIpAddress());
+                    }
+                }
+            }
+
+            // Happens when channel is closed, or network is down
+            catch (final IOException e) {
+                if (connected) {
+                    LOG.log(Level.WARNING, e.toString());
+                }
+
+                else {
+                    LOG.log(Level.FINE, e.toString());
+                }
+            }
+        }
+    }
 }
@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,6 +36,8 @@ import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * Sends UDP packets directly to a user. Useful for private chat,
  * where not everyone should get the packets.
@@ -55,6 +58,12 @@ public class UDPSender {
     /** The error handler for registering important messages. */
     private final ErrorHandler errorHandler;
 
+    /** Splits messages that are too large for one packet. */
+    private final DatagramFragmenter fragmenter;
+
+    /** Reusable view of the message being sent, one for each sending thread. */
+    private final ThreadLocal<MessageView> messageViews;
+
     /**
      * Default constructor.
      *
@@ -64,6 +73,14 @@ public class UDPSender {
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.errorHandler = errorHandler;
+        fragmenter = new DatagramFragmenter();
+
+        messageViews = new ThreadLocal<MessageView>() {
+            @Override
+            protected MessageView initialValue() {
+                return new MessageView();
+            }
+        };
     }
 
     /**
@@ -75,13 +92,47 @@ public class UDPSender {
      * @return If the message was sent or not.
      */
     public boolean send(final String message, final String ip, final int port) {
+        return send(message, ip, port, 0);
+    }
+
+    /**
+     * Sends a packet with a message to a user, using the optional features
+     * of the network protocol that the user supports.
+     *
+     * <p>The message is sent in the binary format of {@link BinaryMessageCodec} with
+     * {@link NetworkCapability#BINARY}, and split into several packets if too large
+     * with {@link NetworkCapability#FRAGMENT}.</p>
+     *
+     * @param message The message to send.
+     * @param ip The ip address of the user.
+     * @param port The port to send the message to.
+     * @param networkCapabilities The flags of the capabilities supported by the user.
+     * @return If the message was sent or not.
+     */
+    public boolean send(final String message, final String ip, final int port, final int networkCapabilities) {
         if (connected) {
             try {
                 final InetAddress address = InetAddress.getByName(ip);
-                final byte[] encodedMsg = message.getBytes(Constants.MESSAGE_CHARSET);
+                final MessageView view = parseMessage(message);
+                final boolean binary = NetworkCapability.BINARY.isSupportedBy(networkCapabilities);
+                final byte[] encodedMsg = view != null
+                        ? BinaryMessageCodec.getBytes(view, binary) : BinaryMessageCodec.getBytes(message, false);
                 final int size = encodedMsg.length;
 
                 if (size > Constants.NETWORK_PACKET_SIZE) {
+                    final List<byte[]> fragments = view != null && NetworkCapability.FRAGMENT.isSupportedBy(networkCapabilities)
+                            ? fragmenter.split(encodedMsg, view.getCode()) : null;
+
+                    if (fragments != null) {
+                        for (final byte[] fragment : fragments) {
+                            udpSocket.send(new DatagramPacket(fragment, fragment.length, address, port));
+                        }
+
+                        LOG.log(Level.FINE, "Sent message in " + fragments.size() + " fragments: " + message +
+                                " to " + ip + ":" + port);
+                        return true;
+                    }
+
                     LOG.log(Level.WARNING, "Message was " + size + " bytes, which is too large.\n" +
                             " The receiver might not get the complete message.\n'" + message + "'");
                 }
@@ -148,4 +199,21 @@ public class UDPSender {
             LOG.log(Level.FINE, "Disconnected.");
         }
     }
+
+    /**
+     * Parses the message once, for both encoding and splitting it.
+     *
+     * @return The parsed message, or <code>null</code> if the message is malformed,
+     *         and must be sent as text.
+     */
+    @Nullable
+    private MessageView parseMessage(final String message) {
+        try {
+            return messageViews.get().wrap(message);
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
 }
@@ -22,11 +22,18 @@
 
 package net.usikkert.kouchat.net.tcp;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import net.usikkert.kouchat.net.NetworkEventLoop;
+import net.usikkert.kouchat.net.SelectionHandler;
 import net.usikkert.kouchat.util.Logger;
 import net.usikkert.kouchat.util.Validate;
 
@@ -35,14 +42,67 @@ import org.jetbrains.annotations.Nullable;
 /**
  * Client for communicating over a tcp socket.
  *
+ * <p>If the socket has a channel, and a {@link NetworkEventLoop} is used, the messages are read and written
+ * by the event loop instead of a separate thread. The messages use the same format in both cases.</p>
+ *
+ * <p>The messages are framed in the UTF format of {@link TCPFrameCodec} to begin with. The more compact
+ * varint format can be used instead when both sides agree on it, for reading and writing separately.</p>
+ *
+ * <p>Messages to send are added to a bounded {@link TCPWriteQueue}, so sending never waits for the network.
+ * The queue is written by the event loop, or by a {@link TCPStreamWriter} shared with the other clients.
+ * If the other side is too slow to keep up, and the queue is full, the connection is closed so it doesn't
+ * hold back anyone else.</p>
+ *
  * @author Christian Ihle
  */
 public class TCPClient implements Runnable {
 
     private static final Logger LOG = Logger.getLogger(TCPClient.class);
 
+    private static final int INITIAL_READ_BUFFER_SIZE = 1024;
+
+    /** The most messages to write in one go. */
+    private static final int MAX_MESSAGES_PER_WRITE = 64;
+
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
     private final Socket socket;
 
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
+    @Nullable
+    private final SocketChannel channel;
+
+    /** Encoded messages waiting to be written. */
+    private final TCPWriteQueue writeQueue;
+
+    /** Where to count what happens to the write queue. */
+    private final TCPWriteStatistics statistics;
+
+    /** Writes the queue to the stream, when not using the event loop. */
+    private final TCPStreamWriter streamWriter;
+
+    /** If a write of the queue to the stream is waiting or running in the stream writer. */
+    private final AtomicBoolean streamWriteScheduled;
+
+    /**
+     * Messages being written by the event loop or the stream writer.
+     * With the event loop, some may be only partly written, because the socket was full.
+     */
+    private final ByteBuffer[] writeBatch;
+    private int writeBatchStart;
+    private int writeBatchEnd;
+
+    /** If messages from the other side are in the varint format. */
+    private volatile boolean varintReads;
+
+    /** If messages to the other side are in the varint format. */
+    private volatile boolean varintWrites;
+
+    /** Reused for reading messages from the stream. */
+    private byte[] readArray;
+
     @Nullable
     private DataInputStream inputStream;
 
@@ -56,57 +116,99 @@ public class TCPClient implements Runnable {
     private boolean disconnecting;
 
     public TCPClient(final Socket socket) {
+        this(socket, null);
+    }
+
+    public TCPClient(final Socket socket, @Nullable final NetworkEventLoop eventLoop) {
+        this(socket, eventLoop, new TCPWriteStatistics());
+    }
+
+    public TCPClient(final Socket socket, @Nullable final NetworkEventLoop eventLoop,
+                     final TCPWriteStatistics statistics) {
+        this(socket, eventLoop, statistics, new TCPStreamWriter());
+    }
+
+    public TCPClient(final Socket socket, @Nullable final NetworkEventLoop eventLoop,
+                     final TCPWriteStatistics statistics, final TCPStreamWriter streamWriter) {
         Validate.notNull(socket, "Socket can not be null");
+        Validate.notNull(statistics, "Statistics can not be null");
+        Validate.notNull(streamWriter, "Stream writer can not be null");
+
         this.socket = socket;
+        this.eventLoop = eventLoop;
+        this.statistics = statistics;
+        this.streamWriter = streamWriter;
+        this.streamWriteScheduled = new AtomicBoolean();
+        this.channel = eventLoop != null ? socket.getChannel() : null;
+        this.writeQueue = new TCPWriteQueue(statistics);
+        this.writeBatch = new ByteBuffer[MAX_MESSAGES_PER_WRITE];
+        this.readArray = new byte[INITIAL_READ_BUFFER_SIZE];
     }
 
     @Override
     public void run() {
         try {
             while (connected && inputStream != null) {
-                final String message = inputStream.readUTF();
-                LOG.fine("Message arrived from %s: %s", getIPAddress(), message);
-
-                if (clientListener != null) {
-                    clientListener.messageArrived(message, this);
-                }
+                final String message = varintReads ? readVarintFrame() : inputStream.readUTF();
+                notifyMessageArrived(message);
             }
         }
 
         catch (final IOException e) {
             LOG.severe(e.toString());
-            connected = false;
-
-            if (clientListener != null) {
-                clientListener.disconnected(this);
-            }
+            connectionLost();
         }
     }
 
     public void send(final String message) {
-        if (!connected || outputStream == null) {
+        send(message, TCPWriteQueue.isDroppable(message));
+    }
+
+    /**
+     * Sends the message, when it's already known if it can be dropped if the connection is too slow.
+     *
+     * @param message The message to send.
+     * @param droppable If the message can be dropped, from {@link TCPWriteQueue#isDroppable(String)}.
+     */
+    public void send(final String message, final boolean droppable) {
+        if (!connected) {
             return;
         }
 
+        final ByteBuffer frame;
+
         try {
-            outputStream.writeUTF(message);
-            LOG.fine("Sent message: %s", message);
+            frame = varintWrites ? TCPFrameCodec.encodeVarint(message) : TCPFrameCodec.encodeUTF(message);
         }
 
+        // Only happens if the message is too long for the frame format
         catch (final IOException e) {
             LOG.severe(e.toString());
-            connected = false;
+            return;
+        }
 
-            if (clientListener != null) {
-                clientListener.disconnected(this);
-            }
+        if (!writeQueue.offer(frame, droppable)) {
+            writeQueueFull();
+            return;
+        }
+
+        if (channel != null) {
+            flushChannel();
+        } else {
+            flushStream();
         }
+
+        LOG.fine("Sent message: %s", message);
     }
 
     public boolean connect() {
+        if (channel != null) {
+            return connectChannel();
+        }
+
         try {
             inputStream = new DataInputStream(socket.getInputStream());
-            outputStream = new DataOutputStream(socket.getOutputStream());
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE));
 
             LOG.fine("Connected to %s:%s", getIPAddress(), socket.getPort());
 
@@ -127,6 +229,7 @@ public class TCPClient implements Runnable {
             LOG.fine("Disconnected from %s:%s", getIPAddress(), socket.getPort());
             connected = false;
             disconnecting = true;
+            writeQueue.close();
 
             if (clientListener != null) {
                 clientListener.disconnected(this);
@@ -140,6 +243,21 @@ public class TCPClient implements Runnable {
         }
     }
 
+    /**
+     * Reads the messages from the other side in the varint format from now on. Must be called before connecting,
+     * or by the listener of the last message in the old format, before the next message is read.
+     */
+    public void useVarintFramingForReading() {
+        varintReads = true;
+    }
+
+    /**
+     * Writes the messages to the other side in the varint format, starting with the next message sent.
+     */
+    public void useVarintFramingForWriting() {
+        varintWrites = true;
+    }
+
     public String getIPAddress() {
         return socket.getInetAddress().getHostAddress();
     }
@@ -159,4 +277,252 @@ public class TCPClient implements Runnable {
     public boolean isConnected() {
         return connected;
     }
+
+    private void notifyMessageArrived(final String message) {
+        LOG.fine("Message arrived from %s: %s", getIPAddress(), message);
+
+        if (clientListener != null) {
+            clientListener.messageArrived(message, this);
+        }
+    }
+
+    private void connectionLost() {
+        connected = false;
+        writeQueue.close();
+
+        if (clientListener != null) {
+            clientListener.disconnected(this);
+        }
+    }
+
+    private boolean connectChannel() {
+        connected = true;
+
+        if (!eventLoop.register(channel, SelectionKey.OP_READ, new ChannelHandler())) {
+            LOG.severe("Failed to connect to %s:%s. Event loop is not running.", getIPAddress(), socket.getPort());
+            connected = false;
+            return false;
+        }
+
+        LOG.fine("Connected to %s:%s using event loop", getIPAddress(), socket.getPort());
+        return true;
+    }
+
+    /**
+     * Closes the connection when the other side doesn't read the messages fast enough to keep up.
+     */
+    private void writeQueueFull() {
+        if (!connected) {
+            return;
+        }
+
+        LOG.warning("Write queue to %s:%s is full. Disconnecting.", getIPAddress(), socket.getPort());
+        statistics.clientDisconnected();
+        disconnect();
+    }
+
+    private void flushChannel() {
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SelectionKey key = eventLoop.keyFor(channel);
+
+                if (key != null && key.isValid()) {
+                    flush(key);
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks the stream writer to write the queue, unless a write is already waiting.
+     */
+    private void flushStream() {
+        if (streamWriteScheduled.compareAndSet(false, true)) {
+            streamWriter.write(new StreamWrite());
+        }
+    }
+
+    private String readVarintFrame() throws IOException {
+        final int length = TCPFrameCodec.readVarintLength(inputStream);
+
+        if (readArray.length < length) {
+            readArray = new byte[Math.max(length, readArray.length * 2)];
+        }
+
+        inputStream.readFully(readArray, 0, length);
+
+        return TCPFrameCodec.decodePayload(readArray, 0, length);
+    }
+
+    /**
+     * Writes as many of the queued messages as the socket accepts right now, using a gathering write
+     * to send many messages in one go. If any are left, the event loop is asked for a notification
+     * when the socket is ready for more.
+     */
+    private void flush(final SelectionKey key) {
+        try {
+            while (true) {
+                if (writeBatchStart == writeBatchEnd) {
+                    writeBatchStart = 0;
+                    writeBatchEnd = writeQueue.pollAll(writeBatch);
+
+                    if (writeBatchEnd == 0) {
+                        break;
+                    }
+                }
+
+                channel.write(writeBatch, writeBatchStart, writeBatchEnd - writeBatchStart);
+
+                while (writeBatchStart < writeBatchEnd && !writeBatch[writeBatchStart].hasRemaining()) {
+                    writeBatch[writeBatchStart++] = null;
+                }
+
+                if (writeBatchStart < writeBatchEnd) {
+                    eventLoop.changeOperations(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            eventLoop.changeOperations(key, SelectionKey.OP_READ);
+        }
+
+        catch (final IOException e) {
+            LOG.severe(e.toString());
+            channelLost(key);
+        }
+    }
+
+    private void channelLost(final SelectionKey key) {
+        key.cancel();
+        writeQueue.close();
+        clearWriteBatch();
+
+        if (connected) {
+            connectionLost();
+        }
+    }
+
+    private void clearWriteBatch() {
+        for (int i = 0; i < writeBatch.length; i++) {
+            writeBatch[i] = null;
+        }
+
+        writeBatchStart = 0;
+        writeBatchEnd = 0;
+    }
+
+    /**
+     * Writes a batch of messages from the queue to the buffer of the stream, and flushes to send them in one go.
+     * If more messages are waiting after that, another write is requested, so the other clients using
+     * the same stream writer get their turn first.
+     */
+    private class StreamWrite implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                final int count = writeQueue.pollAll(writeBatch);
+
+                for (int i = 0; i < count; i++) {
+                    final ByteBuffer frame = writeBatch[i];
+                    writeBatch[i] = null;
+                    outputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                }
+
+                if (count > 0) {
+                    outputStream.flush();
+                }
+            }
+
+            catch (final IOException e) {
+                LOG.severe(e.toString());
+                writeQueue.close();
+                clearWriteBatch();
+
+                if (connected) {
+                    connectionLost();
+                }
+            }
+
+            streamWriteScheduled.set(false);
+
+            // Messages added after the last poll, but before the flag was cleared, are written now
+            if (writeQueue.size() > 0) {
+                flushStream();
+            }
+        }
+    }
+
+    /**
+     * Reads and writes messages on the channel, when notified by the event loop.
+     */
+    private class ChannelHandler implements SelectionHandler {
+
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+        @Override
+        public void handleSelection(final SelectionKey key) {
+            if (key.isWritable()) {
+                flush(key);
+            }
+
+            if (key.isValid() && key.isReadable()) {
+                read(key);
+            }
+        }
+
+        private void read(final SelectionKey key) {
+            try {
+                int bytesRead = channel.read(readBuffer);
+
+                while (bytesRead > 0) {
+                    readMessages();
+                    bytesRead = channel.read(readBuffer);
+                }
+
+                if (bytesRead < 0) {
+                    throw new IOException("Connection closed by " + getIPAddress());
+                }
+            }
+
+            catch (final IOException e) {
+                LOG.severe(e.toString());
+                channelLost(key);
+            }
+        }
+
+        /**
+         * Decodes all the complete messages in the read buffer, and keeps the rest for the next read.
+         */
+        private void readMessages() throws IOException {
+            readBuffer.flip();
+
+            while (connected) {
+                // Checked for each message, since the format can change after the first message
+                final String message = varintReads ? TCPFrameCodec.decodeVarint(readBuffer)
+                                                   : TCPFrameCodec.decodeUTF(readBuffer);
+
+                if (message == null) {
+                    break;
+                }
+
+                notifyMessageArrived(message);
+            }
+
+            readBuffer.compact();
+            growIfFull();
+        }
+
+        private void growIfFull() {
+            if (readBuffer.hasRemaining()) {
+                return;
+            }
+
+            final ByteBuffer largerBuffer = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            largerBuffer.put(readBuffer);
+            readBuffer = largerBuffer;
+        }
+    }
 }
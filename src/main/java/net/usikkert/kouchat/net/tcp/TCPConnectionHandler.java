@@ -23,13 +23,20 @@
 package net.usikkert.kouchat.net.tcp;
 
 import java.net.Socket;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.net.MessageView;
+import net.usikkert.kouchat.net.NetworkCapability;
+import net.usikkert.kouchat.net.NetworkEventLoop;
+import net.usikkert.kouchat.net.NetworkMessageType;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Logger;
 import net.usikkert.kouchat.util.Tools;
@@ -40,16 +47,47 @@ import org.jetbrains.annotations.Nullable;
 /**
  * Handles all the tcp connections.
  *
+ * <p>No thread waits for the other side during the setup of a connection. New users are connected to
+ * as soon as their tcp port is known, and new sockets are added as soon as the user identifies.
+ * Failed connections are tried again by the {@link TCPReconnectScheduler}.</p>
+ *
+ * <p>A connection is kept to all the users by default. With {@link Settings#getTcpLinks()}, connections are
+ * only kept to the neighbours chosen by the {@link TCPOverlay}, and to users getting direct messages.</p>
+ *
  * @author Christian Ihle
  */
-public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverListener, Runnable {
+public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverListener, TCPIdentificationListener,
+        Runnable {
 
     private static final Logger LOG = Logger.getLogger(TCPConnectionHandler.class);
 
+    /** Number of milliseconds a new socket has to identify the user, before it's closed. */
+    private static final int IDENTIFY_TIMEOUT = 2500;
+
     private final Controller controller;
     private final Settings settings;
     private final ExecutorService executorService;
     private final Map<User, TCPUserClient> userClients;
+    private final TCPWriteStatistics writeStatistics;
+
+    /** Writes the messages of all the clients, when not using the event loop. */
+    private final TCPStreamWriter streamWriter;
+
+    /** Users to connect to when the tcp port arrives with the client information. */
+    private final Set<User> usersWaitingForPort;
+
+    private final Timer timer;
+    private final TCPReconnectScheduler reconnectScheduler;
+
+    /** Chooses the users to connect to, or <code>null</code> to connect to all the users. */
+    @Nullable
+    private final TCPOverlay overlay;
+
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
+    /** Reusable view of the message being checked, one for each receiving thread. */
+    private final ThreadLocal<MessageView> messageViews;
 
     @Nullable
     private TCPReceiverListener listener;
@@ -57,13 +95,45 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
     private boolean connected;
 
     public TCPConnectionHandler(final Controller controller, final Settings settings) {
+        this(controller, settings, null);
+    }
+
+    public TCPConnectionHandler(final Controller controller, final Settings settings,
+                                @Nullable final NetworkEventLoop eventLoop) {
         Validate.notNull(controller, "Controller can not be null");
         Validate.notNull(settings, "Settings can not be null");
 
         this.controller = controller;
         this.settings = settings;
+        this.eventLoop = eventLoop;
         this.executorService = Executors.newCachedThreadPool();
-        this.userClients = new HashMap<>();
+        this.userClients = new ConcurrentHashMap<>();
+        this.writeStatistics = new TCPWriteStatistics();
+        this.streamWriter = new TCPStreamWriter();
+        this.usersWaitingForPort = Collections.newSetFromMap(new ConcurrentHashMap<User, Boolean>());
+        this.timer = new Timer("TCPConnectionHandlerTimer", true);
+
+        this.messageViews = new ThreadLocal<MessageView>() {
+            @Override
+            protected MessageView initialValue() {
+                return new MessageView();
+            }
+        };
+
+        this.reconnectScheduler = new TCPReconnectScheduler(executorService, timer,
+                new TCPReconnectScheduler.ConnectionAttempt() {
+                    @Override
+                    public boolean connect(final User user, final int connectTimeout) {
+                        return connectToUser(user, connectTimeout);
+                    }
+                });
+
+        if (settings.getTcpLinks() > 0) {
+            LOG.fine("Keeping tcp connections to %s neighbours", settings.getTcpLinks());
+            this.overlay = new TCPOverlay(settings.getTcpLinks(), settings.getMe());
+        } else {
+            this.overlay = null;
+        }
 
         new Thread(this, TCPConnectionHandler.class.getSimpleName()).start();
     }
@@ -75,8 +145,9 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
             public void run() {
                 LOG.fine("Add socket start");
 
-                final TCPClient client = new TCPClient(socket);
-                final TCPUserIdentifier userIdentifier = new TCPUserIdentifier(controller, settings, client);
+                final TCPClient client = new TCPClient(socket, eventLoop, writeStatistics, streamWriter);
+                final TCPUserIdentifier userIdentifier =
+                        new TCPUserIdentifier(controller, settings, client, TCPConnectionHandler.this);
 
                 if (!client.connect()) {
                     LOG.warning("Add socket done. Connection failed.");
@@ -84,62 +155,152 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
                     return;
                 }
 
-                final User user = userIdentifier.waitForUser();
+                userIdentifier.scheduleTimeout(timer, IDENTIFY_TIMEOUT);
+            }
+        });
+    }
 
-                if (user == null) {
-                    LOG.warning("Add socket done. No user found.");
-                    client.disconnect();
-                    return;
-                }
+    @Override
+    public void userIdentified(final User user, final TCPClient client) {
+        addClient(user, client);
+        reconnectScheduler.connected(user);
 
-                addClient(user, client);
+        LOG.fine("Add socket done. user=%s", user.getNick());
+    }
 
-                LOG.fine("Add socket done. user=%s", user.getNick());
-            }
-        });
+    @Override
+    public void identificationFailed(final TCPClient client) {
+        LOG.warning("Add socket done. No user found.");
+        client.disconnect();
     }
 
+    /**
+     * Connects to the user if a connection is wanted. When only connecting to neighbours,
+     * the new user can also change who the other neighbours are.
+     *
+     * @param user The new user.
+     */
     public void userAdded(final User user) {
-        executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-                LOG.fine("Add user start for user=%s", user.getNick());
+        if (overlay == null) {
+            linkWanted(user);
+        } else if (overlay.userAdded(user)) {
+            neighboursChanged();
+        }
+    }
 
-                if (userAddedAndConnected(user)) {
-                    LOG.fine("Add user done. Already added. user=%s", user.getNick());
-                    return;
-                }
+    /**
+     * Connects to the user now if the tcp port is known, or when the port arrives otherwise.
+     *
+     * @param user The user to connect to.
+     */
+    private void linkWanted(final User user) {
+        if (user.getTcpChatPort() > 0) {
+            reconnectScheduler.connect(user);
+            return;
+        }
 
-                final TCPConnector tcpConnector = new TCPConnector(user);
-                final Socket socket = tcpConnector.connect();
+        LOG.fine("Waiting for tcp port of user=%s", user.getNick());
+        usersWaitingForPort.add(user);
 
-                if (socket == null) {
-                    LOG.warning("Add user done. Unable to connect using tcp. Giving up."); // Never tries again
-                    return;
-                }
+        // The port could have arrived in the meantime
+        userChanged(user);
+    }
 
-                final TCPClient client = new TCPClient(socket);
+    /**
+     * Connects to the user if it was waiting for the tcp port, and the port is known now.
+     * Any other change is fresh information from the user, so a failed connection is tried again early.
+     *
+     * @param user The user that changed.
+     */
+    public void userChanged(final User user) {
+        if (user.getTcpChatPort() > 0 && usersWaitingForPort.remove(user)) {
+            reconnectScheduler.connect(user);
+        } else {
+            userSeen(user);
+        }
+    }
 
-                if (!client.connect()) {
-                    LOG.warning("Add user done. Connection failed. Giving up."); // Never tries again
-                    client.disconnect();
-                    return;
-                }
+    /**
+     * Tries a failed connection to the user again early, since the user has just been heard from.
+     *
+     * @param user The user that sent a message.
+     */
+    public void userSeen(final User user) {
+        reconnectScheduler.retryNow(user, System.currentTimeMillis());
+    }
 
-                addClient(user, client);
-                client.send("SYS-IDENTIFY:" + settings.getMe().getCode() + ":" + user.getCode());
+    private void neighboursChanged() {
+        for (final User neighbour : overlay.getNeighbours()) {
+            linkWanted(neighbour);
+        }
+    }
 
-                LOG.fine("Add user done for user=%s", user.getNick());
-            }
-        });
+    private boolean isLinkWanted(final User user) {
+        return overlay == null || overlay.isWanted(user, System.currentTimeMillis());
+    }
+
+    private boolean connectToUser(final User user, final int connectTimeout) {
+        LOG.fine("Add user start for user=%s", user.getNick());
+
+        if (!isLinkWanted(user)) {
+            LOG.fine("Add user done. Connection no longer wanted. user=%s", user.getNick());
+            return true;
+        }
+
+        if (userAddedAndConnected(user)) {
+            LOG.fine("Add user done. Already added. user=%s", user.getNick());
+            return true;
+        }
+
+        final TCPConnector tcpConnector = new TCPConnector(user, eventLoop != null, connectTimeout);
+        final Socket socket = tcpConnector.connect();
+
+        if (socket == null) {
+            LOG.warning("Add user done. Unable to connect using tcp. Will try again later.");
+            return false;
+        }
+
+        final TCPClient client = new TCPClient(socket, eventLoop, writeStatistics, streamWriter);
+        final boolean varintFraming = NetworkCapability.TCP_FRAMING.isSupportedBy(user);
+
+        if (varintFraming) {
+            // The other side switches right after reading the identification
+            client.useVarintFramingForReading();
+        }
+
+        if (!client.connect()) {
+            LOG.warning("Add user done. Connection failed. Will try again later.");
+            client.disconnect();
+            return false;
+        }
+
+        // Identify before adding the client, so no other message can be sent first
+        client.send("SYS-IDENTIFY:" + settings.getMe().getCode() + ":" + user.getCode()
+                + (varintFraming ? TCPUserIdentifier.VARINT_FRAMING : ""));
+
+        if (varintFraming) {
+            client.useVarintFramingForWriting();
+        }
+
+        addClient(user, client);
+
+        LOG.fine("Add user done for user=%s", user.getNick());
+
+        return true;
     }
 
     public void userRemoved(final User user) {
+        usersWaitingForPort.remove(user);
+        reconnectScheduler.remove(user);
         final TCPUserClient userClient = userClients.remove(user);
 
         if (userClient != null) {
             userClient.disconnect();
         }
+
+        if (overlay != null && overlay.userRemoved(user)) {
+            neighboursChanged();
+        }
     }
 
     public void connect() {
@@ -148,6 +309,8 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
 
     public void disconnect() {
         connected = false;
+        usersWaitingForPort.clear();
+        reconnectScheduler.clear();
 
         for (final TCPUserClient userClient : userClients.values()) {
             userClient.disconnect();
@@ -160,24 +323,71 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
         final TCPUserClient userClient = userClients.get(user);
 
         if (userClient == null) {
-            userClients.put(user, new TCPUserClient(client, user, this));
+            userClients.put(user, new TCPUserClient(client, user, this, reconnectScheduler));
         } else {
             userClient.add(client);
         }
     }
 
-    public void sendMessageToAll(final String message) {
+    /**
+     * Sends the message to all the connected users.
+     *
+     * @param message The message to send.
+     * @return If the message was sent to at least one user.
+     */
+    public boolean sendMessageToAll(final String message) {
+        return sendMessageToAllAndCount(message) > 0;
+    }
+
+    /**
+     * Sends the message to all the connected users, and counts the users it was sent to.
+     *
+     * @param message The message to send.
+     * @return The number of users the message was sent to.
+     */
+    public int sendMessageToAllAndCount(final String message) {
+        final boolean droppable = TCPWriteQueue.isDroppable(message);
+        int sent = 0;
+
         for (final TCPUserClient userClient : userClients.values()) {
-            userClient.send(message);
+            if (userClient.send(message, droppable)) {
+                sent++;
+            }
         }
+
+        return sent;
     }
 
-    public void sendMessageToUser(final String message, final User user) {
+    /**
+     * Gets the number of users with a tcp link. Some of them may be reconnecting.
+     *
+     * @return The number of users with a link.
+     */
+    public int getLinkCount() {
+        return userClients.size();
+    }
+
+    /**
+     * Sends the message to the user if connected. When only connecting to neighbours,
+     * a connection to other users is made for the following direct messages.
+     *
+     * @param message The message to send.
+     * @param user The user to send the message to.
+     * @return If the message was sent, or <code>false</code> if there is no connection to the user yet.
+     */
+    public boolean sendMessageToUser(final String message, final User user) {
         final TCPUserClient userClient = userClients.get(user);
+        final boolean sent = userClient != null && userClient.send(message);
 
-        if (userClient != null) {
-            userClient.send(message);
+        if (overlay != null && overlay.directMessage(user, System.currentTimeMillis()) && userClient == null) {
+            linkWanted(user);
         }
+
+        return sent;
+    }
+
+    public TCPWriteStatistics getWriteStatistics() {
+        return writeStatistics;
     }
 
     public void registerReceiverListener(final TCPReceiverListener theListener) {
@@ -186,11 +396,26 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
 
     @Override
     public void messageArrived(final String message, final String ipAddress, final User user) {
+        if (overlay != null && !overlay.isNeighbour(user) && isPrivateMessage(message)) {
+            overlay.directMessage(user, System.currentTimeMillis());
+        }
+
         if (listener != null) {
             listener.messageArrived(message, ipAddress, user);
         }
     }
 
+    private boolean isPrivateMessage(final String message) {
+        try {
+            return messageViews.get().wrap(message).isType(NetworkMessageType.PRIVMSG);
+        }
+
+        // Like the system messages between the tcp clients
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
     private boolean userAddedAndConnected(final User user) {
         final TCPUserClient userClient = userClients.get(user);
 
@@ -208,11 +433,24 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
 
             for (final User user : userClients.keySet()) {
                 final TCPUserClient userClient = userClients.get(user);
+
+                if (userClient == null) {
+                    continue;
+                }
+
+                if (!isLinkWanted(user)) {
+                    LOG.fine("Closing tcp connections to %s, no longer needed.", user.getNick());
+                    userClients.remove(user);
+                    userClient.disconnect();
+                    continue;
+                }
+
                 final int clientCount = userClient.getClientCount();
 
+                // Normally reconnected right away, but the first attempt could have been lost in a disconnect
                 if (clientCount == 0) {
                     LOG.warning("User %s has lost all tcp connections. Trying to reconnect.", user.getNick());
-                    userAdded(user);
+                    reconnectScheduler.connect(user);
                 } else if (clientCount > 1) {
                     LOG.warning("User %s has too many (%d) tcp connections. Trying to close.",
                                 user.getNick(), clientCount);
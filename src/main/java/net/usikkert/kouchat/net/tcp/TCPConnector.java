@@ -27,16 +27,16 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
 
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.Logger;
-import net.usikkert.kouchat.util.Sleeper;
 import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
 
 /**
- * Creates a tcp connection to a user.
+ * Creates a tcp connection to a user. The tcp port of the user must be known before connecting.
  *
  * @author Christian Ihle
  */
@@ -46,31 +46,47 @@ public class TCPConnector {
     private static final int SOCKET_CONNECT_TIMEOUT = 10_000;
 
     private final User user;
-    private final Sleeper sleeper;
+    private final boolean useChannel;
+    private final int connectTimeout;
 
     public TCPConnector(final User user) {
+        this(user, false);
+    }
+
+    public TCPConnector(final User user, final boolean useChannel) {
+        this(user, useChannel, SOCKET_CONNECT_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param user The user to connect to.
+     * @param useChannel If the socket should be created from a {@link SocketChannel},
+     *                   for use with the {@link net.usikkert.kouchat.net.NetworkEventLoop}.
+     * @param connectTimeout Number of milliseconds to wait for the connection.
+     */
+    public TCPConnector(final User user, final boolean useChannel, final int connectTimeout) {
         Validate.notNull(user, "User can not be null");
 
         this.user = user;
-        this.sleeper = new Sleeper();
+        this.useChannel = useChannel;
+        this.connectTimeout = connectTimeout;
     }
 
     @Nullable
     public Socket connect() {
         LOG.fine("Connecting to user=%s", user.getNick());
 
-        waitForPort();
-
         if (user.getTcpChatPort() <= 0) {
-            LOG.warning("User has no tcp port. Giving up.");
+            LOG.warning("User has no tcp port.");
             return null;
         }
 
         try {
             LOG.fine("Connecting to: %s@%s:%s", user.getNick(), user.getIpAddress(), user.getTcpChatPort());
-            final Socket socket = new Socket();
+            final Socket socket = useChannel ? SocketChannel.open().socket() : new Socket();
             final SocketAddress address = new InetSocketAddress(InetAddress.getByName(user.getIpAddress()), user.getTcpChatPort());
-            socket.connect(address, SOCKET_CONNECT_TIMEOUT);
+            socket.connect(address, connectTimeout);
             LOG.fine("Connected to: %s@%s:%s", user.getNick(), socket.getInetAddress().getHostAddress(), socket.getPort());
 
             return socket;
@@ -82,13 +98,4 @@ public class TCPConnector {
 
         return null;
     }
-
-    private void waitForPort() {
-        int tries = 0;
-
-        while (user.getTcpChatPort() <= 0 && tries < 50) {
-            sleeper.sleep(50);
-            tries++;
-        }
-    }
 }
@@ -0,0 +1,240 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.net.BinaryMessageCodec;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Encodes and decodes the frames of the messages sent over tcp.
+ *
+ * <p>There are two formats of frames:</p>
+ *
+ * <ul>
+ *   <li>UTF: the format of {@link DataOutputStream#writeUTF(String)}. A 2 byte length, and the message in
+ *       modified UTF-8. Used by all clients, and always for the first message on a connection.</li>
+ *   <li>Varint: the length as an unsigned varint, and the message in UTF-8, or in the binary format of
+ *       {@link BinaryMessageCodec} if it can be encoded. Used when both sides agree on it when connecting.</li>
+ * </ul>
+ *
+ * @author Christian Ihle
+ */
+public final class TCPFrameCodec {
+
+    /** Size of the length prefix written by {@link DataOutputStream#writeUTF(String)}. */
+    static final int UTF_LENGTH_BYTES = 2;
+
+    /** The largest message accepted in the varint format. */
+    static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    /** The most bytes needed for the length of a message no larger than {@link #MAX_FRAME_SIZE}. */
+    static final int MAX_LENGTH_BYTES = 3;
+
+    private static final Charset MESSAGE_CHARSET = Charset.forName(Constants.MESSAGE_CHARSET);
+
+    private TCPFrameCodec() {
+
+    }
+
+    /**
+     * Encodes the message in the UTF format.
+     *
+     * @param message The message to encode.
+     * @return The frame.
+     * @throws IOException If the message is too long.
+     */
+    public static ByteBuffer encodeUTF(final String message) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(UTF_LENGTH_BYTES + message.length());
+        new DataOutputStream(bytes).writeUTF(message);
+
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Encodes the message in the varint format.
+     *
+     * @param message The message to encode.
+     * @return The frame.
+     * @throws IOException If the message is too long.
+     */
+    public static ByteBuffer encodeVarint(final String message) throws IOException {
+        final byte[] payload = BinaryMessageCodec.getBytes(message, true);
+
+        if (payload.length > MAX_FRAME_SIZE) {
+            throw new IOException("Message too long: " + payload.length + " bytes");
+        }
+
+        final byte[] frame = new byte[MAX_LENGTH_BYTES + payload.length];
+        int position = 0;
+        int remaining = payload.length;
+
+        while ((remaining & ~0x7f) != 0) {
+            frame[position++] = (byte) ((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+
+        frame[position++] = (byte) remaining;
+        System.arraycopy(payload, 0, frame, position, payload.length);
+
+        return ByteBuffer.wrap(frame, 0, position + payload.length);
+    }
+
+    /**
+     * Decodes the first message in the buffer, in the UTF format, if all of it has arrived.
+     *
+     * @param buffer The buffer to read from, ready for reading. Must be backed by an array.
+     * @return The message, or <code>null</code> if the buffer doesn't have a complete frame.
+     *         The position of the buffer is moved past the frame only if a message is returned.
+     * @throws IOException If the message is invalid.
+     */
+    @Nullable
+    public static String decodeUTF(final ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < UTF_LENGTH_BYTES) {
+            return null;
+        }
+
+        final int position = buffer.position();
+        final int frameLength = UTF_LENGTH_BYTES + (buffer.getShort(position) & 0xFFFF);
+
+        if (buffer.remaining() < frameLength) {
+            return null;
+        }
+
+        final DataInputStream frame = new DataInputStream(
+                new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + position, frameLength));
+        buffer.position(position + frameLength);
+
+        return frame.readUTF();
+    }
+
+    /**
+     * Decodes the first message in the buffer, in the varint format, if all of it has arrived.
+     *
+     * @param buffer The buffer to read from, ready for reading. Must be backed by an array.
+     * @return The message, or <code>null</code> if the buffer doesn't have a complete frame.
+     *         The position of the buffer is moved past the frame only if a message is returned.
+     * @throws IOException If the length or the message is invalid.
+     */
+    @Nullable
+    public static String decodeVarint(final ByteBuffer buffer) throws IOException {
+        final int start = buffer.position();
+        int length = 0;
+        int lengthBytes = 0;
+
+        while (true) {
+            if (lengthBytes == buffer.remaining()) {
+                return null;
+            }
+
+            final int current = buffer.get(start + lengthBytes) & 0xff;
+            length |= (current & 0x7f) << (7 * lengthBytes);
+            lengthBytes++;
+
+            if ((current & 0x80) == 0) {
+                break;
+            }
+
+            if (lengthBytes == MAX_LENGTH_BYTES) {
+                throw new IOException("Invalid frame length");
+            }
+        }
+
+        checkLength(length);
+
+        if (buffer.remaining() < lengthBytes + length) {
+            return null;
+        }
+
+        buffer.position(start + lengthBytes + length);
+
+        return decodePayload(buffer.array(), buffer.arrayOffset() + start + lengthBytes, length);
+    }
+
+    /**
+     * Reads the length of the next message in the varint format from the stream.
+     *
+     * @param inputStream The stream to read from.
+     * @return The length of the message.
+     * @throws IOException If the length is invalid, or the stream is closed.
+     */
+    public static int readVarintLength(final InputStream inputStream) throws IOException {
+        int length = 0;
+
+        for (int i = 0; i < MAX_LENGTH_BYTES; i++) {
+            final int current = inputStream.read();
+
+            if (current < 0) {
+                throw new IOException("Connection closed");
+            }
+
+            length |= (current & 0x7f) << (7 * i);
+
+            if ((current & 0x80) == 0) {
+                checkLength(length);
+                return length;
+            }
+        }
+
+        throw new IOException("Invalid frame length");
+    }
+
+    /**
+     * Decodes the message of a frame in the varint format.
+     *
+     * @param data The array with the message.
+     * @param offset Where the message starts in the array.
+     * @param length Number of bytes in the message.
+     * @return The message.
+     * @throws IOException If the message is invalid.
+     */
+    public static String decodePayload(final byte[] data, final int offset, final int length) throws IOException {
+        if (!BinaryMessageCodec.isBinary(data, offset, length)) {
+            return new String(data, offset, length, MESSAGE_CHARSET);
+        }
+
+        final String message = BinaryMessageCodec.decode(data, offset, length);
+
+        if (message == null) {
+            throw new IOException("Invalid binary message");
+        }
+
+        return message;
+    }
+
+    private static void checkLength(final int length) throws IOException {
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too long: " + length + " bytes");
+        }
+    }
+}
@@ -0,0 +1,48 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import net.usikkert.kouchat.misc.User;
+
+/**
+ * Listener for the result of identifying the user on the other side of a new tcp connection.
+ *
+ * @author Christian Ihle
+ */
+public interface TCPIdentificationListener {
+
+    /**
+     * The user on the other side of the connection has been identified.
+     *
+     * @param user The identified user.
+     * @param client The connection to the user.
+     */
+    void userIdentified(User user, TCPClient client);
+
+    /**
+     * The user on the other side of the connection could not be identified, or did not identify in time.
+     *
+     * @param client The connection to the unknown user.
+     */
+    void identificationFailed(TCPClient client);
+}
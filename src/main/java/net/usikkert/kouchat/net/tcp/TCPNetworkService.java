@@ -26,9 +26,12 @@ import net.usikkert.kouchat.event.UserListListener;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.net.NetworkEventLoop;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * Network service for administration of tcp communication.
  *
@@ -42,12 +45,19 @@ public class TCPNetworkService implements UserListListener {
     public TCPNetworkService(final Controller controller,
                              final Settings settings,
                              final ErrorHandler errorHandler) {
+        this(controller, settings, errorHandler, null);
+    }
+
+    public TCPNetworkService(final Controller controller,
+                             final Settings settings,
+                             final ErrorHandler errorHandler,
+                             @Nullable final NetworkEventLoop eventLoop) {
         Validate.notNull(controller, "Controller can not be null");
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
-        this.tcpConnectionHandler = new TCPConnectionHandler(controller, settings);
-        this.tcpServer = new TCPServer(settings, errorHandler, tcpConnectionHandler);
+        this.tcpConnectionHandler = new TCPConnectionHandler(controller, settings, eventLoop);
+        this.tcpServer = new TCPServer(settings, errorHandler, tcpConnectionHandler, eventLoop);
 
         controller.getUserList().addUserListListener(this);
     }
@@ -69,7 +79,7 @@ public class TCPNetworkService implements UserListListener {
 
     @Override
     public void userChanged(final int pos, final User user) {
-
+        tcpConnectionHandler.userChanged(user);
     }
 
     @Override
@@ -77,12 +87,33 @@ public class TCPNetworkService implements UserListListener {
         tcpConnectionHandler.userRemoved(user);
     }
 
-    public void sendMessageToAll(final String message) {
-        tcpConnectionHandler.sendMessageToAll(message);
+    /**
+     * A message has arrived from the user, so a failed tcp connection can be tried again early.
+     *
+     * @param user The user that sent a message.
+     */
+    public void userSeen(final User user) {
+        tcpConnectionHandler.userSeen(user);
+    }
+
+    public boolean sendMessageToAll(final String message) {
+        return tcpConnectionHandler.sendMessageToAll(message);
+    }
+
+    public int sendMessageToAllAndCount(final String message) {
+        return tcpConnectionHandler.sendMessageToAllAndCount(message);
+    }
+
+    public int getLinkCount() {
+        return tcpConnectionHandler.getLinkCount();
+    }
+
+    public boolean sendMessageToUser(final String message, final User user) {
+        return tcpConnectionHandler.sendMessageToUser(message, user);
     }
 
-    public void sendMessageToUser(final String message, final User user) {
-        tcpConnectionHandler.sendMessageToUser(message, user);
+    public TCPWriteStatistics getWriteStatistics() {
+        return tcpConnectionHandler.getWriteStatistics();
     }
 
     public void registerReceiverListener(final TCPReceiverListener listener) {
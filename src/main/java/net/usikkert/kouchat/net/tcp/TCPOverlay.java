@@ -0,0 +1,226 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Chooses which users to keep a tcp connection to, when connecting to everyone would be too many connections.
+ *
+ * <p>The users are placed in a ring sorted by user code, and the nearest users on both sides in the ring
+ * are the neighbours. The users agree on who are neighbours, since they all see the same ring.
+ * Messages to all users still reach the other users with multicast.</p>
+ *
+ * <p>Users that are not neighbours get a tcp connection for a while after a direct message,
+ * like a private chat message, but only a few at a time.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPOverlay {
+
+    /** Number of milliseconds to keep the tcp connection after the last direct message. */
+    static final long DIRECT_LINK_TIMEOUT = 5 * 60 * 1000;
+
+    /** The most users that are not neighbours to have a tcp connection to because of direct messages. */
+    static final int MAX_DIRECT_LINKS = 8;
+
+    private final int neighboursEachWay;
+    private final int myCode;
+
+    /** The other users, by user code. */
+    private final TreeMap<Integer, User> users;
+
+    private final Set<User> neighbours;
+
+    /** Time of the last direct message to or from the users with a connection because of direct messages. */
+    private final Map<User, Long> directLinks;
+
+    /**
+     * Constructor.
+     *
+     * @param links The number of neighbours. Half on each side in the ring, and at least one on each side.
+     * @param me The application user, the starting point in the ring.
+     */
+    public TCPOverlay(final int links, final User me) {
+        Validate.notNull(me, "Me can not be null");
+
+        this.neighboursEachWay = Math.max(1, links / 2);
+        this.myCode = me.getCode();
+        this.users = new TreeMap<>();
+        this.neighbours = new HashSet<>();
+        this.directLinks = new HashMap<>();
+    }
+
+    /**
+     * Adds a user to the ring.
+     *
+     * @param user The user to add.
+     * @return If the neighbours changed.
+     */
+    public synchronized boolean userAdded(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        if (user.getCode() == myCode) {
+            return false;
+        }
+
+        users.put(user.getCode(), user);
+
+        return updateNeighbours();
+    }
+
+    /**
+     * Removes a user from the ring.
+     *
+     * @param user The user to remove.
+     * @return If the neighbours changed.
+     */
+    public synchronized boolean userRemoved(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        users.remove(user.getCode());
+        directLinks.remove(user);
+
+        return updateNeighbours();
+    }
+
+    /**
+     * Checks if the user is one of the neighbours.
+     *
+     * @param user The user to check.
+     * @return If the user is a neighbour.
+     */
+    public synchronized boolean isNeighbour(final User user) {
+        return neighbours.contains(user);
+    }
+
+    /**
+     * Gets a copy of the current neighbours.
+     *
+     * @return The neighbours.
+     */
+    public synchronized Set<User> getNeighbours() {
+        return new HashSet<>(neighbours);
+    }
+
+    /**
+     * Registers a direct message to or from the user.
+     *
+     * @param user The user the message was to or from.
+     * @param now The current time, in milliseconds.
+     * @return If the user should have a tcp connection because of the message. Not needed for neighbours,
+     *         and not allowed when there are too many connections because of direct messages already.
+     */
+    public synchronized boolean directMessage(final User user, final long now) {
+        Validate.notNull(user, "User can not be null");
+
+        if (neighbours.contains(user) || !users.containsKey(user.getCode())) {
+            return false;
+        }
+
+        removeExpiredDirectLinks(now);
+
+        if (directLinks.containsKey(user) || directLinks.size() < MAX_DIRECT_LINKS) {
+            directLinks.put(user, now);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if the user should have a tcp connection, because it's a neighbour,
+     * or because of a recent direct message.
+     *
+     * @param user The user to check.
+     * @param now The current time, in milliseconds.
+     * @return If the tcp connection is wanted.
+     */
+    public synchronized boolean isWanted(final User user, final long now) {
+        if (neighbours.contains(user)) {
+            return true;
+        }
+
+        final Long lastDirectMessage = directLinks.get(user);
+
+        return lastDirectMessage != null && now - lastDirectMessage < DIRECT_LINK_TIMEOUT;
+    }
+
+    private void removeExpiredDirectLinks(final long now) {
+        final Iterator<Long> iterator = directLinks.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (now - iterator.next() >= DIRECT_LINK_TIMEOUT) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private boolean updateNeighbours() {
+        final Set<User> newNeighbours = new HashSet<>();
+
+        if (users.size() <= neighboursEachWay * 2) {
+            newNeighbours.addAll(users.values());
+        }
+
+        else {
+            Integer next = myCode;
+            Integer previous = myCode;
+
+            for (int i = 0; i < neighboursEachWay; i++) {
+                next = nextCode(next);
+                previous = previousCode(previous);
+
+                newNeighbours.add(users.get(next));
+                newNeighbours.add(users.get(previous));
+            }
+        }
+
+        if (newNeighbours.equals(neighbours)) {
+            return false;
+        }
+
+        neighbours.clear();
+        neighbours.addAll(newNeighbours);
+
+        return true;
+    }
+
+    private Integer nextCode(final Integer code) {
+        final Integer next = users.higherKey(code);
+        return next != null ? next : users.firstKey();
+    }
+
+    private Integer previousCode(final Integer code) {
+        final Integer previous = users.lowerKey(code);
+        return previous != null ? previous : users.lastKey();
+    }
+}
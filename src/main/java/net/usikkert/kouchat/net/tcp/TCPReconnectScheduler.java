@@ -0,0 +1,362 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides when to connect to the users using tcp.
+ *
+ * <p>A failed attempt is tried again after a delay that doubles for each failure, with some randomness
+ * so users that became unreachable at the same time are not all tried at the same time.
+ * Fresh information from a user shortens the wait, since the user is likely to be reachable again.
+ * Only a limited number of connection attempts run at the same time, and the rest wait in line.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPReconnectScheduler {
+
+    private static final Logger LOG = Logger.getLogger(TCPReconnectScheduler.class);
+
+    /** Number of milliseconds to wait after the first failure. */
+    static final int INITIAL_DELAY = 1000;
+
+    /** The longest number of milliseconds to wait between attempts. */
+    static final int MAX_DELAY = 60_000;
+
+    /** Number of milliseconds to wait for the connection on the first attempt. */
+    static final int INITIAL_CONNECT_TIMEOUT = 2500;
+
+    /** The longest number of milliseconds to wait for the connection. */
+    static final int MAX_CONNECT_TIMEOUT = 10_000;
+
+    /** The most connection attempts running at the same time. */
+    static final int MAX_CONCURRENT_ATTEMPTS = 8;
+
+    private final Executor executor;
+    private final Timer timer;
+    private final ConnectionAttempt connectionAttempt;
+    private final Map<User, PeerState> peers;
+    private final Deque<User> waitingToConnect;
+    private final Random random;
+
+    private int runningAttempts;
+
+    /**
+     * Constructor.
+     *
+     * @param executor Runs the connection attempts.
+     * @param timer Starts the attempts after a failure.
+     * @param connectionAttempt Connects to the user.
+     */
+    public TCPReconnectScheduler(final Executor executor, final Timer timer, final ConnectionAttempt connectionAttempt) {
+        Validate.notNull(executor, "Executor can not be null");
+        Validate.notNull(timer, "Timer can not be null");
+        Validate.notNull(connectionAttempt, "Connection attempt can not be null");
+
+        this.executor = executor;
+        this.timer = timer;
+        this.connectionAttempt = connectionAttempt;
+        this.peers = new HashMap<>();
+        this.waitingToConnect = new ArrayDeque<>();
+        this.random = new Random();
+    }
+
+    /**
+     * Connects to the user as soon as there is room for another attempt. Does nothing if the user
+     * is already being connected to, or waiting to try again after a failure.
+     *
+     * @param user The user to connect to.
+     */
+    public synchronized void connect(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        final PeerState peer = getPeer(user);
+
+        if (peer.isBusy()) {
+            return;
+        }
+
+        startWhenPossible(user, peer);
+    }
+
+    /**
+     * Tries again right away if the user is waiting after a failure, and has waited at least half the delay.
+     * Used when new information arrives from the user.
+     *
+     * @param user The user to connect to.
+     * @param now The current time, in milliseconds.
+     */
+    public synchronized void retryNow(final User user, final long now) {
+        Validate.notNull(user, "User can not be null");
+
+        final PeerState peer = peers.get(user);
+
+        if (peer == null || peer.retryTask == null || now - peer.lastAttempt < peer.delay / 2) {
+            return;
+        }
+
+        LOG.fine("Retrying connection to user=%s after new information", user.getNick());
+        peer.cancelRetry();
+        startWhenPossible(user, peer);
+    }
+
+    /**
+     * Forgets the failures of a user that is connected, so the next attempt after losing the connection
+     * starts right away.
+     *
+     * @param user The connected user.
+     */
+    public synchronized void connected(final User user) {
+        final PeerState peer = peers.get(user);
+
+        if (peer != null) {
+            peer.cancelRetry();
+            peer.failures = 0;
+        }
+    }
+
+    /**
+     * Stops connecting to the user. An attempt already running will finish.
+     *
+     * @param user The user to forget.
+     */
+    public synchronized void remove(final User user) {
+        final PeerState peer = peers.remove(user);
+
+        if (peer != null) {
+            peer.cancelRetry();
+            waitingToConnect.remove(user);
+        }
+    }
+
+    /**
+     * Stops connecting to all users.
+     */
+    public synchronized void clear() {
+        for (final PeerState peer : peers.values()) {
+            peer.cancelRetry();
+        }
+
+        peers.clear();
+        waitingToConnect.clear();
+    }
+
+    /**
+     * Gets the number of failed attempts since the last successful connection to the user.
+     *
+     * @param user The user to check.
+     * @return The number of failures.
+     */
+    public synchronized int getFailures(final User user) {
+        final PeerState peer = peers.get(user);
+
+        return peer != null ? peer.failures : 0;
+    }
+
+    /**
+     * Gets the number of connection attempts running now.
+     *
+     * @return The number of attempts.
+     */
+    public synchronized int getRunningAttempts() {
+        return runningAttempts;
+    }
+
+    /**
+     * Gets the number of users waiting for a free slot to connect.
+     *
+     * @return The number of users in line.
+     */
+    public synchronized int getWaitingToConnect() {
+        return waitingToConnect.size();
+    }
+
+    /**
+     * Gets the number of milliseconds to wait before trying again after the failures,
+     * with a random part to spread out the attempts.
+     *
+     * @param failures The number of failures in a row. Must be at least 1.
+     * @return The delay, between half and all of the doubled delay.
+     */
+    long getRetryDelay(final int failures) {
+        final long delay = Math.min((long) INITIAL_DELAY << Math.min(failures - 1, 16), MAX_DELAY);
+
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Gets the number of milliseconds to wait for the connection, longer for each failure,
+     * so an unreachable user does not use up an attempt slot for long.
+     *
+     * @param failures The number of failures in a row.
+     * @return The timeout to use when connecting.
+     */
+    static int getConnectTimeout(final int failures) {
+        return (int) Math.min((long) INITIAL_CONNECT_TIMEOUT << Math.min(failures, 16), MAX_CONNECT_TIMEOUT);
+    }
+
+    private PeerState getPeer(final User user) {
+        PeerState peer = peers.get(user);
+
+        if (peer == null) {
+            peer = new PeerState();
+            peers.put(user, peer);
+        }
+
+        return peer;
+    }
+
+    private void startWhenPossible(final User user, final PeerState peer) {
+        peer.waiting = true;
+        waitingToConnect.add(user);
+        startWaitingAttempts();
+    }
+
+    private void startWaitingAttempts() {
+        while (runningAttempts < MAX_CONCURRENT_ATTEMPTS && !waitingToConnect.isEmpty()) {
+            final User user = waitingToConnect.poll();
+            final PeerState peer = peers.get(user);
+
+            peer.waiting = false;
+            peer.running = true;
+            peer.lastAttempt = System.currentTimeMillis();
+            runningAttempts++;
+
+            final int connectTimeout = getConnectTimeout(peer.failures);
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean success = false;
+
+                    try {
+                        success = connectionAttempt.connect(user, connectTimeout);
+                    }
+
+                    finally {
+                        attemptFinished(user, success);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void attemptFinished(final User user, final boolean success) {
+        runningAttempts--;
+        final PeerState peer = peers.get(user);
+
+        // Null if the user was removed while connecting
+        if (peer != null) {
+            peer.running = false;
+
+            if (success) {
+                peer.failures = 0;
+            } else {
+                scheduleRetry(user, peer);
+            }
+        }
+
+        startWaitingAttempts();
+    }
+
+    private void scheduleRetry(final User user, final PeerState peer) {
+        peer.failures++;
+        peer.delay = getRetryDelay(peer.failures);
+
+        LOG.fine("Connection to user=%s failed %s times. Trying again in %s ms", user.getNick(), peer.failures, peer.delay);
+
+        peer.retryTask = new TimerTask() {
+            @Override
+            public void run() {
+                retryTaskRunning(user, this);
+            }
+        };
+
+        timer.schedule(peer.retryTask, peer.delay);
+    }
+
+    private synchronized void retryTaskRunning(final User user, final TimerTask task) {
+        final PeerState peer = peers.get(user);
+
+        // The task could have been replaced after it started running
+        if (peer != null && peer.retryTask == task) {
+            peer.retryTask = null;
+            startWhenPossible(user, peer);
+        }
+    }
+
+    /**
+     * Connects to a user.
+     */
+    public interface ConnectionAttempt {
+
+        /**
+         * Connects to the user.
+         *
+         * @param user The user to connect to.
+         * @param connectTimeout Number of milliseconds to wait for the connection.
+         * @return If the user was connected.
+         */
+        boolean connect(User user, int connectTimeout);
+    }
+
+    /**
+     * The connection attempts to one user.
+     */
+    private static class PeerState {
+
+        private boolean waiting;
+        private boolean running;
+        private int failures;
+        private long lastAttempt;
+        private long delay;
+
+        @Nullable
+        private TimerTask retryTask;
+
+        boolean isBusy() {
+            return waiting || running || retryTask != null;
+        }
+
+        void cancelRetry() {
+            if (retryTask != null) {
+                retryTask.cancel();
+                retryTask = null;
+            }
+        }
+    }
+}
@@ -23,11 +23,18 @@
 package net.usikkert.kouchat.net.tcp;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.net.NetworkEventLoop;
+import net.usikkert.kouchat.net.SelectionHandler;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Logger;
 import net.usikkert.kouchat.util.Validate;
@@ -37,6 +44,9 @@ import org.jetbrains.annotations.Nullable;
 /**
  * Server listening for tcp connections from users.
  *
+ * <p>If a {@link NetworkEventLoop} is used, new connections are accepted by the event loop
+ * instead of a separate thread.</p>
+ *
  * @author Christian Ihle
  */
 public class TCPServer implements Runnable {
@@ -49,6 +59,9 @@ public class TCPServer implements Runnable {
     private final ErrorHandler errorHandler;
     private final TCPConnectionListener tcpConnectionListener;
 
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
     private boolean connected;
 
     @Nullable
@@ -56,6 +69,11 @@ public class TCPServer implements Runnable {
 
     public TCPServer(final Settings settings, final ErrorHandler errorHandler,
                      final TCPConnectionListener tcpConnectionListener) {
+        this(settings, errorHandler, tcpConnectionListener, null);
+    }
+
+    public TCPServer(final Settings settings, final ErrorHandler errorHandler,
+                     final TCPConnectionListener tcpConnectionListener, @Nullable final NetworkEventLoop eventLoop) {
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
         Validate.notNull(tcpConnectionListener, "TCP connection listener can not be null");
@@ -63,6 +81,7 @@ public class TCPServer implements Runnable {
         this.me = settings.getMe();
         this.errorHandler = errorHandler;
         this.tcpConnectionListener = tcpConnectionListener;
+        this.eventLoop = eventLoop;
     }
 
     @Override
@@ -98,12 +117,18 @@ public class TCPServer implements Runnable {
 
         while (portAttempt < MAX_PORT_ATTEMPTS && !connected) {
             try {
-                serverSocket = new ServerSocket(port);
-                connected = true;
+                if (eventLoop != null) {
+                    startChannelServer(port);
+                }
 
-                // The background thread watching for connections from the network.
-                final Thread worker = new Thread(this, getClass().getSimpleName());
-                worker.start();
+                else {
+                    serverSocket = new ServerSocket(port);
+                    connected = true;
+
+                    // The background thread watching for connections from the network.
+                    final Thread worker = new Thread(this, getClass().getSimpleName());
+                    worker.start();
+                }
 
                 me.setTcpChatPort(port);
                 LOG.fine("Connected to port: %s", port);
@@ -129,6 +154,28 @@ public class TCPServer implements Runnable {
         }
     }
 
+    private void startChannelServer(final int port) throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+        }
+
+        catch (final IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+
+        serverSocket = serverChannel.socket();
+        connected = true;
+
+        if (!eventLoop.register(serverChannel, SelectionKey.OP_ACCEPT, new AcceptHandler(serverChannel))) {
+            connected = false;
+            serverChannel.close();
+            throw new IOException("Event loop is not running");
+        }
+    }
+
     public void stopServer() {
         LOG.fine("Disconnecting...");
 
@@ -149,4 +196,40 @@ public class TCPServer implements Runnable {
 
         LOG.fine("Disconnected.");
     }
+
+    /**
+     * Accepts all the pending connections, when notified by the event loop.
+     */
+    private class AcceptHandler implements SelectionHandler {
+
+        private final ServerSocketChannel serverChannel;
+
+        AcceptHandler(final ServerSocketChannel serverChannel) {
+            this.serverChannel = serverChannel;
+        }
+
+        @Override
+        public void handleSelection(final SelectionKey key) {
+            try {
+                SocketChannel socketChannel = serverChannel.accept();
+
+                while (socketChannel != null) {
+                    final Socket socket = socketChannel.socket();
+                    tcpConnectionListener.socketAdded(socket);
+                    socketChannel = serverChannel.accept();
+                }
+            }
+
+            // Happens when server socket is closed, or network is down
+            catch (final IOException e) {
+                if (connected) {
+                    LOG.warning(e.toString());
+                }
+
+                else {
+                    LOG.fine(e.toString());
+                }
+            }
+        }
+    }
 }
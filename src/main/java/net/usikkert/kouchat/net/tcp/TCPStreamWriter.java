@@ -0,0 +1,79 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * One thread that writes the queued messages of all the tcp clients using streams, instead of one
+ * writer thread for each connection. Used when there is no {@link net.usikkert.kouchat.net.NetworkEventLoop}.
+ *
+ * <p>Each client asks for a write when messages are added to its queue, and writes a batch of messages
+ * when its turn comes. A client with more messages left asks again, and waits for the other clients
+ * to have their turn first.</p>
+ *
+ * <p>Writing to a stream blocks when the other side does not read. The other clients keep their messages
+ * in their write queues meanwhile. If the other side stops reading completely, its write queue becomes full,
+ * and closing the connection makes the blocked write fail.</p>
+ *
+ * <p>The thread stops after being idle for a while, and is started again by the next write.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPStreamWriter {
+
+    /** The number of seconds to keep the thread alive with nothing to write. */
+    private static final long IDLE_TIMEOUT = 60;
+
+    private final ThreadPoolExecutor executor;
+
+    public TCPStreamWriter() {
+        executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, TCPStreamWriter.class.getSimpleName());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the write after the writes already waiting.
+     *
+     * @param write Writes a batch of messages for one client.
+     */
+    public void write(final Runnable write) {
+        Validate.notNull(write, "Write can not be null");
+
+        executor.execute(write);
+    }
+}
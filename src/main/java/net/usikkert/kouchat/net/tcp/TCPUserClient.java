@@ -30,6 +30,8 @@ import net.usikkert.kouchat.util.Logger;
 import net.usikkert.kouchat.util.Tools;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * Maps one or more tcp clients to a user.
  *
@@ -44,7 +46,23 @@ public class TCPUserClient implements TCPClientListener {
     private final User user;
     private final TCPReceiverListener listener;
 
+    @Nullable
+    private final TCPReconnectScheduler reconnectScheduler;
+
     public TCPUserClient(final TCPClient client, final User user, final TCPReceiverListener listener) {
+        this(client, user, listener, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param client The first connection to the user.
+     * @param user The user to map the connections to.
+     * @param listener Gets the messages from the user.
+     * @param reconnectScheduler Connects to the user again right away if all the connections are lost.
+     */
+    public TCPUserClient(final TCPClient client, final User user, final TCPReceiverListener listener,
+                         @Nullable final TCPReconnectScheduler reconnectScheduler) {
         Validate.notNull(client, "Client can not be null");
         Validate.notNull(user, "User can not be null");
         Validate.notNull(listener, "TCP message listener can not be null");
@@ -52,6 +70,7 @@ public class TCPUserClient implements TCPClientListener {
         this.clients = new ArrayList<>();
         this.user = user;
         this.listener = listener;
+        this.reconnectScheduler = reconnectScheduler;
 
         add(client);
     }
@@ -80,6 +99,11 @@ public class TCPUserClient implements TCPClientListener {
 
         if (clients.isEmpty()) {
             user.setTcpEnabled(false);
+
+            if (reconnectScheduler != null) {
+                LOG.fine("Lost all tcp connections to %s. Reconnecting.", user.getNick());
+                reconnectScheduler.connect(user);
+            }
         }
     }
 
@@ -108,13 +132,33 @@ public class TCPUserClient implements TCPClientListener {
         }
     }
 
-    public void send(final String message) {
+    /**
+     * Sends the message with the first client that is not being disconnected.
+     *
+     * @param message The message to send.
+     * @return If there was a client to send the message with.
+     */
+    public boolean send(final String message) {
+        return send(message, TCPWriteQueue.isDroppable(message));
+    }
+
+    /**
+     * Sends the message with the first client that is not being disconnected, when it's already known
+     * if the message can be dropped if the connection is too slow.
+     *
+     * @param message The message to send.
+     * @param droppable If the message can be dropped, from {@link TCPWriteQueue#isDroppable(String)}.
+     * @return If there was a client to send the message with.
+     */
+    public boolean send(final String message, final boolean droppable) {
         for (final TCPClient client : clients) {
             if (!client.isDisconnecting()) {
-                client.send(message);
-                return;
+                client.send(message, droppable);
+                return true;
             }
         }
+
+        return false;
     }
 
     public int getClientCount() {
@@ -22,6 +22,9 @@
 
 package net.usikkert.kouchat.net.tcp;
 
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,7 +32,6 @@ import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Logger;
-import net.usikkert.kouchat.util.Sleeper;
 import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
@@ -38,83 +40,118 @@ import org.jetbrains.annotations.Nullable;
  * Message listener for a client that will identify the user on the other side
  * if that user sends its user code as the first message.
  *
+ * <p>The result is given to the {@link TCPIdentificationListener} as soon as the first message arrives,
+ * or when the user has not identified before the timeout.</p>
+ *
  * @author Christian Ihle
  */
 public class TCPUserIdentifier implements TCPClientListener {
 
     private static final Logger LOG = Logger.getLogger(TCPUserIdentifier.class);
 
+    /** Added to the identification when both sides should use the varint framing of {@link TCPFrameCodec}. */
+    public static final String VARINT_FRAMING = ":varint";
+
     /**
      * Identification format consisting of both the user sending the message and the user expected
      * to receive the message. This is to avoid issues where client is restarted but one side hasn't
      * noticed yet, and connects to both on the same ip and port. This makes sure only one of the connections succeed.
+     * Ends with {@link #VARINT_FRAMING} if the user wants to change the framing.
      */
-    private final Pattern messagePattern = Pattern.compile("^SYS-IDENTIFY:(\\d+):(\\d+)$");
+    private final Pattern messagePattern = Pattern.compile("^SYS-IDENTIFY:(\\d+):(\\d+)(" + VARINT_FRAMING + ")?$");
 
     private final Controller controller;
     private final Settings settings;
     private final TCPClient client;
-    private final Sleeper sleeper;
+    private final TCPIdentificationListener listener;
 
-    @Nullable
-    private String message;
+    /** Makes sure the listener is notified only once. */
+    private final AtomicBoolean done;
+
+    private final TimerTask timeoutTask;
 
-    public TCPUserIdentifier(final Controller controller, final Settings settings, final TCPClient client) {
+    public TCPUserIdentifier(final Controller controller, final Settings settings, final TCPClient client,
+                             final TCPIdentificationListener listener) {
         Validate.notNull(controller, "Controller can not be null");
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(client, "Client can not be null");
+        Validate.notNull(listener, "Listener can not be null");
 
         this.controller = controller;
         this.settings = settings;
         this.client = client;
-        this.sleeper = new Sleeper();
+        this.listener = listener;
+        this.done = new AtomicBoolean();
+
+        this.timeoutTask = new TimerTask() {
+            @Override
+            public void run() {
+                LOG.warning("User did not identify in time. clientIP=%s", client.getIPAddress());
+                finish(null);
+            }
+        };
 
         client.registerClientListener(this);
     }
 
+    /**
+     * Gives up on the identification if the user has not identified before the timeout.
+     *
+     * @param timer The timer to schedule the timeout with.
+     * @param timeout Number of milliseconds to wait for the identification.
+     */
+    public void scheduleTimeout(final Timer timer, final long timeout) {
+        Validate.notNull(timer, "Timer can not be null");
+
+        if (done.get()) {
+            return;
+        }
+
+        try {
+            timer.schedule(timeoutTask, timeout);
+        }
+
+        // The task is cancelled if the identification finished in the meantime
+        catch (final IllegalStateException e) {
+            LOG.fine("Timeout not scheduled: %s", e.getMessage());
+        }
+    }
+
     @Override
     public void messageArrived(final String theMessage, final TCPClient theClient) {
         client.registerClientListener(null);
         LOG.fine("Received message: %s", theMessage);
 
-        this.message = theMessage;
+        // Must change before the next message is read
+        if (theMessage.startsWith("SYS-IDENTIFY:") && theMessage.endsWith(VARINT_FRAMING)) {
+            client.useVarintFramingForReading();
+            client.useVarintFramingForWriting();
+        }
+
+        finish(userFromMessage(theMessage));
     }
 
     @Override
     public void disconnected(final TCPClient theClient) {
-
+        finish(null);
     }
 
-    @Nullable
-    public User waitForUser() {
-        waitForMessage();
-
-        final User user = userFromMessage();
-
-        if (user != null && !user.getIpAddress().equals(client.getIPAddress())) {
-            LOG.warning("Unexpected client ip connected. user=%s, userIP=%s, clientIP=%s",
-                        user.getNick(), user.getIpAddress(), client.getIPAddress());
-            return null;
+    private void finish(@Nullable final User user) {
+        if (!done.compareAndSet(false, true)) {
+            return;
         }
 
-        return user;
-    }
-
-    private void waitForMessage() {
-        int tries = 0;
+        timeoutTask.cancel();
 
-        while (message == null && tries < 50) {
-            sleeper.sleep(50);
-            tries++;
+        if (user != null) {
+            listener.userIdentified(user, client);
+        } else {
+            listener.identificationFailed(client);
         }
     }
 
     @Nullable
-    private User userFromMessage() {
-        if (message == null) {
-            return null;
-        }
-
+    private User userFromMessage(final String message) {
         final Matcher messageMatcher = messagePattern.matcher(message);
 
         if (!messageMatcher.matches()) {
@@ -133,7 +170,15 @@ public class TCPUserIdentifier implements TCPClientListener {
                 return null;
             }
 
-            return controller.getUser(userCode);
+            final User user = controller.getUser(userCode);
+
+            if (user != null && !user.getIpAddress().equals(client.getIPAddress())) {
+                LOG.warning("Unexpected client ip connected. user=%s, userIP=%s, clientIP=%s",
+                            user.getNick(), user.getIpAddress(), client.getIPAddress());
+                return null;
+            }
+
+            return user;
         }
 
         catch (final NumberFormatException e) {
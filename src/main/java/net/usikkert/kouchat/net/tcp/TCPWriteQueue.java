@@ -0,0 +1,259 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static net.usikkert.kouchat.net.NetworkMessageType.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import net.usikkert.kouchat.net.MessageView;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A bounded queue of encoded messages waiting to be written to one tcp connection.
+ *
+ * <p>The queue keeps a connection that is too slow to keep up from holding back the messages to
+ * everyone else. When the queue is full, presence messages like writing and idle are dropped first, since
+ * the next one replaces them anyway. If there is still not enough room, the message is refused,
+ * and the connection should be closed.</p>
+ *
+ * <p>Safe to use from several threads.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPWriteQueue {
+
+    /** The maximum number of messages waiting in the queue. */
+    static final int MAX_MESSAGES = 512;
+
+    /** The maximum number of bytes waiting in the queue. */
+    static final int MAX_BYTES = 512 * 1024;
+
+    /** Reusable view of the message being checked, one for each sending thread. */
+    private static final ThreadLocal<MessageView> MESSAGE_VIEWS = new ThreadLocal<MessageView>() {
+        @Override
+        protected MessageView initialValue() {
+            return new MessageView();
+        }
+    };
+
+    private final ArrayDeque<QueuedMessage> messages;
+    private final TCPWriteStatistics statistics;
+
+    private int bytes;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param statistics Where to count dropped messages and the length of the queue.
+     */
+    public TCPWriteQueue(final TCPWriteStatistics statistics) {
+        Validate.notNull(statistics, "Statistics can not be null");
+
+        this.statistics = statistics;
+        messages = new ArrayDeque<>();
+    }
+
+    /**
+     * Checks if the message is a presence message that can be dropped if the connection is too slow.
+     *
+     * <p>Check once for each message, and not once for each connection the message is sent to.</p>
+     *
+     * @param message The message to check.
+     * @return If the message can be dropped.
+     */
+    public static boolean isDroppable(final String message) {
+        final MessageView view;
+
+        try {
+            view = MESSAGE_VIEWS.get().wrap(message);
+        }
+
+        // Like the system messages between the tcp clients
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            return false;
+        }
+
+        return view.isType(WRITING) || view.isType(STOPPEDWRITING) || view.isType(IDLE);
+    }
+
+    /**
+     * Adds the encoded message to the end of the queue, if there is room.
+     *
+     * @param frame The encoded message.
+     * @param droppable If the message can be dropped to make room for other messages.
+     * @return If the message was added or dropped as allowed. <code>false</code> means the queue is full
+     *         of messages that can't be dropped, or closed.
+     */
+    public synchronized boolean offer(final ByteBuffer frame, final boolean droppable) {
+        Validate.notNull(frame, "Frame can not be null");
+
+        if (closed) {
+            return false;
+        }
+
+        if (!hasRoomFor(frame) && !dropPresenceMessages(frame)) {
+            if (droppable) {
+                statistics.messageDropped();
+                return true;
+            }
+
+            return false;
+        }
+
+        messages.add(new QueuedMessage(frame, droppable));
+        bytes += frame.remaining();
+        statistics.queueLength(messages.size());
+        notifyAll();
+
+        return true;
+    }
+
+    /**
+     * Removes the first message in the queue, without waiting.
+     *
+     * @return The first message, or <code>null</code> if the queue is empty.
+     */
+    @Nullable
+    public synchronized ByteBuffer poll() {
+        final QueuedMessage message = messages.poll();
+
+        if (message == null) {
+            return null;
+        }
+
+        bytes -= message.getFrame().remaining();
+        return message.getFrame();
+    }
+
+    /**
+     * Removes as many messages from the start of the queue as there is room for in the array, without waiting.
+     *
+     * @param frames The array to put the messages in, starting at index 0.
+     * @return The number of messages put in the array.
+     */
+    public synchronized int pollAll(final ByteBuffer[] frames) {
+        int count = 0;
+
+        while (count < frames.length && !messages.isEmpty()) {
+            frames[count++] = poll();
+        }
+
+        return count;
+    }
+
+    /**
+     * Removes the first message in the queue, and waits for one if the queue is empty.
+     *
+     * @return The first message, or <code>null</code> if the queue is closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    @Nullable
+    public synchronized ByteBuffer take() throws InterruptedException {
+        while (messages.isEmpty() && !closed) {
+            wait();
+        }
+
+        return poll();
+    }
+
+    /**
+     * Removes all the messages, and refuses new messages. Threads waiting in {@link #take()} return right away.
+     */
+    public synchronized void close() {
+        closed = true;
+        messages.clear();
+        bytes = 0;
+        notifyAll();
+    }
+
+    /**
+     * Gets the number of messages in the queue.
+     *
+     * @return The number of messages.
+     */
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    /**
+     * Gets the number of bytes in the queue.
+     *
+     * @return The number of bytes.
+     */
+    public synchronized int getBytes() {
+        return bytes;
+    }
+
+    private boolean hasRoomFor(final ByteBuffer frame) {
+        return messages.size() < MAX_MESSAGES && bytes + frame.remaining() <= MAX_BYTES;
+    }
+
+    /**
+     * Drops the oldest presence messages until there is room for the frame.
+     *
+     * @return If there is room now.
+     */
+    private boolean dropPresenceMessages(final ByteBuffer frame) {
+        final Iterator<QueuedMessage> iterator = messages.iterator();
+
+        while (iterator.hasNext() && !hasRoomFor(frame)) {
+            final QueuedMessage message = iterator.next();
+
+            if (message.isDroppable()) {
+                iterator.remove();
+                bytes -= message.getFrame().remaining();
+                statistics.messageDropped();
+            }
+        }
+
+        return hasRoomFor(frame);
+    }
+
+    /**
+     * An encoded message in the queue.
+     */
+    private static class QueuedMessage {
+
+        private final ByteBuffer frame;
+        private final boolean droppable;
+
+        QueuedMessage(final ByteBuffer frame, final boolean droppable) {
+            this.frame = frame;
+            this.droppable = droppable;
+        }
+
+        ByteBuffer getFrame() {
+            return frame;
+        }
+
+        boolean isDroppable() {
+            return droppable;
+        }
+    }
+}
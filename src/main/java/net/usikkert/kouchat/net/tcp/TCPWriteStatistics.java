@@ -0,0 +1,101 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what happens to the tcp write queues of all the clients, to see how well the slowest
+ * connections keep up.
+ *
+ * <p>Safe to use from several threads.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPWriteStatistics {
+
+    private final AtomicLong droppedMessages;
+    private final AtomicLong disconnectedClients;
+    private final AtomicInteger longestQueue;
+
+    public TCPWriteStatistics() {
+        droppedMessages = new AtomicLong();
+        disconnectedClients = new AtomicLong();
+        longestQueue = new AtomicInteger();
+    }
+
+    /**
+     * Counts a message that was dropped because the write queue was full.
+     */
+    public void messageDropped() {
+        droppedMessages.incrementAndGet();
+    }
+
+    /**
+     * Counts a client that was disconnected because the write queue was full.
+     */
+    public void clientDisconnected() {
+        disconnectedClients.incrementAndGet();
+    }
+
+    /**
+     * Remembers the length of a write queue, if it's the longest so far.
+     *
+     * @param length The number of messages in the queue.
+     */
+    public void queueLength(final int length) {
+        int longest = longestQueue.get();
+
+        while (length > longest && !longestQueue.compareAndSet(longest, length)) {
+            longest = longestQueue.get();
+        }
+    }
+
+    /**
+     * Gets the number of messages dropped because the write queue was full.
+     *
+     * @return The number of dropped messages.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * Gets the number of clients disconnected because the write queue was full.
+     *
+     * @return The number of disconnected clients.
+     */
+    public long getDisconnectedClients() {
+        return disconnectedClients.get();
+    }
+
+    /**
+     * Gets the largest number of messages that have been waiting in a write queue at the same time.
+     *
+     * @return The length of the longest queue.
+     */
+    public int getLongestQueue() {
+        return longestQueue.get();
+    }
+}
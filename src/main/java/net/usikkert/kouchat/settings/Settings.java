@@ -91,6 +91,21 @@ public class Settings {
     /** The location to store logs. */
     private String logLocation;
 
+    /** If all network traffic should be handled by a single event loop thread. */
+    private boolean nioNetwork;
+
+    /** The size in bytes of the socket receive buffers, or 0 to use the default of the operating system. */
+    private int receiveBufferSize;
+
+    /** Number of milliseconds to wait for more small messages to send together, or 0 to send right away. */
+    private int batchWindow;
+
+    /** Number of nearby users to keep a tcp connection to, or 0 to connect to all the users. */
+    private int tcpLinks;
+
+    /** Number of threads handling messages from the network, or 0 to handle them where they arrive. */
+    private int receiveLanes;
+
     /**
      * Constructor.
      *
@@ -354,6 +369,103 @@ public class Settings {
         this.logLocation = logLocation;
     }
 
+    /**
+     * If all network traffic should be handled by a single event loop thread,
+     * instead of one thread for each socket.
+     *
+     * @return If the network event loop is enabled.
+     */
+    public boolean isNioNetwork() {
+        return nioNetwork;
+    }
+
+    /**
+     * Sets if all network traffic should be handled by a single event loop thread.
+     *
+     * @param nioNetwork If the network event loop should be enabled.
+     */
+    public void setNioNetwork(final boolean nioNetwork) {
+        this.nioNetwork = nioNetwork;
+    }
+
+    /**
+     * Gets the size of the socket receive buffers. 0 means the default of the operating system is used.
+     *
+     * @return The size of the socket receive buffers, in bytes.
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Sets the size of the socket receive buffers. 0 means the default of the operating system is used.
+     *
+     * @param receiveBufferSize The size of the socket receive buffers, in bytes.
+     */
+    public void setReceiveBufferSize(final int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Gets the number of milliseconds to wait for more small messages to send together
+     * in one network packet. 0 means the messages are sent right away.
+     *
+     * @return The batch window, in milliseconds.
+     */
+    public int getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * Sets the number of milliseconds to wait for more small messages to send together
+     * in one network packet. 0 means the messages are sent right away.
+     *
+     * @param batchWindow The batch window, in milliseconds.
+     */
+    public void setBatchWindow(final int batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * Gets the number of nearby users to keep a tcp connection to. 0 means a tcp connection
+     * is kept to all the users.
+     *
+     * @return The number of tcp links.
+     */
+    public int getTcpLinks() {
+        return tcpLinks;
+    }
+
+    /**
+     * Sets the number of nearby users to keep a tcp connection to. 0 means a tcp connection
+     * is kept to all the users.
+     *
+     * @param tcpLinks The number of tcp links.
+     */
+    public void setTcpLinks(final int tcpLinks) {
+        this.tcpLinks = tcpLinks;
+    }
+
+    /**
+     * Gets the number of threads handling messages from the network. Messages from the same user
+     * are always handled by the same thread. 0 means messages are handled where they arrive.
+     *
+     * @return The number of threads.
+     */
+    public int getReceiveLanes() {
+        return receiveLanes;
+    }
+
+    /**
+     * Sets the number of threads handling messages from the network. Messages from the same user
+     * are always handled by the same thread. 0 means messages are handled where they arrive.
+     *
+     * @param receiveLanes The number of threads.
+     */
+    public void setReceiveLanes(final int receiveLanes) {
+        this.receiveLanes = receiveLanes;
+    }
+
     /**
      * If balloon notifications are enabled.
      *
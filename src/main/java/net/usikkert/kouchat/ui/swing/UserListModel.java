@@ -19,36 +19,61 @@
  *   License along with KouChat.                                           *
  *   If not, see <http://www.gnu.org/licenses/>.                           *
  ***************************************************************************/
-
 package net.usikkert.kouchat.ui.swing;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.swing.AbstractListModel;
 import javax.swing.SwingUtilities;
 
-import net.usikkert.kouchat.event.UserListListener;
+import net.usikkert.kouchat.event.UserListChangeListener;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.misc.UserListChanges;
+import net.usikkert.kouchat.misc.UserListSnapshot;
+
+import org.jetbrains.annotations.Nullable;
 
 /**
- * This is the list model for the user list. It's just a facade above
+ * This is the list model for the user list. It's a facade above
  * the real list containing the users, so it can deliver events on changes.
  *
+ * <p>The model shows a snapshot of the real list, and only replaces it on the event dispatch thread
+ * together with the matching events. That way the size and contents seen by the list
+ * always agree with the events it has received, even when the real list
+ * is changed by the network threads in the meantime.</p>
+ *
+ * <p>Changes are received in batches, so a burst of changes to the real list only
+ * updates the list once. Users next to each other are sent in the same event, and large batches,
+ * like when many users log on or off at the same time, refresh the whole list with a few events instead.</p>
+ *
  * @author Christian Ihle
  */
-public class UserListModel extends AbstractListModel implements UserListListener {
+public class UserListModel extends AbstractListModel implements UserListChangeListener {
+
+    /** Batches with more users than this refresh the whole list, instead of sending events for each user. */
+    static final int MAX_USERS_IN_EVENTS = 20;
+
+    /** The users currently shown. Only replaced on the event dispatch thread. */
+    private UserListSnapshot users;
 
-    /** The real list of users. */
-    private final UserList userList;
+    /** The position of each user currently shown, by user code. Made when first needed. */
+    @Nullable
+    private Map<Integer, Integer> positions;
 
     /**
-     * Constructor. Adds this list model as a listener for events
-     * from the real user list.
+     * Constructor. Adds this list model as a listener for changes
+     * to the real user list.
      *
      * @param userList The list where the real users are.
      */
     public UserListModel(final UserList userList) {
-        this.userList = userList;
-        userList.addUserListListener(this);
+        userList.addUserListChangeListener(this);
+        users = userList.getSnapshot();
     }
 
     /**
@@ -58,7 +83,7 @@ public class UserListModel extends AbstractListModel implements UserListListener
      */
     @Override
     public User getElementAt(final int index) {
-        return userList.get(index);
+        return users.get(index);
     }
 
     /**
@@ -68,51 +93,148 @@ public class UserListModel extends AbstractListModel implements UserListListener
      */
     @Override
     public int getSize() {
-        return userList.size();
+        return users.size();
     }
 
     /**
-     * Sends a fireIntervalAdded() event.
+     * Shows the new snapshot, and sends fireIntervalRemoved(), fireIntervalAdded()
+     * and fireContentsChanged() events for the changes.
      *
      * {@inheritDoc}
      */
     @Override
-    public void userAdded(final int pos, final User user) {
+    public void userListChanged(final UserListChanges changes) {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-                fireIntervalAdded(this, pos, pos);
+                final int changedUsers = changes.getAdded().size() + changes.getChanged().size() + changes.getRemoved().size();
+
+                if (users.getVersion() == changes.getPreviousSnapshot().getVersion() && changedUsers <= MAX_USERS_IN_EVENTS) {
+                    showChanges(changes);
+                } else {
+                    showSnapshot(changes.getSnapshot());
+                }
             }
         });
     }
 
     /**
-     * Sends a fireContentsChanged() event.
+     * Sends events for the added and removed users, and one event covering all the changed users.
      *
-     * {@inheritDoc}
+     * @param changes The changes since the snapshot currently shown.
      */
-    @Override
-    public void userChanged(final int pos, final User user) {
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                fireContentsChanged(this, pos, pos);
+    private void showChanges(final UserListChanges changes) {
+        final Map<Integer, Integer> previousPositions = getPositions();
+        final UserListSnapshot snapshot = changes.getSnapshot();
+        users = snapshot;
+        positions = null;
+        final Map<Integer, Integer> newPositions = getPositions();
+
+        // Removed from the bottom, so the positions of the other removed users don't change
+        final List<int[]> removedRanges = toRanges(findPositions(previousPositions, changes.getRemoved()));
+        Collections.reverse(removedRanges);
+
+        for (final int[] range : removedRanges) {
+            fireIntervalRemoved(this, range[0], range[1]);
+        }
+
+        // Added from the top, so every position is correct when the users are added
+        for (final int[] range : toRanges(findPositions(newPositions, changes.getAdded()))) {
+            fireIntervalAdded(this, range[0], range[1]);
+        }
+
+        if (!changes.getChanged().isEmpty()) {
+            final List<Integer> changedPositions = findPositions(previousPositions, changes.getChanged());
+            changedPositions.addAll(findPositions(newPositions, changes.getChanged()));
+            Collections.sort(changedPositions);
+
+            final int first = Math.min(changedPositions.get(0), snapshot.size() - 1);
+            final int last = Math.min(changedPositions.get(changedPositions.size() - 1), snapshot.size() - 1);
+            fireContentsChanged(this, first, last);
+        }
+    }
+
+    /**
+     * Shows the snapshot without knowing what changed, by sending events covering all the users.
+     *
+     * @param snapshot The snapshot to show.
+     */
+    private void showSnapshot(final UserListSnapshot snapshot) {
+        final int oldSize = users.size();
+        final int newSize = snapshot.size();
+        users = snapshot;
+        positions = null;
+
+        if (newSize < oldSize) {
+            fireIntervalRemoved(this, newSize, oldSize - 1);
+        } else if (newSize > oldSize) {
+            fireIntervalAdded(this, oldSize, newSize - 1);
+        }
+
+        if (Math.min(oldSize, newSize) > 0) {
+            fireContentsChanged(this, 0, Math.min(oldSize, newSize) - 1);
+        }
+    }
+
+    /**
+     * Gets the position of each user currently shown, by user code.
+     *
+     * @return The positions.
+     */
+    private Map<Integer, Integer> getPositions() {
+        if (positions == null) {
+            positions = new HashMap<>(users.size() * 2);
+
+            for (int i = 0; i < users.size(); i++) {
+                positions.put(users.get(i).getCode(), i);
             }
-        });
+        }
+
+        return positions;
     }
 
     /**
-     * Sends a fireIntervalRemoved() event.
+     * Finds the sorted positions of the users.
      *
-     * {@inheritDoc}
+     * @param userPositions The position of each user, by user code.
+     * @param usersToFind The users to find.
+     * @return The positions of the users that were found, sorted from the top.
      */
-    @Override
-    public void userRemoved(final int pos, final User user) {
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                fireIntervalRemoved(this, pos, pos);
+    private List<Integer> findPositions(final Map<Integer, Integer> userPositions, final List<User> usersToFind) {
+        final List<Integer> foundPositions = new ArrayList<>(usersToFind.size());
+
+        for (final User user : usersToFind) {
+            final Integer pos = userPositions.get(user.getCode());
+
+            if (pos != null) {
+                foundPositions.add(pos);
             }
-        });
+        }
+
+        Collections.sort(foundPositions);
+
+        return foundPositions;
+    }
+
+    /**
+     * Merges sorted positions next to each other into ranges.
+     *
+     * @param sortedPositions The positions, sorted from the top.
+     * @return The ranges, from the top, with the first and last position of each range.
+     */
+    private List<int[]> toRanges(final List<Integer> sortedPositions) {
+        final List<int[]> ranges = new ArrayList<>();
+        int[] range = null;
+
+        for (final int pos : sortedPositions) {
+            if (range != null && pos == range[1] + 1) {
+                range[1] = pos;
+            } else {
+                range = new int[] {pos, pos};
+                ranges.add(range);
+            }
+        }
+
+        return ranges;
     }
 }
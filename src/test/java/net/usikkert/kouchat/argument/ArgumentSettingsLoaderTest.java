@@ -58,6 +58,11 @@ public class ArgumentSettingsLoaderTest {
         assertFalse(settings.isAlwaysLog());
         assertFalse(settings.isNoPrivateChat());
         assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
+        assertFalse(settings.isNioNetwork());
+        assertEquals(0, settings.getReceiveBufferSize());
+        assertEquals(0, settings.getBatchWindow());
+        assertEquals(0, settings.getTcpLinks());
+        assertEquals(0, settings.getReceiveLanes());
     }
 
     @Test
@@ -127,6 +132,107 @@ public class ArgumentSettingsLoaderTest {
         assertEquals("/home/user/logs" + File.separator, settings.getLogLocation());
     }
 
+    @Test
+    public void loadSettingsWithNioNetworkArgumentShouldSetNioNetworkInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.NIO_NETWORK.getFullArgumentName());
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertTrue(settings.isNioNetwork());
+        assertFalse(settings.isNoPrivateChat());
+    }
+
+    @Test
+    public void loadSettingsWithReceiveBufferArgumentShouldSetReceiveBufferSizeInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.RECEIVE_BUFFER.getFullArgumentName() + "=262144");
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertEquals(262144, settings.getReceiveBufferSize());
+    }
+
+    @Test
+    public void loadSettingsWithInvalidReceiveBufferArgumentShouldKeepDefaultReceiveBufferSize() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.RECEIVE_BUFFER.getFullArgumentName() + "=big");
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertEquals(0, settings.getReceiveBufferSize());
+    }
+
+    @Test
+    public void loadSettingsWithNegativeReceiveBufferArgumentShouldKeepDefaultReceiveBufferSize() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.RECEIVE_BUFFER.getFullArgumentName() + "=-1");
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertEquals(0, settings.getReceiveBufferSize());
+    }
+
+    @Test
+    public void loadSettingsWithBatchWindowArgumentShouldSetBatchWindowInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.BATCH_WINDOW.getFullArgumentName() + "=20");
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertEquals(20, settings.getBatchWindow());
+    }
+
+    @Test
+    public void loadSettingsWithInvalidBatchWindowArgumentShouldKeepDefaultBatchWindow() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.BATCH_WINDOW.getFullArgumentName() + "=soon");
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertEquals(0, settings.getBatchWindow());
+    }
+
+    @Test
+    public void loadSettingsWithTcpLinksArgumentShouldSetTcpLinksInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.TCP_LINKS.getFullArgumentName() + "=6");
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertEquals(6, settings.getTcpLinks());
+    }
+
+    @Test
+    public void loadSettingsWithInvalidTcpLinksArgumentShouldKeepDefaultTcpLinks() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.TCP_LINKS.getFullArgumentName() + "=many");
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertEquals(0, settings.getTcpLinks());
+    }
+
+    @Test
+    public void loadSettingsWithReceiveLanesArgumentShouldSetReceiveLanesInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.RECEIVE_LANES.getFullArgumentName() + "=4");
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertEquals(4, settings.getReceiveLanes());
+    }
+
+    @Test
+    public void loadSettingsWithInvalidReceiveLanesArgumentShouldKeepDefaultReceiveLanes() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.RECEIVE_LANES.getFullArgumentName() + "=-2");
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertEquals(0, settings.getReceiveLanes());
+    }
+
     private ArgumentParser argumentParserWithArguments(final String... arguments) {
         return new ArgumentParser(arguments);
     }
@@ -37,7 +37,7 @@ public class ArgumentTest {
     public void getValidArgumentsShouldReturnAllArgumentsExceptUnknown() {
         final Argument[] validArguments = Argument.getValidArguments();
 
-        assertEquals(8, validArguments.length);
+        assertEquals(13, validArguments.length);
 
         assertEquals(Argument.CONSOLE, validArguments[0]);
         assertEquals(Argument.MINIMIZED, validArguments[1]);
@@ -47,6 +47,11 @@ public class ArgumentTest {
         assertEquals(Argument.NO_PRIVATE_CHAT, validArguments[5]);
         assertEquals(Argument.ALWAYS_LOG, validArguments[6]);
         assertEquals(Argument.LOG_LOCATION, validArguments[7]);
+        assertEquals(Argument.NIO_NETWORK, validArguments[8]);
+        assertEquals(Argument.RECEIVE_BUFFER, validArguments[9]);
+        assertEquals(Argument.BATCH_WINDOW, validArguments[10]);
+        assertEquals(Argument.TCP_LINKS, validArguments[11]);
+        assertEquals(Argument.RECEIVE_LANES, validArguments[12]);
     }
 
     @Test
@@ -59,6 +64,11 @@ public class ArgumentTest {
         assertEquals("--no-private-chat", Argument.NO_PRIVATE_CHAT.getFullArgumentName());
         assertEquals("--always-log", Argument.ALWAYS_LOG.getFullArgumentName());
         assertEquals("--log-location", Argument.LOG_LOCATION.getFullArgumentName());
+        assertEquals("--nio-network", Argument.NIO_NETWORK.getFullArgumentName());
+        assertEquals("--recv-buffer", Argument.RECEIVE_BUFFER.getFullArgumentName());
+        assertEquals("--batch-window", Argument.BATCH_WINDOW.getFullArgumentName());
+        assertEquals("--tcp-links", Argument.TCP_LINKS.getFullArgumentName());
+        assertEquals("--recv-lanes", Argument.RECEIVE_LANES.getFullArgumentName());
     }
 
     @Test
@@ -73,7 +83,12 @@ public class ArgumentTest {
                 " --version (-v)          Shows version information.\n" +
                 " --no-private-chat       Disables private chat.\n" +
                 " --always-log            Enables logging, without option to disable.\n" +
-                " --log-location=<value>  Location to store log files.";
+                " --log-location=<value>  Location to store log files.\n" +
+                " --nio-network           Handles all network traffic in a single thread.\n" +
+                " --recv-buffer=<value>   Size in bytes of the network receive buffers.\n" +
+                " --batch-window=<value>  Milliseconds to wait for small messages to send together.\n" +
+                " --tcp-links=<value>     Number of nearby users to keep a tcp connection to, instead of all.\n" +
+                " --recv-lanes=<value>    Number of threads handling messages, one user per thread.";
 
         assertEquals(expected, argumentsAsString);
     }
@@ -31,6 +31,8 @@ import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.net.ConnectionWorker;
+import net.usikkert.kouchat.net.InboundRateLimiter;
+import net.usikkert.kouchat.net.tcp.TCPWriteStatistics;
 import net.usikkert.kouchat.settings.Settings;
 
 import org.junit.Before;
@@ -48,6 +50,8 @@ public class JMXBeanLoaderTest {
     public ExpectedException expectedException = ExpectedException.none();
     private Controller controller;
     private ConnectionWorker connectionWorker;
+    private InboundRateLimiter inboundRateLimiter;
+    private TCPWriteStatistics tcpWriteStatistics;
     private Settings settings;
     private ErrorHandler errorHandler;
 
@@ -55,6 +59,8 @@ public class JMXBeanLoaderTest {
     public void setUp() {
         controller = mock(Controller.class);
         connectionWorker = mock(ConnectionWorker.class);
+        inboundRateLimiter = mock(InboundRateLimiter.class);
+        tcpWriteStatistics = mock(TCPWriteStatistics.class);
         settings = mock(Settings.class);
         errorHandler = mock(ErrorHandler.class);
     }
@@ -64,7 +70,7 @@ public class JMXBeanLoaderTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("Controller can not be null");
 
-        new JMXBeanLoader(null, connectionWorker, settings, errorHandler);
+        new JMXBeanLoader(null, connectionWorker, inboundRateLimiter, tcpWriteStatistics, settings, errorHandler);
     }
 
     @Test
@@ -72,7 +78,23 @@ public class JMXBeanLoaderTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("ConnectionWorker can not be null");
 
-        new JMXBeanLoader(controller, null, settings, errorHandler);
+        new JMXBeanLoader(controller, null, inboundRateLimiter, tcpWriteStatistics, settings, errorHandler);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfInboundRateLimiterIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Inbound rate limiter can not be null");
+
+        new JMXBeanLoader(controller, connectionWorker, null, tcpWriteStatistics, settings, errorHandler);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfTCPWriteStatisticsIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("TCP write statistics can not be null");
+
+        new JMXBeanLoader(controller, connectionWorker, inboundRateLimiter, null, settings, errorHandler);
     }
 
     @Test
@@ -80,7 +102,7 @@ public class JMXBeanLoaderTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("Settings can not be null");
 
-        new JMXBeanLoader(controller, connectionWorker, null, errorHandler);
+        new JMXBeanLoader(controller, connectionWorker, inboundRateLimiter, tcpWriteStatistics, null, errorHandler);
     }
 
     @Test
@@ -88,12 +110,12 @@ public class JMXBeanLoaderTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("Error handler can not be null");
 
-        new JMXBeanLoader(controller, connectionWorker, settings, null);
+        new JMXBeanLoader(controller, connectionWorker, inboundRateLimiter, tcpWriteStatistics, settings, null);
     }
 
     @Test
     public void getJMXBeansShouldIncludeThreeBeans() {
-        final JMXBeanLoader beanLoader = new JMXBeanLoader(controller, connectionWorker, settings, errorHandler);
+        final JMXBeanLoader beanLoader = new JMXBeanLoader(controller, connectionWorker, inboundRateLimiter, tcpWriteStatistics, settings, errorHandler);
 
         final List<JMXBean> jmxBeans = beanLoader.getJMXBeans();
         assertNotNull(jmxBeans);
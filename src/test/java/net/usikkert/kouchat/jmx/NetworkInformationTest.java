@@ -22,11 +22,14 @@
 
 package net.usikkert.kouchat.jmx;
 
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.net.ConnectionWorker;
+import net.usikkert.kouchat.net.InboundRateLimiter;
+import net.usikkert.kouchat.net.tcp.TCPWriteStatistics;
 import net.usikkert.kouchat.settings.Settings;
 
 import org.junit.Rule;
@@ -47,7 +50,54 @@ public class NetworkInformationTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("Connection worker can not be null");
 
-        new NetworkInformation(null, mock(Settings.class), mock(ErrorHandler.class));
+        new NetworkInformation(null, mock(InboundRateLimiter.class), mock(TCPWriteStatistics.class),
+                               mock(Settings.class), mock(ErrorHandler.class));
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfInboundRateLimiterIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Inbound rate limiter can not be null");
+
+        new NetworkInformation(mock(ConnectionWorker.class), null, mock(TCPWriteStatistics.class),
+                               mock(Settings.class), mock(ErrorHandler.class));
+    }
+
+    @Test
+    public void showShedMessagesShouldGetShedCountsFromRateLimiter() {
+        final InboundRateLimiter inboundRateLimiter = mock(InboundRateLimiter.class);
+        when(inboundRateLimiter.getShedCounts()).thenReturn(new String[] {"CHAT: 5"});
+
+        final NetworkInformation networkInformation = new NetworkInformation(
+                mock(ConnectionWorker.class), inboundRateLimiter, mock(TCPWriteStatistics.class),
+                mock(Settings.class), mock(ErrorHandler.class));
+
+        assertArrayEquals(new String[] {"CHAT: 5"}, networkInformation.showShedMessages());
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfTCPWriteStatisticsIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("TCP write statistics can not be null");
+
+        new NetworkInformation(mock(ConnectionWorker.class), mock(InboundRateLimiter.class), null,
+                               mock(Settings.class), mock(ErrorHandler.class));
+    }
+
+    @Test
+    public void showTcpWriteQueuesShouldShowStatistics() {
+        final TCPWriteStatistics tcpWriteStatistics = new TCPWriteStatistics();
+        tcpWriteStatistics.messageDropped();
+        tcpWriteStatistics.messageDropped();
+        tcpWriteStatistics.clientDisconnected();
+        tcpWriteStatistics.queueLength(17);
+
+        final NetworkInformation networkInformation = new NetworkInformation(
+                mock(ConnectionWorker.class), mock(InboundRateLimiter.class), tcpWriteStatistics,
+                mock(Settings.class), mock(ErrorHandler.class));
+
+        assertArrayEquals(new String[] {"Dropped messages: 2", "Disconnected clients: 1", "Longest queue: 17"},
+                          networkInformation.showTcpWriteQueues());
     }
 
     @Test
@@ -55,7 +105,8 @@ public class NetworkInformationTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("Settings can not be null");
 
-        new NetworkInformation(mock(ConnectionWorker.class), null, mock(ErrorHandler.class));
+        new NetworkInformation(mock(ConnectionWorker.class), mock(InboundRateLimiter.class), mock(TCPWriteStatistics.class),
+                               null, mock(ErrorHandler.class));
     }
 
     @Test
@@ -63,6 +114,7 @@ public class NetworkInformationTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("Error handler can not be null");
 
-        new NetworkInformation(mock(ConnectionWorker.class), mock(Settings.class), null);
+        new NetworkInformation(mock(ConnectionWorker.class), mock(InboundRateLimiter.class), mock(TCPWriteStatistics.class),
+                               mock(Settings.class), null);
     }
 }
@@ -29,6 +29,7 @@ import java.util.Arrays;
 import java.util.Date;
 
 import net.usikkert.kouchat.event.NetworkConnectionListener;
+import net.usikkert.kouchat.event.UserListListener;
 import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.message.CoreMessages;
 import net.usikkert.kouchat.net.FileReceiver;
@@ -304,9 +305,20 @@ public class ControllerTest {
 
         verify(idleThread).stopThread();
         verify(dayTimer).stopTimer();
+        verify(networkMessages).stop();
         verify(messageController).shutdown();
     }
 
+    @Test
+    public void shutdownShouldStopTheWaitingList() {
+        final WaitingList waitingList = controller.getWaitingList();
+        waitingList.addWaitingUser(126);
+
+        controller.shutdown();
+
+        assertFalse(waitingList.isWaitingUser(126));
+    }
+
     @Test
     public void removeUserShouldRemoveUserAndSetOffline() {
         final User user = new User("User1", 124);
@@ -374,6 +386,45 @@ public class ControllerTest {
         verify(chatLogger).close();
     }
 
+    @Test
+    public void removeUsersShouldRemoveAllTheUsersAndSetOffline() {
+        final User user1 = new User("User1", 124);
+        final User user2 = new User("User2", 125);
+        userList.add(user1);
+        userList.add(user2);
+
+        controller.removeUsers(Arrays.asList(user1, user2), "Bla bla");
+
+        assertEquals(-1, userList.indexOf(user1));
+        assertEquals(-1, userList.indexOf(user2));
+        assertFalse(user1.isOnline());
+        assertFalse(user2.isOnline());
+    }
+
+    @Test
+    public void removeUsersShouldCancelFileTransfersAndNotifyPrivateChats() {
+        final User user1 = new User("User1", 124);
+        final User user2 = new User("User2", 125);
+        userList.add(user1);
+        userList.add(user2);
+
+        final FileReceiver fileReceiver = mock(FileReceiver.class);
+        when(transferList.getFileReceivers(user1)).thenReturn(Arrays.asList(fileReceiver));
+
+        final PrivateChatWindow privchat = mock(PrivateChatWindow.class);
+        user2.setPrivchat(privchat);
+        final ChatLogger chatLogger = mock(ChatLogger.class);
+        user2.setPrivateChatLogger(chatLogger);
+
+        controller.removeUsers(Arrays.asList(user1, user2), "Bla bla");
+
+        verify(fileReceiver).cancel();
+        verify(transferList).removeFileReceiver(fileReceiver);
+        verify(messageController).showPrivateSystemMessage(user2, "Bla bla");
+        verify(privchat).setLoggedOff();
+        verify(chatLogger).close();
+    }
+
     @Test
     public void logOffShouldClosePrivateChatLoggersWhenRemoveUsersIsTrue() {
         final User user1 = new User("User1", 124);
@@ -468,9 +519,21 @@ public class ControllerTest {
 
         controller.logOff(true);
 
-        verify(controller).removeUser(user1, "You logged off");
-        verify(controller).removeUser(user2, "You logged off");
-        verify(controller, never()).removeUser(eq(me), anyString());
+        verify(controller).removeUsers(Arrays.asList(user1, user2), "You logged off");
+        verify(controller, never()).removeUser(any(User.class), anyString());
+        assertEquals(-1, userList.indexOf(user1));
+        assertEquals(-1, userList.indexOf(user2));
+        assertNotEquals(-1, userList.indexOf(me));
+    }
+
+    @Test
+    public void logOffShouldStopTheWaitingList() {
+        final WaitingList waitingList = controller.getWaitingList();
+        waitingList.addWaitingUser(126);
+
+        controller.logOff(false);
+
+        assertFalse(waitingList.isWaitingUser(126));
     }
 
     @Test
@@ -484,6 +547,7 @@ public class ControllerTest {
         controller.logOff(false);
 
         verify(controller, never()).removeUser(any(User.class), anyString());
+        verify(controller, never()).removeUsers(anyListOf(User.class), anyString());
     }
 
     @Test
@@ -494,12 +558,29 @@ public class ControllerTest {
 
         verify(dayTimer).startTimer();
         verify(idleThread).start();
+        verify(networkMessages).start(any(NetworkMessages.SendFailureListener.class));
 
         verify(messageController).showSystemMessage("Welcome to KouChat!");
         verify(messageController).showSystemMessage("Today is X-mass");
         verify(dateTools).currentDateToString("EEEE, d MMMM yyyy");
     }
 
+    @Test
+    public void startShouldShowMessagesThatFailedToSendInTheRightChat() {
+        final User user = new User("User", 124);
+        controller.start();
+
+        final ArgumentCaptor<NetworkMessages.SendFailureListener> captor =
+                ArgumentCaptor.forClass(NetworkMessages.SendFailureListener.class);
+        verify(networkMessages).start(captor.capture());
+
+        captor.getValue().sendFailed(null, "Failed to send message: Hello");
+        captor.getValue().sendFailed(user, "Failed to send private message to User: Hi");
+
+        verify(messageController).showSystemMessage("Failed to send message: Hello");
+        verify(messageController).showPrivateSystemMessage(user, "Failed to send private message to User: Hi");
+    }
+
     @Test
     public void changeAwayStatusShouldThrowExceptionIfMeAndNotLoggedOn() throws CommandException {
         expectedException.expect(CommandException.class);
@@ -938,6 +1019,38 @@ public class ControllerTest {
         verify(messageController, never()).showSystemMessage(anyString());
     }
 
+    @Test
+    public void userSeenShouldTellNetworkService() {
+        final User user = new User("User1", 124);
+
+        controller.userSeen(user);
+
+        verify(networkService).userSeen(user);
+    }
+
+    @Test
+    public void clientInfoChangedShouldNotifyListenersOfTheUserList() {
+        final User user = new User("User1", 124);
+        userList.add(user);
+
+        final UserListListener listener = mock(UserListListener.class);
+        userList.addUserListListener(listener);
+
+        controller.clientInfoChanged(124);
+
+        verify(listener).userChanged(userList.indexOf(user), user);
+    }
+
+    @Test
+    public void clientInfoChangedShouldDoNothingForUnknownUser() {
+        final UserListListener listener = mock(UserListListener.class);
+        userList.addUserListListener(listener);
+
+        controller.clientInfoChanged(124);
+
+        verifyZeroInteractions(listener);
+    }
+
     private String createStringOfSize(final int size) {
         final StringBuilder sb = new StringBuilder(size);
 
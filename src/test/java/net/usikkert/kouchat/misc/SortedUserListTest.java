@@ -25,14 +25,20 @@ package net.usikkert.kouchat.misc;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
+import net.usikkert.kouchat.event.UserListChangeListener;
 import net.usikkert.kouchat.event.UserListListener;
 import net.usikkert.kouchat.junit.ExpectedException;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 /**
  * Test of {@link SortedUserList}.
@@ -312,10 +318,542 @@ public class SortedUserListTest {
         assertTrue(listeners3.contains(listener2));
     }
 
+    @Test
+    public void addShouldReturnFalseAndNotNotifyIfUserIsAlreadyInTheList() {
+        userList.add(john);
+
+        assertFalse(userList.add(john));
+        assertFalse(userList.add(new User("Johnny", 2)));
+
+        assertEquals(1, userList.size());
+        verify(listener, times(1)).userAdded(anyInt(), any(User.class));
+    }
+
+    @Test
+    public void addShouldKeepUsersWithTheSameNickInTheOrderTheyWereAdded() {
+        final User john2 = new User("JOHN", 10);
+
+        userList.add(john);
+        userList.add(john2);
+
+        assertSame(john, userList.get(0));
+        assertSame(john2, userList.get(1));
+        verify(listener).userAdded(1, john2);
+    }
+
+    @Test
+    public void getShouldFailForNegativePosition() {
+        addAllUsers();
+
+        expectedException.expect(IndexOutOfBoundsException.class);
+        expectedException.expectMessage("Index: -1, Size: 4");
+
+        userList.get(-1);
+    }
+
+    @Test
+    public void setShouldMoveUserAfterNickChange() {
+        addAllUsers();
+
+        annie.setNick("Zoe");
+        final User oldUser = userList.set(0, annie);
+
+        assertSame(annie, oldUser);
+        assertEquals(4, userList.size());
+        assertSame(john, userList.get(0));
+        assertSame(annie, userList.get(3));
+        assertEquals(3, userList.indexOf(annie));
+        verify(listener).userChanged(3, annie);
+    }
+
+    @Test
+    public void setShouldNotChangePositionIfSortingIsTheSame() {
+        addAllUsers();
+
+        lenny.setAway(true);
+        userList.set(2, lenny);
+
+        assertSame(lenny, userList.get(2));
+        verify(listener).userChanged(2, lenny);
+    }
+
+    @Test
+    public void setShouldRemoveOtherCopyOfTheUser() {
+        addAllUsers();
+
+        userList.set(0, niles);
+
+        assertEquals(3, userList.size());
+        assertSame(john, userList.get(0));
+        assertSame(lenny, userList.get(1));
+        assertSame(niles, userList.get(2));
+        assertEquals(-1, userList.indexOf(annie));
+    }
+
+    @Test
+    public void removeShouldFindUserAfterNickChange() {
+        addAllUsers();
+
+        john.setNick("Zack");
+
+        assertTrue(userList.remove(john));
+        verify(listener).userRemoved(1, john);
+        assertEquals(3, userList.size());
+    }
+
+    @Test
+    public void positionsShouldStayCorrectInLargeList() {
+        userList.removeUserListListener(listener);
+
+        final Random random = new Random(1234);
+        final List<User> expected = new ArrayList<>();
+
+        for (int i = 0; i < 5000; i++) {
+            final User user = new User("User" + random.nextInt(100000), i);
+            expected.add(user);
+            userList.add(user);
+        }
+
+        for (int i = 0; i < 2000; i++) {
+            final User user = expected.get(random.nextInt(expected.size()));
+
+            if (i % 2 == 0) {
+                assertTrue(userList.remove(user));
+                expected.remove(user);
+            }
+
+            else {
+                user.setNick("Nick" + random.nextInt(100000));
+                userList.set(userList.indexOf(user), user);
+            }
+        }
+
+        Collections.sort(expected);
+
+        assertEquals(expected.size(), userList.size());
+
+        for (int i = 0; i < expected.size(); i++) {
+            final User user = userList.get(i);
+
+            assertEquals(expected.get(i).getNick(), user.getNick());
+            assertEquals(i, userList.indexOf(user));
+        }
+    }
+
+    @Test
+    public void getByCodeShouldReturnTheUserWithTheCode() {
+        addAllUsers();
+
+        assertSame(john, userList.getByCode(2));
+        assertSame(annie, userList.getByCode(4));
+        assertNull(userList.getByCode(5));
+    }
+
+    @Test
+    public void getByCodeShouldNotFindRemovedUser() {
+        addAllUsers();
+
+        userList.remove(john);
+
+        assertNull(userList.getByCode(2));
+    }
+
+    @Test
+    public void getByNickShouldThrowExceptionIfNickIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Nick can not be null");
+
+        userList.getByNick(null);
+    }
+
+    @Test
+    public void getByNickShouldIgnoreCase() {
+        addAllUsers();
+
+        assertEquals(Collections.singletonList(lenny), userList.getByNick("lenny"));
+        assertEquals(Collections.singletonList(lenny), userList.getByNick("LENNY"));
+        assertTrue(userList.getByNick("Lenn").isEmpty());
+    }
+
+    @Test
+    public void getByNickShouldReturnAllUsersWithTheNickInListOrder() {
+        final User john2 = new User("JOHN", 10);
+
+        userList.add(john);
+        userList.add(john2);
+
+        final List<User> users = userList.getByNick("john");
+
+        assertEquals(2, users.size());
+        assertSame(john, users.get(0));
+        assertSame(john2, users.get(1));
+    }
+
+    @Test
+    public void getByNickShouldFollowNickChanges() {
+        addAllUsers();
+
+        john.setNick("Johnny");
+        userList.set(userList.indexOf(john), john);
+
+        assertTrue(userList.getByNick("John").isEmpty());
+        assertEquals(Collections.singletonList(john), userList.getByNick("johnny"));
+    }
+
+    @Test
+    public void getByNickShouldNotFindRemovedOrReplacedUsers() {
+        addAllUsers();
+
+        userList.remove(john);
+        userList.set(userList.indexOf(annie), new User("Test1", 10));
+
+        assertTrue(userList.getByNick("John").isEmpty());
+        assertTrue(userList.getByNick("Annie").isEmpty());
+        assertNull(userList.getByCode(4));
+        assertEquals(10, userList.getByCode(10).getCode());
+    }
+
+    @Test
+    public void toNickKeyShouldBeTheSameForNicksThatAreEqualIgnoringCase() {
+        assertEquals(SortedUserList.toNickKey("Niles"), SortedUserList.toNickKey("nILES"));
+        assertEquals(SortedUserList.toNickKey("Øyvind"), SortedUserList.toNickKey("øYVIND"));
+        assertNotEquals(SortedUserList.toNickKey("Niles"), SortedUserList.toNickKey("Nile"));
+    }
+
+    @Test
+    public void getSnapshotShouldBeSharedUntilTheListChanges() {
+        final UserListSnapshot empty = userList.getSnapshot();
+        assertEquals(0, empty.size());
+
+        addAllUsers();
+
+        final UserListSnapshot snapshot = userList.getSnapshot();
+        assertSame(snapshot, userList.getSnapshot());
+        assertTrue(snapshot.getVersion() > empty.getVersion());
+        assertEquals(Arrays.asList(annie, john, lenny, niles), snapshot.asList());
+
+        userList.remove(john);
+
+        final UserListSnapshot afterRemove = userList.getSnapshot();
+        assertNotSame(snapshot, afterRemove);
+        assertTrue(afterRemove.getVersion() > snapshot.getVersion());
+        assertEquals(Arrays.asList(annie, john, lenny, niles), snapshot.asList());
+        assertEquals(Arrays.asList(annie, lenny, niles), afterRemove.asList());
+    }
+
+    @Test
+    public void updateShouldThrowExceptionIfUserIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("User can not be null");
+
+        userList.update(null);
+    }
+
+    @Test
+    public void updateShouldReturnFalseAndNotNotifyIfUserIsNotInTheList() {
+        userList.add(niles);
+
+        assertFalse(userList.update(john));
+
+        verify(listener, never()).userChanged(anyInt(), any(User.class));
+    }
+
+    @Test
+    public void updateShouldSortTheUserAgainAndNotifyListenersAboutTheNewPosition() {
+        addAllUsers();
+
+        annie.setNick("Zed");
+
+        assertTrue(userList.update(annie));
+
+        assertEquals(Arrays.asList(john, lenny, niles, annie), userList.getSnapshot().asList());
+        assertEquals(3, userList.indexOf(annie));
+        assertEquals(Collections.singletonList(annie), userList.getByNick("zed"));
+        verify(listener).userChanged(3, annie);
+    }
+
+    @Test
+    public void snapshotsShouldStayConsistentWhileOtherThreadsChangeTheList() throws InterruptedException {
+        final int writers = 4;
+        final int usersPerWriter = 500;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < writers; w++) {
+            final int offset = w * usersPerWriter;
+
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < usersPerWriter; i++) {
+                        final User user = new User(String.format("User%05d", offset + i), offset + i);
+                        userList.add(user);
+
+                        if (i % 2 == 1) {
+                            userList.remove(user);
+                        }
+                    }
+                }
+            }));
+        }
+
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long lastVersion = -1;
+
+                    for (int i = 0; i < 2000; i++) {
+                        final UserListSnapshot snapshot = userList.getSnapshot();
+                        assertTrue(snapshot.getVersion() >= lastVersion);
+                        lastVersion = snapshot.getVersion();
+
+                        for (int j = 1; j < snapshot.size(); j++) {
+                            assertTrue(snapshot.get(j - 1).getNick().compareTo(snapshot.get(j).getNick()) < 0);
+                        }
+                    }
+                }
+
+                catch (final Throwable e) {
+                    errors.add(e);
+                }
+            }
+        }));
+
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(writers * usersPerWriter / 2, userList.size());
+        assertEquals(writers * usersPerWriter / 2, userList.getSnapshot().size());
+    }
+
+    @Test
+    public void addAllShouldAddTheUsersThatAreNotInTheList() {
+        userList.add(john);
+
+        assertEquals(3, userList.addAll(Arrays.asList(niles, john, lenny, annie)));
+
+        assertEquals(Arrays.asList(annie, john, lenny, niles), userList.getSnapshot().asList());
+        verify(listener).userAdded(0, annie);
+        verify(listener, times(4)).userAdded(anyInt(), any(User.class));
+    }
+
+    @Test
+    public void addAllShouldThrowExceptionIfUsersIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Users can not be null");
+
+        userList.addAll(null);
+    }
+
+    @Test
+    public void removeAllShouldRemoveTheUsersThatAreInTheList() {
+        userList.add(niles);
+        userList.add(john);
+        userList.add(lenny);
+
+        assertEquals(2, userList.removeAll(Arrays.asList(niles, annie, john)));
+
+        assertEquals(Collections.singletonList(lenny), userList.getSnapshot().asList());
+        verify(listener).userRemoved(2, niles);
+        verify(listener).userRemoved(0, john);
+    }
+
+    @Test
+    public void removeAllShouldThrowExceptionIfUsersIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Users can not be null");
+
+        userList.removeAll(null);
+    }
+
+    @Test
+    public void addUserListChangeListenerShouldThrowExceptionIfListenerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("UserListChangeListener can not be null");
+
+        userList.addUserListChangeListener(null);
+    }
+
+    @Test
+    public void changeListenersShouldGetMergedChangesInOneBatch() {
+        userList.add(lenny);
+        final UserListSnapshot before = userList.getSnapshot();
+
+        final UserListChangeListener changeListener = mock(UserListChangeListener.class);
+        userList.addUserListChangeListener(changeListener);
+
+        userList.addAll(Arrays.asList(niles, john, annie));
+        userList.remove(john);
+        lenny.setNick("Zed");
+        userList.update(lenny);
+        userList.update(lenny);
+
+        userList.deliverChanges();
+
+        final ArgumentCaptor<UserListChanges> captor = ArgumentCaptor.forClass(UserListChanges.class);
+        verify(changeListener).userListChanged(captor.capture());
+
+        final UserListChanges changes = captor.getValue();
+        assertSame(before, changes.getPreviousSnapshot());
+        assertSame(userList.getSnapshot(), changes.getSnapshot());
+        assertEquals(Arrays.asList(niles, annie), changes.getAdded());
+        assertEquals(Collections.singletonList(lenny), changes.getChanged());
+        assertTrue(changes.getRemoved().isEmpty());
+
+        userList.deliverChanges();
+        verifyNoMoreInteractions(changeListener);
+    }
+
+    @Test
+    public void changeListenersShouldGetReplacedUsersFromSetAsRemovedAndAdded() {
+        addAllUsers();
+
+        final UserListChangeListener changeListener = mock(UserListChangeListener.class);
+        userList.addUserListChangeListener(changeListener);
+
+        final User test = new User("Test", 10);
+        userList.set(userList.indexOf(john), test);
+        userList.deliverChanges();
+
+        final ArgumentCaptor<UserListChanges> captor = ArgumentCaptor.forClass(UserListChanges.class);
+        verify(changeListener).userListChanged(captor.capture());
+
+        assertEquals(Collections.singletonList(john), captor.getValue().getRemoved());
+        assertEquals(Collections.singletonList(test), captor.getValue().getAdded());
+    }
+
+    @Test
+    public void changeListenersShouldBeNotifiedByTimerAfterChanges() {
+        final UserListChangeListener changeListener = mock(UserListChangeListener.class);
+        userList.addUserListChangeListener(changeListener);
+
+        addAllUsers();
+
+        verify(changeListener, timeout(2000)).userListChanged(any(UserListChanges.class));
+    }
+
+    @Test
+    public void removeUserListChangeListenerShouldRemoveTheListener() {
+        final UserListChangeListener changeListener = mock(UserListChangeListener.class);
+        userList.addUserListChangeListener(changeListener);
+        userList.removeUserListChangeListener(changeListener);
+
+        addAllUsers();
+        userList.deliverChanges();
+
+        verifyZeroInteractions(changeListener);
+    }
+
+    @Test
+    public void listenersShouldBeNotifiedAfterTheNewSnapshotIsPublished() {
+        final List<UserListSnapshot> snapshots = new ArrayList<>();
+
+        userList.addUserListListener(new UserListListenerAdapter() {
+            @Override
+            public void userAdded(final int pos, final User user) {
+                snapshots.add(userList.getSnapshot());
+            }
+        });
+
+        userList.add(niles);
+
+        assertEquals(1, snapshots.size());
+        assertEquals(Collections.singletonList(niles), snapshots.get(0).asList());
+    }
+
+    @Test(timeout = 10000)
+    public void listenersShouldBeNotifiedWithoutHoldingTheLock() {
+        final List<Integer> positions = new ArrayList<>();
+
+        userList.addUserListListener(new UserListListenerAdapter() {
+            @Override
+            public void userAdded(final int pos, final User user) {
+                // Would never finish if the listener was notified while holding the lock
+                final Thread otherThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        positions.add(userList.indexOf(user));
+                    }
+                });
+
+                otherThread.start();
+
+                try {
+                    otherThread.join();
+                }
+
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        userList.add(niles);
+
+        assertEquals(Collections.singletonList(0), positions);
+    }
+
+    @Test
+    public void failingListenerShouldNotStopTheOtherListeners() {
+        final UserListListener failingListener = mock(UserListListener.class);
+        doThrow(new IllegalStateException("Failed")).when(failingListener).userAdded(anyInt(), any(User.class));
+        userList.removeUserListListener(listener);
+        userList.addUserListListener(failingListener);
+        userList.addUserListListener(listener);
+
+        userList.add(niles);
+        userList.add(john);
+
+        verify(listener).userAdded(0, niles);
+        verify(listener).userAdded(0, john);
+    }
+
+    @Test
+    public void addAllShouldNotAddAnyUsersIfOneIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("User can not be null");
+
+        try {
+            userList.addAll(Arrays.asList(niles, null));
+        }
+
+        finally {
+            assertEquals(0, userList.size());
+        }
+    }
+
     private void addAllUsers() {
         userList.add(niles);
         userList.add(john);
         userList.add(lenny);
         userList.add(annie);
     }
+
+    /**
+     * A user list listener that does nothing, for overriding only the methods needed.
+     */
+    private static class UserListListenerAdapter implements UserListListener {
+
+        @Override
+        public void userAdded(final int pos, final User user) {
+
+        }
+
+        @Override
+        public void userChanged(final int pos, final User user) {
+
+        }
+
+        @Override
+        public void userRemoved(final int pos, final User user) {
+
+        }
+    }
 }
@@ -0,0 +1,176 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link UserListChangeBatcher}.
+ *
+ * @author Christian Ihle
+ */
+public class UserListChangeBatcherTest {
+
+    private UserListChangeBatcher batcher;
+
+    private User annie;
+    private User john;
+
+    @Before
+    public void setUp() {
+        batcher = new UserListChangeBatcher();
+
+        annie = new User("Annie", 1);
+        john = new User("John", 2);
+    }
+
+    @Test
+    public void takeChangesShouldReturnNoChangesWhenNothingHappened() {
+        assertFalse(batcher.hasChanges());
+
+        final UserListChanges changes = batcher.takeChanges(UserListSnapshot.EMPTY);
+
+        assertTrue(changes.isEmpty());
+        assertSame(UserListSnapshot.EMPTY, changes.getPreviousSnapshot());
+        assertSame(UserListSnapshot.EMPTY, changes.getSnapshot());
+    }
+
+    @Test
+    public void takeChangesShouldReturnEachKindOfChange() {
+        batcher.userAdded(annie);
+        batcher.userChanged(john);
+        batcher.userRemoved(new User("Lenny", 3));
+
+        assertTrue(batcher.hasChanges());
+
+        final UserListChanges changes = batcher.takeChanges(UserListSnapshot.EMPTY);
+
+        assertEquals(Collections.singletonList(annie), changes.getAdded());
+        assertEquals(Collections.singletonList(john), changes.getChanged());
+        assertEquals(3, changes.getRemoved().get(0).getCode());
+    }
+
+    @Test
+    public void addedAndThenChangedShouldOnlyBeAdded() {
+        batcher.userAdded(annie);
+        batcher.userChanged(annie);
+        batcher.userChanged(annie);
+
+        final UserListChanges changes = batcher.takeChanges(UserListSnapshot.EMPTY);
+
+        assertEquals(Collections.singletonList(annie), changes.getAdded());
+        assertTrue(changes.getChanged().isEmpty());
+        assertTrue(changes.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void addedAndThenRemovedShouldNotBeIncluded() {
+        batcher.userAdded(annie);
+        batcher.userChanged(annie);
+        batcher.userRemoved(annie);
+
+        assertTrue(batcher.takeChanges(UserListSnapshot.EMPTY).isEmpty());
+    }
+
+    @Test
+    public void changedManyTimesShouldBeChangedOnce() {
+        batcher.userChanged(annie);
+        batcher.userChanged(annie);
+        batcher.userChanged(annie);
+
+        assertEquals(Collections.singletonList(annie), batcher.takeChanges(UserListSnapshot.EMPTY).getChanged());
+    }
+
+    @Test
+    public void changedAndThenRemovedShouldOnlyBeRemoved() {
+        batcher.userChanged(annie);
+        batcher.userRemoved(annie);
+
+        final UserListChanges changes = batcher.takeChanges(UserListSnapshot.EMPTY);
+
+        assertEquals(Collections.singletonList(annie), changes.getRemoved());
+        assertTrue(changes.getChanged().isEmpty());
+    }
+
+    @Test
+    public void removedAndThenAddedAgainShouldBeChanged() {
+        batcher.userRemoved(annie);
+        batcher.userAdded(annie);
+
+        final UserListChanges changes = batcher.takeChanges(UserListSnapshot.EMPTY);
+
+        assertEquals(Collections.singletonList(annie), changes.getChanged());
+        assertTrue(changes.getAdded().isEmpty());
+        assertTrue(changes.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void removedAndThenReplacedByAnotherUserWithTheSameCodeShouldBeRemovedAndAdded() {
+        final User newAnnie = new User("Annie", 1);
+
+        batcher.userRemoved(annie);
+        batcher.userAdded(newAnnie);
+
+        final UserListChanges changes = batcher.takeChanges(UserListSnapshot.EMPTY);
+
+        assertSame(annie, changes.getRemoved().get(0));
+        assertSame(newAnnie, changes.getAdded().get(0));
+        assertTrue(changes.getChanged().isEmpty());
+    }
+
+    @Test
+    public void takeChangesShouldStartOverFromTheSnapshot() {
+        final UserListSnapshot first = new UserListSnapshot(new User[] {annie}, 1);
+        final UserListSnapshot second = new UserListSnapshot(new User[] {annie, john}, 2);
+
+        batcher.userAdded(annie);
+        final UserListChanges firstChanges = batcher.takeChanges(first);
+
+        batcher.userAdded(john);
+        final UserListChanges secondChanges = batcher.takeChanges(second);
+
+        assertFalse(batcher.hasChanges());
+        assertSame(UserListSnapshot.EMPTY, firstChanges.getPreviousSnapshot());
+        assertSame(first, firstChanges.getSnapshot());
+        assertSame(first, secondChanges.getPreviousSnapshot());
+        assertSame(second, secondChanges.getSnapshot());
+        assertEquals(Arrays.asList(john), secondChanges.getAdded());
+    }
+
+    @Test
+    public void resetShouldThrowAwayChanges() {
+        final UserListSnapshot snapshot = new UserListSnapshot(new User[] {annie}, 1);
+
+        batcher.userAdded(annie);
+        batcher.reset(snapshot);
+
+        assertFalse(batcher.hasChanges());
+        assertSame(snapshot, batcher.takeChanges(snapshot).getPreviousSnapshot());
+    }
+}
@@ -0,0 +1,189 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import net.usikkert.kouchat.event.UserListListener;
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.settings.Settings;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link UserListController}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class UserListControllerTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private UserListController userListController;
+    private UserListListener listener;
+
+    private User me;
+    private User john;
+    private User lenny;
+
+    @Before
+    public void setUp() {
+        me = new User("Me", 1);
+        me.setMe(true);
+
+        final Settings settings = mock(Settings.class);
+        when(settings.getMe()).thenReturn(me);
+
+        userListController = new UserListController(settings);
+
+        john = new User("John", 2);
+        lenny = new User("Lenny", 3);
+        userListController.getUserList().add(john);
+        userListController.getUserList().add(lenny);
+
+        listener = mock(UserListListener.class);
+        userListController.getUserList().addUserListListener(listener);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSettingsIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Settings can not be null");
+
+        new UserListController(null);
+    }
+
+    @Test
+    public void constructorShouldAddMeToTheUserList() {
+        final UserListController controller = createControllerWithMe();
+
+        assertEquals(1, controller.getUserList().size());
+        assertSame(me, controller.getUser(1));
+    }
+
+    @Test
+    public void getUserByCodeShouldFindUser() {
+        assertSame(john, userListController.getUser(2));
+        assertSame(lenny, userListController.getUser(3));
+        assertNull(userListController.getUser(4));
+    }
+
+    @Test
+    public void getUserByNickShouldIgnoreCase() {
+        assertSame(john, userListController.getUser("john"));
+        assertSame(lenny, userListController.getUser("LENNY"));
+        assertNull(userListController.getUser("Niles"));
+    }
+
+    @Test
+    public void isNewUserShouldOnlyBeTrueForUsersNotInTheList() {
+        assertFalse(userListController.isNewUser(1));
+        assertFalse(userListController.isNewUser(2));
+        assertTrue(userListController.isNewUser(4));
+    }
+
+    @Test
+    public void isNickNameInUseShouldIgnoreMe() {
+        assertTrue(userListController.isNickNameInUse("john"));
+        assertFalse(userListController.isNickNameInUse("Me"));
+        assertFalse(userListController.isNickNameInUse("Niles"));
+    }
+
+    @Test
+    public void isNickNameInUseShouldFindOtherUserWithSameNickAsMe() {
+        userListController.getUserList().add(new User("ME", 4));
+
+        assertTrue(userListController.isNickNameInUse("Me"));
+    }
+
+    @Test
+    public void changeNickNameShouldUpdateTheIndexAndPosition() {
+        userListController.changeNickName(2, "Zack");
+
+        assertEquals("Zack", john.getNick());
+        assertNull(userListController.getUser("John"));
+        assertSame(john, userListController.getUser("zack"));
+        assertEquals(2, userListController.getUserList().indexOf(john));
+        verify(listener).userChanged(2, john);
+    }
+
+    @Test
+    public void changeNickNameShouldDoNothingForUnknownUser() {
+        userListController.changeNickName(4, "Zack");
+
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void changeAwayStatusShouldUpdateUserAndNotifyListeners() {
+        userListController.changeAwayStatus(3, true, "Gone");
+
+        assertTrue(lenny.isAway());
+        assertEquals("Gone", lenny.getAwayMsg());
+        verify(listener).userChanged(1, lenny);
+    }
+
+    @Test
+    public void changeWritingShouldUpdateUserAndNotifyListeners() {
+        userListController.changeWriting(2, true);
+
+        assertTrue(john.isWriting());
+        verify(listener).userChanged(0, john);
+    }
+
+    @Test
+    public void changeNewMessageShouldUpdateUserAndNotifyListeners() {
+        userListController.changeNewMessage(3, true);
+
+        assertTrue(lenny.isNewPrivMsg());
+        verify(listener).userChanged(1, lenny);
+    }
+
+    @Test
+    public void clientInfoChangedShouldNotifyListeners() {
+        userListController.clientInfoChanged(2);
+
+        verify(listener).userChanged(0, john);
+    }
+
+    @Test
+    public void isTimeoutUsersShouldBeTrueWhenNickIsTheUserCode() {
+        assertFalse(userListController.isTimeoutUsers());
+
+        userListController.getUserList().add(new User("10", 10));
+
+        assertTrue(userListController.isTimeoutUsers());
+    }
+
+    private UserListController createControllerWithMe() {
+        final Settings settings = mock(Settings.class);
+        when(settings.getMe()).thenReturn(me);
+
+        return new UserListController(settings);
+    }
+}
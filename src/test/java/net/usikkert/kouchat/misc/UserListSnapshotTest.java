@@ -0,0 +1,121 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link UserListSnapshot}.
+ *
+ * @author Christian Ihle
+ */
+public class UserListSnapshotTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private UserListSnapshot snapshot;
+
+    private User annie;
+    private User john;
+
+    @Before
+    public void setUp() {
+        annie = new User("Annie", 1);
+        john = new User("John", 2);
+
+        snapshot = new UserListSnapshot(new User[] {annie, john}, 5);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfUsersIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Users can not be null");
+
+        new UserListSnapshot(null, 1);
+    }
+
+    @Test
+    public void getShouldReturnUserAtPosition() {
+        assertSame(annie, snapshot.get(0));
+        assertSame(john, snapshot.get(1));
+    }
+
+    @Test
+    public void getShouldFailForPositionOutsideSnapshot() {
+        expectedException.expect(IndexOutOfBoundsException.class);
+        expectedException.expectMessage("Index: 2, Size: 2");
+
+        snapshot.get(2);
+    }
+
+    @Test
+    public void indexOfShouldReturnPositionOrMinusOne() {
+        assertEquals(0, snapshot.indexOf(annie));
+        assertEquals(1, snapshot.indexOf(john));
+        assertEquals(-1, snapshot.indexOf(new User("Niles", 3)));
+    }
+
+    @Test
+    public void sizeAndVersionShouldBeFromConstructor() {
+        assertEquals(2, snapshot.size());
+        assertEquals(5, snapshot.getVersion());
+    }
+
+    @Test
+    public void emptyShouldHaveNoUsers() {
+        assertEquals(0, UserListSnapshot.EMPTY.size());
+        assertEquals(0, UserListSnapshot.EMPTY.getVersion());
+        assertFalse(UserListSnapshot.EMPTY.iterator().hasNext());
+    }
+
+    @Test
+    public void iteratorShouldReturnUsersInOrder() {
+        final List<User> users = new ArrayList<>();
+
+        for (final User user : snapshot) {
+            users.add(user);
+        }
+
+        assertEquals(Arrays.asList(annie, john), users);
+    }
+
+    @Test
+    public void asListShouldBeUnmodifiable() {
+        assertEquals(Arrays.asList(annie, john), snapshot.asList());
+
+        expectedException.expect(UnsupportedOperationException.class);
+
+        snapshot.asList().remove(0);
+    }
+}
@@ -0,0 +1,160 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link UserTimeoutQueue}.
+ *
+ * @author Christian Ihle
+ */
+public class UserTimeoutQueueTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private UserTimeoutQueue timeoutQueue;
+
+    private User annie;
+    private User john;
+
+    @Before
+    public void setUp() {
+        timeoutQueue = new UserTimeoutQueue(1000);
+
+        annie = new User("Annie", 1);
+        annie.setLastIdle(100);
+
+        john = new User("John", 2);
+        john.setLastIdle(500);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfTimeoutIsNotPositive() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Timeout must be positive");
+
+        new UserTimeoutQueue(0);
+    }
+
+    @Test
+    public void getNextTimeoutShouldBeMaxValueWhenEmpty() {
+        assertEquals(Long.MAX_VALUE, timeoutQueue.getNextTimeout());
+        assertEquals(0, timeoutQueue.size());
+    }
+
+    @Test
+    public void getNextTimeoutShouldBeTheFirstTimeout() {
+        timeoutQueue.userAdded(0, john);
+        timeoutQueue.userAdded(0, annie);
+
+        assertEquals(1100, timeoutQueue.getNextTimeout());
+        assertEquals(2, timeoutQueue.size());
+    }
+
+    @Test
+    public void removeTimedOutUsersShouldOnlyReturnUsersThatHaveTimedOut() {
+        timeoutQueue.addUsers(Arrays.asList(annie, john));
+
+        assertTrue(timeoutQueue.removeTimedOutUsers(1099).isEmpty());
+        assertEquals(Collections.singletonList(annie), timeoutQueue.removeTimedOutUsers(1100));
+        assertTrue(timeoutQueue.removeTimedOutUsers(1100).isEmpty());
+
+        assertEquals(1, timeoutQueue.size());
+        assertEquals(1500, timeoutQueue.getNextTimeout());
+    }
+
+    @Test
+    public void removeTimedOutUsersShouldReturnUsersInTheOrderTheyTimedOut() {
+        timeoutQueue.addUsers(Arrays.asList(john, annie));
+
+        assertEquals(Arrays.asList(annie, john), timeoutQueue.removeTimedOutUsers(5000));
+        assertEquals(0, timeoutQueue.size());
+    }
+
+    @Test
+    public void removeTimedOutUsersShouldPutUsersWithNewIdleMessagesBackInTheQueue() {
+        timeoutQueue.userAdded(0, annie);
+        annie.setLastIdle(800);
+
+        assertTrue(timeoutQueue.removeTimedOutUsers(1100).isEmpty());
+        assertEquals(1800, timeoutQueue.getNextTimeout());
+        assertEquals(Collections.singletonList(annie), timeoutQueue.removeTimedOutUsers(1800));
+    }
+
+    @Test
+    public void removedUsersShouldNotTimeOut() {
+        timeoutQueue.userAdded(0, annie);
+        timeoutQueue.userRemoved(0, annie);
+
+        assertEquals(0, timeoutQueue.size());
+        assertTrue(timeoutQueue.removeTimedOutUsers(5000).isEmpty());
+    }
+
+    @Test
+    public void usersAddedAgainShouldOnlyTimeOutOnce() {
+        timeoutQueue.userAdded(0, annie);
+        timeoutQueue.userRemoved(0, annie);
+        annie.setLastIdle(200);
+        timeoutQueue.userAdded(0, annie);
+
+        assertTrue(timeoutQueue.removeTimedOutUsers(1100).isEmpty());
+        assertEquals(Collections.singletonList(annie), timeoutQueue.removeTimedOutUsers(1200));
+        assertTrue(timeoutQueue.removeTimedOutUsers(5000).isEmpty());
+    }
+
+    @Test
+    public void userChangedShouldReplaceUserWithTheSameCode() {
+        final User newAnnie = new User("Annie", 1);
+        newAnnie.setLastIdle(100);
+
+        timeoutQueue.userAdded(0, annie);
+        timeoutQueue.userChanged(0, annie);
+        timeoutQueue.userChanged(0, newAnnie);
+
+        assertEquals(1, timeoutQueue.size());
+        assertEquals(Collections.singletonList(newAnnie), timeoutQueue.removeTimedOutUsers(1100));
+    }
+
+    @Test
+    public void meShouldNeverTimeOut() {
+        final User me = new User("Me", 3);
+        me.setMe(true);
+        me.setLastIdle(0);
+
+        timeoutQueue.userAdded(0, me);
+
+        assertEquals(0, timeoutQueue.size());
+        assertTrue(timeoutQueue.removeTimedOutUsers(5000).isEmpty());
+    }
+}
@@ -0,0 +1,140 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link UserTree}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class UserTreeTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private UserTree userTree;
+
+    @Before
+    public void setUp() {
+        userTree = new UserTree();
+    }
+
+    @Test
+    public void newTreeShouldBeEmpty() {
+        assertEquals(0, userTree.size());
+    }
+
+    @Test
+    public void addShouldSortByNickIgnoringCase() {
+        final UserTree.Node bob = userTree.add(new User("bob", 1));
+        final UserTree.Node alice = userTree.add(new User("Alice", 2));
+        final UserTree.Node carl = userTree.add(new User("Carl", 3));
+
+        assertEquals(3, userTree.size());
+        assertSame(alice, userTree.get(0));
+        assertSame(bob, userTree.get(1));
+        assertSame(carl, userTree.get(2));
+
+        assertEquals(0, userTree.indexOf(alice));
+        assertEquals(1, userTree.indexOf(bob));
+        assertEquals(2, userTree.indexOf(carl));
+    }
+
+    @Test
+    public void removeShouldFindNodeAfterNickChange() {
+        final User bob = new User("Bob", 1);
+        final UserTree.Node bobNode = userTree.add(bob);
+        final UserTree.Node alice = userTree.add(new User("Alice", 2));
+
+        bob.setNick("Aaron");
+        userTree.remove(bobNode);
+
+        assertEquals(1, userTree.size());
+        assertEquals(-1, userTree.indexOf(bobNode));
+        assertEquals(0, userTree.indexOf(alice));
+    }
+
+    @Test
+    public void removeShouldIgnoreNodeNotInTree() {
+        final UserTree.Node alice = userTree.add(new User("Alice", 1));
+        userTree.remove(alice);
+
+        userTree.remove(alice);
+
+        assertEquals(0, userTree.size());
+    }
+
+    @Test
+    public void getShouldFailOutsideTheTree() {
+        userTree.add(new User("Alice", 1));
+
+        expectedException.expect(IndexOutOfBoundsException.class);
+        expectedException.expectMessage("Index: 1, Size: 1");
+
+        userTree.get(1);
+    }
+
+    @Test
+    public void manyUsersShouldStayInOrder() {
+        for (int i = 999; i >= 0; i--) {
+            userTree.add(new User(String.format("User%04d", i), i));
+        }
+
+        for (int i = 0; i < 1000; i += 2) {
+            userTree.remove(userTree.get(i / 2));
+        }
+
+        assertEquals(500, userTree.size());
+
+        for (int i = 0; i < 500; i++) {
+            final UserTree.Node node = userTree.get(i);
+
+            assertEquals(String.format("User%04d", i * 2 + 1), node.getUser().getNick());
+            assertEquals(i, userTree.indexOf(node));
+        }
+    }
+
+    @Test
+    public void toArrayShouldReturnUsersInOrder() {
+        assertEquals(0, userTree.toArray().length);
+
+        final User bob = new User("bob", 1);
+        final User alice = new User("Alice", 2);
+        final User carl = new User("Carl", 3);
+
+        userTree.add(bob);
+        userTree.add(carl);
+        userTree.add(alice);
+
+        assertArrayEquals(new User[] {alice, bob, carl}, userTree.toArray());
+    }
+}
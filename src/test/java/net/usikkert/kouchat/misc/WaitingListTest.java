@@ -22,18 +22,28 @@
 
 package net.usikkert.kouchat.misc;
 
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
-
-import static org.junit.Assert.*;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
 /**
  * Test of {@link WaitingList}.
  *
  * @author Christian Ihle
  */
+@SuppressWarnings("HardCodedStringLiteral")
 public class WaitingListTest {
 
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
     private WaitingList waitingList;
 
     @Before
@@ -71,4 +81,199 @@ public class WaitingListTest {
         assertFalse(waitingList.isWaitingUser(userCode));
         waitingList.removeWaitingUser(userCode);
     }
+
+    @Test
+    public void addPendingActionShouldThrowExceptionIfActionIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Action can not be null");
+
+        waitingList.addPendingAction(126, null);
+    }
+
+    @Test
+    public void addPendingActionShouldReturnFalseIfUserIsNotWaiting() {
+        final Runnable action = mock(Runnable.class);
+
+        assertFalse(waitingList.addPendingAction(127, action));
+
+        verifyZeroInteractions(action);
+    }
+
+    @Test
+    public void removeWaitingUserShouldRunPendingActionsInOrder() {
+        final Runnable action1 = mock(Runnable.class);
+        final Runnable action2 = mock(Runnable.class);
+
+        waitingList.addWaitingUser(128);
+        assertTrue(waitingList.addPendingAction(128, action1));
+        assertTrue(waitingList.addPendingAction(128, action2));
+        verifyZeroInteractions(action1, action2);
+
+        waitingList.removeWaitingUser(128);
+
+        final InOrder inOrder = inOrder(action1, action2);
+        inOrder.verify(action1).run();
+        inOrder.verify(action2).run();
+
+        waitingList.removeWaitingUser(128);
+        verify(action1, times(1)).run();
+    }
+
+    @Test
+    public void removeWaitingUserShouldOnlyRunPendingActionsForThatUser() {
+        final Runnable action1 = mock(Runnable.class);
+        final Runnable action2 = mock(Runnable.class);
+
+        waitingList.addWaitingUser(129);
+        waitingList.addWaitingUser(130);
+        waitingList.addPendingAction(129, action1);
+        waitingList.addPendingAction(130, action2);
+
+        waitingList.removeWaitingUser(129);
+
+        verify(action1).run();
+        verifyZeroInteractions(action2);
+        assertTrue(waitingList.isWaitingUser(130));
+    }
+
+    @Test
+    public void removeWaitingUserShouldContinueWhenActionFails() {
+        final Runnable action1 = mock(Runnable.class);
+        final Runnable action2 = mock(Runnable.class);
+        doThrow(new RuntimeException("Failed")).when(action1).run();
+
+        waitingList.addWaitingUser(131);
+        waitingList.addPendingAction(131, action1);
+        waitingList.addPendingAction(131, action2);
+
+        waitingList.removeWaitingUser(131);
+
+        verify(action2).run();
+    }
+
+    @Test
+    public void addPendingActionShouldDropActionsWhenFull() {
+        final Runnable action = mock(Runnable.class);
+        final Runnable droppedAction = mock(Runnable.class);
+
+        waitingList.addWaitingUser(132);
+
+        for (int i = 0; i < WaitingList.MAX_PENDING_ACTIONS; i++) {
+            waitingList.addPendingAction(132, action);
+        }
+
+        assertTrue(waitingList.addPendingAction(132, droppedAction));
+
+        waitingList.removeWaitingUser(132);
+
+        verify(action, times(WaitingList.MAX_PENDING_ACTIONS)).run();
+        verifyZeroInteractions(droppedAction);
+    }
+
+    @Test
+    public void removeExpiredUsersShouldOnlyRemoveUsersThatWaitedTooLong() {
+        final Runnable action = mock(Runnable.class);
+        final long now = System.currentTimeMillis();
+
+        waitingList.addWaitingUser(133);
+        waitingList.addPendingAction(133, action);
+
+        waitingList.removeExpiredUsers(now);
+        assertTrue(waitingList.isWaitingUser(133));
+        verifyZeroInteractions(action);
+
+        waitingList.removeExpiredUsers(now + WaitingList.MAX_WAIT_TIME + 1000);
+        assertFalse(waitingList.isWaitingUser(133));
+        verify(action).run();
+    }
+
+    @Test
+    public void addWaitingUserShouldNotRestartTheWaitWhenAddedAgain() {
+        final long now = System.currentTimeMillis();
+
+        waitingList.addWaitingUser(134);
+        waitingList.addWaitingUser(134);
+
+        waitingList.removeExpiredUsers(now + WaitingList.MAX_WAIT_TIME + 1000);
+        assertFalse(waitingList.isWaitingUser(134));
+    }
+
+    @Test
+    public void waitingUserShouldExpireByItself() {
+        final Runnable action = mock(Runnable.class);
+
+        waitingList.addWaitingUser(135);
+        waitingList.addPendingAction(135, action);
+
+        verify(action, timeout(WaitingList.MAX_WAIT_TIME + 2000)).run();
+        assertFalse(waitingList.isWaitingUser(135));
+    }
+
+    @Test
+    public void removeExpiredUsersShouldHandActionsToTheExecutorForEachUser() {
+        final Runnable action1 = mock(Runnable.class);
+        final Runnable action2 = mock(Runnable.class);
+        final WaitingList.ActionExecutor executor = mock(WaitingList.ActionExecutor.class);
+        final ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        waitingList.registerActionExecutor(executor);
+
+        waitingList.addWaitingUser(136);
+        waitingList.addPendingAction(136, action1);
+        waitingList.addPendingAction(136, action2);
+        waitingList.addWaitingUser(137);
+
+        waitingList.removeExpiredUsers(System.currentTimeMillis() + WaitingList.MAX_WAIT_TIME + 1000);
+
+        verify(executor).execute(eq(136), captor.capture());
+        verifyNoMoreInteractions(executor);
+        verifyZeroInteractions(action1, action2);
+
+        captor.getValue().run();
+
+        final InOrder inOrder = inOrder(action1, action2);
+        inOrder.verify(action1).run();
+        inOrder.verify(action2).run();
+    }
+
+    @Test
+    public void removeWaitingUserShouldNotUseTheExecutor() {
+        final Runnable action = mock(Runnable.class);
+        final WaitingList.ActionExecutor executor = mock(WaitingList.ActionExecutor.class);
+        waitingList.registerActionExecutor(executor);
+
+        waitingList.addWaitingUser(138);
+        waitingList.addPendingAction(138, action);
+        waitingList.removeWaitingUser(138);
+
+        verify(action).run();
+        verifyZeroInteractions(executor);
+    }
+
+    @Test
+    public void stopShouldForgetWaitingUsersWithoutRunningTheirActions() {
+        final Runnable action = mock(Runnable.class);
+
+        waitingList.addWaitingUser(139);
+        waitingList.addPendingAction(139, action);
+
+        waitingList.stop();
+
+        assertFalse(waitingList.isWaitingUser(139));
+        waitingList.removeExpiredUsers(System.currentTimeMillis() + WaitingList.MAX_WAIT_TIME + 1000);
+        verifyZeroInteractions(action);
+    }
+
+    @Test
+    public void waitingUserShouldExpireByItselfAfterStop() {
+        final Runnable action = mock(Runnable.class);
+
+        waitingList.addWaitingUser(140);
+        waitingList.stop();
+
+        waitingList.addWaitingUser(141);
+        waitingList.addPendingAction(141, action);
+
+        verify(action, timeout(WaitingList.MAX_WAIT_TIME + 2000)).run();
+        assertFalse(waitingList.isWaitingUser(141));
+    }
 }
@@ -30,7 +30,6 @@ import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.misc.WaitingList;
-import net.usikkert.kouchat.util.Sleeper;
 import net.usikkert.kouchat.util.TestUtils;
 
 import org.junit.Before;
@@ -54,7 +53,6 @@ public class AsyncMessageResponderWrapperTest {
     private MessageResponder messageResponder;
     private Controller controller;
     private ExecutorService executorService;
-    private Sleeper sleeper;
     private WaitingList waitingList;
 
     @Before
@@ -67,7 +65,6 @@ public class AsyncMessageResponderWrapperTest {
         wrapper = spy(new AsyncMessageResponderWrapper(messageResponder, controller));
 
         executorService = TestUtils.setFieldValueWithMock(wrapper, "executorService", ExecutorService.class);
-        sleeper = TestUtils.setFieldValueWithMock(wrapper, "sleeper", Sleeper.class);
     }
 
     @Test
@@ -95,7 +92,7 @@ public class AsyncMessageResponderWrapperTest {
         verify(messageResponder).messageArrived(100, "msg", 200);
         verifyZeroInteractions(executorService);
         verify(wrapper, never()).askUserToIdentify(anyInt());
-        verify(wrapper, never()).waitForUserToIdentify(anyInt());
+        verify(wrapper, never()).runWhenUserIdentifies(anyInt(), any(Runnable.class));
     }
 
     @Test
@@ -108,23 +105,34 @@ public class AsyncMessageResponderWrapperTest {
     }
 
     @Test
-    public void messageArrivedShouldWaitForUserToIdentifyAndPassThroughUsingExecutorIfNewUser() {
+    public void messageArrivedShouldWaitForUserToIdentifyBeforePassingThroughIfNewUser() {
         when(controller.isNewUser(100)).thenReturn(true);
+        when(waitingList.addPendingAction(eq(100), any(Runnable.class))).thenReturn(true);
 
         wrapper.messageArrived(100, "msg", 200);
 
         final ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
 
         verifyZeroInteractions(messageResponder);
-        verify(wrapper, never()).waitForUserToIdentify(anyInt());
+        verifyZeroInteractions(executorService);
 
-        verify(executorService).execute(runnableCaptor.capture());
+        verify(waitingList).addPendingAction(eq(100), runnableCaptor.capture());
         runnableCaptor.getValue().run();
 
-        verify(wrapper).waitForUserToIdentify(100);
         verify(messageResponder).messageArrived(100, "msg", 200);
     }
 
+    @Test
+    public void messageArrivedShouldPassThroughRightAwayIfNewUserIdentifiedAlready() {
+        when(controller.isNewUser(100)).thenReturn(true);
+        when(waitingList.addPendingAction(eq(100), any(Runnable.class))).thenReturn(false);
+
+        wrapper.messageArrived(100, "msg", 200);
+
+        verify(messageResponder).messageArrived(100, "msg", 200);
+        verifyZeroInteractions(executorService);
+    }
+
     @Test
     public void topicChangedShouldPassThroughIfExistingUser() {
         when(controller.isNewUser(100)).thenReturn(false);
@@ -292,17 +300,38 @@ public class AsyncMessageResponderWrapperTest {
 
     @Test
     public void fileSendShouldWaitForUserToIdentifyAndPassThroughUsingExecutor() {
+        when(waitingList.addPendingAction(eq(100), any(Runnable.class))).thenReturn(true);
+
         wrapper.fileSend(100, 3000, "fileName", "user", 98765);
 
+        final ArgumentCaptor<Runnable> pendingCaptor = ArgumentCaptor.forClass(Runnable.class);
         final ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
 
         verifyZeroInteractions(messageResponder);
-        verify(wrapper, never()).waitForUserToIdentify(anyInt());
+        verifyZeroInteractions(executorService);
+
+        verify(waitingList).addPendingAction(eq(100), pendingCaptor.capture());
+        pendingCaptor.getValue().run();
+
+        verifyZeroInteractions(messageResponder);
+
+        verify(executorService).execute(runnableCaptor.capture());
+        runnableCaptor.getValue().run();
+
+        verify(messageResponder).fileSend(100, 3000, "fileName", "user", 98765);
+    }
+
+    @Test
+    public void fileSendShouldPassThroughUsingExecutorRightAwayIfUserIsNotWaiting() {
+        when(waitingList.addPendingAction(eq(100), any(Runnable.class))).thenReturn(false);
+
+        wrapper.fileSend(100, 3000, "fileName", "user", 98765);
+
+        final ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
 
         verify(executorService).execute(runnableCaptor.capture());
         runnableCaptor.getValue().run();
 
-        verify(wrapper).waitForUserToIdentify(100);
         verify(messageResponder).fileSend(100, 3000, "fileName", "user", 98765);
     }
 
@@ -330,10 +359,10 @@ public class AsyncMessageResponderWrapperTest {
     @Test
     public void clientInfoShouldPassThrough() {
         wrapper.clientInfo(100, "client", 70000, "os",
-                           4500, 6000);
+                           4500, 6000, 1);
 
         verify(messageResponder).clientInfo(100, "client", 70000, "os",
-                                            4500, 6000);
+                                            4500, 6000, 1);
     }
 
     @Test
@@ -346,32 +375,23 @@ public class AsyncMessageResponderWrapperTest {
     }
 
     @Test
-    public void waitForUserToIdentifyShouldAbortAfter40SleepsIfUserNeverIdentifies() {
-        when(waitingList.isWaitingUser(100)).thenReturn(true);
-
-        wrapper.waitForUserToIdentify(100);
-
-        verify(sleeper, times(40)).sleep(50);
-        verify(waitingList, times(41)).isWaitingUser(100);
-    }
-
-    @Test
-    public void waitForUserToIdentifyShouldAbortWhenUserHasIdentified() {
-        when(waitingList.isWaitingUser(100)).thenReturn(true, true, true, false);
+    public void runWhenUserIdentifiesShouldHoldBackActionIfUserIsWaiting() {
+        final Runnable action = mock(Runnable.class);
+        when(waitingList.addPendingAction(100, action)).thenReturn(true);
 
-        wrapper.waitForUserToIdentify(100);
+        wrapper.runWhenUserIdentifies(100, action);
 
-        verify(sleeper, times(3)).sleep(50);
-        verify(waitingList, times(4)).isWaitingUser(100);
+        verify(waitingList).addPendingAction(100, action);
+        verifyZeroInteractions(action);
     }
 
     @Test
-    public void waitForUserToIdentifyShouldNeverSleepIfUserIsIdentified() {
-        when(waitingList.isWaitingUser(100)).thenReturn(false);
+    public void runWhenUserIdentifiesShouldRunActionRightAwayIfUserIsNotWaiting() {
+        final Runnable action = mock(Runnable.class);
+        when(waitingList.addPendingAction(100, action)).thenReturn(false);
 
-        wrapper.waitForUserToIdentify(100);
+        wrapper.runWhenUserIdentifies(100, action);
 
-        verifyZeroInteractions(sleeper);
-        verify(waitingList).isWaitingUser(100);
+        verify(action).run();
     }
 }
@@ -0,0 +1,191 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link BinaryMessageCodec}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class BinaryMessageCodecTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void encodeShouldUseVarintCodeAndTypeId() {
+        final byte[] encoded = BinaryMessageCodec.encode("300!IDLE#Me:");
+
+        assertArrayEquals(new byte[] {(byte) 0xFF, 2, 14, (byte) 0xAC, 0x02, 2, 'M', 'e'}, encoded);
+    }
+
+    @Test
+    public void encodeShouldSetSequenceBitAndAddSequence() {
+        final byte[] encoded = BinaryMessageCodec.encode("1.5!MSG#A:[1]Hi");
+
+        assertArrayEquals(new byte[] {(byte) 0xFF, 2, (byte) 0x81, 1, 5, 1, 'A', '[', '1', ']', 'H', 'i'}, encoded);
+    }
+
+    @Test
+    public void encodeShouldBeSmallerThanText() throws Exception {
+        final String message = "12345678!STOPPEDWRITING#Christian:";
+
+        assertTrue(BinaryMessageCodec.encode(message).length < message.getBytes(Constants.MESSAGE_CHARSET).length);
+    }
+
+    @Test
+    public void encodeShouldReturnNullForUnknownType() {
+        assertNull(BinaryMessageCodec.encode("12345678!FUTURE#Test:"));
+    }
+
+    @Test
+    public void encodeShouldReturnNullForInvalidMessage() {
+        assertNull(BinaryMessageCodec.encode("Hello"));
+        assertNull(BinaryMessageCodec.encode("abc!MSG#Test:"));
+    }
+
+    @Test
+    public void encodeShouldThrowExceptionIfMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        BinaryMessageCodec.encode((String) null);
+    }
+
+    @Test
+    public void decodeShouldReturnTheOriginalMessage() {
+        assertRoundTrip("12345678!IDLE#Test:");
+        assertRoundTrip("12345678.1024!MSG#Tést:[-15987646]Blåbærsyltetøy ☺");
+        assertRoundTrip("-12345678.2147483647!PRIVMSG#Test:(87654321)[1]Hello");
+        assertRoundTrip("12345678!CLIENT#Test:(KouChat v1.5.0 Swing)[1753]{Linux}<40656>/40657\\|seq,batch,bin|");
+        assertRoundTrip("12345678!BATCH#Test:19;12345678!IDLE#Test:");
+        assertRoundTrip("12345678!LOGON#:");
+    }
+
+    @Test
+    public void decodeShouldUseOffsetAndLength() {
+        final byte[] encoded = BinaryMessageCodec.encode("12345678!BACK#Test:");
+        final byte[] data = new byte[encoded.length + 10];
+        System.arraycopy(encoded, 0, data, 5, encoded.length);
+
+        assertEquals("12345678!BACK#Test:", BinaryMessageCodec.decode(data, 5, encoded.length));
+    }
+
+    @Test
+    public void decodeShouldReturnNullForInvalidData() {
+        final byte[] encoded = BinaryMessageCodec.encode("12345678!IDLE#Test:");
+
+        assertNull(BinaryMessageCodec.decode(encoded, 0, 2));
+        assertNull(BinaryMessageCodec.decode(encoded, 0, 6));
+        assertNull(BinaryMessageCodec.decode(encoded, 0, 8));
+        assertNull(BinaryMessageCodec.decode("12345678!IDLE#Test:".getBytes(), 0, 19));
+        assertNull(BinaryMessageCodec.decode(new byte[] {(byte) 0xFF, 3, 14, 1, 0}, 0, 5));
+        assertNull(BinaryMessageCodec.decode(new byte[] {(byte) 0xFF, 2, 0, 1, 0}, 0, 5));
+        assertNull(BinaryMessageCodec.decode(new byte[] {(byte) 0xFF, 2, 100, 1, 0}, 0, 5));
+        assertNull(BinaryMessageCodec.decode(new byte[] {(byte) 0xFF, 2, 14, -1, -1, -1, -1, -1, 0}, 0, 9));
+    }
+
+    @Test
+    public void decodeViewShouldHaveTheSameFieldsAsTheParsedMessage() {
+        assertDecodedView("12345678!IDLE#Test:");
+        assertDecodedView("12345678.1024!MSG#Tést:[-15987646]Blåbærsyltetøy ☺");
+        assertDecodedView("-2147483648.2147483647!PRIVMSG#Test:(87654321)[1]Hello");
+        assertDecodedView("12345678!LOGON#:");
+    }
+
+    @Test
+    public void getDecodedViewShouldOnlyFindTheLastDecodedMessage() {
+        final byte[] first = BinaryMessageCodec.encode("12345678!IDLE#Test:");
+        final byte[] second = BinaryMessageCodec.encode("12345678!BACK#Test:");
+
+        final String firstMessage = BinaryMessageCodec.decode(first, 0, first.length);
+        assertSame(firstMessage, BinaryMessageCodec.getDecodedView(firstMessage).getMessage());
+
+        final String secondMessage = BinaryMessageCodec.decode(second, 0, second.length);
+        assertNull(BinaryMessageCodec.getDecodedView(firstMessage));
+        assertNull(BinaryMessageCodec.getDecodedView("12345678!BACK#Test:"));
+        assertTrue(BinaryMessageCodec.getDecodedView(secondMessage).isType(NetworkMessageType.BACK));
+    }
+
+    @Test
+    public void isBinaryShouldCheckTheFirstByte() {
+        final byte[] encoded = BinaryMessageCodec.encode("12345678!IDLE#Test:");
+
+        assertTrue(BinaryMessageCodec.isBinary(encoded, 0, encoded.length));
+        assertFalse(BinaryMessageCodec.isBinary(encoded, 1, encoded.length - 1));
+        assertFalse(BinaryMessageCodec.isBinary(encoded, 0, 0));
+        assertFalse(BinaryMessageCodec.isBinary("12345678!IDLE#Test:".getBytes(), 0, 19));
+    }
+
+    @Test
+    public void getBytesShouldUseBinaryWhenPossible() throws Exception {
+        final String message = "12345678!IDLE#Test:";
+
+        assertArrayEquals(BinaryMessageCodec.encode(message), BinaryMessageCodec.getBytes(message, true));
+        assertArrayEquals(message.getBytes(Constants.MESSAGE_CHARSET), BinaryMessageCodec.getBytes(message, false));
+        assertArrayEquals("Hello".getBytes(Constants.MESSAGE_CHARSET), BinaryMessageCodec.getBytes("Hello", true));
+    }
+
+    @Test
+    public void getBytesShouldUseTheParsedView() throws Exception {
+        final String message = "12345678.9!MSG#Test:[1]Hello";
+        final MessageView view = new MessageView().wrap(message);
+
+        assertArrayEquals(BinaryMessageCodec.encode(message), BinaryMessageCodec.encode(view));
+        assertArrayEquals(BinaryMessageCodec.encode(message), BinaryMessageCodec.getBytes(view, true));
+        assertArrayEquals(message.getBytes(Constants.MESSAGE_CHARSET), BinaryMessageCodec.getBytes(view, false));
+    }
+
+    private void assertDecodedView(final String message) {
+        final byte[] encoded = BinaryMessageCodec.encode(message);
+        final MessageView decoded = BinaryMessageCodec.decodeView(encoded, 0, encoded.length);
+        final MessageView parsed = new MessageView().wrap(message);
+
+        assertEquals(message, decoded.getMessage());
+        assertEquals(parsed.getCode(), decoded.getCode());
+        assertEquals(parsed.hasSequence(), decoded.hasSequence());
+        assertEquals(parsed.getSequence(), decoded.getSequence());
+        assertEquals(parsed.getType(), decoded.getType());
+        assertEquals(parsed.getNick(), decoded.getNick());
+        assertEquals(parsed.getPayload(), decoded.getPayload());
+    }
+
+    private void assertRoundTrip(final String message) {
+        final byte[] encoded = BinaryMessageCodec.encode(message);
+
+        assertNotNull(message, encoded);
+        assertEquals(message, BinaryMessageCodec.decode(encoded, 0, encoded.length));
+        assertFalse(Arrays.equals(message.getBytes(), encoded));
+    }
+}
@@ -0,0 +1,111 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link CommonCapabilities}.
+ *
+ * @author Christian Ihle
+ */
+public class CommonCapabilitiesTest {
+
+    private static final int SEQUENCE = NetworkCapability.SEQUENCE.getFlag();
+    private static final int NACK = NetworkCapability.NACK.getFlag();
+
+    private CommonCapabilities commonCapabilities;
+
+    private User annie;
+    private User john;
+
+    @Before
+    public void setUp() {
+        commonCapabilities = new CommonCapabilities();
+
+        annie = new User("Annie", 1);
+        annie.setNetworkCapabilities(SEQUENCE | NACK);
+
+        john = new User("John", 2);
+        john.setNetworkCapabilities(SEQUENCE);
+    }
+
+    @Test
+    public void getShouldBeNoneWithoutOtherUsers() {
+        assertEquals(0, commonCapabilities.get());
+    }
+
+    @Test
+    public void getShouldBeTheCapabilitiesAllTheUsersHave() {
+        commonCapabilities.userAdded(0, annie);
+        assertEquals(SEQUENCE | NACK, commonCapabilities.get());
+
+        commonCapabilities.userAdded(1, john);
+        assertEquals(SEQUENCE, commonCapabilities.get());
+    }
+
+    @Test
+    public void getShouldIgnoreTheApplicationUser() {
+        final User me = new User("Me", 3);
+        me.setMe(true);
+
+        commonCapabilities.userAdded(0, me);
+        assertEquals(0, commonCapabilities.get());
+
+        commonCapabilities.userAdded(0, annie);
+        assertEquals(SEQUENCE | NACK, commonCapabilities.get());
+    }
+
+    @Test
+    public void userChangedShouldUseTheNewCapabilities() {
+        commonCapabilities.addUsers(Arrays.asList(annie, john));
+
+        john.setNetworkCapabilities(SEQUENCE | NACK);
+        commonCapabilities.userChanged(1, john);
+        assertEquals(SEQUENCE | NACK, commonCapabilities.get());
+
+        john.setNetworkCapabilities(0);
+        commonCapabilities.userChanged(1, john);
+        commonCapabilities.userChanged(1, john);
+        assertEquals(0, commonCapabilities.get());
+
+        commonCapabilities.userRemoved(1, john);
+        assertEquals(SEQUENCE | NACK, commonCapabilities.get());
+    }
+
+    @Test
+    public void userRemovedShouldGiveNoneWhenTheLastUserIsRemoved() {
+        commonCapabilities.userAdded(0, annie);
+        commonCapabilities.userRemoved(0, annie);
+        commonCapabilities.userRemoved(0, annie);
+
+        assertEquals(0, commonCapabilities.get());
+    }
+}
@@ -0,0 +1,129 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link DatagramFragmenter}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class DatagramFragmenterTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private DatagramFragmenter fragmenter;
+
+    @Before
+    public void setUp() {
+        fragmenter = new DatagramFragmenter();
+    }
+
+    @Test
+    public void splitShouldThrowExceptionIfEncodedMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Encoded message can not be null");
+
+        fragmenter.split(null, "12345678!MSG#Test:");
+    }
+
+    @Test
+    public void splitShouldThrowExceptionIfMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        fragmenter.split(new byte[10], null);
+    }
+
+    @Test
+    public void splitShouldCreateFragmentsThatFitInPackets() {
+        final byte[] encoded = new byte[DatagramFragmenter.FRAGMENT_SIZE * 2 + 10];
+        final List<byte[]> fragments = fragmenter.split(encoded, "12345678!MSG#Test:");
+
+        assertEquals(3, fragments.size());
+
+        for (final byte[] fragment : fragments) {
+            assertTrue(fragment.length <= Constants.NETWORK_PACKET_SIZE);
+            assertTrue(DatagramFragmenter.isFragment(fragment, 0, fragment.length));
+        }
+    }
+
+    @Test
+    public void splitShouldWriteHeaderWithCodeIdPositionAndCount() {
+        final List<byte[]> fragments = fragmenter.split(new byte[DatagramFragmenter.FRAGMENT_SIZE + 1], "300!MSG#Test:");
+
+        assertArrayEquals(new byte[] {DatagramFragmenter.MARKER, (byte) 0xAC, 0x02, 1, 0, 2},
+                          Arrays.copyOf(fragments.get(0), 6));
+        assertArrayEquals(new byte[] {DatagramFragmenter.MARKER, (byte) 0xAC, 0x02, 1, 1, 2, 0}, fragments.get(1));
+    }
+
+    @Test
+    public void splitShouldWriteTheUserCodeThatIsAlreadyKnown() {
+        final List<byte[]> fragments = fragmenter.split(new byte[DatagramFragmenter.FRAGMENT_SIZE + 1], 300);
+
+        assertArrayEquals(new byte[] {DatagramFragmenter.MARKER, (byte) 0xAC, 0x02, 1, 0, 2},
+                          Arrays.copyOf(fragments.get(0), 6));
+        assertNull(fragmenter.split(new byte[DatagramFragmenter.FRAGMENT_SIZE * DatagramFragmenter.MAX_FRAGMENTS + 1], 300));
+    }
+
+    @Test
+    public void splitShouldUseNewIdForEachMessage() {
+        final byte[] encoded = new byte[DatagramFragmenter.FRAGMENT_SIZE + 1];
+
+        assertEquals(1, fragmenter.split(encoded, "1!MSG#Test:").get(0)[2]);
+        assertEquals(2, fragmenter.split(encoded, "1!MSG#Test:").get(0)[2]);
+    }
+
+    @Test
+    public void splitShouldReturnNullIfMessageNeedsTooManyFragments() {
+        final byte[] encoded = new byte[DatagramFragmenter.FRAGMENT_SIZE * DatagramFragmenter.MAX_FRAGMENTS + 1];
+
+        assertNull(fragmenter.split(encoded, "12345678!MSG#Test:"));
+    }
+
+    @Test
+    public void splitShouldReturnNullIfMessageHasNoUserCode() {
+        assertNull(fragmenter.split(new byte[1000], "Hello"));
+    }
+
+    @Test
+    public void isFragmentShouldCheckTheFirstByte() {
+        assertTrue(DatagramFragmenter.isFragment(new byte[] {(byte) 0xFE}, 0, 1));
+        assertFalse(DatagramFragmenter.isFragment(new byte[] {(byte) 0xFE}, 0, 0));
+        assertFalse(DatagramFragmenter.isFragment(new byte[] {(byte) 0xFF}, 0, 1));
+        assertFalse(DatagramFragmenter.isFragment(new byte[] {'1'}, 0, 1));
+    }
+}
@@ -0,0 +1,191 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link DatagramReassembler}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class DatagramReassemblerTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private DatagramReassembler reassembler;
+    private DatagramFragmenter fragmenter;
+
+    @Before
+    public void setUp() {
+        reassembler = new DatagramReassembler();
+        fragmenter = new DatagramFragmenter();
+    }
+
+    @Test
+    public void addShouldThrowExceptionIfIpAddressIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Ip address can not be null");
+
+        reassembler.add(null, new byte[10], 0, 10);
+    }
+
+    @Test
+    public void addShouldReturnMessageWhenAllFragmentsHaveArrived() {
+        final byte[] message = createMessage(1200);
+        final List<byte[]> fragments = fragmenter.split(message, "12345678!MSG#Test:");
+
+        assertNull(add("192.168.1.2", fragments.get(0), 0));
+        assertNull(add("192.168.1.2", fragments.get(1), 0));
+        assertArrayEquals(message, add("192.168.1.2", fragments.get(2), 0));
+
+        assertEquals(0, reassembler.getPendingMessages());
+        assertEquals(0, reassembler.getPendingBytes());
+    }
+
+    @Test
+    public void addShouldHandleFragmentsInAnyOrder() {
+        final byte[] message = createMessage(1200);
+        final List<byte[]> fragments = fragmenter.split(message, "12345678!MSG#Test:");
+
+        assertNull(add("192.168.1.2", fragments.get(2), 0));
+        assertNull(add("192.168.1.2", fragments.get(0), 0));
+        assertArrayEquals(message, add("192.168.1.2", fragments.get(1), 0));
+    }
+
+    @Test
+    public void addShouldIgnoreDuplicateFragments() {
+        final byte[] message = createMessage(600);
+        final List<byte[]> fragments = fragmenter.split(message, "12345678!MSG#Test:");
+
+        assertNull(add("192.168.1.2", fragments.get(0), 0));
+        assertNull(add("192.168.1.2", fragments.get(0), 0));
+        assertEquals(1, reassembler.getPendingMessages());
+        assertArrayEquals(message, add("192.168.1.2", fragments.get(1), 0));
+    }
+
+    @Test
+    public void addShouldKeepMessagesFromDifferentSendersApart() {
+        final byte[] message = createMessage(600);
+        final List<byte[]> fragments = fragmenter.split(message, "12345678!MSG#Test:");
+
+        assertNull(add("192.168.1.2", fragments.get(0), 0));
+        assertNull(add("192.168.1.3", fragments.get(1), 0));
+        assertEquals(2, reassembler.getPendingMessages());
+    }
+
+    @Test
+    public void addShouldUseOffsetAndLength() {
+        final byte[] message = createMessage(600);
+        final List<byte[]> fragments = fragmenter.split(message, "12345678!MSG#Test:");
+
+        assertNull(add("192.168.1.2", fragments.get(0), 0));
+
+        final byte[] data = new byte[fragments.get(1).length + 20];
+        System.arraycopy(fragments.get(1), 0, data, 10, fragments.get(1).length);
+
+        assertArrayEquals(message, reassembler.add("192.168.1.2", data, 10, fragments.get(1).length, 0));
+    }
+
+    @Test
+    public void addShouldThrowAwayMessagesAfterTimeout() {
+        final byte[] message = createMessage(600);
+        final List<byte[]> fragments = fragmenter.split(message, "12345678!MSG#Test:");
+
+        assertNull(add("192.168.1.2", fragments.get(0), 1000));
+        assertNull(add("192.168.1.2", fragments.get(1), 1000 + DatagramReassembler.TIMEOUT));
+
+        assertEquals(1, reassembler.getPendingMessages());
+        assertEquals(fragments.get(1).length - 8, reassembler.getPendingBytes());
+    }
+
+    @Test
+    public void addShouldThrowAwayOldestMessagesWhenThereAreTooMany() {
+        final List<byte[]> first = fragmenter.split(createMessage(600), "12345678!MSG#Test:");
+        assertNull(add("192.168.1.2", first.get(0), 0));
+
+        for (int i = 0; i < DatagramReassembler.MAX_PENDING_MESSAGES; i++) {
+            assertNull(add("192.168.1.2", fragmenter.split(createMessage(600), "12345678!MSG#Test:").get(0), 0));
+        }
+
+        assertEquals(DatagramReassembler.MAX_PENDING_MESSAGES, reassembler.getPendingMessages());
+        assertNull(add("192.168.1.2", first.get(1), 0));
+    }
+
+    @Test
+    public void addShouldThrowAwayOldestMessagesWhenTheyUseTooMuchMemory() {
+        final int messageSize = DatagramFragmenter.FRAGMENT_SIZE * DatagramFragmenter.MAX_FRAGMENTS;
+        final int maxMessages = DatagramReassembler.MAX_PENDING_BYTES / (messageSize - DatagramFragmenter.FRAGMENT_SIZE);
+
+        for (int i = 0; i <= maxMessages; i++) {
+            final List<byte[]> fragments = fragmenter.split(createMessage(messageSize), "12345678!MSG#Test:");
+
+            for (int j = 0; j < fragments.size() - 1; j++) {
+                add("192.168.1.2", fragments.get(j), 0);
+            }
+        }
+
+        assertTrue(reassembler.getPendingBytes() <= DatagramReassembler.MAX_PENDING_BYTES);
+        assertEquals(maxMessages, reassembler.getPendingMessages());
+    }
+
+    @Test
+    public void addShouldIgnoreInvalidFragments() {
+        assertNull(add("192.168.1.2", new byte[] {'1', '2', '3'}, 0));
+        assertNull(add("192.168.1.2", new byte[] {(byte) 0xFE, 1}, 0));
+        assertNull(add("192.168.1.2", new byte[] {(byte) 0xFE, 1, 1, 2, 2, 0}, 0));
+        assertNull(add("192.168.1.2", new byte[] {(byte) 0xFE, 1, 1, 0, 0, 0}, 0));
+        assertNull(add("192.168.1.2", new byte[] {(byte) 0xFE, 1, 1, 0, 17, 0}, 0));
+
+        assertEquals(0, reassembler.getPendingMessages());
+    }
+
+    @Test
+    public void addShouldIgnoreFragmentsWithDifferentCount() {
+        assertNull(add("192.168.1.2", new byte[] {(byte) 0xFE, 1, 1, 0, 2, 'a'}, 0));
+        assertNull(add("192.168.1.2", new byte[] {(byte) 0xFE, 1, 1, 1, 3, 'b'}, 0));
+        assertArrayEquals(new byte[] {'a', 'c'}, add("192.168.1.2", new byte[] {(byte) 0xFE, 1, 1, 1, 2, 'c'}, 0));
+    }
+
+    private byte[] add(final String ipAddress, final byte[] fragment, final long now) {
+        return reassembler.add(ipAddress, fragment, 0, fragment.length, now);
+    }
+
+    private byte[] createMessage(final int size) {
+        final byte[] message = new byte[size];
+        new Random().nextBytes(message);
+
+        return message;
+    }
+}
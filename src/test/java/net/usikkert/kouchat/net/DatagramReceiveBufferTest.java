@@ -0,0 +1,224 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import net.usikkert.kouchat.Constants;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test of {@link DatagramReceiveBuffer}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class DatagramReceiveBufferTest {
+
+    private DatagramReceiveBuffer receiveBuffer;
+    private DatagramSocket socket;
+
+    @Before
+    public void setUp() {
+        receiveBuffer = new DatagramReceiveBuffer();
+        socket = mock(DatagramSocket.class);
+    }
+
+    @Test
+    public void getMessageShouldOnlyDecodeTheReceivedBytes() throws Exception {
+        doAnswer(withPacket("Long message", "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+
+        doAnswer(withPacket("Short", "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+
+        assertEquals("Short", receiveBuffer.getMessage());
+    }
+
+    @Test
+    public void receiveShouldResetLengthToFullBufferBeforeEachPacket() throws Exception {
+        doAnswer(withPacket("Short", "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                final DatagramPacket packet = (DatagramPacket) invocation.getArguments()[0];
+                assertEquals(Constants.NETWORK_PACKET_SIZE, packet.getLength());
+                return null;
+            }
+        }).when(socket).receive(any(DatagramPacket.class));
+
+        receiveBuffer.receive(socket);
+    }
+
+    @Test
+    public void receiveShouldReuseTheSamePacket() throws Exception {
+        final DatagramPacket[] packets = new DatagramPacket[2];
+
+        doAnswer(new Answer<Void>() {
+            private int count;
+
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                packets[count++] = (DatagramPacket) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(socket).receive(any(DatagramPacket.class));
+
+        receiveBuffer.receive(socket);
+        receiveBuffer.receive(socket);
+
+        assertSame(packets[0], packets[1]);
+    }
+
+    @Test
+    public void getMessageShouldStripZeroPaddingAndWhitespace() throws Exception {
+        final byte[] message = "  123!IDLE#Niles: ".getBytes(Constants.MESSAGE_CHARSET);
+        final byte[] padded = Arrays.copyOf(message, message.length + 10);
+
+        doAnswer(withPacket(padded, "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+
+        assertEquals("123!IDLE#Niles:", receiveBuffer.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldDecodeMultiByteCharacters() throws Exception {
+        doAnswer(withPacket("123!MSG#Niles:[-1]Blåbærsyltetøy ☺", "192.168.1.1"))
+                .when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+
+        assertEquals("123!MSG#Niles:[-1]Blåbærsyltetøy ☺", receiveBuffer.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldReturnEmptyStringForOnlyPadding() throws Exception {
+        doAnswer(withPacket(new byte[20], "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+
+        assertEquals("", receiveBuffer.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldDecodeBinaryMessagesIntoText() throws Exception {
+        final byte[] message = BinaryMessageCodec.encode("12345678.9!MSG#Niles:[-1]Blåbærsyltetøy");
+
+        doAnswer(withPacket(message, "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+
+        assertEquals("12345678.9!MSG#Niles:[-1]Blåbærsyltetøy", receiveBuffer.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldReturnNullUntilAllFragmentsHaveArrived() throws Exception {
+        final String message = "12345678!MSG#Niles:[-1]" + repeat('x', 800);
+        final List<byte[]> fragments =
+                new DatagramFragmenter().split(message.getBytes(Constants.MESSAGE_CHARSET), message);
+
+        assertEquals(2, fragments.size());
+
+        doAnswer(withPacket(fragments.get(1), "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+        assertNull(receiveBuffer.getMessage());
+
+        doAnswer(withPacket(fragments.get(0), "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+        assertEquals(message, receiveBuffer.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldDecodeBinaryMessagesFromFragments() throws Exception {
+        final String message = "12345678.3!MSG#Niles:[-1]" + repeat('y', 800);
+        final List<byte[]> fragments = new DatagramFragmenter().split(BinaryMessageCodec.encode(message), message);
+
+        doAnswer(withPacket(fragments.get(0), "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+        assertNull(receiveBuffer.getMessage());
+
+        doAnswer(withPacket(fragments.get(1), "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+        assertEquals(message, receiveBuffer.getMessage());
+    }
+
+    @Test
+    public void getIpAddressShouldReuseTheSameStringForTheSameSender() throws Exception {
+        doAnswer(withPacket("Message", "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+        final String firstIpAddress = receiveBuffer.getIpAddress();
+
+        receiveBuffer.receive(socket);
+        final String secondIpAddress = receiveBuffer.getIpAddress();
+
+        assertEquals("192.168.1.1", firstIpAddress);
+        assertSame(firstIpAddress, secondIpAddress);
+    }
+
+    @Test
+    public void getIpAddressShouldReturnNewIpAddressWhenSenderChanges() throws Exception {
+        doAnswer(withPacket("Message", "192.168.1.1")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+        assertEquals("192.168.1.1", receiveBuffer.getIpAddress());
+
+        doAnswer(withPacket("Message", "192.168.1.2")).when(socket).receive(any(DatagramPacket.class));
+        receiveBuffer.receive(socket);
+        assertEquals("192.168.1.2", receiveBuffer.getIpAddress());
+    }
+
+    private Answer<Void> withPacket(final String message, final String ipAddress) throws Exception {
+        return withPacket(message.getBytes(Constants.MESSAGE_CHARSET), ipAddress);
+    }
+
+    private String repeat(final char character, final int times) {
+        final char[] characters = new char[times];
+        Arrays.fill(characters, character);
+
+        return new String(characters);
+    }
+
+    private Answer<Void> withPacket(final byte[] data, final String ipAddress) {
+        return new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                final DatagramPacket packet = (DatagramPacket) invocation.getArguments()[0];
+
+                System.arraycopy(data, 0, packet.getData(), packet.getOffset(), data.length);
+                packet.setLength(data.length);
+                packet.setAddress(InetAddress.getByName(ipAddress));
+
+                return null;
+            }
+        };
+    }
+}
@@ -361,7 +361,7 @@ public class DefaultMessageResponderTest {
         setUpExistingUser();
 
         responder.clientInfo(100, "swing", 150, "linux",
-                             4000, 5000);
+                             4000, 5000, 1);
 
         final long logonTime = System.currentTimeMillis() - 150;
         // Allow some slack to avoid flaky test
@@ -371,6 +371,9 @@ public class DefaultMessageResponderTest {
         assertEquals("linux", user.getOperatingSystem());
         assertEquals(4000, user.getPrivateChatPort());
         assertEquals(5000, user.getTcpChatPort());
+        assertEquals(1, user.getNetworkCapabilities());
+
+        verify(controller).clientInfoChanged(100);
     }
 
     @Test
@@ -378,13 +381,48 @@ public class DefaultMessageResponderTest {
         setUpUnknownUser();
 
         responder.clientInfo(100, "swing", 150, "linux",
-                             4000, 5000);
+                             4000, 5000, 1);
 
         assertEquals(0, user.getLogonTime());
         assertEquals("<unknown>", user.getClient());
         assertEquals("<unknown>", user.getOperatingSystem());
         assertEquals(0, user.getPrivateChatPort());
         assertEquals(0, user.getTcpChatPort());
+        assertEquals(0, user.getNetworkCapabilities());
+
+        verify(controller, never()).clientInfoChanged(anyInt());
+    }
+
+    @Test
+    public void userIdleShouldUpdateIdleTimeAndTellControllerUserWasSeen() {
+        setUpExistingUser();
+
+        responder.userIdle(100, "192.168.10.123");
+
+        assertTrue(user.getLastIdle() > 0);
+        verify(controller).userSeen(user);
+        verifyZeroInteractions(messageController);
+    }
+
+    @Test
+    public void userIdleShouldUpdateChangedIpAddress() {
+        setUpExistingUser();
+
+        responder.userIdle(100, "192.168.10.124");
+
+        assertEquals("192.168.10.124", user.getIpAddress());
+        verify(messageController).showSystemMessage("Tester changed ip from 192.168.10.123 to 192.168.10.124");
+        verify(controller).userSeen(user);
+    }
+
+    @Test
+    public void userIdleShouldDoNothingOnUnknownUser() {
+        setUpUnknownUser();
+
+        responder.userIdle(100, "192.168.10.123");
+
+        assertEquals(0, user.getLastIdle());
+        verify(controller, never()).userSeen(any(User.class));
     }
 
     private void verifyTopic(final Topic topic, final String expectedTopic, final String expectedNick,
@@ -0,0 +1,242 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.net.InboundRateLimiter.MessageClass;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link InboundRateLimiter}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class InboundRateLimiterTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private InboundRateLimiter rateLimiter;
+
+    @Before
+    public void setUp() {
+        rateLimiter = new InboundRateLimiter();
+    }
+
+    @Test
+    public void allowShouldThrowExceptionIfSenderIsEmpty() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Sender can not be empty");
+
+        rateLimiter.allow("", MessageClass.CHAT, 1000);
+    }
+
+    @Test
+    public void allowShouldThrowExceptionIfMessageClassIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message class can not be null");
+
+        rateLimiter.allow("123", null, 1000);
+    }
+
+    @Test
+    public void allowShouldAcceptBurstAndThenShed() {
+        for (int i = 0; i < MessageClass.STATUS.getBurst(); i++) {
+            assertTrue(rateLimiter.allow("123", MessageClass.STATUS, 1000));
+        }
+
+        assertFalse(rateLimiter.allow("123", MessageClass.STATUS, 1000));
+        assertFalse(rateLimiter.allow("123", MessageClass.STATUS, 1000));
+
+        assertEquals(2, rateLimiter.getShedCount());
+        assertEquals(2, rateLimiter.getShedCount(MessageClass.STATUS));
+        assertEquals(0, rateLimiter.getShedCount(MessageClass.CHAT));
+    }
+
+    @Test
+    public void allowShouldRefillAtTheRateOfTheClass() {
+        useAllTokens("123", MessageClass.DISCOVERY, 1000);
+
+        // 5 per second is one every 200 ms
+        assertFalse(rateLimiter.allow("123", MessageClass.DISCOVERY, 1199));
+        assertTrue(rateLimiter.allow("123", MessageClass.DISCOVERY, 1200));
+        assertFalse(rateLimiter.allow("123", MessageClass.DISCOVERY, 1200));
+        assertTrue(rateLimiter.allow("123", MessageClass.DISCOVERY, 1400));
+    }
+
+    @Test
+    public void allowShouldNotRefillMoreThanTheBurst() {
+        useAllTokens("123", MessageClass.DISCOVERY, 1000);
+
+        for (int i = 0; i < MessageClass.DISCOVERY.getBurst(); i++) {
+            assertTrue(rateLimiter.allow("123", MessageClass.DISCOVERY, 1000000));
+        }
+
+        assertFalse(rateLimiter.allow("123", MessageClass.DISCOVERY, 1000000));
+    }
+
+    @Test
+    public void allowShouldNotRefillWhenClockGoesBackwards() {
+        useAllTokens("123", MessageClass.DISCOVERY, 1000);
+
+        assertFalse(rateLimiter.allow("123", MessageClass.DISCOVERY, 500));
+        assertFalse(rateLimiter.allow("123", MessageClass.DISCOVERY, 600));
+        assertTrue(rateLimiter.allow("123", MessageClass.DISCOVERY, 700));
+    }
+
+    @Test
+    public void eachClassShouldHaveSeparateBudget() {
+        useAllTokens("123", MessageClass.STATUS, 1000);
+
+        assertFalse(rateLimiter.allow("123", MessageClass.STATUS, 1000));
+        assertTrue(rateLimiter.allow("123", MessageClass.CHAT, 1000));
+        assertTrue(rateLimiter.allow("123", MessageClass.FILE, 1000));
+    }
+
+    @Test
+    public void eachSenderShouldHaveSeparateBudget() {
+        useAllTokens("123", MessageClass.CHAT, 1000);
+
+        assertFalse(rateLimiter.allow("123", MessageClass.CHAT, 1000));
+        assertTrue(rateLimiter.allow("456", MessageClass.CHAT, 1000));
+    }
+
+    @Test
+    public void removeShouldGiveSenderFreshBudget() {
+        useAllTokens("123", MessageClass.CHAT, 1000);
+        rateLimiter.remove("123");
+
+        assertTrue(rateLimiter.allow("123", MessageClass.CHAT, 1000));
+        assertEquals(1, rateLimiter.size());
+    }
+
+    @Test
+    public void shouldOnlyRememberTheMostRecentSenders() {
+        for (int i = 0; i < InboundRateLimiter.MAX_SENDERS + 10; i++) {
+            rateLimiter.allow(String.valueOf(i), MessageClass.CHAT, 1000);
+        }
+
+        assertEquals(InboundRateLimiter.MAX_SENDERS, rateLimiter.size());
+    }
+
+    @Test
+    public void getShedCountsShouldIncludeClassesAndSendersWithShedMessages() {
+        useAllTokens("123", MessageClass.CHAT, 1000);
+        rateLimiter.allow("123", MessageClass.CHAT, 1000);
+        rateLimiter.allow("456", MessageClass.CHAT, 1000);
+
+        assertArrayEquals(new String[] {"CHAT: 1", "STATUS: 0", "DISCOVERY: 0", "FILE: 0", "CONTROL: 0", "123: 1"},
+                          rateLimiter.getShedCounts());
+    }
+
+    @Test
+    public void allowWithUserCodeShouldShedWhenBucketIsEmpty() {
+        for (int i = 0; i < MessageClass.STATUS.getBurst(); i++) {
+            assertTrue(rateLimiter.allow(123, MessageClass.STATUS, 1000));
+        }
+
+        assertFalse(rateLimiter.allow(123, MessageClass.STATUS, 1000));
+        assertTrue(rateLimiter.allow(456, MessageClass.STATUS, 1000));
+        assertTrue(rateLimiter.allow("123", MessageClass.STATUS, 1000));
+        assertEquals(1, rateLimiter.getShedCount(MessageClass.STATUS));
+    }
+
+    @Test
+    public void removeWithUserCodeShouldGiveUserFreshBudget() {
+        for (int i = 0; i < MessageClass.CHAT.getBurst(); i++) {
+            rateLimiter.allow(123, MessageClass.CHAT, 1000);
+        }
+
+        rateLimiter.remove(123);
+
+        assertTrue(rateLimiter.allow(123, MessageClass.CHAT, 1000));
+        assertEquals(1, rateLimiter.size());
+    }
+
+    @Test
+    public void knownUsersShouldBeRememberedUntilRemoved() {
+        final int userCount = InboundRateLimiter.MAX_SENDERS * 4;
+
+        for (int code = 0; code < userCount; code++) {
+            useAllTokens(code, MessageClass.CHAT, 1000);
+        }
+
+        assertEquals(userCount, rateLimiter.size());
+
+        // Removes every other user, to move the users after them in the table
+        for (int code = 0; code < userCount; code += 2) {
+            rateLimiter.remove(code);
+        }
+
+        assertEquals(userCount / 2, rateLimiter.size());
+
+        for (int code = 0; code < userCount; code++) {
+            assertEquals(code % 2 == 0, rateLimiter.allow(code, MessageClass.CHAT, 1000));
+        }
+    }
+
+    @Test
+    public void getShedCountsShouldIncludeKnownUsersWithShedMessages() {
+        useAllTokens(123, MessageClass.CHAT, 1000);
+        rateLimiter.allow(123, MessageClass.CHAT, 1000);
+        rateLimiter.allow(456, MessageClass.CHAT, 1000);
+
+        assertArrayEquals(new String[] {"CHAT: 1", "STATUS: 0", "DISCOVERY: 0", "FILE: 0", "CONTROL: 0", "123: 1"},
+                          rateLimiter.getShedCounts());
+    }
+
+    @Test
+    public void getMessageClassShouldClassifyByType() {
+        assertEquals(MessageClass.CHAT, getMessageClass("123!MSG#Test:[1]Hello"));
+        assertEquals(MessageClass.CHAT, getMessageClass("123!PRIVMSG#Test:(1)[1]Hello"));
+        assertEquals(MessageClass.STATUS, getMessageClass("123!WRITING#Test:"));
+        assertEquals(MessageClass.STATUS, getMessageClass("123!IDLE#Test:"));
+        assertEquals(MessageClass.DISCOVERY, getMessageClass("123!EXPOSING#Test:"));
+        assertEquals(MessageClass.DISCOVERY, getMessageClass("123!LOGON#Test:"));
+        assertEquals(MessageClass.FILE, getMessageClass("123!SENDFILE#Test:"));
+        assertEquals(MessageClass.CONTROL, getMessageClass("123!NACK#Test:(1)[1]{2}"));
+        assertEquals(MessageClass.CONTROL, getMessageClass("123!UNKNOWN#Test:"));
+    }
+
+    private MessageClass getMessageClass(final String message) {
+        return InboundRateLimiter.getMessageClass(new MessageView().wrap(message));
+    }
+
+    private void useAllTokens(final String sender, final MessageClass messageClass, final long now) {
+        for (int i = 0; i < messageClass.getBurst(); i++) {
+            assertTrue(rateLimiter.allow(sender, messageClass, now));
+        }
+    }
+
+    private void useAllTokens(final int userCode, final MessageClass messageClass, final long now) {
+        for (int i = 0; i < messageClass.getBurst(); i++) {
+            assertTrue(rateLimiter.allow(userCode, messageClass, now));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test of {@link MessageBatcher}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageBatcherTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageBatcher batcher;
+
+    private MessageBatcher.BatchSender batchSender;
+
+    @Before
+    public void setUp() {
+        batchSender = mock(MessageBatcher.BatchSender.class);
+        batcher = new MessageBatcher(60000, batchSender);
+    }
+
+    @After
+    public void tearDown() {
+        batcher.stop();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfWindowIsZero() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Window must be positive");
+
+        new MessageBatcher(0, batchSender);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfBatchSenderIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Batch sender can not be null");
+
+        new MessageBatcher(10, null);
+    }
+
+    @Test
+    public void isBatchableShouldAcceptSmallControlMessages() {
+        assertTrue(batcher.isBatchable("12345678!IDLE#Test:"));
+        assertTrue(batcher.isBatchable("12345678!WRITING#Test:"));
+        assertTrue(batcher.isBatchable("12345678!STOPPEDWRITING#Test:"));
+        assertTrue(batcher.isBatchable("12345678!AWAY#Test:Gone"));
+        assertTrue(batcher.isBatchable("12345678!BACK#Test:"));
+        assertTrue(batcher.isBatchable("12345678!EXPOSING#Test:"));
+    }
+
+    @Test
+    public void isBatchableShouldNotAcceptOtherMessages() {
+        assertFalse(batcher.isBatchable("12345678!MSG#Test:[1]Hello"));
+        assertFalse(batcher.isBatchable("12345678!LOGOFF#Test:"));
+        assertFalse(batcher.isBatchable("12345678!BATCH#Test:"));
+        assertFalse(batcher.isBatchable("12345678!IDLE"));
+        assertFalse(batcher.isBatchable("Hello#IDLE"));
+    }
+
+    @Test
+    public void addShouldWaitForTheWindow() {
+        batcher.add("12345678!IDLE#Test:");
+
+        verifyZeroInteractions(batchSender);
+    }
+
+    @Test
+    public void flushShouldSendSingleMessageWithoutBatch() {
+        batcher.add("12345678!IDLE#Test:");
+        batcher.flush();
+
+        verify(batchSender).sendBatch("12345678!IDLE#Test:");
+    }
+
+    @Test
+    public void flushShouldSendMessagesTogetherInOrder() {
+        batcher.add("12345678!WRITING#Test:");
+        batcher.add("12345678!STOPPEDWRITING#Test:");
+        batcher.flush();
+
+        verify(batchSender).sendBatch(
+                "12345678!BATCH#Test:22;12345678!WRITING#Test:29;12345678!STOPPEDWRITING#Test:");
+    }
+
+    @Test
+    public void flushShouldDoNothingWithoutPendingMessages() {
+        batcher.flush();
+
+        verifyZeroInteractions(batchSender);
+    }
+
+    @Test
+    public void flushShouldOnlySendPendingMessagesOnce() {
+        batcher.add("12345678!IDLE#Test:");
+        batcher.flush();
+        batcher.flush();
+
+        verify(batchSender).sendBatch(anyString());
+    }
+
+    @Test
+    public void batchShouldBeSentWhenTheWindowIsOver() {
+        final MessageBatcher shortBatcher = new MessageBatcher(10, batchSender);
+
+        shortBatcher.add("12345678!IDLE#Test:");
+        shortBatcher.add("12345678!BACK#Test:");
+
+        verify(batchSender, timeout(2000)).sendBatch(
+                "12345678!BATCH#Test:19;12345678!IDLE#Test:19;12345678!BACK#Test:");
+
+        shortBatcher.stop();
+    }
+
+    @Test
+    public void batchShouldBeSentBeforeGettingLargerThanOnePacket() {
+        final String awayMessage = "12345678!AWAY#Test:" + repeat('a', 200);
+
+        batcher.add(awayMessage);
+        batcher.add(awayMessage);
+        batcher.add(awayMessage);
+
+        final ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(batchSender).sendBatch(captor.capture());
+
+        assertTrue(captor.getValue().startsWith("12345678!BATCH#Test:219;"));
+        assertTrue(captor.getValue().length() <= Constants.NETWORK_PACKET_SIZE);
+        assertEquals(2, MessageBatcher.unpack(new MessageView().wrap(captor.getValue())).size());
+
+        batcher.flush();
+
+        verify(batchSender).sendBatch(awayMessage);
+    }
+
+    @Test
+    public void messageTooLargeForBatchShouldBeSentAlone() {
+        final String awayMessage = "12345678!AWAY#Test:" + repeat('a', 500);
+
+        batcher.add("12345678!IDLE#Test:");
+        batcher.add(awayMessage);
+
+        verify(batchSender).sendBatch("12345678!IDLE#Test:");
+        verify(batchSender).sendBatch(awayMessage);
+    }
+
+    @Test
+    public void stopShouldThrowAwayPendingMessages() {
+        batcher.add("12345678!IDLE#Test:");
+        batcher.stop();
+        batcher.flush();
+
+        verifyZeroInteractions(batchSender);
+    }
+
+    @Test
+    public void unpackShouldReturnMessagesInOrder() {
+        final List<String> messages = MessageBatcher.unpack(new MessageView().wrap(
+                "12345678.5!BATCH#Test:19;12345678!IDLE#Test:24;12345678!AWAY#Test:Gone;"));
+
+        assertEquals(Arrays.asList("12345678!IDLE#Test:", "12345678!AWAY#Test:Gone;"), messages);
+    }
+
+    @Test
+    public void unpackShouldReadWhatTheBatcherCreates() {
+        batcher.add("12345678!WRITING#Tést:");
+        batcher.add("12345678!AWAY#Tést:12;34:56");
+        batcher.flush();
+
+        final ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(batchSender).sendBatch(captor.capture());
+
+        assertEquals(Arrays.asList("12345678!WRITING#Tést:", "12345678!AWAY#Tést:12;34:56"),
+                     MessageBatcher.unpack(new MessageView().wrap(captor.getValue())));
+    }
+
+    @Test
+    public void unpackShouldStopAtInvalidFraming() {
+        assertEquals(Arrays.asList("12345678!IDLE#Test:"), MessageBatcher.unpack(new MessageView().wrap(
+                "12345678!BATCH#Test:19;12345678!IDLE#Test:x;12345678!BACK#Test:")));
+        assertEquals(Arrays.asList("12345678!IDLE#Test:"), MessageBatcher.unpack(new MessageView().wrap(
+                "12345678!BATCH#Test:19;12345678!IDLE#Test:99;12345678!BACK#Test:")));
+        assertEquals(Arrays.asList("12345678!IDLE#Test:"), MessageBatcher.unpack(new MessageView().wrap(
+                "12345678!BATCH#Test:19;12345678!IDLE#Test:18")));
+        assertTrue(MessageBatcher.unpack(new MessageView().wrap("12345678!BATCH#Test:0;")).isEmpty());
+        assertTrue(MessageBatcher.unpack(new MessageView().wrap("12345678!BATCH#Test:")).isEmpty());
+    }
+
+    @Test
+    public void isBatchableShouldCheckTheTypeOfTheView() {
+        assertTrue(batcher.isBatchable(new MessageView().wrap("12345678!IDLE#Test:")));
+        assertFalse(batcher.isBatchable(new MessageView().wrap("12345678!IDLER#Test:")));
+        assertFalse(batcher.isBatchable(new MessageView().wrap("12345678!MSG#Test:[1]Hello")));
+    }
+
+    @Test(timeout = 10000)
+    public void addShouldNotWaitForSlowSendInAnotherThread() throws InterruptedException {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                sending.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(batchSender).sendBatch("12345678!IDLE#Test:");
+
+        batcher.add("12345678!IDLE#Test:");
+
+        final Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                batcher.flush();
+            }
+        });
+
+        flusher.start();
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+        // Would wait for the slow send if it was done while holding the lock
+        batcher.add("12345678!BACK#Test:");
+
+        release.countDown();
+        flusher.join();
+        batcher.flush();
+
+        final InOrder inOrder = inOrder(batchSender);
+        inOrder.verify(batchSender).sendBatch("12345678!IDLE#Test:");
+        inOrder.verify(batchSender).sendBatch("12345678!BACK#Test:");
+    }
+
+    private String repeat(final char character, final int times) {
+        final char[] characters = new char[times];
+        Arrays.fill(characters, character);
+
+        return new String(characters);
+    }
+}
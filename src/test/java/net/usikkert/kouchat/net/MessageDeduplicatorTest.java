@@ -0,0 +1,444 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.misc.UserList;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Test of {@link MessageDeduplicator}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageDeduplicatorTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageDeduplicator deduplicator;
+
+    private Controller controller;
+    private MessageEnvelopeListener mainChatListener;
+    private MessageEnvelopeListener privateChatListener;
+    private User user;
+
+    @Before
+    public void setUp() {
+        controller = mock(Controller.class);
+        mainChatListener = mock(MessageEnvelopeListener.class);
+        privateChatListener = mock(MessageEnvelopeListener.class);
+        user = new User("Test", 12345678);
+
+        when(controller.getUser(12345678)).thenReturn(user);
+        when(controller.getUserList()).thenReturn(mock(UserList.class));
+
+        deduplicator = new MessageDeduplicator(controller);
+        deduplicator.registerMainChatReceiverListener(mainChatListener);
+        deduplicator.registerPrivateChatReceiverListener(privateChatListener);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfControllerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Controller can not be null");
+
+        new MessageDeduplicator(null);
+    }
+
+    @Test
+    public void multicastMessageShouldBeForwardedAsParsedEnvelope() {
+        deduplicator.messageArrived("12345678!MSG#Test:[-15987646]Hello", "192.168.1.2");
+
+        final MessageEnvelope envelope = captureEnvelope(mainChatListener);
+
+        assertEquals(12345678, envelope.getCode());
+        assertTrue(envelope.isType("MSG"));
+        assertEquals("192.168.1.2", envelope.getIpAddress());
+        assertSame(user, envelope.getUser());
+        assertEquals("[-15987646]Hello", envelope.getView().getPayload());
+
+        verify(controller).getUser(12345678);
+        verifyZeroInteractions(privateChatListener);
+    }
+
+    @Test
+    public void eachForwardedEnvelopeShouldKeepItsOwnView() {
+        deduplicator.messageArrived("12345678!MSG#Test:[1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("12345678!AWAY#Test:Gone", "192.168.1.2");
+
+        final ArgumentCaptor<MessageEnvelope> captor = ArgumentCaptor.forClass(MessageEnvelope.class);
+        verify(mainChatListener, times(2)).messageArrived(captor.capture());
+
+        final MessageEnvelope first = captor.getAllValues().get(0);
+        final MessageEnvelope second = captor.getAllValues().get(1);
+
+        assertNotSame(first.getView(), second.getView());
+        assertTrue(first.isType("MSG"));
+        assertEquals("[1]Hello", first.getView().getPayload());
+        assertTrue(second.isType("AWAY"));
+        assertEquals("Gone", second.getView().getPayload());
+    }
+
+    @Test
+    public void multicastMessageFromUnknownUserShouldBeForwardedWithoutUser() {
+        deduplicator.messageArrived("87654321!LOGON#Unknown:", "192.168.1.3");
+
+        final MessageEnvelope envelope = captureEnvelope(mainChatListener);
+
+        assertEquals(87654321, envelope.getCode());
+        assertNull(envelope.getUser());
+    }
+
+    @Test
+    public void multicastMessageShouldBeIgnoredWhenUserHasTcp() {
+        user.setTcpEnabled(true);
+
+        deduplicator.messageArrived("12345678!MSG#Test:[-15987646]Hello", "192.168.1.2");
+
+        verifyZeroInteractions(mainChatListener, privateChatListener);
+    }
+
+    @Test
+    public void tcpMessageShouldBeForwardedWhenUserHasTcp() {
+        user.setTcpEnabled(true);
+
+        deduplicator.messageArrived("12345678!MSG#Test:[-15987646]Hello", "192.168.1.2", user);
+
+        assertSame(user, captureEnvelope(mainChatListener).getUser());
+        verify(controller, never()).getUser(anyInt());
+    }
+
+    @Test
+    public void tcpMessageShouldBeIgnoredWhenUserDoesNotHaveTcp() {
+        deduplicator.messageArrived("12345678!MSG#Test:[-15987646]Hello", "192.168.1.2", user);
+
+        verifyZeroInteractions(mainChatListener, privateChatListener);
+    }
+
+    @Test
+    public void privateMessageShouldBeForwardedToPrivateChatListener() {
+        deduplicator.messageArrived("12345678!PRIVMSG#Test:(87654321)[-15987646]Hello", "192.168.1.2");
+
+        final MessageEnvelope envelope = captureEnvelope(privateChatListener);
+
+        assertTrue(envelope.isType("PRIVMSG"));
+        verifyZeroInteractions(mainChatListener);
+    }
+
+    @Test
+    public void malformedMessageShouldBeForwardedUnparsedToMainChatListener() {
+        deduplicator.messageArrived("Error", "192.168.1.2");
+
+        verify(mainChatListener).messageArrived("Error", "192.168.1.2");
+        verify(mainChatListener, never()).messageArrived(any(MessageEnvelope.class));
+        verify(controller, never()).getUser(anyInt());
+        verifyZeroInteractions(privateChatListener);
+    }
+
+    @Test
+    public void malformedTcpMessageShouldBeForwardedUnparsedToMainChatListener() {
+        user.setTcpEnabled(true);
+
+        deduplicator.messageArrived("a12345678!MSG#Test:", "192.168.1.2", user);
+
+        verify(mainChatListener).messageArrived("a12345678!MSG#Test:", "192.168.1.2");
+    }
+
+    @Test
+    public void eachMessageShouldGetItsOwnView() {
+        deduplicator.messageArrived("12345678!MSG#Test:[1]First", "192.168.1.2");
+        deduplicator.messageArrived("12345678!MSG#Test:[1]Second", "192.168.1.2");
+
+        final ArgumentCaptor<MessageEnvelope> captor = ArgumentCaptor.forClass(MessageEnvelope.class);
+        verify(mainChatListener, times(2)).messageArrived(captor.capture());
+
+        assertEquals("[1]First", captor.getAllValues().get(0).getView().getPayload());
+        assertEquals("[1]Second", captor.getAllValues().get(1).getView().getPayload());
+    }
+
+    @Test
+    public void constructorShouldListenForChangesToUserList() {
+        verify(controller.getUserList()).addUserListListener(deduplicator);
+    }
+
+    @Test
+    public void firstCopyOfMessageWithSequenceShouldBeForwardedFromMulticast() {
+        user.setTcpEnabled(true);
+
+        deduplicator.messageArrived("12345678.1!MSG#Test:[1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("12345678.1!MSG#Test:[1]Hello", "192.168.1.2", user);
+
+        final MessageEnvelope envelope = captureEnvelope(mainChatListener);
+
+        assertTrue(envelope.getView().hasSequence());
+        assertEquals(1, envelope.getView().getSequence());
+    }
+
+    @Test
+    public void firstCopyOfMessageWithSequenceShouldBeForwardedFromTcp() {
+        deduplicator.messageArrived("12345678.1!MSG#Test:[1]Hello", "192.168.1.2", user);
+        deduplicator.messageArrived("12345678.1!MSG#Test:[1]Hello", "192.168.1.2");
+
+        assertSame(user, captureEnvelope(mainChatListener).getUser());
+    }
+
+    @Test
+    public void messagesWithDifferentSequenceShouldAllBeForwarded() {
+        deduplicator.messageArrived("12345678.2!MSG#Test:[1]Second", "192.168.1.2");
+        deduplicator.messageArrived("12345678.1!MSG#Test:[1]First", "192.168.1.2");
+        deduplicator.messageArrived("12345678.3!PRIVMSG#Test:(1)[1]Third", "192.168.1.2", user);
+
+        verify(mainChatListener, times(2)).messageArrived(any(MessageEnvelope.class));
+        verify(privateChatListener).messageArrived(any(MessageEnvelope.class));
+    }
+
+    @Test
+    public void sameSequenceFromDifferentUsersShouldBothBeForwarded() {
+        deduplicator.messageArrived("12345678.1!MSG#Test:[1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("87654321.1!MSG#Other:[1]Hello", "192.168.1.3");
+
+        verify(mainChatListener, times(2)).messageArrived(any(MessageEnvelope.class));
+    }
+
+    @Test
+    public void userRemovedShouldForgetSequenceNumbersOfUser() {
+        deduplicator.messageArrived("12345678.1!MSG#Test:[1]Hello", "192.168.1.2");
+        deduplicator.userRemoved(0, user);
+        deduplicator.messageArrived("12345678.1!MSG#Test:[1]Hello", "192.168.1.2");
+
+        verify(mainChatListener, times(2)).messageArrived(any(MessageEnvelope.class));
+    }
+
+    @Test
+    public void batchShouldBeUnpackedIntoSeparateEnvelopes() {
+        deduplicator.messageArrived("12345678.4!BATCH#Test:19;12345678!IDLE#Test:23;12345678!AWAY#Test:Gone",
+                                    "192.168.1.2");
+
+        final ArgumentCaptor<MessageEnvelope> captor = ArgumentCaptor.forClass(MessageEnvelope.class);
+        verify(mainChatListener, times(2)).messageArrived(captor.capture());
+
+        final MessageEnvelope idle = captor.getAllValues().get(0);
+        assertEquals("12345678!IDLE#Test:", idle.getMessage());
+        assertEquals("192.168.1.2", idle.getIpAddress());
+        assertSame(user, idle.getUser());
+
+        final MessageEnvelope away = captor.getAllValues().get(1);
+        assertTrue(away.isType("AWAY"));
+        assertEquals("Gone", away.getView().getPayload());
+    }
+
+    @Test
+    public void copyOfBatchShouldBeIgnored() {
+        user.setTcpEnabled(true);
+
+        deduplicator.messageArrived("12345678.4!BATCH#Test:19;12345678!IDLE#Test:", "192.168.1.2", user);
+        deduplicator.messageArrived("12345678.4!BATCH#Test:19;12345678!IDLE#Test:", "192.168.1.2");
+
+        verify(mainChatListener).messageArrived(any(MessageEnvelope.class));
+    }
+
+    @Test
+    public void messagesFromOtherUsersInBatchShouldBeIgnored() {
+        deduplicator.messageArrived("12345678!BATCH#Test:20;87654321!IDLE#Other:19;12345678!IDLE#Test:",
+                                    "192.168.1.2");
+
+        assertEquals(12345678, captureEnvelope(mainChatListener).getCode());
+    }
+
+    @Test
+    public void malformedMessageInBatchShouldBeForwardedUnparsedToMainChatListener() {
+        deduplicator.messageArrived("12345678!BATCH#Test:5;Hello", "192.168.1.2");
+
+        verify(mainChatListener).messageArrived("Hello", "192.168.1.2");
+        verify(mainChatListener, never()).messageArrived(any(MessageEnvelope.class));
+    }
+
+    @Test
+    public void privateMessagesShouldBeNumberedSeparatelyFromMessagesToAllUsers() {
+        deduplicator.messageArrived("12345678.1!MSG#Test:[1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("12345678.1!PRIVMSG#Test:(1)[1]Hello", "192.168.1.2");
+
+        verify(mainChatListener).messageArrived(any(MessageEnvelope.class));
+        verify(privateChatListener).messageArrived(any(MessageEnvelope.class));
+    }
+
+    @Test
+    public void numberedMessagesToAllUsersShouldBeReportedToReliableMulticast() {
+        final ReliableMulticast reliableMulticast = mock(ReliableMulticast.class);
+        final User me = new User("Me", 11111111);
+        deduplicator = new MessageDeduplicator(controller, reliableMulticast, null, me);
+        user.setNetworkCapabilities(NetworkCapability.NACK.getFlag());
+
+        deduplicator.messageArrived("12345678.7!MSG#Test:[1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("12345678.8!PRIVMSG#Test:(1)[1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("12345678!IDLE#Test:", "192.168.1.2");
+
+        verify(reliableMulticast).messageArrived(eq(12345678), eq(7), anyLong());
+        verifyNoMoreInteractions(reliableMulticast);
+    }
+
+    @Test
+    public void numberedMessagesShouldNotBeReportedToReliableMulticastIfUserDoesNotSupportIt() {
+        final ReliableMulticast reliableMulticast = mock(ReliableMulticast.class);
+        deduplicator = new MessageDeduplicator(controller, reliableMulticast, null, new User("Me", 11111111));
+
+        deduplicator.messageArrived("12345678.7!MSG#Test:[1]Hello", "192.168.1.2");
+
+        verifyZeroInteractions(reliableMulticast);
+    }
+
+    @Test
+    public void nackShouldBeHandledByReliableMulticastAndNotForwarded() {
+        final ReliableMulticast reliableMulticast = mock(ReliableMulticast.class);
+        deduplicator = new MessageDeduplicator(controller, reliableMulticast, null, new User("Me", 11111111));
+        deduplicator.registerMainChatReceiverListener(mainChatListener);
+
+        deduplicator.messageArrived("12345678!NACK#Test:(11111111)[1]{2}", "192.168.1.2");
+
+        verify(reliableMulticast).nackArrived(any(MessageView.class), eq(11111111), anyLong());
+        verifyZeroInteractions(mainChatListener);
+    }
+
+    @Test
+    public void ownNackShouldBeIgnored() {
+        final ReliableMulticast reliableMulticast = mock(ReliableMulticast.class);
+        deduplicator = new MessageDeduplicator(controller, reliableMulticast, null, new User("Test", 12345678));
+        deduplicator.registerMainChatReceiverListener(mainChatListener);
+
+        deduplicator.messageArrived("12345678!NACK#Test:(87654321)[1]{2}", "192.168.1.2");
+
+        verifyZeroInteractions(reliableMulticast, mainChatListener);
+    }
+
+    @Test
+    public void messagesShouldBeShedIfRateLimiterDoesNotAllowThem() {
+        final InboundRateLimiter rateLimiter = mock(InboundRateLimiter.class);
+        deduplicator = new MessageDeduplicator(controller, null, rateLimiter, null);
+        deduplicator.registerMainChatReceiverListener(mainChatListener);
+
+        deduplicator.messageArrived("12345678!MSG#Test:[1]Hello", "192.168.1.2");
+
+        verify(rateLimiter).allow(eq(12345678), eq(InboundRateLimiter.MessageClass.CHAT), anyLong());
+        verifyZeroInteractions(mainChatListener);
+    }
+
+    @Test
+    public void messagesShouldBeForwardedIfRateLimiterAllowsThem() {
+        final InboundRateLimiter rateLimiter = mock(InboundRateLimiter.class);
+        when(rateLimiter.allow(anyInt(), any(InboundRateLimiter.MessageClass.class), anyLong())).thenReturn(true);
+        deduplicator = new MessageDeduplicator(controller, null, rateLimiter, null);
+        deduplicator.registerMainChatReceiverListener(mainChatListener);
+
+        deduplicator.messageArrived("12345678!IDLE#Test:", "192.168.1.2");
+
+        verify(rateLimiter).allow(eq(12345678), eq(InboundRateLimiter.MessageClass.STATUS), anyLong());
+        verify(mainChatListener).messageArrived(any(MessageEnvelope.class));
+    }
+
+    @Test
+    public void messagesFromUnknownUsersShouldBeRateLimitedByIpAddress() {
+        final InboundRateLimiter rateLimiter = mock(InboundRateLimiter.class);
+        deduplicator = new MessageDeduplicator(controller, null, rateLimiter, null);
+
+        deduplicator.messageArrived("87654321!EXPOSING#Other:", "192.168.1.3");
+
+        verify(rateLimiter).allow(eq("192.168.1.3"), eq(InboundRateLimiter.MessageClass.DISCOVERY), anyLong());
+    }
+
+    @Test
+    public void unparsedMessagesShouldBeRateLimitedByIpAddress() {
+        final InboundRateLimiter rateLimiter = mock(InboundRateLimiter.class);
+        deduplicator = new MessageDeduplicator(controller, null, rateLimiter, null);
+        deduplicator.registerMainChatReceiverListener(mainChatListener);
+
+        deduplicator.messageArrived("garbage", "192.168.1.3");
+
+        verify(rateLimiter).allow(eq("192.168.1.3"), eq(InboundRateLimiter.MessageClass.CONTROL), anyLong());
+        verifyZeroInteractions(mainChatListener);
+    }
+
+    @Test
+    public void duplicatesShouldNotCountAgainstTheRateLimit() {
+        final InboundRateLimiter rateLimiter = mock(InboundRateLimiter.class);
+        deduplicator = new MessageDeduplicator(controller, null, rateLimiter, null);
+
+        deduplicator.messageArrived("12345678.1!MSG#Test:[1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("12345678.1!MSG#Test:[1]Hello", "192.168.1.2", user);
+
+        verify(rateLimiter, times(1)).allow(anyInt(), any(InboundRateLimiter.MessageClass.class), anyLong());
+    }
+
+    @Test
+    public void messagesFromMeShouldNeverBeRateLimited() {
+        final InboundRateLimiter rateLimiter = mock(InboundRateLimiter.class);
+        user.setMe(true);
+        deduplicator = new MessageDeduplicator(controller, null, rateLimiter, user);
+        deduplicator.registerMainChatReceiverListener(mainChatListener);
+
+        deduplicator.messageArrived("12345678!MSG#Test:[1]Hello", "192.168.1.2");
+
+        verifyZeroInteractions(rateLimiter);
+        verify(mainChatListener).messageArrived(any(MessageEnvelope.class));
+    }
+
+    @Test
+    public void eachMessageInBatchShouldBeRateLimited() {
+        final InboundRateLimiter rateLimiter = mock(InboundRateLimiter.class);
+        when(rateLimiter.allow(anyInt(), eq(InboundRateLimiter.MessageClass.STATUS), anyLong())).thenReturn(true, false);
+        deduplicator = new MessageDeduplicator(controller, null, rateLimiter, null);
+        deduplicator.registerMainChatReceiverListener(mainChatListener);
+
+        deduplicator.messageArrived("12345678!BATCH#Test:19;12345678!IDLE#Test:19;12345678!IDLE#Test:", "192.168.1.2");
+
+        verify(rateLimiter, times(2)).allow(eq(12345678), eq(InboundRateLimiter.MessageClass.STATUS), anyLong());
+        verify(mainChatListener).messageArrived(any(MessageEnvelope.class));
+    }
+
+    @Test
+    public void userRemovedShouldForgetUserInRateLimiter() {
+        final InboundRateLimiter rateLimiter = mock(InboundRateLimiter.class);
+        deduplicator = new MessageDeduplicator(controller, null, rateLimiter, null);
+
+        deduplicator.userRemoved(0, user);
+
+        verify(rateLimiter).remove(12345678);
+    }
+
+    private MessageEnvelope captureEnvelope(final MessageEnvelopeListener listener) {
+        final ArgumentCaptor<MessageEnvelope> captor = ArgumentCaptor.forClass(MessageEnvelope.class);
+        verify(listener).messageArrived(captor.capture());
+
+        return captor.getValue();
+    }
+}
@@ -0,0 +1,546 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageLanes}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageLanesTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageLanes messageLanes;
+    private MessageEnvelopeListener listener;
+
+    @Before
+    public void setUp() {
+        messageLanes = new MessageLanes(4);
+        listener = mock(MessageEnvelopeListener.class);
+        messageLanes.registerReceiverListener(listener);
+    }
+
+    @After
+    public void tearDown() {
+        messageLanes.stop();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfLaneCountIsZero() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Lane count must be positive");
+
+        new MessageLanes(0);
+    }
+
+    @Test
+    public void messageArrivedShouldDeliverInCallingThreadWhenNotStarted() {
+        final MessageEnvelope envelope = createEnvelope("123!MSG#User:[1]Hello");
+
+        messageLanes.messageArrived(envelope);
+        messageLanes.messageArrived("bad message", "192.168.1.2");
+
+        verify(listener).messageArrived(envelope);
+        verify(listener).messageArrived("bad message", "192.168.1.2");
+    }
+
+    @Test
+    public void messageArrivedShouldNotFailWithoutListener() {
+        final MessageLanes lanesWithoutListener = new MessageLanes(2);
+
+        lanesWithoutListener.messageArrived(createEnvelope("123!MSG#User:[1]Hello"));
+        lanesWithoutListener.messageArrived("bad message", "192.168.1.2");
+    }
+
+    @Test
+    public void startAndStopShouldUpdateRunning() {
+        assertFalse(messageLanes.isRunning());
+
+        messageLanes.start();
+        assertTrue(messageLanes.isRunning());
+        messageLanes.start();
+        assertTrue(messageLanes.isRunning());
+
+        messageLanes.stop();
+        assertFalse(messageLanes.isRunning());
+        messageLanes.stop();
+        assertFalse(messageLanes.isRunning());
+    }
+
+    @Test
+    public void getLaneShouldBeTheSameForTheSameUserAndWithinTheLanes() {
+        final int[] codes = {0, 1, 123, 12345678, -1, -987654, Integer.MAX_VALUE, Integer.MIN_VALUE};
+
+        for (final int code : codes) {
+            final int lane = messageLanes.getLane(code);
+
+            assertTrue(lane >= 0 && lane < 4);
+            assertEquals(lane, messageLanes.getLane(code));
+        }
+    }
+
+    @Test
+    public void getLaneShouldSpreadUsersOnAllTheLanes() {
+        final boolean[] used = new boolean[4];
+
+        for (int code = 1000; code < 1100; code++) {
+            used[messageLanes.getLane(code)] = true;
+        }
+
+        for (final boolean laneUsed : used) {
+            assertTrue(laneUsed);
+        }
+    }
+
+    @Test
+    public void messagesFromTheSameUserShouldBeHandledInOrderInOneThread() throws InterruptedException {
+        final int messageCount = 500;
+        final RecordingListener recordingListener = new RecordingListener(messageCount * 2);
+        messageLanes.registerReceiverListener(recordingListener);
+        messageLanes.start();
+
+        for (int i = 0; i < messageCount; i++) {
+            messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]" + i));
+            messageLanes.messageArrived(createEnvelope("222!MSG#User2:[1]" + i));
+        }
+
+        assertTrue(recordingListener.await());
+
+        assertEquals(expectedMessages("111!MSG#User1:[1]", messageCount), recordingListener.getMessages(111));
+        assertEquals(expectedMessages("222!MSG#User2:[1]", messageCount), recordingListener.getMessages(222));
+        assertEquals(1, recordingListener.getThreads(111).size());
+        assertEquals(1, recordingListener.getThreads(222).size());
+        assertFalse(recordingListener.getThreads(111).contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void messagesFromUsersInDifferentLanesShouldBeHandledByDifferentThreads() throws InterruptedException {
+        final RecordingListener recordingListener = new RecordingListener(2);
+        messageLanes.registerReceiverListener(recordingListener);
+        messageLanes.start();
+
+        final int otherCode = findCodeInOtherLane(111);
+
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]Hello"));
+        messageLanes.messageArrived(createEnvelope(otherCode + "!MSG#User2:[1]Hello"));
+
+        assertTrue(recordingListener.await());
+
+        assertNotEquals(recordingListener.getThreads(111), recordingListener.getThreads(otherCode));
+    }
+
+    @Test
+    public void rawMessagesShouldBeHandledInTheFirstLane() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final String[] threadName = new String[1];
+
+        messageLanes.registerReceiverListener(new RecordingListener(0) {
+            @Override
+            public void messageArrived(final String message, final String ipAddress) {
+                threadName[0] = Thread.currentThread().getName();
+                latch.countDown();
+            }
+        });
+
+        messageLanes.start();
+        messageLanes.messageArrived("bad message", "192.168.1.2");
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("MessageLane-0", threadName[0]);
+    }
+
+    @Test
+    public void executeShouldRunInTheCallingThreadWhenNotStarted() {
+        final Runnable action = mock(Runnable.class);
+
+        messageLanes.execute(111, action);
+
+        verify(action).run();
+    }
+
+    @Test
+    public void executeShouldThrowExceptionIfActionIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Action can not be null");
+
+        messageLanes.execute(111, null);
+    }
+
+    @Test
+    public void executeShouldRunInTheLaneOfTheUserAfterTheMessagesBeforeIt() throws InterruptedException {
+        final RecordingListener recordingListener = new RecordingListener(1);
+        messageLanes.registerReceiverListener(recordingListener);
+        messageLanes.start();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> messagesBefore = new ArrayList<>();
+        final String[] threadName = new String[1];
+
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]Hello"));
+        messageLanes.execute(111, new Runnable() {
+            @Override
+            public void run() {
+                messagesBefore.addAll(recordingListener.getMessages(111));
+                threadName[0] = Thread.currentThread().getName();
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("111!MSG#User1:[1]Hello"), messagesBefore);
+        assertEquals("MessageLane-" + messageLanes.getLane(111), threadName[0]);
+    }
+
+    @Test
+    public void failingListenerShouldNotStopTheLane() throws InterruptedException {
+        final RecordingListener recordingListener = new RecordingListener(1) {
+            @Override
+            public void messageArrived(final MessageEnvelope envelope) {
+                if (envelope.getMessage().endsWith("Fail")) {
+                    throw new RuntimeException("Failed");
+                }
+
+                super.messageArrived(envelope);
+            }
+        };
+
+        messageLanes.registerReceiverListener(recordingListener);
+        messageLanes.start();
+
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]Fail"));
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]Hello"));
+
+        assertTrue(recordingListener.await());
+        assertEquals(Collections.singletonList("111!MSG#User1:[1]Hello"), recordingListener.getMessages(111));
+    }
+
+    @Test
+    public void stopShouldHandleWaitingMessagesAndThenDeliverInCallingThread() throws InterruptedException {
+        final RecordingListener recordingListener = new RecordingListener(3);
+        messageLanes.registerReceiverListener(recordingListener);
+        messageLanes.start();
+
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]First"));
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]Second"));
+        messageLanes.stop();
+        messageLanes.messageArrived(createEnvelope("222!MSG#User2:[1]Third"));
+
+        assertTrue(recordingListener.await());
+        assertEquals(2, recordingListener.getMessages(111).size());
+        assertEquals(Collections.singletonList(Thread.currentThread().getName()), recordingListener.getThreads(222));
+    }
+
+    @Test
+    public void sizeShouldCountMessagesWaitingInTheLanes() throws InterruptedException {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        messageLanes.registerReceiverListener(new RecordingListener(0) {
+            @Override
+            public void messageArrived(final MessageEnvelope envelope) {
+                handling.countDown();
+
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        messageLanes.start();
+        assertEquals(0, messageLanes.size());
+
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]First"));
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]Second"));
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]Third"));
+        assertEquals(2, messageLanes.size());
+
+        release.countDown();
+    }
+
+    @Test(timeout = 10000)
+    public void stopShouldNotWaitForRoomWhenLaneIsFull() throws InterruptedException {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingListener recordingListener = new RecordingListener(MessageLanes.LANE_CAPACITY + 1) {
+            @Override
+            public void messageArrived(final MessageEnvelope envelope) {
+                handling.countDown();
+
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                super.messageArrived(envelope);
+            }
+        };
+
+        messageLanes.registerReceiverListener(recordingListener);
+        messageLanes.start();
+
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]First"));
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < MessageLanes.LANE_CAPACITY; i++) {
+            messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]Message" + i));
+        }
+
+        messageLanes.stop();
+        assertFalse(messageLanes.isRunning());
+
+        release.countDown();
+
+        assertTrue(recordingListener.await());
+        assertEquals(MessageLanes.LANE_CAPACITY + 1, recordingListener.getMessages(111).size());
+    }
+
+    @Test(timeout = 10000)
+    public void messageArrivedShouldDropAndCountMessagesWhenLaneIsFull() throws InterruptedException {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        messageLanes.registerReceiverListener(new RecordingListener(0) {
+            @Override
+            public void messageArrived(final MessageEnvelope envelope) {
+                handling.countDown();
+
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        messageLanes.start();
+
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]First"));
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < MessageLanes.LANE_CAPACITY + 2; i++) {
+            messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]Message" + i));
+        }
+
+        assertEquals(2, messageLanes.getDroppedMessages());
+        assertEquals(MessageLanes.LANE_CAPACITY, messageLanes.size());
+
+        release.countDown();
+    }
+
+    @Test
+    public void messagesArrivingWhileStoppingShouldNotBeLost() throws InterruptedException {
+        final int messageCount = MessageLanes.LANE_CAPACITY;
+        final RecordingListener recordingListener = new RecordingListener(messageCount);
+        messageLanes.registerReceiverListener(recordingListener);
+        messageLanes.start();
+
+        final Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < messageCount; i++) {
+                    messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]" + i));
+                }
+            }
+        });
+
+        receiver.start();
+        Thread.sleep(1);
+        messageLanes.stop();
+        receiver.join();
+
+        assertTrue(recordingListener.await());
+        assertEquals(messageCount, recordingListener.getMessages(111).size());
+        assertEquals(0, messageLanes.getDroppedMessages());
+    }
+
+    @Test
+    public void startAfterStopShouldHandleTheOldMessagesBeforeTheNewOnes() throws InterruptedException {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingListener recordingListener = new RecordingListener(3) {
+            @Override
+            public void messageArrived(final MessageEnvelope envelope) {
+                handling.countDown();
+
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                super.messageArrived(envelope);
+            }
+        };
+
+        messageLanes.registerReceiverListener(recordingListener);
+        messageLanes.start();
+
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]First"));
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]Second"));
+        messageLanes.stop();
+
+        final Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                }
+
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                release.countDown();
+            }
+        });
+
+        releaser.start();
+        messageLanes.start();
+        messageLanes.messageArrived(createEnvelope("111!MSG#User1:[1]Third"));
+
+        assertTrue(recordingListener.await());
+        assertEquals(Arrays.asList("111!MSG#User1:[1]First", "111!MSG#User1:[1]Second", "111!MSG#User1:[1]Third"),
+                     recordingListener.getMessages(111));
+    }
+
+    private int findCodeInOtherLane(final int code) {
+        int otherCode = code + 1;
+
+        while (messageLanes.getLane(otherCode) == messageLanes.getLane(code)) {
+            otherCode++;
+        }
+
+        return otherCode;
+    }
+
+    private List<String> expectedMessages(final String prefix, final int count) {
+        final List<String> messages = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            messages.add(prefix + i);
+        }
+
+        return messages;
+    }
+
+    private MessageEnvelope createEnvelope(final String message) {
+        return new MessageEnvelope(new MessageView().wrap(message), "192.168.1.2", null);
+    }
+
+    /**
+     * Keeps the messages and the names of the threads handling them, for each user.
+     */
+    private static class RecordingListener implements MessageEnvelopeListener {
+
+        private final List<MessageEnvelope> envelopes = Collections.synchronizedList(new ArrayList<MessageEnvelope>());
+        private final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch latch;
+
+        RecordingListener(final int expectedMessages) {
+            latch = new CountDownLatch(expectedMessages);
+        }
+
+        @Override
+        public void messageArrived(final MessageEnvelope envelope) {
+            synchronized (envelopes) {
+                envelopes.add(envelope);
+                threads.add(Thread.currentThread().getName());
+            }
+
+            latch.countDown();
+        }
+
+        @Override
+        public void messageArrived(final String message, final String ipAddress) {
+
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+
+        List<String> getMessages(final int code) {
+            final List<String> messages = new ArrayList<>();
+
+            synchronized (envelopes) {
+                for (final MessageEnvelope envelope : envelopes) {
+                    if (envelope.getCode() == code) {
+                        messages.add(envelope.getMessage());
+                    }
+                }
+            }
+
+            return messages;
+        }
+
+        List<String> getThreads(final int code) {
+            final List<String> threadNames = new ArrayList<>();
+
+            synchronized (envelopes) {
+                for (int i = 0; i < envelopes.size(); i++) {
+                    final String threadName = threads.get(i);
+
+                    if (envelopes.get(i).getCode() == code && !threadNames.contains(threadName)) {
+                        threadNames.add(threadName);
+                    }
+                }
+            }
+
+            return threadNames;
+        }
+    }
+}
@@ -109,7 +109,7 @@ public class MessageParserTest {
                                      "192.168.1.1");
 
         verify(responder).clientInfo(19879835, "KouChat v1.3.0 Swing", 1854,
-                                     "Linux", 40656, 0);
+                                     "Linux", 40656, 0, 0);
     }
 
     @Test
@@ -118,7 +118,32 @@ public class MessageParserTest {
                                      "192.168.1.1");
 
         verify(responder).clientInfo(10066122, "KouChat v1.4.0 Swing", 1753,
-                                     "Linux", 40656, 40657);
+                                     "Linux", 40656, 40657, 0);
+    }
+
+    @Test
+    public void messageArrivedShouldParseClientWithNetworkCapabilities() {
+        messageParser.messageArrived("10066122!CLIENT#Christian:(KouChat v1.5.0 Swing)[1753]{Linux}<40656>/40657\\|seq,future|",
+                                     "192.168.1.1");
+
+        verify(responder).clientInfo(10066122, "KouChat v1.5.0 Swing", 1753,
+                                     "Linux", 40656, 40657, NetworkCapability.SEQUENCE.getFlag());
+    }
+
+    @Test
+    public void messageArrivedShouldIgnoreNetworkCapabilitiesWithoutEnd() {
+        messageParser.messageArrived("10066122!CLIENT#Christian:(KouChat v1.5.0 Swing)[1753]{Linux}<40656>/40657\\|seq",
+                                     "192.168.1.1");
+
+        verify(responder).clientInfo(10066122, "KouChat v1.5.0 Swing", 1753,
+                                     "Linux", 40656, 40657, 0);
+    }
+
+    @Test
+    public void messageArrivedShouldParseMessageWithSequenceNumber() {
+        messageParser.messageArrived("10066122.15!MSG#Christian:[-15987646]Hello", "192.168.1.1");
+
+        verify(responder).messageArrived(10066122, "Hello", -15987646);
     }
 
     @Test
@@ -153,6 +178,35 @@ public class MessageParserTest {
         checkException(exceptionCaptor, NumberFormatException.class, "For input string: \"a2688\"");
     }
 
+    @Test
+    public void messageArrivedWithEnvelopeShouldUseParsedMessage() {
+        final MessageView view = new MessageView().wrap(
+                "10066122!CLIENT#Christian:(KouChat v1.4.0 Swing)[1753]{Linux}<40656>/40657\\");
+
+        messageParser.messageArrived(new MessageEnvelope(view, "192.168.1.1", null));
+
+        verify(responder).clientInfo(10066122, "KouChat v1.4.0 Swing", 1753,
+                                     "Linux", 40656, 40657, 0);
+    }
+
+    @Test
+    public void messageArrivedWithEnvelopeShouldLogIfPayloadCouldNotBeParsed() {
+        final MessageView view = new MessageView().wrap(
+                "16320462!CLIENT#Christian:(KouChat v1.3.0 Swing)[a2688]{Linux}<40657>");
+
+        messageParser.messageArrived(new MessageEnvelope(view, "192.168.1.1", null));
+
+        final ArgumentCaptor<Exception> exceptionCaptor = ArgumentCaptor.forClass(Exception.class);
+
+        verify(log).log(eq(Level.SEVERE),
+                        eq("Failed to parse message. " +
+                                   "message=16320462!CLIENT#Christian:(KouChat v1.3.0 Swing)[a2688]{Linux}<40657>, " +
+                                   "ipAddress=192.168.1.1"),
+                        exceptionCaptor.capture());
+
+        checkException(exceptionCaptor, NumberFormatException.class, "For input string: \"a2688\"");
+    }
+
     @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
     private void checkException(final ArgumentCaptor<Exception> exceptionCaptor,
                                 final Class<? extends Exception> expectedException,
@@ -0,0 +1,136 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageSequenceFilter}.
+ *
+ * @author Christian Ihle
+ */
+public class MessageSequenceFilterTest {
+
+    private static final int WINDOW_SIZE = MessageSequenceFilter.WINDOW_SIZE;
+
+    private MessageSequenceFilter filter;
+
+    @Before
+    public void setUp() {
+        filter = new MessageSequenceFilter();
+    }
+
+    @Test
+    public void acceptShouldAcceptFirstMessageFromUser() {
+        assertTrue(filter.accept(100, 57));
+        assertEquals(1, filter.size());
+    }
+
+    @Test
+    public void acceptShouldOnlyAcceptSameMessageOnce() {
+        assertTrue(filter.accept(100, 1));
+        assertFalse(filter.accept(100, 1));
+        assertFalse(filter.accept(100, 1));
+    }
+
+    @Test
+    public void acceptShouldKeepUsersApart() {
+        assertTrue(filter.accept(100, 1));
+        assertTrue(filter.accept(200, 1));
+        assertFalse(filter.accept(200, 1));
+        assertEquals(2, filter.size());
+    }
+
+    @Test
+    public void acceptShouldAcceptMessagesOutOfOrderOnce() {
+        assertTrue(filter.accept(100, 5));
+        assertTrue(filter.accept(100, 3));
+        assertTrue(filter.accept(100, 4));
+        assertTrue(filter.accept(100, 6));
+
+        assertFalse(filter.accept(100, 3));
+        assertFalse(filter.accept(100, 4));
+        assertFalse(filter.accept(100, 5));
+        assertFalse(filter.accept(100, 6));
+    }
+
+    @Test
+    public void acceptShouldForgetSequenceNumbersThatReuseTheSameBitWhenAdvancing() {
+        assertTrue(filter.accept(100, 1));
+        assertTrue(filter.accept(100, 2));
+
+        // 1 + WINDOW_SIZE uses the same bit as 1, and must not be mistaken for a duplicate
+        assertTrue(filter.accept(100, 1 + WINDOW_SIZE));
+        assertFalse(filter.accept(100, 1 + WINDOW_SIZE));
+    }
+
+    @Test
+    public void acceptShouldAcceptMissedMessagesInsideTheWindow() {
+        assertTrue(filter.accept(100, 10));
+        assertTrue(filter.accept(100, 10 + WINDOW_SIZE - 1));
+
+        assertTrue(filter.accept(100, 11));
+        assertFalse(filter.accept(100, 11));
+    }
+
+    @Test
+    public void acceptShouldTreatMessagesOlderThanTheWindowAsRestart() {
+        assertTrue(filter.accept(100, 5000));
+
+        assertTrue(filter.accept(100, 1));
+        assertFalse(filter.accept(100, 1));
+        assertTrue(filter.accept(100, 2));
+    }
+
+    @Test
+    public void acceptShouldHandleJumpsLargerThanTheWindow() {
+        assertTrue(filter.accept(100, 1));
+        assertTrue(filter.accept(100, 1 + WINDOW_SIZE * 3));
+
+        assertFalse(filter.accept(100, 1 + WINDOW_SIZE * 3));
+        assertTrue(filter.accept(100, 2 + WINDOW_SIZE * 3));
+    }
+
+    @Test
+    public void acceptShouldHandleSequenceWrappingAround() {
+        assertTrue(filter.accept(100, Integer.MAX_VALUE - 1));
+        assertTrue(filter.accept(100, Integer.MAX_VALUE));
+        assertTrue(filter.accept(100, Integer.MIN_VALUE));
+
+        assertFalse(filter.accept(100, Integer.MAX_VALUE));
+        assertFalse(filter.accept(100, Integer.MIN_VALUE));
+        assertTrue(filter.accept(100, Integer.MIN_VALUE + 1));
+    }
+
+    @Test
+    public void removeShouldForgetUser() {
+        filter.accept(100, 1);
+        filter.remove(100);
+
+        assertEquals(0, filter.size());
+        assertTrue(filter.accept(100, 1));
+    }
+}
@@ -0,0 +1,143 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageTypeTable}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageTypeTableTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageTypeTable<String> table;
+    private MessageView view;
+
+    @Before
+    public void setUp() {
+        table = new MessageTypeTable<>(3);
+        view = new MessageView();
+    }
+
+    @Test
+    public void putShouldThrowExceptionIfTypeIsEmpty() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Type can not be empty");
+
+        table.put(" ", "handler");
+    }
+
+    @Test
+    public void putShouldThrowExceptionIfHandlerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Handler can not be null");
+
+        table.put("MSG", null);
+    }
+
+    @Test
+    public void getShouldReturnHandlerOfType() {
+        table.put("MSG", "msg handler");
+        table.put("IDLE", "idle handler");
+
+        assertEquals("msg handler", table.get(view.wrap("10!MSG#Christian:[1]Hello")));
+        assertEquals("idle handler", table.get(view.wrap("10!IDLE#Christian:")));
+    }
+
+    @Test
+    public void getShouldReturnNullForUnknownType() {
+        table.put("MSG", "msg handler");
+
+        assertNull(table.get(view.wrap("10!UNKNOWN#Christian:")));
+        assertNull(table.get(view.wrap("10!MS#Christian:")));
+        assertNull(table.get(view.wrap("10!#Christian:")));
+    }
+
+    @Test
+    public void getShouldHandleTypesWithSameHashCode() {
+        // "Aa" and "BB" have the same hash code
+        table.put("Aa", "first");
+        table.put("BB", "second");
+
+        assertEquals("first", table.get(view.wrap("10!Aa#Christian:")));
+        assertEquals("second", table.get(view.wrap("10!BB#Christian:")));
+    }
+
+    @Test
+    public void putShouldReplaceHandlerOfSameType() {
+        table.put("MSG", "first");
+        table.put("MSG", "second");
+
+        assertEquals(1, table.size());
+        assertEquals("second", table.get(view.wrap("10!MSG#Christian:")));
+    }
+
+    @Test
+    public void putShouldThrowExceptionWhenFull() {
+        table.put("A", "1");
+        table.put("B", "2");
+        table.put("C", "3");
+        table.put("D", "4");
+
+        expectedException.expect(IllegalStateException.class);
+        expectedException.expectMessage("Message type table is full");
+
+        table.put("E", "5");
+    }
+
+    @Test
+    public void allNetworkMessageTypesShouldBeFound() {
+        final String[] types = {
+                NetworkMessageType.MSG, NetworkMessageType.LOGON, NetworkMessageType.EXPOSING,
+                NetworkMessageType.LOGOFF, NetworkMessageType.AWAY, NetworkMessageType.BACK,
+                NetworkMessageType.EXPOSE, NetworkMessageType.NICKCRASH, NetworkMessageType.WRITING,
+                NetworkMessageType.STOPPEDWRITING, NetworkMessageType.GETTOPIC, NetworkMessageType.TOPIC,
+                NetworkMessageType.NICK, NetworkMessageType.IDLE, NetworkMessageType.SENDFILEACCEPT,
+                NetworkMessageType.SENDFILEABORT, NetworkMessageType.SENDFILE, NetworkMessageType.CLIENT,
+                NetworkMessageType.PRIVMSG
+        };
+
+        final MessageTypeTable<String> allTypes = new MessageTypeTable<>(types.length);
+
+        for (final String type : types) {
+            allTypes.put(type, type.toLowerCase());
+        }
+
+        assertEquals(types.length, allTypes.size());
+
+        for (final String type : types) {
+            assertEquals(type.toLowerCase(), allTypes.get(view.wrap("10!" + type + "#Christian:")));
+        }
+    }
+}
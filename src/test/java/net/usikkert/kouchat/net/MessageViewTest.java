@@ -0,0 +1,295 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageView}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageViewTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageView view;
+
+    @Before
+    public void setUp() {
+        view = new MessageView();
+    }
+
+    @Test
+    public void wrapShouldThrowExceptionIfMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        view.wrap(null);
+    }
+
+    @Test
+    public void wrapShouldParseHeader() {
+        view.wrap("12345678!MSG#Christian:[-15987646]Hello!");
+
+        assertEquals(12345678, view.getCode());
+        assertEquals("MSG", view.getType());
+        assertEquals("Christian", view.getNick());
+        assertEquals("[-15987646]Hello!", view.getPayload());
+        assertEquals(17, view.getPayloadLength());
+        assertEquals("12345678!MSG#Christian:[-15987646]Hello!", view.getMessage());
+    }
+
+    @Test
+    public void wrapShouldParseSequenceAfterCode() {
+        view.wrap("12345678.42!MSG#Christian:[1]Hello");
+
+        assertEquals(12345678, view.getCode());
+        assertTrue(view.hasSequence());
+        assertEquals(42, view.getSequence());
+        assertEquals("MSG", view.getType());
+    }
+
+    @Test
+    public void wrapShouldNotHaveSequenceWithoutDot() {
+        view.wrap("12345678.42!MSG#Christian:[1]Hello");
+        view.wrap("12345678!MSG#Christian:[1]Hello. Bye!");
+
+        assertFalse(view.hasSequence());
+        assertEquals(0, view.getSequence());
+    }
+
+    @Test
+    public void wrapShouldThrowExceptionWhenSequenceIsInvalid() {
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"x\"");
+
+        view.wrap("12345678.x!MSG#Christian:");
+    }
+
+    @Test
+    public void copyShouldKeepTheParsedMessageWhenTheViewIsReused() {
+        view.wrap("12345678.42!MSG#Christian:[1]Hello");
+
+        final MessageView copy = view.copy();
+        view.wrap("10!EXPOSE#:");
+
+        assertEquals(12345678, copy.getCode());
+        assertTrue(copy.hasSequence());
+        assertEquals(42, copy.getSequence());
+        assertTrue(copy.isType("MSG"));
+        assertEquals("Christian", copy.getNick());
+        assertEquals("[1]Hello", copy.getPayload());
+        assertEquals("12345678.42!MSG#Christian:[1]Hello", copy.getMessage());
+    }
+
+    @Test
+    public void wrapShouldAllowEmptyNickAndPayload() {
+        view.wrap("10!EXPOSE#:");
+
+        assertEquals("", view.getNick());
+        assertEquals("", view.getPayload());
+        assertTrue(view.payloadEquals(""));
+    }
+
+    @Test
+    public void wrapShouldThrowSameExceptionAsSubstringWhenHeaderIsMissing() {
+        expectedException.expect(StringIndexOutOfBoundsException.class);
+        expectedException.expectMessage("String index out of range: -1");
+
+        view.wrap("Error");
+    }
+
+    @Test
+    public void wrapShouldThrowSameExceptionAsParseIntWhenCodeIsInvalid() {
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"a16320462\"");
+
+        view.wrap("a16320462!LOGON#Christian:");
+    }
+
+    @Test
+    public void wrapShouldThrowExceptionWhenColonIsBeforeHash() {
+        expectedException.expect(StringIndexOutOfBoundsException.class);
+
+        view.wrap("10!LOGON:Christian#");
+    }
+
+    @Test
+    public void wrapShouldBeReusable() {
+        view.wrap("10!MSG#Christian:[1]Hello");
+        view.wrap("20!IDLE#Test:");
+
+        assertEquals(20, view.getCode());
+        assertTrue(view.isType("IDLE"));
+        assertEquals("Test", view.getNick());
+        assertEquals("", view.getPayload());
+    }
+
+    @Test
+    public void delimitersInPayloadShouldNotAffectHeader() {
+        view.wrap("10!MSG#Christian:[1]Look: #tag! here");
+
+        assertEquals("MSG", view.getType());
+        assertEquals("[1]Look: #tag! here", view.getPayload());
+    }
+
+    @Test
+    public void isTypeShouldCompareWholeType() {
+        view.wrap("10!SENDFILEABORT#Christian:");
+
+        assertTrue(view.isType("SENDFILEABORT"));
+        assertFalse(view.isType("SENDFILE"));
+        assertFalse(view.isType("SENDFILEACCEPT"));
+        assertFalse(view.isType("sendfileabort"));
+    }
+
+    @Test
+    public void typeHashCodeShouldBeSameAsHashCodeOfType() {
+        view.wrap("10!STOPPEDWRITING#Christian:");
+        assertEquals("STOPPEDWRITING".hashCode(), view.typeHashCode());
+
+        view.wrap("10!#Christian:");
+        assertEquals("".hashCode(), view.typeHashCode());
+    }
+
+    @Test
+    public void payloadEqualsShouldCompareWholePayload() {
+        view.wrap("10!NICKCRASH#Christian:Christian");
+
+        assertTrue(view.payloadEquals("Christian"));
+        assertFalse(view.payloadEquals("Chris"));
+        assertFalse(view.payloadEquals("Christian2"));
+    }
+
+    @Test
+    public void payloadIndexOfShouldBeRelativeToPayload() {
+        view.wrap("10!MSG#Christian:[1]Hello");
+
+        assertEquals(0, view.payloadIndexOf('['));
+        assertEquals(2, view.payloadIndexOf(']'));
+        assertEquals(-1, view.payloadIndexOf('!'));
+    }
+
+    @Test
+    public void payloadIntShouldParseNumbers() {
+        view.wrap("10!MSG#Christian:(0)[-15987646]{2147483647}<-2147483648>/+5\\");
+
+        assertEquals(0, view.payloadInt(1, 2));
+        assertEquals(-15987646, view.payloadInt(4, 13));
+        assertEquals(Integer.MAX_VALUE, view.payloadInt(15, 25));
+        assertEquals(Integer.MIN_VALUE, view.payloadInt(27, 38));
+        assertEquals(5, view.payloadInt(40, 42));
+    }
+
+    @Test
+    public void payloadIntShouldThrowSameExceptionAsParseIntWhenTooLarge() {
+        view.wrap("10!MSG#Christian:[2147483648]");
+
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"2147483648\"");
+
+        view.payloadInt(1, 11);
+    }
+
+    @Test
+    public void payloadIntShouldThrowSameExceptionAsParseIntWhenInvalid() {
+        view.wrap("10!CLIENT#Christian:<a40657>");
+
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"a40657\"");
+
+        view.payloadInt(1, 7);
+    }
+
+    @Test
+    public void payloadIntShouldThrowSameExceptionAsParseIntWhenEmpty() {
+        view.wrap("10!CLIENT#Christian:<>");
+
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"\"");
+
+        view.payloadInt(1, 1);
+    }
+
+    @Test
+    public void payloadIntShouldThrowSameExceptionAsParseIntForOnlyMinus() {
+        view.wrap("10!CLIENT#Christian:<->");
+
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"-\"");
+
+        view.payloadInt(1, 2);
+    }
+
+    @Test
+    public void payloadIntShouldThrowSameExceptionAsSubstringWhenDelimiterIsMissing() {
+        view.wrap("10!MSG#Christian:Hello");
+
+        expectedException.expect(StringIndexOutOfBoundsException.class);
+        expectedException.expectMessage("String index out of range: -1");
+
+        view.payloadInt(view.payloadIndexOf('[') + 1, view.payloadIndexOf(']'));
+    }
+
+    @Test
+    public void payloadLongShouldParseLongNumbers() {
+        view.wrap("10!TOPIC#Christian:(Christian)[1132930182453]Topic");
+
+        assertEquals(1132930182453L, view.payloadLong(12, 25));
+    }
+
+    @Test
+    public void payloadLongShouldParseNumbersWithManyDigits() {
+        view.wrap("10!SENDFILE#Christian:[9223372036854775807]");
+
+        assertEquals(Long.MAX_VALUE, view.payloadLong(1, 20));
+    }
+
+    @Test
+    public void payloadStringShouldReturnPartOfPayload() {
+        view.wrap("10!TOPIC#Christian:(Christian)[1132930182453]Topic");
+
+        assertEquals("Christian", view.payloadString(1, 10));
+        assertEquals("Topic", view.payloadString(26));
+        assertEquals("", view.payloadString(31));
+    }
+
+    @Test
+    public void payloadStringShouldThrowSameExceptionAsSubstringWhenOutsidePayload() {
+        view.wrap("10!TOPIC#Christian:Topic");
+
+        expectedException.expect(StringIndexOutOfBoundsException.class);
+        expectedException.expectMessage("String index out of range: 6");
+
+        view.payloadString(0, 6);
+    }
+}
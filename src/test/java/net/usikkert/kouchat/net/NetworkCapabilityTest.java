@@ -0,0 +1,110 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link NetworkCapability}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class NetworkCapabilityTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void flagsShouldBeUnique() {
+        int allFlags = 0;
+
+        for (final NetworkCapability capability : NetworkCapability.values()) {
+            assertEquals(0, allFlags & capability.getFlag());
+            allFlags |= capability.getFlag();
+        }
+
+        assertEquals(allFlags, NetworkCapability.getAllFlags());
+    }
+
+    @Test
+    public void formatShouldListNamesOfFlags() {
+        assertEquals("", NetworkCapability.format(0));
+        assertEquals("seq", NetworkCapability.format(NetworkCapability.SEQUENCE.getFlag()));
+        assertEquals("batch", NetworkCapability.format(NetworkCapability.BATCH.getFlag()));
+        assertEquals("bin", NetworkCapability.format(NetworkCapability.BINARY.getFlag()));
+        assertEquals("frag", NetworkCapability.format(NetworkCapability.FRAGMENT.getFlag()));
+        assertEquals("nack", NetworkCapability.format(NetworkCapability.NACK.getFlag()));
+        assertEquals("tcpframe", NetworkCapability.format(NetworkCapability.TCP_FRAMING.getFlag()));
+        assertEquals("seq,batch,bin,frag,nack,tcpframe", NetworkCapability.format(NetworkCapability.getAllFlags()));
+    }
+
+    @Test
+    public void parseShouldReturnFlagsOfKnownNames() {
+        assertEquals(0, NetworkCapability.parse(""));
+        assertEquals(NetworkCapability.SEQUENCE.getFlag(), NetworkCapability.parse("seq"));
+        assertEquals(NetworkCapability.SEQUENCE.getFlag(), NetworkCapability.parse("unknown,seq,"));
+        assertEquals(0, NetworkCapability.parse("sequence,se"));
+        assertEquals(NetworkCapability.getAllFlags(), NetworkCapability.parse("tcpframe,nack,frag,bin,batch,seq"));
+    }
+
+    @Test
+    public void isSupportedByShouldCheckTheFlags() {
+        final int flags = NetworkCapability.SEQUENCE.getFlag() | NetworkCapability.BINARY.getFlag();
+
+        assertTrue(NetworkCapability.SEQUENCE.isSupportedBy(flags));
+        assertTrue(NetworkCapability.BINARY.isSupportedBy(flags));
+        assertFalse(NetworkCapability.BATCH.isSupportedBy(flags));
+        assertFalse(NetworkCapability.FRAGMENT.isSupportedBy(0));
+    }
+
+    @Test
+    public void parseShouldThrowExceptionIfListIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("List can not be null");
+
+        NetworkCapability.parse(null);
+    }
+
+    @Test
+    public void parseShouldReadWhatFormatCreates() {
+        final int allFlags = NetworkCapability.getAllFlags();
+
+        assertEquals(allFlags, NetworkCapability.parse(NetworkCapability.format(allFlags)));
+    }
+
+    @Test
+    public void isSupportedByShouldCheckFlagsOfUser() {
+        final User user = new User("Test", 100);
+        assertFalse(NetworkCapability.SEQUENCE.isSupportedBy(user));
+
+        user.setNetworkCapabilities(NetworkCapability.SEQUENCE.getFlag());
+        assertTrue(NetworkCapability.SEQUENCE.isSupportedBy(user));
+    }
+}
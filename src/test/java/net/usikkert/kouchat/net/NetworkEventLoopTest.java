@@ -0,0 +1,223 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link NetworkEventLoop}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class NetworkEventLoopTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private NetworkEventLoop eventLoop;
+    private Pipe pipe;
+
+    @Before
+    public void setUp() throws Exception {
+        eventLoop = new NetworkEventLoop();
+        pipe = Pipe.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eventLoop.stop();
+        pipe.source().close();
+        pipe.sink().close();
+    }
+
+    @Test
+    public void executeShouldThrowExceptionIfTaskIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Task can not be null");
+
+        eventLoop.execute(null);
+    }
+
+    @Test
+    public void registerShouldThrowExceptionIfChannelIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Channel can not be null");
+
+        eventLoop.register(null, SelectionKey.OP_READ, mock(SelectionHandler.class));
+    }
+
+    @Test
+    public void registerShouldThrowExceptionIfHandlerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Handler can not be null");
+
+        eventLoop.register(pipe.source(), SelectionKey.OP_READ, null);
+    }
+
+    @Test
+    public void executeShouldNotQueueTasksWhenNotRunning() {
+        assertFalse(eventLoop.isRunning());
+        assertFalse(eventLoop.execute(mock(Runnable.class)));
+    }
+
+    @Test
+    public void startShouldOnlyStartOnce() {
+        assertTrue(eventLoop.start());
+        assertTrue(eventLoop.start());
+        assertTrue(eventLoop.isRunning());
+    }
+
+    @Test
+    public void stopShouldStopRunning() {
+        eventLoop.start();
+        eventLoop.stop();
+
+        assertFalse(eventLoop.isRunning());
+    }
+
+    @Test
+    public void executeShouldRunTaskOnEventLoopThread() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final boolean[] onEventLoopThread = new boolean[1];
+
+        eventLoop.start();
+
+        assertTrue(eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                onEventLoopThread[0] = eventLoop.isEventLoopThread();
+                latch.countDown();
+            }
+        }));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(onEventLoopThread[0]);
+        assertFalse(eventLoop.isEventLoopThread());
+    }
+
+    @Test
+    public void tasksQueuedAfterRestartShouldRunOnTheNewEventLoopThread() throws InterruptedException {
+        final int taskCount = 100;
+        final CountDownLatch latch = new CountDownLatch(taskCount);
+        final boolean[] onEventLoopThread = {true};
+
+        eventLoop.start();
+        eventLoop.stop();
+        eventLoop.start();
+
+        for (int i = 0; i < taskCount; i++) {
+            assertTrue(eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!eventLoop.isEventLoopThread()) {
+                        onEventLoopThread[0] = false;
+                    }
+
+                    latch.countDown();
+                }
+            }));
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(onEventLoopThread[0]);
+    }
+
+    @Test
+    public void registerShouldNotifyHandlerWhenChannelIsReadable() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ByteBuffer readBuffer = ByteBuffer.allocate(10);
+
+        eventLoop.start();
+
+        assertTrue(eventLoop.register(pipe.source(), SelectionKey.OP_READ, new SelectionHandler() {
+            @Override
+            public void handleSelection(final SelectionKey key) {
+                try {
+                    pipe.source().read(readBuffer);
+                    latch.countDown();
+                } catch (final Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }));
+
+        pipe.sink().write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(3, readBuffer.position());
+        assertFalse(pipe.source().isBlocking());
+    }
+
+    @Test
+    public void eventLoopShouldKeepRunningWhenHandlerFails() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        eventLoop.start();
+
+        eventLoop.register(pipe.source(), SelectionKey.OP_READ, new SelectionHandler() {
+            @Override
+            public void handleSelection(final SelectionKey key) {
+                key.cancel();
+                throw new IllegalStateException("Don't stop");
+            }
+        });
+
+        pipe.sink().write(ByteBuffer.wrap(new byte[] {1}));
+
+        // Tasks run after the failure, so this proves the loop survived
+        Thread.sleep(100);
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(eventLoop.isRunning());
+    }
+
+    @Test
+    public void keyForShouldReturnNullIfNotRegistered() {
+        assertNull(eventLoop.keyFor(pipe.source()));
+
+        eventLoop.start();
+
+        assertNull(eventLoop.keyFor(pipe.source()));
+    }
+}
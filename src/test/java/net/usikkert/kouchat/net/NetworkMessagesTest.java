@@ -22,6 +22,7 @@
 
 package net.usikkert.kouchat.net;
 
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import net.usikkert.kouchat.misc.CommandException;
@@ -29,7 +30,9 @@ import net.usikkert.kouchat.misc.Topic;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 
+import org.junit.After;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 /**
  * Test of {@link NetworkMessages}.
@@ -67,6 +70,11 @@ public class NetworkMessagesTest {
         messages = new NetworkMessages(service, settings);
     }
 
+    @After
+    public void tearDown() {
+        messages.stop();
+    }
+
     /**
      * Tests sendAwayMessage().
      *
@@ -107,13 +115,13 @@ public class NetworkMessagesTest {
     /**
      * Tests sendClient().
      *
-     * Expects: 13132531!CLIENT#Christian:(KouChat v0.9.9-dev null)[134]{Linux}<2222>/4444\
+     * Expects: 13132531!CLIENT#Christian:(KouChat v0.9.9-dev null)[134]{Linux}<2222>/4444\|seq,batch,bin,frag,nack,tcpframe|
      */
     @Test
     public void testSendClientMessage() {
         final String startsWith = "(" + me.getClient() + ")[";
         final String middle = ".+\\)\\[\\d+\\]\\{.+"; // like:)[134[{
-        final String endsWidth = "]{" + me.getOperatingSystem() + "}<2222>/4444\\";
+        final String endsWidth = "]{" + me.getOperatingSystem() + "}<2222>/4444\\|seq,batch,bin,frag,nack,tcpframe|";
 
         messages.sendClient();
 
@@ -367,6 +375,74 @@ public class NetworkMessagesTest {
         verify(service).sendMessageToAllUsers(createMessage("WRITING"));
     }
 
+    @Test
+    public void sendChatMessageShouldThrowExceptionAndCheckNetworkIfFailedWhenNotStarted() {
+        when(service.sendMessageToAllUsers(anyString())).thenReturn(false);
+
+        try {
+            messages.sendChatMessage("Hello");
+            fail("Should have thrown exception");
+        }
+
+        catch (final CommandException e) {
+            assertEquals("Failed to send message: Hello", e.getMessage());
+        }
+
+        verify(service).checkNetwork();
+    }
+
+    @Test
+    public void sendChatMessageShouldNotifyListenerAndCheckNetworkIfFailedWhenStarted() throws CommandException {
+        final NetworkMessages.SendFailureListener listener = mock(NetworkMessages.SendFailureListener.class);
+        when(service.sendMessageToAllUsers(anyString())).thenReturn(false);
+        messages.start(listener);
+
+        messages.sendChatMessage("Hello");
+
+        verify(listener, timeout(1000)).sendFailed(null, "Failed to send message: Hello");
+        verify(service, timeout(1000)).checkNetwork();
+    }
+
+    @Test
+    public void sendPrivateMessageShouldNotifyListenerWithUserIfFailedWhenStarted() throws CommandException {
+        final NetworkMessages.SendFailureListener listener = mock(NetworkMessages.SendFailureListener.class);
+        final User user = new User("Other", 1234);
+        when(service.sendMessageToUser(anyString(), any(User.class))).thenReturn(false);
+        messages.start(listener);
+
+        messages.sendPrivateMessage("Hi", user);
+
+        verify(listener, timeout(1000)).sendFailed(user, "Failed to send private message to Other: Hi");
+    }
+
+    @Test
+    public void messagesShouldBeSentInOrderWhenStarted() throws CommandException {
+        messages.start(mock(NetworkMessages.SendFailureListener.class));
+
+        messages.sendWritingMessage();
+        messages.sendChatMessage("Hello");
+        messages.sendStoppedWritingMessage();
+        messages.sendLogoffMessage(); // Waits until sent
+
+        final InOrder inOrder = inOrder(service);
+        inOrder.verify(service).sendMessageToAllUsers(createMessage("WRITING"));
+        inOrder.verify(service).sendMessageToAllUsers(startsWith(createMessage("MSG")));
+        inOrder.verify(service).sendMessageToAllUsers(createMessage("STOPPEDWRITING"));
+        inOrder.verify(service).sendMessageToAllUsers(createMessage("LOGOFF"));
+    }
+
+    @Test
+    public void startShouldThrowExceptionIfListenerIsNull() {
+        try {
+            messages.start(null);
+            fail("Should have thrown exception");
+        }
+
+        catch (final IllegalArgumentException e) {
+            assertEquals("Send failure listener can not be null", e.getMessage());
+        }
+    }
+
     /**
      * Creates the standard part for most of the message types.
      *
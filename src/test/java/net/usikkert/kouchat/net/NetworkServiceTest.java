@@ -28,14 +28,16 @@ import static org.mockito.Mockito.*;
 import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
+import net.usikkert.kouchat.misc.SortedUserList;
 import net.usikkert.kouchat.misc.User;
-import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.net.tcp.TCPNetworkService;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.TestUtils;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 /**
  * Test of {@link NetworkService}.
@@ -59,7 +61,7 @@ public class NetworkServiceTest {
         controller = mock(Controller.class);
 
         when(settings.getMe()).thenReturn(mock(User.class));
-        when(controller.getUserList()).thenReturn(mock(UserList.class));
+        when(controller.getUserList()).thenReturn(new SortedUserList());
     }
 
     @Test
@@ -106,6 +108,59 @@ public class NetworkServiceTest {
         assertNull(TestUtils.getFieldValue(networkService, UDPSender.class, "udpSender"));
     }
 
+    @Test
+    public void networkServiceShouldNotCreateEventLoopByDefault() {
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+
+        assertNull(TestUtils.getFieldValue(networkService, NetworkEventLoop.class, "eventLoop"));
+    }
+
+    @Test
+    public void networkServiceShouldCreateEventLoopWhenNioNetworkIsEnabled() {
+        when(settings.isNioNetwork()).thenReturn(true);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final NetworkEventLoop eventLoop = TestUtils.getFieldValue(networkService, NetworkEventLoop.class, "eventLoop");
+
+        assertNotNull(eventLoop);
+        assertFalse(eventLoop.isRunning());
+    }
+
+    @Test
+    public void networkServiceShouldNotCreateMessageLanesByDefault() {
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+
+        assertNull(TestUtils.getFieldValue(networkService, MessageLanes.class, "messageLanes"));
+    }
+
+    @Test
+    public void networkServiceShouldCreateMessageLanesWhenMoreThanOneLaneIsSet() {
+        when(settings.getReceiveLanes()).thenReturn(4);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageLanes messageLanes = TestUtils.getFieldValue(networkService, MessageLanes.class, "messageLanes");
+
+        assertNotNull(messageLanes);
+        assertFalse(messageLanes.isRunning());
+    }
+
+    @Test
+    public void registerMainChatMessageReceiverListenerShouldPutMessageLanesInFrontOfTheListener() {
+        when(settings.getReceiveLanes()).thenReturn(4);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageEnvelopeListener listener = mock(MessageEnvelopeListener.class);
+
+        networkService.registerMainChatMessageReceiverListener(listener);
+
+        final MessageLanes messageLanes = TestUtils.getFieldValue(networkService, MessageLanes.class, "messageLanes");
+        final MessageDeduplicator messageDeduplicator =
+                TestUtils.getFieldValue(networkService, MessageDeduplicator.class, "messageDeduplicator");
+
+        assertSame(messageLanes, TestUtils.getFieldValue(messageDeduplicator, MessageEnvelopeListener.class, "mainChatListener"));
+        assertSame(listener, TestUtils.getFieldValue(messageLanes, MessageEnvelopeListener.class, "listener"));
+    }
+
     @Test
     public void registerPrivateChatReceiverListenerShouldNotFailWhenPrivateChatDisabled() {
         when(settings.isNoPrivateChat()).thenReturn(true);
@@ -150,4 +205,415 @@ public class NetworkServiceTest {
         final boolean messageSent = networkService.sendMessageToUser("Nothing", user);
         assertFalse(messageSent);
     }
+
+    @Test
+    public void sendMessageToAllUsersShouldAddSequenceWhenAllUsersSupportIt() {
+        final User user1 = createUser("User1", 111, NetworkCapability.SEQUENCE.getFlag());
+        final User user2 = createUser("User2", 222, NetworkCapability.getAllFlags());
+        setUpUserList(user1, user2);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+
+        networkService.sendMessageToAllUsers("123!MSG#Me:[1]First");
+        networkService.sendMessageToAllUsers("123!MSG#Me:[1]Second");
+
+        verify(messageSender).send("123.1!MSG#Me:[1]First", NetworkCapability.SEQUENCE.getFlag());
+        verify(tcpNetworkService).sendMessageToAll("123.1!MSG#Me:[1]First");
+        verify(messageSender).send("123.2!MSG#Me:[1]Second", NetworkCapability.SEQUENCE.getFlag());
+        verify(tcpNetworkService).sendMessageToAll("123.2!MSG#Me:[1]Second");
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldNotAddSequenceWhenOneUserDoesNotSupportIt() {
+        final User user1 = createUser("User1", 111, NetworkCapability.SEQUENCE.getFlag());
+        final User user2 = createUser("User2", 222, 0);
+        setUpUserList(user1, user2);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+
+        networkService.sendMessageToAllUsers("123!MSG#Me:[1]Hello");
+
+        verify(messageSender).send("123!MSG#Me:[1]Hello", 0);
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldNotAddSequenceWhenThereAreNoOtherUsers() {
+        final User me = createUser("Me", 123, 0);
+        me.setMe(true);
+        setUpUserList(me);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+
+        networkService.sendMessageToAllUsers("123!LOGON#Me:");
+
+        verify(messageSender).send("123!LOGON#Me:", 0);
+    }
+
+    @Test
+    public void sendMessageToUserShouldAddSequenceWhenAllUsersSupportIt() {
+        final User me = createUser("Me", 123, 0);
+        me.setMe(true);
+        final User user = createUser("User", 111, NetworkCapability.SEQUENCE.getFlag());
+        user.setIpAddress("192.168.1.2");
+        user.setPrivateChatPort(5000);
+        setUpUserList(me, user);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final UDPSender udpSender = TestUtils.setFieldValueWithMock(networkService, "udpSender", UDPSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+
+        networkService.sendMessageToUser("123!PRIVMSG#Me:(111)[1]Hello", user);
+
+        verify(udpSender).send("123.1!PRIVMSG#Me:(111)[1]Hello", "192.168.1.2", 5000, NetworkCapability.SEQUENCE.getFlag());
+        verify(tcpNetworkService).sendMessageToUser("123.1!PRIVMSG#Me:(111)[1]Hello", user);
+    }
+
+    @Test
+    public void sendMessageToUserShouldAddSequenceWhenTheUserSupportsItEvenIfOthersDoNot() {
+        final User user = createUser("User", 111, NetworkCapability.SEQUENCE.getFlag());
+        user.setIpAddress("192.168.1.2");
+        user.setPrivateChatPort(5000);
+        setUpUserList(user, createUser("Other", 222, 0));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final UDPSender udpSender = TestUtils.setFieldValueWithMock(networkService, "udpSender", UDPSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+        when(tcpNetworkService.sendMessageToUser(anyString(), any(User.class))).thenReturn(true);
+
+        assertTrue(networkService.sendMessageToUser("123!PRIVMSG#Me:(111)[1]Hello", user));
+
+        verify(tcpNetworkService).sendMessageToUser("123.1!PRIVMSG#Me:(111)[1]Hello", user);
+        verifyZeroInteractions(udpSender);
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldUseCapabilitiesFromClientInfoAfterStart() {
+        final User user = createUser("User", 111, 0);
+        setUpUserList(user);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+
+        user.setNetworkCapabilities(NetworkCapability.SEQUENCE.getFlag());
+        controller.getUserList().update(user);
+
+        networkService.sendMessageToAllUsers("123!MSG#Me:[1]Hello");
+
+        verify(messageSender).send("123.1!MSG#Me:[1]Hello", NetworkCapability.SEQUENCE.getFlag());
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldBatchSmallMessagesUntilOtherMessageIsSent() {
+        when(settings.getBatchWindow()).thenReturn(60000);
+        setUpUserList(createUser("User", 111, NetworkCapability.BATCH.getFlag()));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+
+        assertTrue(networkService.sendMessageToAllUsers("123!IDLE#Me:"));
+        assertTrue(networkService.sendMessageToAllUsers("123!WRITING#Me:"));
+
+        verifyZeroInteractions(messageSender, tcpNetworkService);
+
+        networkService.sendMessageToAllUsers("123!MSG#Me:[1]Hello");
+
+        final InOrder inOrder = inOrder(messageSender);
+        inOrder.verify(messageSender).send("123!BATCH#Me:12;123!IDLE#Me:15;123!WRITING#Me:", NetworkCapability.BATCH.getFlag());
+        inOrder.verify(messageSender).send("123!MSG#Me:[1]Hello", NetworkCapability.BATCH.getFlag());
+        verify(tcpNetworkService).sendMessageToAll("123!BATCH#Me:12;123!IDLE#Me:15;123!WRITING#Me:");
+
+        TestUtils.getFieldValue(networkService, MessageBatcher.class, "messageBatcher").stop();
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldNotBatchWhenOneUserDoesNotSupportIt() {
+        when(settings.getBatchWindow()).thenReturn(60000);
+        setUpUserList(createUser("User1", 111, NetworkCapability.BATCH.getFlag()), createUser("User2", 222, 0));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+
+        networkService.sendMessageToAllUsers("123!IDLE#Me:");
+
+        verify(messageSender).send("123!IDLE#Me:", 0);
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldNotBatchWhenBatchWindowIsZero() {
+        setUpUserList(createUser("User", 111, NetworkCapability.BATCH.getFlag()));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+
+        networkService.sendMessageToAllUsers("123!IDLE#Me:");
+
+        verify(messageSender).send("123!IDLE#Me:", NetworkCapability.BATCH.getFlag());
+        assertNull(TestUtils.getFieldValue(networkService, MessageBatcher.class, "messageBatcher"));
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldUseBinaryWhenAllUsersSupportIt() {
+        setUpUserList(createUser("User1", 111, NetworkCapability.BINARY.getFlag()),
+                      createUser("User2", 222, NetworkCapability.BINARY.getFlag()));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+
+        networkService.sendMessageToAllUsers("123!MSG#Me:[1]Hello");
+
+        verify(messageSender).send("123!MSG#Me:[1]Hello", NetworkCapability.BINARY.getFlag());
+        verify(tcpNetworkService).sendMessageToAll("123!MSG#Me:[1]Hello");
+    }
+
+    @Test
+    public void sendMessageToUserShouldUseBinaryWhenTheUserSupportsIt() {
+        final User user = createUser("User", 111, NetworkCapability.BINARY.getFlag());
+        user.setIpAddress("192.168.1.2");
+        user.setPrivateChatPort(5000);
+        setUpUserList(user, createUser("Other", 222, 0));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final UDPSender udpSender = TestUtils.setFieldValueWithMock(networkService, "udpSender", UDPSender.class);
+        TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+
+        networkService.sendMessageToUser("123!PRIVMSG#Me:(111)[1]Hello", user);
+
+        verify(udpSender).send("123!PRIVMSG#Me:(111)[1]Hello", "192.168.1.2", 5000, NetworkCapability.BINARY.getFlag());
+    }
+
+    @Test
+    public void sendMessageToUserShouldCountPrivateMessagesSeparately() {
+        final User user = createUser("User", 111, NetworkCapability.SEQUENCE.getFlag());
+        user.setIpAddress("192.168.1.2");
+        user.setPrivateChatPort(5000);
+        setUpUserList(user);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        final UDPSender udpSender = TestUtils.setFieldValueWithMock(networkService, "udpSender", UDPSender.class);
+        TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+
+        networkService.sendMessageToAllUsers("123!MSG#Me:[1]Hello");
+        networkService.sendMessageToUser("123!PRIVMSG#Me:(111)[1]Hello", user);
+        networkService.sendMessageToAllUsers("123!MSG#Me:[1]Again");
+
+        verify(messageSender).send("123.1!MSG#Me:[1]Hello", NetworkCapability.SEQUENCE.getFlag());
+        verify(udpSender).send("123.1!PRIVMSG#Me:(111)[1]Hello", "192.168.1.2", 5000, NetworkCapability.SEQUENCE.getFlag());
+        verify(messageSender).send("123.2!MSG#Me:[1]Again", NetworkCapability.SEQUENCE.getFlag());
+    }
+
+    @Test
+    public void nackForOwnMessagesShouldSendThemAgainOnMulticast() {
+        final int flags = NetworkCapability.SEQUENCE.getFlag() | NetworkCapability.NACK.getFlag();
+        setUpUserList(createUser("User", 111, flags));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+
+        networkService.sendMessageToAllUsers("123!MSG#Me:[1]First");
+        networkService.sendMessageToAllUsers("123!MSG#Me:[1]Second");
+        networkService.sendMessageToAllUsers("123!MSG#Me:[1]Third");
+
+        final ReliableMulticast reliableMulticast =
+                TestUtils.getFieldValue(networkService, ReliableMulticast.class, "reliableMulticast");
+        reliableMulticast.nackArrived(new MessageView().wrap("111!NACK#User:(0)[1]{2}"), 0, 1000);
+
+        verify(messageSender, times(2)).send("123.1!MSG#Me:[1]First", flags);
+        verify(messageSender, times(2)).send("123.2!MSG#Me:[1]Second", flags);
+        verify(messageSender, times(1)).send("123.3!MSG#Me:[1]Third", flags);
+        verify(tcpNetworkService, times(1)).sendMessageToAll("123.1!MSG#Me:[1]First");
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldOnlyUseMulticastWhenAllUsersSupportNack() {
+        final int flags = NetworkCapability.SEQUENCE.getFlag() | NetworkCapability.NACK.getFlag();
+        setUpUserList(createUser("User", 111, flags));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+        when(messageSender.send(anyString(), anyInt())).thenReturn(true);
+
+        assertTrue(networkService.sendMessageToAllUsers("123!MSG#Me:[1]Hello"));
+
+        verify(messageSender).send("123.1!MSG#Me:[1]Hello", flags);
+        verify(tcpNetworkService, never()).sendMessageToAll(anyString());
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldUseTcpWhenMulticastFails() {
+        final int flags = NetworkCapability.SEQUENCE.getFlag() | NetworkCapability.NACK.getFlag();
+        setUpUserList(createUser("User", 111, flags));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+        when(messageSender.send(anyString(), anyInt())).thenReturn(false);
+        when(tcpNetworkService.sendMessageToAll(anyString())).thenReturn(true);
+
+        assertTrue(networkService.sendMessageToAllUsers("123!MSG#Me:[1]Hello"));
+
+        final InOrder inOrder = inOrder(messageSender, tcpNetworkService);
+        inOrder.verify(messageSender).send("123.1!MSG#Me:[1]Hello", flags);
+        inOrder.verify(tcpNetworkService).sendMessageToAll("123.1!MSG#Me:[1]Hello");
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldFailWhenBothMulticastAndTcpFail() {
+        final int flags = NetworkCapability.SEQUENCE.getFlag() | NetworkCapability.NACK.getFlag();
+        setUpUserList(createUser("User", 111, flags));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+
+        assertFalse(networkService.sendMessageToAllUsers("123!MSG#Me:[1]Hello"));
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldOnlyUseTcpWhenLinkedToAllUsers() {
+        final int flags = NetworkCapability.SEQUENCE.getFlag() | NetworkCapability.NACK.getFlag();
+        setUpUserList(createUser("User1", 111, flags), createUser("User2", 222, flags));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+        when(tcpNetworkService.getLinkCount()).thenReturn(2);
+        when(tcpNetworkService.sendMessageToAllAndCount(anyString())).thenReturn(2);
+
+        assertTrue(networkService.sendMessageToAllUsers("123!MSG#Me:[1]Hello"));
+
+        verify(tcpNetworkService).sendMessageToAllAndCount("123.1!MSG#Me:[1]Hello");
+        verifyZeroInteractions(messageSender);
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldAlsoUseMulticastWhenATcpLinkIsDown() {
+        final int flags = NetworkCapability.SEQUENCE.getFlag() | NetworkCapability.NACK.getFlag();
+        setUpUserList(createUser("User1", 111, flags), createUser("User2", 222, flags));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+        when(tcpNetworkService.getLinkCount()).thenReturn(2);
+        when(tcpNetworkService.sendMessageToAllAndCount(anyString())).thenReturn(1);
+
+        assertTrue(networkService.sendMessageToAllUsers("123!MSG#Me:[1]Hello"));
+
+        final InOrder inOrder = inOrder(messageSender, tcpNetworkService);
+        inOrder.verify(tcpNetworkService).sendMessageToAllAndCount("123.1!MSG#Me:[1]Hello");
+        inOrder.verify(messageSender).send("123.1!MSG#Me:[1]Hello", flags);
+        verify(tcpNetworkService, never()).sendMessageToAll(anyString());
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldAlsoUseTcpAfterMulticastMessagesWereLost() {
+        final int flags = NetworkCapability.SEQUENCE.getFlag() | NetworkCapability.NACK.getFlag();
+        setUpUserList(createUser("User", 111, flags));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+        when(messageSender.send(anyString(), anyInt())).thenReturn(true);
+
+        assertTrue(networkService.sendMessageToAllUsers("123!MSG#Me:[1]First"));
+        verify(tcpNetworkService, never()).sendMessageToAll(anyString());
+
+        final ReliableMulticast reliableMulticast =
+                TestUtils.getFieldValue(networkService, ReliableMulticast.class, "reliableMulticast");
+        reliableMulticast.nackArrived(new MessageView().wrap("111!NACK#User:(0)[1]{1}"), 0, 1000);
+
+        assertTrue(networkService.sendMessageToAllUsers("123!MSG#Me:[1]Second"));
+
+        verify(messageSender).send("123.2!MSG#Me:[1]Second", flags);
+        verify(tcpNetworkService).sendMessageToAll("123.2!MSG#Me:[1]Second");
+    }
+
+    @Test
+    public void sendMessageToAllUsersShouldUseBothMulticastAndTcpWhenOneUserDoesNotSupportNack() {
+        setUpUserList(createUser("User1", 111, NetworkCapability.getAllFlags()),
+                      createUser("User2", 222, NetworkCapability.SEQUENCE.getFlag()));
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final MessageSender messageSender = TestUtils.setFieldValueWithMock(networkService, "messageSender", MessageSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+        when(messageSender.send(anyString(), anyInt())).thenReturn(true);
+
+        assertTrue(networkService.sendMessageToAllUsers("123!MSG#Me:[1]Hello"));
+
+        verify(messageSender).send("123.1!MSG#Me:[1]Hello", NetworkCapability.SEQUENCE.getFlag());
+        verify(tcpNetworkService).sendMessageToAll("123.1!MSG#Me:[1]Hello");
+    }
+
+    @Test
+    public void sendMessageToUserShouldOnlyUseTcpWhenConnectedAndMessageIsNumbered() {
+        final User user = createUser("User", 111, NetworkCapability.SEQUENCE.getFlag());
+        setUpUserList(user);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final UDPSender udpSender = TestUtils.setFieldValueWithMock(networkService, "udpSender", UDPSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+        when(tcpNetworkService.sendMessageToUser(anyString(), eq(user))).thenReturn(true);
+
+        assertTrue(networkService.sendMessageToUser("123!PRIVMSG#Me:(111)[1]Hello", user));
+
+        verify(tcpNetworkService).sendMessageToUser("123.1!PRIVMSG#Me:(111)[1]Hello", user);
+        verify(udpSender, never()).send(anyString(), anyString(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void sendMessageToUserShouldUseBothTcpAndUdpWhenMessageIsNotNumbered() {
+        final User user = createUser("User", 111, 0);
+        user.setIpAddress("192.168.1.2");
+        user.setPrivateChatPort(5000);
+        setUpUserList(user);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final UDPSender udpSender = TestUtils.setFieldValueWithMock(networkService, "udpSender", UDPSender.class);
+        final TCPNetworkService tcpNetworkService =
+                TestUtils.setFieldValueWithMock(networkService, "tcpNetworkService", TCPNetworkService.class);
+        when(tcpNetworkService.sendMessageToUser(anyString(), eq(user))).thenReturn(true);
+
+        networkService.sendMessageToUser("123!PRIVMSG#Me:(111)[1]Hello", user);
+
+        verify(tcpNetworkService).sendMessageToUser("123!PRIVMSG#Me:(111)[1]Hello", user);
+        verify(udpSender).send("123!PRIVMSG#Me:(111)[1]Hello", "192.168.1.2", 5000, 0);
+    }
+
+    private User createUser(final String nick, final int code, final int networkCapabilities) {
+        final User user = new User(nick, code);
+        user.setNetworkCapabilities(networkCapabilities);
+
+        return user;
+    }
+
+    private void setUpUserList(final User... users) {
+        final SortedUserList userList = new SortedUserList();
+
+        for (final User user : users) {
+            userList.add(user);
+        }
+
+        when(controller.getUserList()).thenReturn(userList);
+    }
 }
@@ -0,0 +1,324 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test of {@link OutboundMessageQueue}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class OutboundMessageQueueTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private OutboundMessageQueue queue;
+    private NetworkService networkService;
+    private OutboundMessageQueue.SendCallback callback;
+
+    @Before
+    public void setUp() {
+        networkService = mock(NetworkService.class);
+        callback = mock(OutboundMessageQueue.SendCallback.class);
+        queue = new OutboundMessageQueue(networkService);
+    }
+
+    @After
+    public void tearDown() {
+        queue.stop();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfNetworkServiceIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Network service can not be null");
+
+        new OutboundMessageQueue(null);
+    }
+
+    @Test
+    public void sendShouldThrowExceptionIfMessageIsEmpty() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be empty");
+
+        queue.send("", null, callback);
+    }
+
+    @Test
+    public void sendShouldSendRightAwayWhenNotStarted() {
+        when(networkService.sendMessageToAllUsers("Hello")).thenReturn(true);
+
+        queue.send("Hello", null, callback);
+
+        verify(networkService).sendMessageToAllUsers("Hello");
+        verify(callback).messageSent(true);
+    }
+
+    @Test
+    public void sendShouldSendToUserIfUserIsSet() {
+        final User user = new User("Test", 1234);
+
+        queue.send("Hello", user, callback);
+
+        verify(networkService).sendMessageToUser("Hello", user);
+        verify(callback).messageSent(false);
+    }
+
+    @Test
+    public void sendShouldNotWaitForTheNetworkWhenStarted() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+
+        when(networkService.sendMessageToAllUsers("Slow")).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+                blocked.await(5, TimeUnit.SECONDS);
+                return true;
+            }
+        });
+
+        queue.start();
+        queue.send("Slow", null, null);
+        queue.send("Hello", null, callback);
+
+        verify(callback, after(100).never()).messageSent(anyBoolean());
+
+        blocked.countDown();
+
+        verify(callback, timeout(1000)).messageSent(false);
+    }
+
+    @Test
+    public void sendShouldKeepTheOrderWhenStarted() {
+        queue.start();
+
+        for (int i = 0; i < 100; i++) {
+            queue.send("Message " + i, null, null);
+        }
+
+        queue.sendAndWait("Last", null);
+
+        final InOrder inOrder = inOrder(networkService);
+
+        for (int i = 0; i < 100; i++) {
+            inOrder.verify(networkService).sendMessageToAllUsers("Message " + i);
+        }
+
+        inOrder.verify(networkService).sendMessageToAllUsers("Last");
+    }
+
+    @Test
+    public void sendAndWaitShouldReturnTheResult() {
+        when(networkService.sendMessageToAllUsers("Hello")).thenReturn(true);
+        queue.start();
+
+        assertTrue(queue.sendAndWait("Hello", null));
+        assertFalse(queue.sendAndWait("Goodbye", null));
+    }
+
+    @Test
+    public void sendFromCallbackShouldSendRightAway() {
+        queue.start();
+
+        queue.send("First", null, new OutboundMessageQueue.SendCallback() {
+            @Override
+            public void messageSent(final boolean sent) {
+                queue.send("Second", null, callback);
+            }
+        });
+
+        verify(callback, timeout(1000)).messageSent(false);
+        verify(networkService).sendMessageToAllUsers("Second");
+    }
+
+    @Test
+    public void failingCallbackShouldNotStopTheQueue() {
+        queue.start();
+
+        queue.send("First", null, new OutboundMessageQueue.SendCallback() {
+            @Override
+            public void messageSent(final boolean sent) {
+                throw new IllegalStateException("Failed");
+            }
+        });
+
+        assertFalse(queue.sendAndWait("Second", null));
+        verify(networkService).sendMessageToAllUsers("Second");
+    }
+
+    @Test
+    public void stopShouldSendMessagesAlreadyInTheQueue() {
+        final CountDownLatch blocked = new CountDownLatch(1);
+
+        when(networkService.sendMessageToAllUsers("Slow")).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+                blocked.await(5, TimeUnit.SECONDS);
+                return true;
+            }
+        });
+
+        queue.start();
+        queue.send("Slow", null, null);
+        queue.send("Hello", null, callback);
+        queue.stop();
+
+        assertFalse(queue.isRunning());
+        blocked.countDown();
+
+        verify(callback, timeout(1000)).messageSent(false);
+    }
+
+    @Test
+    public void startAfterStopShouldSendTheOldMessagesBeforeTheNewOnes() {
+        final CountDownLatch blocked = new CountDownLatch(1);
+
+        when(networkService.sendMessageToAllUsers("Slow")).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+                blocked.await(5, TimeUnit.SECONDS);
+                return true;
+            }
+        });
+
+        queue.start();
+        queue.send("Slow", null, null);
+        queue.send("Old", null, null);
+        queue.stop();
+
+        final Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                }
+
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                blocked.countDown();
+            }
+        });
+
+        releaser.start();
+        queue.start();
+        queue.sendAndWait("New", null);
+
+        final InOrder inOrder = inOrder(networkService);
+        inOrder.verify(networkService).sendMessageToAllUsers("Slow");
+        inOrder.verify(networkService).sendMessageToAllUsers("Old");
+        inOrder.verify(networkService).sendMessageToAllUsers("New");
+    }
+
+    @Test
+    public void sendShouldRefuseTheMessageWithoutWaitingWhenTheQueueIsFull() {
+        final CountDownLatch blocked = new CountDownLatch(1);
+
+        when(networkService.sendMessageToAllUsers("Slow")).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+                blocked.await(5, TimeUnit.SECONDS);
+                return true;
+            }
+        });
+
+        queue.start();
+        queue.send("Slow", null, null);
+
+        for (int i = 0; i < OutboundMessageQueue.MAX_MESSAGES; i++) {
+            queue.send("Queued", null, null);
+        }
+
+        // The slow message may not have been taken from the queue yet
+        queue.send("Queued", null, null);
+        queue.send("Hello", null, callback);
+
+        verify(callback).messageSent(false);
+        verify(networkService, never()).sendMessageToAllUsers("Hello");
+
+        blocked.countDown();
+    }
+
+    @Test
+    public void messagesSentWhileStoppingShouldNotBeLost() throws InterruptedException {
+        final int messageCount = 200;
+        final AtomicInteger notified = new AtomicInteger();
+        final CountDownLatch allNotified = new CountDownLatch(messageCount);
+
+        final OutboundMessageQueue.SendCallback countingCallback = new OutboundMessageQueue.SendCallback() {
+            @Override
+            public void messageSent(final boolean sent) {
+                notified.incrementAndGet();
+                allNotified.countDown();
+            }
+        };
+
+        queue.start();
+
+        final Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < messageCount; i++) {
+                    queue.send("Hello " + i, null, countingCallback);
+                }
+            }
+        });
+
+        sender.start();
+        queue.stop();
+        sender.join(5000);
+
+        assertTrue(allNotified.await(5, TimeUnit.SECONDS));
+        assertEquals(messageCount, notified.get());
+    }
+
+    @Test
+    public void isRunningShouldBeTrueWhenStarted() {
+        assertFalse(queue.isRunning());
+
+        queue.start();
+        assertTrue(queue.isRunning());
+
+        queue.stop();
+        assertFalse(queue.isRunning());
+    }
+}
@@ -47,13 +47,15 @@ public class PrivateMessageParserTest {
     private PrivateMessageParser privateMessageParser;
 
     private Logger log;
+    private PrivateMessageResponder responder;
 
     @Before
     public void setUp() {
         final Settings settings = mock(Settings.class);
         when(settings.getMe()).thenReturn(new User("Test", 1234));
 
-        privateMessageParser = new PrivateMessageParser(mock(PrivateMessageResponder.class), settings);
+        responder = mock(PrivateMessageResponder.class);
+        privateMessageParser = new PrivateMessageParser(responder, settings);
 
         log = TestUtils.setFieldValueWithMock(privateMessageParser, "LOG", Logger.class);
     }
@@ -86,6 +88,15 @@ public class PrivateMessageParserTest {
         checkException(exceptionCaptor, NumberFormatException.class, "For input string: \"a12516938\"");
     }
 
+    @Test
+    public void messageArrivedWithEnvelopeShouldUseParsedMessage() {
+        final MessageView view = new MessageView().wrap("12516938!PRIVMSG#Christian:(1234)[-6750208]hello");
+
+        privateMessageParser.messageArrived(new MessageEnvelope(view, "192.168.1.2", null));
+
+        verify(responder).messageArrived(12516938, "hello", -6750208);
+    }
+
     @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
     private void checkException(final ArgumentCaptor<Exception> exceptionCaptor,
                                 final Class<? extends Exception> expectedException,
@@ -0,0 +1,210 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.TimerTask;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link ReliableMulticast}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class ReliableMulticastTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ReliableMulticast reliableMulticast;
+    private ReliableMulticast.Listener listener;
+
+    @Before
+    public void setUp() {
+        listener = mock(ReliableMulticast.Listener.class);
+        reliableMulticast = new ReliableMulticast(listener);
+    }
+
+    @After
+    public void tearDown() {
+        reliableMulticast.stop();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfListenerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Listener can not be null");
+
+        new ReliableMulticast(null);
+    }
+
+    @Test
+    public void messagesInOrderShouldNotBeMissing() {
+        reliableMulticast.messageArrived(111, 1, 0);
+        reliableMulticast.messageArrived(111, 2, 0);
+        reliableMulticast.messageArrived(111, 3, 0);
+
+        assertEquals(0, reliableMulticast.getMissing(111));
+
+        reliableMulticast.sendDueNacks(10000);
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void firstMessageFromUserShouldNotBeMissingEarlierMessages() {
+        reliableMulticast.messageArrived(111, 500, 0);
+
+        assertEquals(0, reliableMulticast.getMissing(111));
+    }
+
+    @Test
+    public void gapShouldBeAskedForAfterTheDelay() {
+        reliableMulticast.messageArrived(111, 1, 0);
+        reliableMulticast.messageArrived(111, 5, 0);
+
+        assertEquals(3, reliableMulticast.getMissing(111));
+
+        reliableMulticast.sendDueNacks(ReliableMulticast.MIN_NACK_DELAY - 1);
+        verifyZeroInteractions(listener);
+
+        reliableMulticast.sendDueNacks(ReliableMulticast.MAX_NACK_DELAY);
+        verify(listener).sendNack(111, 2, 4);
+    }
+
+    @Test
+    public void recoveredMessageShouldNotBeAskedFor() {
+        reliableMulticast.messageArrived(111, 1, 0);
+        reliableMulticast.messageArrived(111, 5, 0);
+        reliableMulticast.messageArrived(111, 3, 0);
+
+        assertEquals(2, reliableMulticast.getMissing(111));
+
+        reliableMulticast.sendDueNacks(ReliableMulticast.MAX_NACK_DELAY);
+        verify(listener).sendNack(111, 2, 2);
+        verify(listener).sendNack(111, 4, 4);
+    }
+
+    @Test
+    public void missingMessageShouldBeAskedForAgainAfterRetryDelayAndThenGivenUp() {
+        reliableMulticast.messageArrived(111, 1, 0);
+        reliableMulticast.messageArrived(111, 3, 0);
+
+        long now = ReliableMulticast.MAX_NACK_DELAY;
+
+        for (int i = 0; i < ReliableMulticast.MAX_ATTEMPTS; i++) {
+            reliableMulticast.sendDueNacks(now);
+            now += ReliableMulticast.RETRY_DELAY;
+        }
+
+        verify(listener, times(ReliableMulticast.MAX_ATTEMPTS)).sendNack(111, 2, 2);
+
+        reliableMulticast.sendDueNacks(now);
+        assertEquals(0, reliableMulticast.getMissing(111));
+        verify(listener, times(ReliableMulticast.MAX_ATTEMPTS)).sendNack(111, 2, 2);
+    }
+
+    @Test
+    public void largeGapShouldStartOver() {
+        reliableMulticast.messageArrived(111, 1, 0);
+        reliableMulticast.messageArrived(111, ReliableMulticast.MAX_MISSING + 3, 0);
+
+        assertEquals(0, reliableMulticast.getMissing(111));
+    }
+
+    @Test
+    public void requestFromOtherUserShouldPutOffOwnRequest() {
+        reliableMulticast.messageArrived(111, 1, 0);
+        reliableMulticast.messageArrived(111, 3, 0);
+
+        reliableMulticast.nackArrived(new MessageView().wrap("222!NACK#Other:(111)[2]{2}"), 333, 10);
+        reliableMulticast.sendDueNacks(ReliableMulticast.MAX_NACK_DELAY);
+
+        verifyZeroInteractions(listener);
+
+        reliableMulticast.sendDueNacks(10 + ReliableMulticast.RETRY_DELAY);
+        verify(listener).sendNack(111, 2, 2);
+    }
+
+    @Test
+    public void requestForOwnMessagesShouldRetransmit() {
+        reliableMulticast.nackArrived(new MessageView().wrap("222!NACK#Other:(333)[7]{9}"), 333, 0);
+
+        verify(listener).retransmit(7, 9);
+    }
+
+    @Test
+    public void invalidRequestShouldBeIgnored() {
+        reliableMulticast.nackArrived(new MessageView().wrap("222!NACK#Other:(333)[9]{7}"), 333, 0);
+        reliableMulticast.nackArrived(new MessageView().wrap("222!NACK#Other:(333)[1]{1000}"), 333, 0);
+        reliableMulticast.nackArrived(new MessageView().wrap("222!NACK#Other:(333)[x]{1}"), 333, 0);
+        reliableMulticast.nackArrived(new MessageView().wrap("222!NACK#Other:333"), 333, 0);
+
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void removeShouldForgetMissingMessages() {
+        reliableMulticast.messageArrived(111, 1, 0);
+        reliableMulticast.messageArrived(111, 3, 0);
+        reliableMulticast.remove(111);
+
+        assertEquals(0, reliableMulticast.getMissing(111));
+    }
+
+    @Test
+    public void startShouldSendRequestsFromTimer() {
+        reliableMulticast.start();
+
+        final long now = System.currentTimeMillis();
+        reliableMulticast.messageArrived(111, 1, now);
+        reliableMulticast.messageArrived(111, 3, now);
+
+        verify(listener, timeout(2000)).sendNack(111, 2, 2);
+    }
+
+    @Test
+    public void timerShouldOnlyCheckForRequestsWhileMessagesAreMissing() {
+        reliableMulticast.start();
+
+        reliableMulticast.messageArrived(111, 1, 0);
+        reliableMulticast.messageArrived(111, 2, 0);
+        assertNull(TestUtils.getFieldValue(reliableMulticast, TimerTask.class, "checkTask"));
+
+        reliableMulticast.messageArrived(111, 4, 0);
+        assertNotNull(TestUtils.getFieldValue(reliableMulticast, TimerTask.class, "checkTask"));
+
+        reliableMulticast.messageArrived(111, 3, 0);
+        reliableMulticast.sendDueNacks(0);
+        assertNull(TestUtils.getFieldValue(reliableMulticast, TimerTask.class, "checkTask"));
+    }
+}
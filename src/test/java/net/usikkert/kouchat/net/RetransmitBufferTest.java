@@ -0,0 +1,90 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link RetransmitBuffer}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class RetransmitBufferTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private RetransmitBuffer buffer;
+
+    @Before
+    public void setUp() {
+        buffer = new RetransmitBuffer();
+    }
+
+    @Test
+    public void addShouldThrowExceptionIfMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        buffer.add(1, null);
+    }
+
+    @Test
+    public void getForRetransmitShouldReturnMessageWithSequence() {
+        buffer.add(1, "123.1!MSG#Me:[1]First");
+        buffer.add(2, "123.2!MSG#Me:[1]Second");
+
+        assertEquals("123.2!MSG#Me:[1]Second", buffer.getForRetransmit(2, 1000));
+        assertEquals("123.1!MSG#Me:[1]First", buffer.getForRetransmit(1, 1000));
+    }
+
+    @Test
+    public void getForRetransmitShouldReturnNullForUnknownSequence() {
+        assertNull(buffer.getForRetransmit(1, 1000));
+    }
+
+    @Test
+    public void getForRetransmitShouldReturnNullWhenMessageHasBeenReplaced() {
+        buffer.add(1, "123.1!MSG#Me:[1]First");
+        buffer.add(1 + RetransmitBuffer.CAPACITY, "123.257!MSG#Me:[1]Later");
+
+        assertNull(buffer.getForRetransmit(1, 1000));
+        assertEquals("123.257!MSG#Me:[1]Later", buffer.getForRetransmit(1 + RetransmitBuffer.CAPACITY, 1000));
+    }
+
+    @Test
+    public void getForRetransmitShouldNotReturnSameMessageAgainRightAway() {
+        buffer.add(1, "123.1!MSG#Me:[1]First");
+
+        assertNotNull(buffer.getForRetransmit(1, 1000));
+        assertNull(buffer.getForRetransmit(1, 1000 + RetransmitBuffer.SUPPRESS_TIME - 1));
+        assertNotNull(buffer.getForRetransmit(1, 1000 + RetransmitBuffer.SUPPRESS_TIME));
+    }
+}
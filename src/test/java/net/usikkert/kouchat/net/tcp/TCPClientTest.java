@@ -0,0 +1,395 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.net.NetworkEventLoop;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPClient}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPClientTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private NetworkEventLoop eventLoop;
+    private ServerSocketChannel serverChannel;
+    private Socket streamSocket;
+    private Socket channelSocket;
+    private BlockingQueue<String> messages;
+
+    @Before
+    public void setUp() throws Exception {
+        eventLoop = new NetworkEventLoop();
+        eventLoop.start();
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        streamSocket = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+        final SocketChannel acceptedChannel = serverChannel.accept();
+        channelSocket = acceptedChannel.socket();
+
+        messages = new LinkedBlockingQueue<>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        streamSocket.close();
+        channelSocket.close();
+        serverChannel.close();
+        eventLoop.stop();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSocketIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Socket can not be null");
+
+        new TCPClient(null, eventLoop);
+    }
+
+    @Test
+    public void channelClientShouldReadMessagesWrittenWithStreams() throws Exception {
+        final TCPClient client = createChannelClient();
+
+        final DataOutputStream outputStream = new DataOutputStream(streamSocket.getOutputStream());
+        outputStream.writeUTF("First message");
+        outputStream.writeUTF("Second message with æøå");
+        outputStream.flush();
+
+        assertEquals("First message", messages.poll(5, TimeUnit.SECONDS));
+        assertEquals("Second message with æøå", messages.poll(5, TimeUnit.SECONDS));
+        assertTrue(client.isConnected());
+    }
+
+    @Test
+    public void channelClientShouldReadMessagesLargerThanTheInitialBuffer() throws Exception {
+        createChannelClient();
+
+        final StringBuilder longMessage = new StringBuilder();
+
+        for (int i = 0; i < 5000; i++) {
+            longMessage.append(i % 10);
+        }
+
+        final DataOutputStream outputStream = new DataOutputStream(streamSocket.getOutputStream());
+        outputStream.writeUTF(longMessage.toString());
+        outputStream.flush();
+
+        assertEquals(longMessage.toString(), messages.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void channelClientShouldWriteMessagesReadableWithStreams() throws Exception {
+        final TCPClient client = createChannelClient();
+
+        client.send("Hello");
+        client.send("World");
+
+        final DataInputStream inputStream = new DataInputStream(streamSocket.getInputStream());
+
+        assertEquals("Hello", inputStream.readUTF());
+        assertEquals("World", inputStream.readUTF());
+    }
+
+    @Test
+    public void channelClientShouldNotifyListenerWhenRemoteSocketCloses() throws Exception {
+        final BlockingQueue<TCPClient> disconnected = new LinkedBlockingQueue<>();
+        final TCPClient client = new TCPClient(channelSocket, eventLoop);
+
+        client.registerClientListener(new TCPClientListener() {
+            @Override
+            public void messageArrived(final String message, final TCPClient tcpClient) {
+
+            }
+
+            @Override
+            public void disconnected(final TCPClient tcpClient) {
+                disconnected.add(tcpClient);
+            }
+        });
+
+        assertTrue(client.connect());
+        streamSocket.close();
+
+        assertSame(client, disconnected.poll(5, TimeUnit.SECONDS));
+        assertFalse(client.isConnected());
+    }
+
+    @Test
+    public void connectShouldFailWhenEventLoopIsNotRunning() {
+        eventLoop.stop();
+
+        final TCPClient client = new TCPClient(channelSocket, eventLoop);
+
+        assertFalse(client.connect());
+        assertFalse(client.isConnected());
+    }
+
+    @Test
+    public void streamClientShouldWriteMessagesReadableWithStreams() throws Exception {
+        final TCPClient client = new TCPClient(streamSocket);
+        assertTrue(client.connect());
+
+        client.send("Hello");
+        client.send("World");
+
+        final DataInputStream inputStream = new DataInputStream(channelSocket.getInputStream());
+
+        assertEquals("Hello", inputStream.readUTF());
+        assertEquals("World", inputStream.readUTF());
+
+        client.disconnect();
+    }
+
+    @Test
+    public void streamClientsShouldShareTheStreamWriter() throws Exception {
+        final Socket otherStreamSocket = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+        final Socket otherChannelSocket = serverChannel.accept().socket();
+
+        final TCPStreamWriter streamWriter = new TCPStreamWriter();
+        final TCPWriteStatistics statistics = new TCPWriteStatistics();
+        final TCPClient client = new TCPClient(streamSocket, null, statistics, streamWriter);
+        final TCPClient otherClient = new TCPClient(otherStreamSocket, null, statistics, streamWriter);
+        assertTrue(client.connect());
+        assertTrue(otherClient.connect());
+
+        for (int i = 0; i < 100; i++) {
+            client.send("Message " + i);
+            otherClient.send("Other message " + i);
+        }
+
+        final DataInputStream inputStream = new DataInputStream(channelSocket.getInputStream());
+        final DataInputStream otherInputStream = new DataInputStream(otherChannelSocket.getInputStream());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Message " + i, inputStream.readUTF());
+            assertEquals("Other message " + i, otherInputStream.readUTF());
+        }
+
+        client.disconnect();
+        otherClient.disconnect();
+        otherChannelSocket.close();
+    }
+
+    @Test
+    public void channelClientShouldDisconnectWhenOtherSideDoesNotKeepUp() throws Exception {
+        final TCPWriteStatistics statistics = new TCPWriteStatistics();
+        final TCPClient client = new TCPClient(channelSocket, eventLoop, statistics);
+
+        assertSlowConsumerIsDisconnected(client, statistics);
+    }
+
+    @Test
+    public void streamClientShouldDisconnectWhenOtherSideDoesNotKeepUp() throws Exception {
+        final TCPWriteStatistics statistics = new TCPWriteStatistics();
+        final TCPClient client = new TCPClient(streamSocket, null, statistics);
+
+        assertSlowConsumerIsDisconnected(client, statistics);
+    }
+
+    @Test
+    public void clientsShouldExchangeMessagesInVarintFormatAfterSwitchingFromUTFFormat() throws Exception {
+        final BlockingQueue<String> streamMessages = new LinkedBlockingQueue<>();
+        final TCPClient channelClient = new TCPClient(channelSocket, eventLoop);
+
+        channelClient.registerClientListener(new TCPClientListener() {
+            @Override
+            public void messageArrived(final String message, final TCPClient tcpClient) {
+                // Same as the user identifier, before the next message is read
+                if (message.endsWith(TCPUserIdentifier.VARINT_FRAMING)) {
+                    tcpClient.useVarintFramingForReading();
+                    tcpClient.useVarintFramingForWriting();
+                }
+
+                messages.add(message);
+            }
+
+            @Override
+            public void disconnected(final TCPClient tcpClient) {
+
+            }
+        });
+
+        assertTrue(channelClient.connect());
+
+        final TCPClient streamClient = new TCPClient(streamSocket);
+
+        streamClient.registerClientListener(new TCPClientListener() {
+            @Override
+            public void messageArrived(final String message, final TCPClient tcpClient) {
+                streamMessages.add(message);
+            }
+
+            @Override
+            public void disconnected(final TCPClient tcpClient) {
+
+            }
+        });
+
+        streamClient.useVarintFramingForReading();
+        assertTrue(streamClient.connect());
+
+        streamClient.send("SYS-IDENTIFY:1:2:varint");
+        streamClient.useVarintFramingForWriting();
+        streamClient.send("123!MSG#Test:[255]Hello");
+
+        assertEquals("SYS-IDENTIFY:1:2:varint", messages.poll(5, TimeUnit.SECONDS));
+        assertEquals("123!MSG#Test:[255]Hello", messages.poll(5, TimeUnit.SECONDS));
+
+        channelClient.send("456!MSG#Other:[255]Hi with æøå");
+        assertEquals("456!MSG#Other:[255]Hi with æøå", streamMessages.poll(5, TimeUnit.SECONDS));
+
+        streamClient.disconnect();
+    }
+
+    @Test
+    public void channelClientShouldReadVarintMessagesLargerThanTheUTFFormatAllows() throws Exception {
+        final TCPClient client = createChannelClient();
+        client.useVarintFramingForReading();
+
+        final StringBuilder longMessage = new StringBuilder();
+
+        while (longMessage.length() < 100000) {
+            longMessage.append("Too long for writeUTF. ");
+        }
+
+        final DataOutputStream outputStream = new DataOutputStream(streamSocket.getOutputStream());
+        final ByteBuffer frame = TCPFrameCodec.encodeVarint(longMessage.toString());
+        outputStream.write(frame.array(), frame.position(), frame.remaining());
+        outputStream.flush();
+
+        assertEquals(longMessage.toString(), messages.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void channelClientShouldWriteManyMessagesInOrder() throws Exception {
+        final TCPClient client = createChannelClient();
+
+        for (int i = 0; i < 300; i++) {
+            client.send("Message " + i);
+        }
+
+        final DataInputStream inputStream = new DataInputStream(streamSocket.getInputStream());
+
+        for (int i = 0; i < 300; i++) {
+            assertEquals("Message " + i, inputStream.readUTF());
+        }
+    }
+
+    @Test
+    public void streamClientShouldWriteManyMessagesInOrder() throws Exception {
+        final TCPClient client = new TCPClient(streamSocket);
+        assertTrue(client.connect());
+
+        for (int i = 0; i < 300; i++) {
+            client.send("Message " + i);
+        }
+
+        final DataInputStream inputStream = new DataInputStream(channelSocket.getInputStream());
+
+        for (int i = 0; i < 300; i++) {
+            assertEquals("Message " + i, inputStream.readUTF());
+        }
+
+        client.disconnect();
+    }
+
+    private void assertSlowConsumerIsDisconnected(final TCPClient client, final TCPWriteStatistics statistics)
+            throws InterruptedException {
+        final BlockingQueue<TCPClient> disconnected = new LinkedBlockingQueue<>();
+
+        client.registerClientListener(new TCPClientListener() {
+            @Override
+            public void messageArrived(final String message, final TCPClient tcpClient) {
+
+            }
+
+            @Override
+            public void disconnected(final TCPClient tcpClient) {
+                disconnected.add(tcpClient);
+            }
+        });
+
+        assertTrue(client.connect());
+
+        final StringBuilder largeMessage = new StringBuilder();
+
+        while (largeMessage.length() < 60000) {
+            largeMessage.append("Nobody reads this. ");
+        }
+
+        // The other side never reads, so the socket buffers and then the write queue fill up
+        for (int i = 0; i < 1000 && client.isConnected(); i++) {
+            client.send(largeMessage.toString());
+        }
+
+        assertSame(client, disconnected.poll(5, TimeUnit.SECONDS));
+        assertFalse(client.isConnected());
+        assertEquals(1, statistics.getDisconnectedClients());
+    }
+
+    private TCPClient createChannelClient() {
+        final TCPClient client = new TCPClient(channelSocket, eventLoop);
+
+        client.registerClientListener(new TCPClientListener() {
+            @Override
+            public void messageArrived(final String message, final TCPClient tcpClient) {
+                messages.add(message);
+            }
+
+            @Override
+            public void disconnected(final TCPClient tcpClient) {
+
+            }
+        });
+
+        assertTrue(client.connect());
+
+        return client;
+    }
+}
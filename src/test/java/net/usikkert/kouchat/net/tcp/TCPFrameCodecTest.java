@@ -0,0 +1,212 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.net.BinaryMessageCodec;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPFrameCodec}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPFrameCodecTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void encodeUTFShouldUseTheFormatOfWriteUTF() throws IOException {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new DataOutputStream(expected).writeUTF("Hello æøå");
+
+        final ByteBuffer frame = TCPFrameCodec.encodeUTF("Hello æøå");
+
+        assertArrayEquals(expected.toByteArray(), toArray(frame));
+    }
+
+    @Test
+    public void decodeUTFShouldDecodeAllCompleteFrames() throws IOException {
+        final ByteBuffer buffer = join(TCPFrameCodec.encodeUTF("First"), TCPFrameCodec.encodeUTF("Second"));
+
+        assertEquals("First", TCPFrameCodec.decodeUTF(buffer));
+        assertEquals("Second", TCPFrameCodec.decodeUTF(buffer));
+        assertNull(TCPFrameCodec.decodeUTF(buffer));
+    }
+
+    @Test
+    public void decodeUTFShouldNotMoveThePositionWhenTheFrameIsIncomplete() throws IOException {
+        final ByteBuffer frame = TCPFrameCodec.encodeUTF("Incomplete");
+        frame.limit(frame.limit() - 1);
+
+        assertNull(TCPFrameCodec.decodeUTF(frame));
+        assertEquals(0, frame.position());
+    }
+
+    @Test
+    public void varintShouldRoundTripTextMessages() throws IOException {
+        assertVarintRoundTrip("");
+        assertVarintRoundTrip("Hello æøå");
+        assertVarintRoundTrip("SYS-IDENTIFY:1234:5678");
+    }
+
+    @Test
+    public void varintShouldRoundTripMessagesInTheBinaryFormat() throws IOException {
+        final String message = "12345678!MSG#Test:[-15987646]Hello";
+        final ByteBuffer frame = TCPFrameCodec.encodeVarint(message);
+        final byte[] payload = BinaryMessageCodec.getBytes(message, true);
+
+        assertTrue(BinaryMessageCodec.isBinary(payload, 0, payload.length));
+        assertEquals(1 + payload.length, frame.remaining());
+        assertEquals(message, TCPFrameCodec.decodeVarint(frame));
+    }
+
+    @Test
+    public void varintShouldRoundTripMessagesTooLongForTheUTFFormat() throws IOException {
+        final StringBuilder message = new StringBuilder();
+
+        while (message.length() < 100000) {
+            message.append("Long message. ");
+        }
+
+        final ByteBuffer frame = TCPFrameCodec.encodeVarint(message.toString());
+
+        assertEquals(3 + message.length(), frame.remaining());
+        assertEquals(message.toString(), TCPFrameCodec.decodeVarint(frame));
+    }
+
+    @Test
+    public void encodeVarintShouldUseOneByteForShortLengths() throws IOException {
+        final ByteBuffer frame = TCPFrameCodec.encodeVarint("Hello");
+
+        assertEquals(6, frame.remaining());
+        assertEquals(5, frame.get(0));
+    }
+
+    @Test
+    public void encodeVarintShouldThrowExceptionIfMessageIsTooLong() throws IOException {
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage("Message too long: 1048577 bytes");
+
+        final char[] message = new char[TCPFrameCodec.MAX_FRAME_SIZE + 1];
+        Arrays.fill(message, 'a');
+
+        TCPFrameCodec.encodeVarint(new String(message));
+    }
+
+    @Test
+    public void decodeVarintShouldNotMoveThePositionWhenTheFrameIsIncomplete() throws IOException {
+        final ByteBuffer frame = join(TCPFrameCodec.encodeVarint(createMessage(200)));
+
+        frame.limit(1);
+        assertNull(TCPFrameCodec.decodeVarint(frame));
+        assertEquals(0, frame.position());
+
+        frame.limit(100);
+        assertNull(TCPFrameCodec.decodeVarint(frame));
+        assertEquals(0, frame.position());
+
+        frame.limit(frame.capacity());
+        assertEquals(createMessage(200), TCPFrameCodec.decodeVarint(frame));
+        assertEquals(frame.capacity(), frame.position());
+    }
+
+    @Test
+    public void decodeVarintShouldThrowExceptionIfLengthIsTooLong() throws IOException {
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage("Frame too long: 2097151 bytes");
+
+        TCPFrameCodec.decodeVarint(ByteBuffer.wrap(new byte[] {(byte) 0xFF, (byte) 0xFF, 0x7F}));
+    }
+
+    @Test
+    public void decodeVarintShouldThrowExceptionIfLengthHasTooManyBytes() throws IOException {
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage("Invalid frame length");
+
+        TCPFrameCodec.decodeVarint(ByteBuffer.wrap(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01}));
+    }
+
+    @Test
+    public void readVarintLengthShouldReadTheLengthFromTheStream() throws IOException {
+        final ByteBuffer frame = TCPFrameCodec.encodeVarint(createMessage(300));
+
+        assertEquals(300, TCPFrameCodec.readVarintLength(new ByteArrayInputStream(toArray(frame))));
+    }
+
+    @Test
+    public void readVarintLengthShouldThrowExceptionWhenStreamEnds() throws IOException {
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage("Connection closed");
+
+        TCPFrameCodec.readVarintLength(new ByteArrayInputStream(new byte[] {(byte) 0x80}));
+    }
+
+    private void assertVarintRoundTrip(final String message) throws IOException {
+        final ByteBuffer frame = TCPFrameCodec.encodeVarint(message);
+
+        assertEquals(message, TCPFrameCodec.decodeVarint(frame));
+        assertFalse(frame.hasRemaining());
+    }
+
+    private String createMessage(final int length) {
+        final StringBuilder message = new StringBuilder();
+
+        while (message.length() < length) {
+            message.append('x');
+        }
+
+        return message.toString();
+    }
+
+    private byte[] toArray(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+
+        return bytes;
+    }
+
+    private ByteBuffer join(final ByteBuffer... frames) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        for (final ByteBuffer frame : frames) {
+            final byte[] array = toArray(frame);
+            bytes.write(array, 0, array.length);
+        }
+
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
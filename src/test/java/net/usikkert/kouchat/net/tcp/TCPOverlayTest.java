@@ -0,0 +1,235 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPOverlay}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPOverlayTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private TCPOverlay overlay;
+    private User me;
+
+    @Before
+    public void setUp() {
+        me = new User("Me", 50);
+        overlay = new TCPOverlay(4, me);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfMeIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Me can not be null");
+
+        new TCPOverlay(4, null);
+    }
+
+    @Test
+    public void allUsersShouldBeNeighboursWhenThereAreFewUsers() {
+        final User user1 = new User("User1", 10);
+        final User user2 = new User("User2", 20);
+
+        assertTrue(overlay.userAdded(user1));
+        assertTrue(overlay.userAdded(user2));
+
+        assertEquals(users(user1, user2), overlay.getNeighbours());
+    }
+
+    @Test
+    public void neighboursShouldBeTheNearestUsersOnBothSidesInTheRing() {
+        final User[] users = addUsers(10, 20, 30, 40, 60, 70, 80, 90);
+
+        // 2 on each side of 50
+        assertEquals(users(users[2], users[3], users[4], users[5]), overlay.getNeighbours());
+        assertFalse(overlay.isNeighbour(users[0]));
+        assertTrue(overlay.isNeighbour(users[3]));
+    }
+
+    @Test
+    public void neighboursShouldWrapAroundTheRing() {
+        me = new User("Me", 5);
+        overlay = new TCPOverlay(4, me);
+
+        final User[] users = addUsers(10, 20, 30, 40, 60, 70, 80, 90);
+
+        assertEquals(users(users[0], users[1], users[6], users[7]), overlay.getNeighbours());
+    }
+
+    @Test
+    public void neighboursShouldBeTheSameFromBothSides() {
+        final int[] codes = {10, 20, 30, 40, 50, 60, 70, 80, 90};
+        final TCPOverlay[] overlays = new TCPOverlay[codes.length];
+
+        for (int i = 0; i < codes.length; i++) {
+            overlays[i] = new TCPOverlay(4, new User("User" + i, codes[i]));
+
+            for (final int code : codes) {
+                overlays[i].userAdded(new User("User", code));
+            }
+        }
+
+        for (int i = 0; i < codes.length; i++) {
+            for (int j = 0; j < codes.length; j++) {
+                if (i != j) {
+                    assertEquals(overlays[i].isNeighbour(new User("User", codes[j])),
+                                 overlays[j].isNeighbour(new User("User", codes[i])));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void userAddedShouldIgnoreMe() {
+        assertFalse(overlay.userAdded(me));
+        assertTrue(overlay.getNeighbours().isEmpty());
+    }
+
+    @Test
+    public void userAddedShouldReturnFalseIfNeighboursDidNotChange() {
+        addUsers(10, 20, 30, 40, 60, 70, 80, 90);
+
+        assertFalse(overlay.userAdded(new User("Far away", 5)));
+        assertTrue(overlay.userAdded(new User("Close", 45)));
+    }
+
+    @Test
+    public void userRemovedShouldReplaceTheNeighbour() {
+        final User[] users = addUsers(10, 20, 30, 40, 60, 70, 80, 90);
+
+        assertTrue(overlay.userRemoved(users[3]));
+
+        assertEquals(users(users[1], users[2], users[4], users[5]), overlay.getNeighbours());
+    }
+
+    @Test
+    public void oddNumberOfLinksShouldBeRoundedDown() {
+        overlay = new TCPOverlay(5, me);
+        final User[] users = addUsers(10, 20, 30, 40, 60, 70, 80, 90);
+
+        assertEquals(users(users[2], users[3], users[4], users[5]), overlay.getNeighbours());
+    }
+
+    @Test
+    public void oneLinkShouldUseOneNeighbourOnEachSide() {
+        overlay = new TCPOverlay(1, me);
+        final User[] users = addUsers(10, 20, 30, 40, 60, 70, 80, 90);
+
+        assertEquals(users(users[3], users[4]), overlay.getNeighbours());
+    }
+
+    @Test
+    public void directMessageShouldNotBeNeededForNeighbours() {
+        final User[] users = addUsers(10, 20, 30, 40, 60, 70, 80, 90);
+
+        assertFalse(overlay.directMessage(users[3], 1000));
+        assertTrue(overlay.isWanted(users[3], 1000));
+    }
+
+    @Test
+    public void directMessageShouldMakeOtherUsersWantedForAWhile() {
+        final User[] users = addUsers(10, 20, 30, 40, 60, 70, 80, 90);
+
+        assertFalse(overlay.isWanted(users[0], 1000));
+        assertTrue(overlay.directMessage(users[0], 1000));
+
+        assertTrue(overlay.isWanted(users[0], 1000 + TCPOverlay.DIRECT_LINK_TIMEOUT - 1));
+        assertFalse(overlay.isWanted(users[0], 1000 + TCPOverlay.DIRECT_LINK_TIMEOUT));
+    }
+
+    @Test
+    public void directMessageShouldBeIgnoredForUnknownUser() {
+        final User unknown = new User("Unknown", 99);
+
+        assertFalse(overlay.directMessage(unknown, 1000));
+        assertFalse(overlay.isWanted(unknown, 1000));
+    }
+
+    @Test
+    public void directMessageShouldOnlyAllowALimitedNumberOfDirectLinks() {
+        final int[] codes = new int[TCPOverlay.MAX_DIRECT_LINKS + 10];
+
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = 100 + i;
+        }
+
+        final User[] users = addUsers(codes);
+        int direct = 0;
+
+        for (final User user : users) {
+            if (!overlay.isNeighbour(user) && overlay.directMessage(user, 1000)) {
+                direct++;
+            }
+        }
+
+        assertEquals(TCPOverlay.MAX_DIRECT_LINKS, direct);
+
+        // Room again when the old ones have expired
+        final User last = users[users.length - 3];
+        assertFalse(overlay.isNeighbour(last));
+        assertTrue(overlay.directMessage(last, 1000 + TCPOverlay.DIRECT_LINK_TIMEOUT));
+    }
+
+    @Test
+    public void userRemovedShouldForgetDirectLink() {
+        final User[] users = addUsers(10, 20, 30, 40, 60, 70, 80, 90);
+
+        overlay.directMessage(users[0], 1000);
+        overlay.userRemoved(users[0]);
+
+        assertFalse(overlay.isWanted(users[0], 1000));
+    }
+
+    private User[] addUsers(final int... codes) {
+        final User[] users = new User[codes.length];
+
+        for (int i = 0; i < codes.length; i++) {
+            users[i] = new User("User" + codes[i], codes[i]);
+            overlay.userAdded(users[i]);
+        }
+
+        return users;
+    }
+
+    private Set<User> users(final User... users) {
+        return new HashSet<>(Arrays.asList(users));
+    }
+}
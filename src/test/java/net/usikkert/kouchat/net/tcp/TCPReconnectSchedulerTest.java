@@ -0,0 +1,324 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Test of {@link TCPReconnectScheduler}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPReconnectSchedulerTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private TCPReconnectScheduler scheduler;
+
+    private List<Runnable> tasks;
+    private Timer timer;
+    private TCPReconnectScheduler.ConnectionAttempt connectionAttempt;
+    private User user;
+
+    @Before
+    public void setUp() {
+        tasks = new ArrayList<>();
+        timer = mock(Timer.class);
+        connectionAttempt = mock(TCPReconnectScheduler.ConnectionAttempt.class);
+        user = new User("User", 100);
+
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                tasks.add(command);
+            }
+        };
+
+        scheduler = new TCPReconnectScheduler(executor, timer, connectionAttempt);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfExecutorIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Executor can not be null");
+
+        new TCPReconnectScheduler(null, timer, connectionAttempt);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfTimerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Timer can not be null");
+
+        new TCPReconnectScheduler(mock(Executor.class), null, connectionAttempt);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfConnectionAttemptIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Connection attempt can not be null");
+
+        new TCPReconnectScheduler(mock(Executor.class), timer, null);
+    }
+
+    @Test
+    public void connectShouldStartAttemptRightAway() {
+        when(connectionAttempt.connect(user, TCPReconnectScheduler.INITIAL_CONNECT_TIMEOUT)).thenReturn(true);
+
+        scheduler.connect(user);
+
+        assertEquals(1, tasks.size());
+        assertEquals(1, scheduler.getRunningAttempts());
+
+        runTask(0);
+
+        verify(connectionAttempt).connect(user, TCPReconnectScheduler.INITIAL_CONNECT_TIMEOUT);
+        assertEquals(0, scheduler.getRunningAttempts());
+        assertEquals(0, scheduler.getFailures(user));
+        verifyZeroInteractions(timer);
+    }
+
+    @Test
+    public void connectShouldDoNothingWhenAttemptIsAlreadyRunning() {
+        scheduler.connect(user);
+        scheduler.connect(user);
+
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    public void failedAttemptShouldBeTriedAgainAfterDelay() {
+        scheduler.connect(user);
+        runTask(0);
+
+        assertEquals(1, scheduler.getFailures(user));
+
+        final ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        final TimerTask retryTask = captureRetryTask(delay);
+
+        assertTrue(delay.getValue() >= TCPReconnectScheduler.INITIAL_DELAY / 2);
+        assertTrue(delay.getValue() <= TCPReconnectScheduler.INITIAL_DELAY);
+
+        // Waiting for the retry, so nothing happens
+        scheduler.connect(user);
+        assertEquals(1, tasks.size());
+
+        retryTask.run();
+
+        assertEquals(2, tasks.size());
+        runTask(1);
+
+        verify(connectionAttempt).connect(user, TCPReconnectScheduler.INITIAL_CONNECT_TIMEOUT * 2);
+        assertEquals(2, scheduler.getFailures(user));
+    }
+
+    @Test
+    public void retryNowShouldStartAttemptWhenHalfTheDelayHasPassed() {
+        scheduler.connect(user);
+        runTask(0);
+
+        final TimerTask retryTask = captureRetryTask();
+
+        scheduler.retryNow(user, System.currentTimeMillis() + TCPReconnectScheduler.INITIAL_DELAY);
+
+        assertEquals(2, tasks.size());
+
+        // The old task no longer starts attempts
+        retryTask.run();
+        assertEquals(2, tasks.size());
+    }
+
+    @Test
+    public void retryNowShouldDoNothingRightAfterFailure() {
+        scheduler.connect(user);
+        runTask(0);
+
+        scheduler.retryNow(user, System.currentTimeMillis());
+
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    public void retryNowShouldDoNothingIfUserIsNotWaitingForRetry() {
+        scheduler.retryNow(user, System.currentTimeMillis());
+
+        scheduler.connect(user);
+        scheduler.retryNow(user, System.currentTimeMillis() + 100_000);
+
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    public void connectedShouldForgetFailuresAndCancelRetry() {
+        scheduler.connect(user);
+        runTask(0);
+
+        final TimerTask retryTask = captureRetryTask();
+
+        scheduler.connected(user);
+
+        assertEquals(0, scheduler.getFailures(user));
+        retryTask.run();
+        assertEquals(1, tasks.size());
+
+        scheduler.connect(user);
+        assertEquals(2, tasks.size());
+    }
+
+    @Test
+    public void removeShouldCancelRetry() {
+        scheduler.connect(user);
+        runTask(0);
+
+        final TimerTask retryTask = captureRetryTask();
+
+        scheduler.remove(user);
+        retryTask.run();
+
+        assertEquals(1, tasks.size());
+        assertEquals(0, scheduler.getFailures(user));
+    }
+
+    @Test
+    public void removeWhileConnectingShouldNotScheduleRetry() {
+        scheduler.connect(user);
+        scheduler.remove(user);
+        runTask(0);
+
+        verifyZeroInteractions(timer);
+        assertEquals(0, scheduler.getRunningAttempts());
+    }
+
+    @Test
+    public void connectShouldLimitNumberOfAttemptsAtTheSameTime() {
+        final int users = TCPReconnectScheduler.MAX_CONCURRENT_ATTEMPTS + 2;
+
+        for (int i = 0; i < users; i++) {
+            scheduler.connect(new User("User" + i, i));
+        }
+
+        assertEquals(TCPReconnectScheduler.MAX_CONCURRENT_ATTEMPTS, tasks.size());
+        assertEquals(TCPReconnectScheduler.MAX_CONCURRENT_ATTEMPTS, scheduler.getRunningAttempts());
+        assertEquals(2, scheduler.getWaitingToConnect());
+
+        runTask(0);
+
+        assertEquals(TCPReconnectScheduler.MAX_CONCURRENT_ATTEMPTS + 1, tasks.size());
+        assertEquals(TCPReconnectScheduler.MAX_CONCURRENT_ATTEMPTS, scheduler.getRunningAttempts());
+        assertEquals(1, scheduler.getWaitingToConnect());
+    }
+
+    @Test
+    public void clearShouldForgetWaitingUsers() {
+        for (int i = 0; i < TCPReconnectScheduler.MAX_CONCURRENT_ATTEMPTS + 2; i++) {
+            scheduler.connect(new User("User" + i, i));
+        }
+
+        scheduler.clear();
+
+        assertEquals(0, scheduler.getWaitingToConnect());
+        runTask(0);
+        assertEquals(TCPReconnectScheduler.MAX_CONCURRENT_ATTEMPTS, tasks.size());
+    }
+
+    @Test
+    public void attemptThatThrowsExceptionShouldCountAsFailure() {
+        when(connectionAttempt.connect(user, TCPReconnectScheduler.INITIAL_CONNECT_TIMEOUT))
+                .thenThrow(new IllegalStateException("Failed"));
+
+        scheduler.connect(user);
+
+        try {
+            runTask(0);
+            fail("Should throw exception");
+        } catch (final IllegalStateException e) {
+            assertEquals("Failed", e.getMessage());
+        }
+
+        assertEquals(1, scheduler.getFailures(user));
+        assertEquals(0, scheduler.getRunningAttempts());
+    }
+
+    @Test
+    public void getRetryDelayShouldDoubleForEachFailureWithRandomness() {
+        for (int failures = 1; failures <= 5; failures++) {
+            final long fullDelay = TCPReconnectScheduler.INITIAL_DELAY << (failures - 1);
+            final long delay = scheduler.getRetryDelay(failures);
+
+            assertTrue(delay >= fullDelay / 2);
+            assertTrue(delay <= fullDelay);
+        }
+    }
+
+    @Test
+    public void getRetryDelayShouldNotBeLongerThanMax() {
+        for (int failures = 7; failures < 100; failures++) {
+            final long delay = scheduler.getRetryDelay(failures);
+
+            assertTrue(delay >= TCPReconnectScheduler.MAX_DELAY / 2);
+            assertTrue(delay <= TCPReconnectScheduler.MAX_DELAY);
+        }
+    }
+
+    @Test
+    public void getConnectTimeoutShouldGrowToMax() {
+        assertEquals(2500, TCPReconnectScheduler.getConnectTimeout(0));
+        assertEquals(5000, TCPReconnectScheduler.getConnectTimeout(1));
+        assertEquals(10_000, TCPReconnectScheduler.getConnectTimeout(2));
+        assertEquals(10_000, TCPReconnectScheduler.getConnectTimeout(50));
+    }
+
+    private void runTask(final int index) {
+        tasks.get(index).run();
+    }
+
+    private TimerTask captureRetryTask() {
+        final ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+
+        return captureRetryTask(delay);
+    }
+
+    private TimerTask captureRetryTask(final ArgumentCaptor<Long> delay) {
+        final ArgumentCaptor<TimerTask> task = ArgumentCaptor.forClass(TimerTask.class);
+        verify(timer).schedule(task.capture(), delay.capture());
+
+        return task.getValue();
+    }
+}
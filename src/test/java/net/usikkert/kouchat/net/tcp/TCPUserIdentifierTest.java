@@ -0,0 +1,192 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.mockito.Mockito.*;
+
+import java.util.Timer;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.settings.Settings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPUserIdentifier}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPUserIdentifierTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private TCPUserIdentifier identifier;
+
+    private Controller controller;
+    private Settings settings;
+    private TCPClient client;
+    private TCPIdentificationListener listener;
+    private User user;
+    private Timer timer;
+
+    @Before
+    public void setUp() {
+        controller = mock(Controller.class);
+        settings = mock(Settings.class);
+        client = mock(TCPClient.class);
+        listener = mock(TCPIdentificationListener.class);
+        timer = new Timer(true);
+
+        when(settings.getMe()).thenReturn(new User("Me", 1234));
+        when(client.getIPAddress()).thenReturn("192.168.1.2");
+
+        user = new User("User", 5678);
+        user.setIpAddress("192.168.1.2");
+        when(controller.getUser(5678)).thenReturn(user);
+
+        identifier = new TCPUserIdentifier(controller, settings, client, listener);
+    }
+
+    @After
+    public void tearDown() {
+        timer.cancel();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfListenerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Listener can not be null");
+
+        new TCPUserIdentifier(controller, settings, client, null);
+    }
+
+    @Test
+    public void constructorShouldRegisterAsClientListener() {
+        verify(client).registerClientListener(identifier);
+    }
+
+    @Test
+    public void messageArrivedShouldNotifyListenerOfIdentifiedUserRightAway() {
+        identifier.messageArrived("SYS-IDENTIFY:5678:1234", client);
+
+        verify(client).registerClientListener(null);
+        verify(listener).userIdentified(user, client);
+        verify(client, never()).useVarintFramingForReading();
+        verify(client, never()).useVarintFramingForWriting();
+    }
+
+    @Test
+    public void messageArrivedShouldChangeFramingWhenAskedFor() {
+        identifier.messageArrived("SYS-IDENTIFY:5678:1234:varint", client);
+
+        verify(listener).userIdentified(user, client);
+        verify(client).useVarintFramingForReading();
+        verify(client).useVarintFramingForWriting();
+    }
+
+    @Test
+    public void messageArrivedShouldFailIfFormatIsUnexpected() {
+        identifier.messageArrived("12345678!MSG#Test:[1]Hello", client);
+
+        verify(listener).identificationFailed(client);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void messageArrivedShouldFailIfRecipientIsSomeoneElse() {
+        identifier.messageArrived("SYS-IDENTIFY:5678:4321", client);
+
+        verify(listener).identificationFailed(client);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void messageArrivedShouldFailIfUserIsUnknown() {
+        identifier.messageArrived("SYS-IDENTIFY:8765:1234", client);
+
+        verify(listener).identificationFailed(client);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void messageArrivedShouldFailIfUserHasAnotherIpAddress() {
+        user.setIpAddress("192.168.1.3");
+
+        identifier.messageArrived("SYS-IDENTIFY:5678:1234", client);
+
+        verify(listener).identificationFailed(client);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void disconnectedShouldFail() {
+        identifier.disconnected(client);
+
+        verify(listener).identificationFailed(client);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void listenerShouldOnlyBeNotifiedOnce() {
+        identifier.messageArrived("SYS-IDENTIFY:5678:1234", client);
+        identifier.disconnected(client);
+
+        verify(listener).userIdentified(user, client);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void scheduleTimeoutShouldFailIfUserDoesNotIdentifyInTime() {
+        identifier.scheduleTimeout(timer, 10);
+
+        verify(listener, timeout(5000)).identificationFailed(client);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void scheduleTimeoutShouldNotFailIfUserHasIdentified() throws InterruptedException {
+        identifier.scheduleTimeout(timer, 50);
+        identifier.messageArrived("SYS-IDENTIFY:5678:1234", client);
+
+        Thread.sleep(200);
+
+        verify(listener).userIdentified(user, client);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void scheduleTimeoutShouldDoNothingIfUserHasIdentified() {
+        identifier.messageArrived("SYS-IDENTIFY:5678:1234", client);
+        identifier.scheduleTimeout(timer, 10);
+
+        verify(listener).userIdentified(user, client);
+        verifyNoMoreInteractions(listener);
+    }
+}
@@ -0,0 +1,205 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPWriteQueue}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPWriteQueueTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private TCPWriteQueue queue;
+    private TCPWriteStatistics statistics;
+
+    @Before
+    public void setUp() {
+        statistics = new TCPWriteStatistics();
+        queue = new TCPWriteQueue(statistics);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfStatisticsIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Statistics can not be null");
+
+        new TCPWriteQueue(null);
+    }
+
+    @Test
+    public void isDroppableShouldBeTrueForPresenceMessages() {
+        assertTrue(TCPWriteQueue.isDroppable("12345678!WRITING#Test:"));
+        assertTrue(TCPWriteQueue.isDroppable("12345678!STOPPEDWRITING#Test:"));
+        assertTrue(TCPWriteQueue.isDroppable("12345678.5!IDLE#Test:"));
+    }
+
+    @Test
+    public void isDroppableShouldBeFalseForOtherMessages() {
+        assertFalse(TCPWriteQueue.isDroppable("12345678!MSG#Test:[1]Hello"));
+        assertFalse(TCPWriteQueue.isDroppable("12345678!AWAY#Test:Gone"));
+        assertFalse(TCPWriteQueue.isDroppable("SYS-IDENTIFY:123:456"));
+        assertFalse(TCPWriteQueue.isDroppable("SYS-DISCONNECT-ADDITIONAL"));
+    }
+
+    @Test
+    public void pollShouldReturnMessagesInOrder() {
+        final ByteBuffer first = frame(10);
+        final ByteBuffer second = frame(20);
+
+        assertTrue(queue.offer(first, false));
+        assertTrue(queue.offer(second, true));
+
+        assertEquals(2, queue.size());
+        assertEquals(30, queue.getBytes());
+
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertNull(queue.poll());
+
+        assertEquals(0, queue.getBytes());
+        assertEquals(2, statistics.getLongestQueue());
+    }
+
+    @Test
+    public void pollAllShouldReturnAsManyMessagesAsThereIsRoomFor() {
+        final ByteBuffer first = frame(10);
+        final ByteBuffer second = frame(20);
+        final ByteBuffer third = frame(30);
+
+        queue.offer(first, false);
+        queue.offer(second, false);
+        queue.offer(third, false);
+
+        final ByteBuffer[] frames = new ByteBuffer[2];
+
+        assertEquals(2, queue.pollAll(frames));
+        assertSame(first, frames[0]);
+        assertSame(second, frames[1]);
+        assertEquals(30, queue.getBytes());
+
+        assertEquals(1, queue.pollAll(frames));
+        assertSame(third, frames[0]);
+
+        assertEquals(0, queue.pollAll(frames));
+        assertEquals(0, queue.getBytes());
+    }
+
+    @Test
+    public void offerShouldDropOldestPresenceMessagesWhenFull() {
+        final ByteBuffer presence = frame(1);
+        assertTrue(queue.offer(presence, true));
+
+        for (int i = 1; i < TCPWriteQueue.MAX_MESSAGES; i++) {
+            assertTrue(queue.offer(frame(1), false));
+        }
+
+        final ByteBuffer last = frame(1);
+        assertTrue(queue.offer(last, false));
+
+        assertEquals(TCPWriteQueue.MAX_MESSAGES, queue.size());
+        assertEquals(1, statistics.getDroppedMessages());
+        assertNotSame(presence, queue.poll());
+    }
+
+    @Test
+    public void offerShouldDropPresenceMessageWhenFullOfOtherMessages() {
+        fillQueue();
+
+        assertTrue(queue.offer(frame(1), true));
+
+        assertEquals(TCPWriteQueue.MAX_MESSAGES, queue.size());
+        assertEquals(1, statistics.getDroppedMessages());
+    }
+
+    @Test
+    public void offerShouldRefuseMessageWhenFullOfOtherMessages() {
+        fillQueue();
+
+        assertFalse(queue.offer(frame(1), false));
+
+        assertEquals(TCPWriteQueue.MAX_MESSAGES, queue.size());
+        assertEquals(0, statistics.getDroppedMessages());
+    }
+
+    @Test
+    public void offerShouldRefuseMessageWhenTooManyBytes() {
+        assertTrue(queue.offer(frame(TCPWriteQueue.MAX_BYTES - 10), false));
+
+        assertFalse(queue.offer(frame(11), false));
+        assertTrue(queue.offer(frame(10), false));
+    }
+
+    @Test
+    public void closeShouldClearAndRefuseNewMessages() throws InterruptedException {
+        queue.offer(frame(10), false);
+        queue.close();
+
+        assertEquals(0, queue.size());
+        assertFalse(queue.offer(frame(10), false));
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void takeShouldWaitForMessage() throws InterruptedException {
+        final ByteBuffer message = frame(10);
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+
+                queue.offer(message, false);
+            }
+        }.start();
+
+        assertSame(message, queue.take());
+    }
+
+    private void fillQueue() {
+        for (int i = 0; i < TCPWriteQueue.MAX_MESSAGES; i++) {
+            assertTrue(queue.offer(frame(1), false));
+        }
+    }
+
+    private ByteBuffer frame(final int size) {
+        return ByteBuffer.allocate(size);
+    }
+}
@@ -0,0 +1,188 @@
+
+/***************************************************************************
+ *   Copyright 2006-2018 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.ui.swing;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+import net.usikkert.kouchat.misc.SortedUserList;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link UserListModel}.
+ *
+ * @author Christian Ihle
+ */
+public class UserListModelTest {
+
+    private SortedUserList userList;
+    private UserListModel model;
+    private List<String> events;
+
+    @Before
+    public void setUp() {
+        userList = new SortedUserList();
+        model = new UserListModel(userList);
+        events = new ArrayList<>();
+
+        model.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(final ListDataEvent e) {
+                events.add("added " + e.getIndex0() + "-" + e.getIndex1());
+            }
+
+            @Override
+            public void intervalRemoved(final ListDataEvent e) {
+                events.add("removed " + e.getIndex0() + "-" + e.getIndex1());
+            }
+
+            @Override
+            public void contentsChanged(final ListDataEvent e) {
+                events.add("changed " + e.getIndex0() + "-" + e.getIndex1());
+            }
+        });
+    }
+
+    @Test
+    public void usersNextToEachOtherShouldBeAddedInOneEvent() throws Exception {
+        userList.addAll(createUsers("User", 0, 3));
+        waitForSize(3);
+
+        assertEquals(1, events.size());
+        assertEquals("added 0-2", events.get(0));
+        assertEquals("User0", model.getElementAt(0).getNick());
+        assertEquals("User2", model.getElementAt(2).getNick());
+    }
+
+    @Test
+    public void usersApartShouldBeRemovedInSeparateEventsFromTheBottom() throws Exception {
+        final List<User> users = createUsers("User", 0, 5);
+        userList.addAll(users);
+        waitForSize(5);
+        events.clear();
+
+        userList.removeAll(Arrays.asList(users.get(1), users.get(3)));
+        waitForSize(3);
+
+        assertEquals(2, events.size());
+        assertEquals("removed 3-3", events.get(0));
+        assertEquals("removed 1-1", events.get(1));
+    }
+
+    @Test
+    public void manyUsersShouldRefreshTheWholeList() throws Exception {
+        final List<User> users = createUsers("User", 0, 30);
+        userList.addAll(users);
+        waitForSize(30);
+        events.clear();
+
+        userList.removeAll(users.subList(5, 30));
+        waitForSize(5);
+
+        assertEquals(2, events.size());
+        assertEquals("removed 5-29", events.get(0));
+        assertEquals("changed 0-4", events.get(1));
+    }
+
+    @Test
+    public void changedUserShouldSendOneEventCoveringTheOldAndNewPosition() throws Exception {
+        final List<User> users = createUsers("User", 0, 5);
+        userList.addAll(users);
+        waitForSize(5);
+        events.clear();
+
+        users.get(1).setNick("User9");
+        userList.update(users.get(1));
+        waitForEvents(1);
+
+        assertEquals("changed 1-4", events.get(0));
+        assertEquals("User9", model.getElementAt(4).getNick());
+    }
+
+    private void waitForSize(final int size) throws Exception {
+        final long end = System.currentTimeMillis() + 5000;
+
+        while (getSizeOnEventDispatchThread() != size && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(size, getSizeOnEventDispatchThread());
+    }
+
+    private void waitForEvents(final int count) throws Exception {
+        final long end = System.currentTimeMillis() + 5000;
+
+        while (getEventCountOnEventDispatchThread() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(count, getEventCountOnEventDispatchThread());
+    }
+
+    private int getSizeOnEventDispatchThread() throws InterruptedException, InvocationTargetException {
+        final int[] size = new int[1];
+
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                size[0] = model.getSize();
+            }
+        });
+
+        return size[0];
+    }
+
+    private int getEventCountOnEventDispatchThread() throws InterruptedException, InvocationTargetException {
+        final int[] count = new int[1];
+
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = events.size();
+            }
+        });
+
+        return count[0];
+    }
+
+    private List<User> createUsers(final String prefix, final int firstCode, final int count) {
+        final List<User> users = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            users.add(new User(String.format("%s%d", prefix, i), firstCode + i));
+        }
+
+        return users;
+    }
+}